@@ -0,0 +1,207 @@
+package com.project.challenge.benchmarks;
+
+import com.project.challenge.entities.CidrBitBlock;
+import com.project.challenge.model.CIDR;
+import com.project.challenge.repositories.BlockRepository;
+import com.project.challenge.services.*;
+import org.mockito.Mockito;
+import org.springframework.boot.logging.LogLevel;
+import org.springframework.boot.logging.LoggingSystem;
+import org.springframework.data.domain.Pageable;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Services wired by hand, as Spring would wire them, for benchmarks to run without the application or a database.
+ */
+final class BenchmarkServices {
+    private BenchmarkServices() {
+    }
+
+    /**
+     * Outside Spring Boot, nothing configures logging: every change would be logged at debug.
+     */
+    static void quietLogging() {
+        LoggingSystem.get(BenchmarkServices.class.getClassLoader()).setLogLevel("com.project.challenge", LogLevel.WARN);
+    }
+
+    /**
+     * Pools fixed at those given, laid out one after another.
+     *
+     * @param blockService for block counts.
+     * @param cidrBlocks the pools.
+     * @return CIDR state service always giving those pools.
+     * @throws CidrExistsException if any overlap.
+     */
+    static CidrStateService fixedCidrState(IpBlockService blockService, CIDR... cidrBlocks) throws CidrExistsException {
+        CidrPools cidrPools = CidrPools.EMPTY;
+        for (CIDR cidrBlock : cidrBlocks) {
+            cidrPools = cidrPools.with(cidrBlock, blockService.getBlockCount(cidrBlock));
+        }
+        return new FixedCidrStateService(cidrPools);
+    }
+
+    /**
+     * Memory store, loaded from nothing, its write-behind put off past the end of any run.
+     *
+     * @param cidrStateService tells how many blocks there are.
+     * @param blockService for block sizing.
+     * @return started store: stop it at tear-down.
+     */
+    static InMemoryBitBlockStore memoryStore(CidrStateService cidrStateService, IpBlockService blockService) {
+        BlockRepository blockRepository = Mockito.mock(BlockRepository.class);
+        Mockito.when(blockRepository.findAll()).thenReturn(Collections.emptyList());
+        InMemoryBitBlockStore store = new InMemoryBitBlockStore(
+                cidrStateService,
+                blockService,
+                blockRepository,
+                Mockito.mock(PlatformTransactionManager.class),
+                new BlockLockStripes(64)
+        );
+        store.setFlushIntervalMs(TimeUnit.HOURS.toMillis(1));
+        store.setDirtyThreshold(Integer.MAX_VALUE);
+        store.start();
+        store.loadAtStartup();
+        return store;
+    }
+
+    /**
+     * The IP state service over the store given.
+     */
+    static IpStateService ipStateService(
+            Ipv4ConversionService conversionService,
+            CidrStateService cidrStateService,
+            IpBlockService blockService,
+            BitBlockStore store
+    ) {
+        return new IpStateServiceImpl(
+                conversionService, cidrStateService, blockService, store, Mockito.mock(BlockReblocking.class)
+        );
+    }
+
+    /**
+     * Acquire about a third of the odd offsets of the pool, the same ones every run.  Even offsets are left free.
+     */
+    static void acquireOddThird(IpStateService service, CIDR cidrBlock) throws IpStateServiceException {
+        Random random = new Random(42);
+        long first = cidrBlock.getStartingAddrLong();
+        for (long offset = 1; offset < cidrBlock.getAddressCount(); offset += 2) {
+            if (random.nextInt(3) == 0) {
+                service.acquire((int) (first + offset));
+            }
+        }
+    }
+
+    /**
+     * Block repository held in a map, in place of the database.  Blocks are copied in and out, as a database would.
+     * Answers only what the repository block store asks of it.
+     *
+     * @return the stub.
+     */
+    static BlockRepository stubBlockRepository() {
+        ConcurrentMap<Integer, CidrBitBlock> rows = new ConcurrentHashMap<>();
+        return (BlockRepository) Proxy.newProxyInstance(
+                BlockRepository.class.getClassLoader(),
+                new Class<?>[] { BlockRepository.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "findById":
+                            return Optional.ofNullable(rows.get((Integer) args[0])).map(BenchmarkServices::copy);
+                        case "findAllById": {
+                            List<CidrBitBlock> found = new ArrayList<>();
+                            for (Object id : (Iterable<?>) args[0]) {
+                                CidrBitBlock row = rows.get((Integer) id);
+                                if (row != null) {
+                                    found.add(copy(row));
+                                }
+                            }
+                            return found;
+                        }
+                        case "save":
+                            rows.put(((CidrBitBlock) args[0]).getId(), copy((CidrBitBlock) args[0]));
+                            return args[0];
+                        case "saveAll":
+                            for (Object bitBlock : (Iterable<?>) args[0]) {
+                                rows.put(((CidrBitBlock) bitBlock).getId(), copy((CidrBitBlock) bitBlock));
+                            }
+                            return args[0];
+                        case "findAll":
+                            return rows.values().stream().map(BenchmarkServices::copy).collect(Collectors.toList());
+                        case "findByIdGreaterThanOrderByIdAsc":
+                            return rows.keySet().stream()
+                                    .filter(id -> id > (Integer) args[0])
+                                    .sorted()
+                                    .limit(((Pageable) args[1]).getPageSize())
+                                    .map(id -> copy(rows.get(id)))
+                                    .collect(Collectors.toList());
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "StubBlockRepository";
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                }
+        );
+    }
+
+    private static CidrBitBlock copy(CidrBitBlock bitBlock) {
+        CidrBitBlock copied = new CidrBitBlock();
+        copied.setId(bitBlock.getId());
+        copied.setEncodedBits(bitBlock.getEncodedBits());
+        copied.setRawBits(bitBlock.getRawBits());
+        copied.setVersion(bitBlock.getVersion());
+        return copied;
+    }
+
+    /** The one set of pools, always. */
+    private static final class FixedCidrStateService implements CidrStateService {
+        private final CidrPools cidrPools;
+
+        private FixedCidrStateService(CidrPools cidrPools) {
+            this.cidrPools = cidrPools;
+        }
+
+        @Override
+        public CidrPools getCidrPools() {
+            return cidrPools;
+        }
+
+        @Override
+        public CidrPools refresh() {
+            return cidrPools;
+        }
+
+        @Override
+        public CidrPools refreshAfterMiss() {
+            return cidrPools;
+        }
+
+        @Override
+        public void addCidrBlock(CIDR cidrBlock) throws CidrExistsException {
+            throw new CidrExistsException();
+        }
+
+        @Override
+        public void addCidrBlock(String cidrBlockNotation) throws CidrExistsException {
+            throw new CidrExistsException();
+        }
+
+        @Override
+        public boolean isPopulated() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.project.challenge.benchmarks;
+
+import com.project.challenge.model.CIDR;
+import com.project.challenge.model.IpReport;
+import com.project.challenge.services.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Block size against the work it trades off, over a /16 pool a third acquired, held by the memory store.  Threads
+ * acquire and release addresses of their own, interleaved so that they share blocks, and contend for them; or take
+ * the next free address, and give it back.  Reports read every block.  Run with -p blockSize=... to try others.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlockSizeBenchmark {
+    private static final String CIDR_FOR_BENCHMARK = "10.0.0.0/16";
+    private static final int THREADS = 4;
+
+    @Param({ "256", "1024", "4096" })
+    public int blockSize;
+
+    private InMemoryBitBlockStore store;
+    private IpStateService service;
+    private CIDR cidrBlock;
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkServices.quietLogging();
+        Ipv4ConversionService conversionService = new Ipv4ConversionServiceImpl();
+        IpBlockServiceImpl blockService = new IpBlockServiceImpl(conversionService);
+        blockService.setBlockSize(blockSize);
+        cidrBlock = conversionService.toCidr(CIDR_FOR_BENCHMARK);
+        CidrStateService cidrStateService = BenchmarkServices.fixedCidrState(blockService, cidrBlock);
+        store = BenchmarkServices.memoryStore(cidrStateService, blockService);
+        service = BenchmarkServices.ipStateService(conversionService, cidrStateService, blockService, store);
+        // The even offsets are left to the threads.
+        BenchmarkServices.acquireOddThird(service, cidrBlock);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        store.stop();
+    }
+
+    /** Even addresses of one thread's own, a THREADS-th of the way apart: neighbours' addresses share its blocks. */
+    @State(Scope.Thread)
+    public static class ThreadAddresses {
+        private int threadIndex;
+        private long cursor;
+
+        @Setup
+        public void setup(BlockSizeBenchmark benchmark) {
+            threadIndex = benchmark.threadCount.getAndIncrement() % THREADS;
+        }
+
+        private int next(CIDR cidrBlock) {
+            long perThread = cidrBlock.getAddressCount() / 2 / THREADS;
+            long offset = 2 * ((cursor++ % perThread) * THREADS + threadIndex);
+            return (int) (cidrBlock.getStartingAddrLong() + offset);
+        }
+    }
+
+    @Benchmark
+    @Threads(THREADS)
+    public void acquireReleaseContended(ThreadAddresses addresses) throws IpStateServiceException {
+        int ipAddr = addresses.next(cidrBlock);
+        service.acquire(ipAddr);
+        service.release(ipAddr);
+    }
+
+    @Benchmark
+    @Threads(THREADS)
+    public void acquireNextContended() throws IpStateServiceException {
+        service.setIpStateReleased(service.acquireNextIp());
+    }
+
+    @Benchmark
+    public IpReport report() throws IpStateServiceException {
+        return service.getIpReport();
+    }
+}
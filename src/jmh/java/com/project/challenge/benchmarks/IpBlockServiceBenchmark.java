@@ -0,0 +1,77 @@
+package com.project.challenge.benchmarks;
+
+import com.project.challenge.model.CIDR;
+import com.project.challenge.model.IpBlockDescriptor;
+import com.project.challenge.services.BitWords;
+import com.project.challenge.services.InvalidFormatException;
+import com.project.challenge.services.IpBlockServiceImpl;
+import com.project.challenge.services.Ipv4ConversionService;
+import com.project.challenge.services.Ipv4ConversionServiceImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Block encoding, as every read and write of a stored block does it: base64 text, and packed binary words.  Also
+ * finding an address' block and bit.  Blocks are of the default size, with the share of bits set given.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IpBlockServiceBenchmark {
+    private static final String[] IP_ADDRS = { "10.0.0.1", "10.17.200.3", "10.255.255.254", "10.128.0.77" };
+
+    @Param({ "1", "50" })
+    public int acquiredPercent;
+
+    private final Ipv4ConversionService conversionService = new Ipv4ConversionServiceImpl();
+    private final IpBlockServiceImpl blockService = new IpBlockServiceImpl(conversionService);
+    private CIDR cidrBlock;
+    private long[] words;
+    private String encodedBits;
+    private byte[] rawBits;
+    private int next;
+
+    @Setup
+    public void setup() throws InvalidFormatException {
+        cidrBlock = conversionService.toCidr("10.0.0.0/8");
+        words = new long[blockService.getWordsPerBlock()];
+        Random random = new Random(42);
+        for (int bit = 0; bit < blockService.getBlockSize(); bit++) {
+            if (random.nextInt(100) < acquiredPercent) {
+                BitWords.set(words, bit, true);
+            }
+        }
+        encodedBits = blockService.encodeBlock(words);
+        rawBits = blockService.packBlock(words);
+    }
+
+    @Benchmark
+    public String encodeBase64() {
+        return blockService.encodeBlock(words);
+    }
+
+    @Benchmark
+    public long[] decodeBase64() {
+        return blockService.decodeBlock(encodedBits);
+    }
+
+    @Benchmark
+    public byte[] packBinary() {
+        return blockService.packBlock(words);
+    }
+
+    @Benchmark
+    public long[] unpackBinary() {
+        return blockService.unpackBlock(rawBits);
+    }
+
+    @Benchmark
+    public IpBlockDescriptor bitBlockDescriptor() throws InvalidFormatException {
+        return blockService.getBitBlockDescriptor(cidrBlock, IP_ADDRS[next++ % IP_ADDRS.length]);
+    }
+}
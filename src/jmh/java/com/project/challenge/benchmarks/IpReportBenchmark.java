@@ -0,0 +1,48 @@
+package com.project.challenge.benchmarks;
+
+import com.project.challenge.model.CIDR;
+import com.project.challenge.model.IpReport;
+import com.project.challenge.services.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the report of every address's state, over pools of growing size a third acquired, held by the memory
+ * store.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IpReportBenchmark {
+    @Param({ "10.0.0.0/24", "10.0.0.0/16", "10.0.0.0/12" })
+    public String cidr;
+
+    private InMemoryBitBlockStore store;
+    private IpStateService service;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkServices.quietLogging();
+        Ipv4ConversionService conversionService = new Ipv4ConversionServiceImpl();
+        IpBlockService blockService = new IpBlockServiceImpl(conversionService);
+        CIDR cidrBlock = conversionService.toCidr(cidr);
+        CidrStateService cidrStateService = BenchmarkServices.fixedCidrState(blockService, cidrBlock);
+        store = BenchmarkServices.memoryStore(cidrStateService, blockService);
+        service = BenchmarkServices.ipStateService(conversionService, cidrStateService, blockService, store);
+        BenchmarkServices.acquireOddThird(service, cidrBlock);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        store.stop();
+    }
+
+    @Benchmark
+    public IpReport buildReport() throws IpStateServiceException {
+        return service.getIpReport();
+    }
+}
@@ -0,0 +1,81 @@
+package com.project.challenge.benchmarks;
+
+import com.project.challenge.model.CIDR;
+import com.project.challenge.services.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Acquiring and releasing single addresses, by way of the repository block store, over a repository held in a map:
+ * every change reads, decodes, encodes and saves its block, under the block's lock, with no database time.  One
+ * thread alone; then four, each on addresses of its own, interleaved so that they share blocks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IpStateChangeBenchmark {
+    private static final String CIDR_FOR_BENCHMARK = "10.0.0.0/16";
+    private static final int THREADS = 4;
+
+    @Param({ "base64", "binary" })
+    public String blockFormat;
+
+    private IpStateService service;
+    private CIDR cidrBlock;
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkServices.quietLogging();
+        Ipv4ConversionService conversionService = new Ipv4ConversionServiceImpl();
+        IpBlockServiceImpl blockService = new IpBlockServiceImpl(conversionService);
+        blockService.setBlockFormat(blockFormat);
+        cidrBlock = conversionService.toCidr(CIDR_FOR_BENCHMARK);
+        CidrStateService cidrStateService = BenchmarkServices.fixedCidrState(blockService, cidrBlock);
+        BitBlockStore store = new RepositoryBitBlockStore(
+                blockService, BenchmarkServices.stubBlockRepository(), new BlockLockStripes(64), cidrStateService
+        );
+        service = BenchmarkServices.ipStateService(conversionService, cidrStateService, blockService, store);
+        // The even offsets are left to the benchmarks.
+        BenchmarkServices.acquireOddThird(service, cidrBlock);
+    }
+
+    /** Even addresses of one thread's own, a THREADS-th of the way apart: neighbours' addresses share its blocks. */
+    @State(Scope.Thread)
+    public static class ThreadAddresses {
+        private int threadIndex;
+        private long cursor;
+
+        @Setup
+        public void setup(IpStateChangeBenchmark benchmark) {
+            threadIndex = benchmark.threadCount.getAndIncrement() % THREADS;
+        }
+
+        private int next(CIDR cidrBlock) {
+            long perThread = cidrBlock.getAddressCount() / 2 / THREADS;
+            long offset = 2 * ((cursor++ % perThread) * THREADS + threadIndex);
+            return (int) (cidrBlock.getStartingAddrLong() + offset);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void acquireRelease(ThreadAddresses addresses) throws IpStateServiceException {
+        int ipAddr = addresses.next(cidrBlock);
+        service.acquire(ipAddr);
+        service.release(ipAddr);
+    }
+
+    @Benchmark
+    @Threads(THREADS)
+    public void acquireReleaseContended(ThreadAddresses addresses) throws IpStateServiceException {
+        int ipAddr = addresses.next(cidrBlock);
+        service.acquire(ipAddr);
+        service.release(ipAddr);
+    }
+}
@@ -0,0 +1,66 @@
+package com.project.challenge.benchmarks;
+
+import com.project.challenge.model.CIDR;
+import com.project.challenge.services.InvalidFormatException;
+import com.project.challenge.services.Ipv4ConversionService;
+import com.project.challenge.services.Ipv4ConversionServiceImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The conversion service, as the controller and state service call it: parsing addresses and CIDR blocks, checking
+ * an address against a CIDR block (by strings, and by the pool's offset check), and formatting addresses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Ipv4ConversionBenchmark {
+    private static final String[] IP_ADDRS = {
+            "10.0.0.1", "192.168.100.254", "172.16.3.7", "8.8.8.8", "255.255.255.255", "10.200.17.99"
+    };
+    private static final String[] CIDR_BLOCKS = { "10.0.0.0/8", "192.168.100.0/24", "172.16.0.0/12" };
+
+    private final Ipv4ConversionService conversionService = new Ipv4ConversionServiceImpl();
+    private CIDR cidrBlock;
+    private int[] ipInts;
+    private int next;
+
+    @Setup
+    public void setup() throws InvalidFormatException {
+        cidrBlock = conversionService.toCidr(CIDR_BLOCKS[0]);
+        ipInts = new int[IP_ADDRS.length];
+        for (int i = 0; i < IP_ADDRS.length; i++) {
+            ipInts[i] = (int) conversionService.getIpAsLong(IP_ADDRS[i]);
+        }
+    }
+
+    @Benchmark
+    public long parseAddress() throws InvalidFormatException {
+        return conversionService.getIpAsLong(IP_ADDRS[next++ % IP_ADDRS.length]);
+    }
+
+    @Benchmark
+    public CIDR parseCidr() throws InvalidFormatException {
+        return conversionService.toCidr(CIDR_BLOCKS[next++ % CIDR_BLOCKS.length]);
+    }
+
+    @Benchmark
+    public boolean rangeCheckStrings() throws InvalidFormatException {
+        int i = next++;
+        return conversionService.isIpInCidrRange(IP_ADDRS[i % IP_ADDRS.length], CIDR_BLOCKS[i % CIDR_BLOCKS.length]);
+    }
+
+    @Benchmark
+    public boolean rangeCheckPool() {
+        return cidrBlock.contains(ipInts[next++ % ipInts.length]);
+    }
+
+    @Benchmark
+    public String formatAddress() {
+        return conversionService.getLongAsIp(Integer.toUnsignedLong(ipInts[next++ % ipInts.length]));
+    }
+}
@@ -0,0 +1,56 @@
+package com.project.challenge.benchmarks;
+
+import com.google.common.net.InetAddresses;
+import com.project.challenge.services.Ipv4Parser;
+import org.apache.commons.validator.routines.InetAddressValidator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Parsing of IP addresses and CIDR blocks: the hand-rolled parser against the way it used to be done, with a
+ * regex-based validator, then Guava building an Inet4Address.  Run with the gc profiler (-prof gc) to compare
+ * allocation too.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Ipv4ParseBenchmark {
+    private static final Pattern CIDR_PATTERN = Pattern.compile("(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})/(\\d{1,3})");
+
+    private static final String[] IP_ADDRS = {
+            "10.0.0.1", "192.168.100.254", "172.16.3.7", "8.8.8.8", "255.255.255.255", "10.200.17.99"
+    };
+    private static final String[] CIDR_BLOCKS = { "10.0.0.0/8", "192.168.100.0/24", "172.16.0.0/12" };
+
+    private final InetAddressValidator validator = new InetAddressValidator();
+    private int next;
+
+    @Benchmark
+    public void parseAddressLegacy(Blackhole blackhole) {
+        String ipAddr = IP_ADDRS[next++ % IP_ADDRS.length];
+        if (validator.isValid(ipAddr)) {
+            blackhole.consume(InetAddresses.coerceToInteger(InetAddresses.forString(ipAddr)));
+        }
+    }
+
+    @Benchmark
+    public void parseAddress(Blackhole blackhole) {
+        blackhole.consume(Ipv4Parser.parseAddress(IP_ADDRS[next++ % IP_ADDRS.length]));
+    }
+
+    @Benchmark
+    public void parseCidrLegacy(Blackhole blackhole) {
+        blackhole.consume(CIDR_PATTERN.matcher(CIDR_BLOCKS[next++ % CIDR_BLOCKS.length]).matches());
+    }
+
+    @Benchmark
+    public void parseCidr(Blackhole blackhole) {
+        blackhole.consume(Ipv4Parser.parseCidr(CIDR_BLOCKS[next++ % CIDR_BLOCKS.length]));
+    }
+}
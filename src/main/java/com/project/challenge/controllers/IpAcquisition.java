@@ -1,15 +1,35 @@
 package com.project.challenge.controllers;
 
-import com.project.challenge.model.IpReport;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.project.challenge.model.CIDR;
+import com.project.challenge.model.IpBatchOutcome;
+import com.project.challenge.model.IpBatchResult;
+import com.project.challenge.model.IpCheckoutState;
+import com.project.challenge.model.IpRange;
+import com.project.challenge.model.IpReportFormat;
+import com.project.challenge.model.IpStatePage;
+import com.project.challenge.model.IpStats;
 import com.project.challenge.repositories.CidrDefRepository;
 import com.project.challenge.services.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
 
 /**
  * REST ful endpoint controller for IP address management.
@@ -25,30 +45,57 @@ public class IpAcquisition {
     private static final String CIDR_BLOCK_PATH_VAR = "cidr";
     private static final String CIDR_BLOCK_PATH_NAME = "/{" + CIDR_BLOCK_PATH_VAR + "}";
 
+    private static final String ALL_OR_NOTHING_PARAM = "allOrNothing";
+    private static final String FORMAT_PARAM = "format";
+    private static final String STATE_PARAM = "state";
+    private static final String FROM_PARAM = "from";
+    private static final String TO_PARAM = "to";
+    private static final String CURSOR_PARAM = "cursor";
+    private static final String LIMIT_PARAM = "limit";
+    private static final int DEFAULT_PAGE_LIMIT = 500;
+
+    private static final int REPORT_BUFFER_SIZE = 64 * 1024;
+
     public static final String STD_PATH = "ip";
 
     private Logger log = LogManager.getLogger(IpAcquisition.class);
 
     private IpStateService ipStateService;
     private CidrStateService cidrStateService;
+    private Ipv4ConversionService conversionService;
+    private ObjectMapper objectMapper;
+
+    private int maxPageLimit = 10_000;
 
     /**
      * Gets constructed with a full-prepared state service to use.
      *
      * @param ipStateService used for storing the state back/reading states of IPs and CIDR blocks.
+     * @param conversionService formats IP addresses in reports.
+     * @param objectMapper writes query pages.
      */
     @Autowired
     public IpAcquisition(
             IpStateService ipStateService,
             CidrStateService cidrStateService,
-            CidrDefRepository cidrDefRepository) {
+            CidrDefRepository cidrDefRepository,
+            Ipv4ConversionService conversionService,
+            ObjectMapper objectMapper) {
         this.ipStateService = ipStateService;
         this.cidrStateService = cidrStateService;
+        this.conversionService = conversionService;
+        this.objectMapper = objectMapper;
+    }
+
+    @Value("${ipstate.query.max-limit:10000}")
+    public void setMaxPageLimit(int maxPageLimit) {
+        this.maxPageLimit = maxPageLimit;
     }
 
     /**
      * CREATE – equivalent to POST, in that a new resources is being created.  Here, a CIDR block will be posted, and
      * the known IP address list should be increased.  This action will change what can be acquired, and listed.
+     * Any number of CIDR blocks may be added, so long as none overlap.
      *
      * @param ipAddr starting position for CIDR block.
      * @param cidrBlockMaskSize allocate these values (after the slash).
@@ -62,7 +109,7 @@ public class IpAcquisition {
         log.debug("Got CIDR block to allocate: {}", cidrBlockStr);
         ResponseEntity<Void> responseEntity;
         try {
-            cidrStateService.setCidrBlock(cidrBlockStr);
+            cidrStateService.addCidrBlock(cidrBlockStr);
             responseEntity = ResponseEntity.status(HttpStatus.CREATED).build();
         } catch (CidrExistsException cee) {
             responseEntity = ResponseEntity.status(HttpStatus.CONFLICT).build();
@@ -72,21 +119,54 @@ public class IpAcquisition {
         return responseEntity;
     }
 
+    /**
+     * LIST CIDR - Return all CIDR blocks in use, in order of starting address.
+     *
+     * @return CIDR block notations.
+     */
+    @GetMapping(path="/cidr")
+    public ResponseEntity<List<String>> listCidrBlocks() {
+        return ResponseEntity.ok(
+                cidrStateService.getCidrPools().getCidrBlocks().stream()
+                        .map(CIDR::getCidrBlockNotation)
+                        .collect(Collectors.toList())
+        );
+    }
+
+    /**
+     * RE-BLOCK - Store every CIDR block's bits in blocks of another size, while acquisition goes on.
+     *
+     * @param blockSize bits per block: a power of two.
+     * @return how many blocks there now are; BAD_REQUEST if the size is not valid, or the store cannot re-block while
+     * serving (held apart from the block table, or shared with other applications).
+     */
+    @PutMapping(path="/cidr/block-size/{blockSize}", produces = { MediaType.TEXT_PLAIN_VALUE })
+    public ResponseEntity<String> reblock(@PathVariable("blockSize") int blockSize) {
+        try {
+            return ResponseEntity.ok(String.valueOf(ipStateService.reblock(blockSize)));
+        } catch (IpStateServiceException ipse) {
+            log.warn("Failed to re-block at {} bits.", blockSize, ipse);
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        }
+    }
+
     /**
      * RELEASE – equivalent to PUT, in that a resource is to be changed.  Not changing entire set—only a single IP
      * address.  Should not return any value except success.
      *
      * @param ipAddr attempt to give up use of this IP address and return it to the pool.
-     * @return outcome of the attempt.
+     * @return outcome of the attempt; TEMPORARY_REDIRECT to the instance holding its block, if leased elsewhere.
      */
     @PutMapping(path="/freed" + IpAcquisition.IP_ADDR_PATH_NAME)
     public ResponseEntity<Void> releaseIp(@PathVariable(IP_ADDR_PATH_VAR) String ipAddr) {
         ResponseEntity<Void> responseEntity;
         log.debug("Got IP address to release: {}", ipAddr);
         try {
-            ipStateService.setIpStateReleased(ipAddr);
+            ipStateService.release((int) conversionService.getIpAsLong(ipAddr));
             responseEntity = ResponseEntity.ok().build();
-        } catch (IpStateServiceException ipse) {
+        } catch (BlockLeasedElsewhereException blee) {
+            return redirectToOwner(blee, "/freed/" + ipAddr);
+        } catch (InvalidFormatException | IpStateServiceException ex) {
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
         }
         return responseEntity;
@@ -98,57 +178,365 @@ public class IpAcquisition {
      * (persistent state) by marking one IP address as “acquired”.  This should return a value (the IP address).
      *
      * @param ipAddr attempt to obtain this IP address for use of caller.
-     * @return outcome of the attempt.
+     * @return outcome of the attempt; TEMPORARY_REDIRECT to the instance holding its block, if leased elsewhere.
      */
     @PutMapping(path="/acquired" + IpAcquisition.IP_ADDR_PATH_NAME)
     public ResponseEntity<Void> acquireIp(@PathVariable(IP_ADDR_PATH_VAR) String ipAddr) {
         ResponseEntity<Void> responseEntity = ResponseEntity.ok().build();
         log.debug("Got IP address request: {}", ipAddr);
         try {
-            ipStateService.setIpStateAcquired(ipAddr);
+            ipStateService.acquire((int) conversionService.getIpAsLong(ipAddr));
             responseEntity = ResponseEntity.ok().build();
-        } catch (IpStateServiceException ipse) {
+        } catch (BlockLeasedElsewhereException blee) {
+            return redirectToOwner(blee, "/acquired/" + ipAddr);
+        } catch (InvalidFormatException | IpStateServiceException ex) {
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
         }
         return responseEntity;
     }
 
     /**
-     * LIST - Return states of all the IP addresses managed herein.
+     * ACQUIRE NEXT – equivalent to PUT, in that a resource is being changed.  The caller does not care which IP
+     * address it gets: the first free one is marked as “acquired”, and returned.
      *
-     * @return IP Report telling if each and every IP address has been acquired.
+     * @param cidrBlock optional; take only from this CIDR block (as in NNN.NNN.NNN.NNN/MM).
+     * @return the acquired IP address; CONFLICT if none are free.
      */
-    @GetMapping(path="/ip_states")
-    public ResponseEntity<IpReport> listIps() {
-        log.debug("Report request.");
-        ResponseEntity<IpReport> responseEntity;
+    @PutMapping(path="/acquired/next", produces = { MediaType.TEXT_PLAIN_VALUE })
+    public ResponseEntity<String> acquireNextIp(@RequestParam(name = CIDR_BLOCK_PATH_VAR, required = false) String cidrBlock) {
+        log.debug("Got request for next free IP address in {}.", cidrBlock);
+        ResponseEntity<String> responseEntity;
         try {
-            IpReport report = ipStateService.getIpReport();
-            responseEntity =  ResponseEntity.ok(report);
+            responseEntity = ResponseEntity.ok(ipStateService.acquireNextIp(cidrBlock));
+        } catch (IpPoolExhaustedException ipee) {
+            responseEntity = ResponseEntity.status(HttpStatus.CONFLICT).build();
         } catch (IpStateServiceException ipse) {
-            responseEntity = ResponseEntity.status(HttpStatus.NO_CONTENT).body(null);
+            responseEntity = ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
         }
+        return responseEntity;
+    }
 
+    /**
+     * ACQUIRE RANGE – equivalent to PUT, in that a resource is being changed.  The first run of consecutive free IP
+     * addresses long enough is found, and all of it is marked as “acquired”, at once.
+     *
+     * @param count how many consecutive IP addresses.
+     * @param fromIpAddr optional; the run may not start before this IP address.
+     * @return the acquired run; CONFLICT if no run is long enough, or its blocks were taken by another instance.
+     */
+    @PutMapping(path="/acquired/range")
+    public ResponseEntity<IpRange> acquireIpRange(
+            @RequestParam("count") int count,
+            @RequestParam(name = FROM_PARAM, required = false) String fromIpAddr) {
+        log.debug("Got request for run of {} IP addresses from {}.", count, fromIpAddr);
+        ResponseEntity<IpRange> responseEntity;
+        try {
+            responseEntity = ResponseEntity.ok(ipStateService.acquireIpRange(count, fromIpAddr));
+        } catch (IpPoolExhaustedException | BlockLeasedElsewhereException ex) {
+            responseEntity = ResponseEntity.status(HttpStatus.CONFLICT).build();
+        } catch (IpStateServiceException ipse) {
+            responseEntity = ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        }
         return responseEntity;
     }
 
     /**
-     * LIST - Return states of all the IP addresses managed herein.
+     * BATCH ACQUIRE – as ACQUIRE, for many IP addresses at once, given as a JSON array.
+     *
+     * @param ipAddrs attempt to obtain these IP addresses for use of caller.
+     * @param allOrNothing if any cannot be acquired, acquire none.
+     * @return outcome per IP address; CONFLICT if all-or-nothing was asked for and not achieved, or spans blocks
+     * leased to another instance.
+     */
+    @PutMapping(path="/acquired", consumes = { MediaType.APPLICATION_JSON_VALUE })
+    public ResponseEntity<List<IpBatchResult>> acquireIps(
+            @RequestBody List<String> ipAddrs,
+            @RequestParam(name = ALL_OR_NOTHING_PARAM, defaultValue = "false") boolean allOrNothing) {
+        log.debug("Got batch of {} IP addresses to acquire.", ipAddrs.size());
+        try {
+            return toBatchResponse(ipStateService.setIpStatesAcquired(ipAddrs, allOrNothing), allOrNothing);
+        } catch (BlockLeasedElsewhereException blee) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        } catch (IpStateServiceException ipse) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        }
+    }
+
+    /**
+     * BATCH ACQUIRE – as ACQUIRE, for many IP addresses at once, given one per line.
+     *
+     * @param ipAddrLines attempt to obtain these IP addresses for use of caller.
+     * @param allOrNothing if any cannot be acquired, acquire none.
+     * @return outcome per IP address; CONFLICT if all-or-nothing was asked for and not achieved.
+     */
+    @PutMapping(path="/acquired", consumes = { MediaType.TEXT_PLAIN_VALUE })
+    public ResponseEntity<List<IpBatchResult>> acquireIpLines(
+            @RequestBody String ipAddrLines,
+            @RequestParam(name = ALL_OR_NOTHING_PARAM, defaultValue = "false") boolean allOrNothing) {
+        return acquireIps(splitLines(ipAddrLines), allOrNothing);
+    }
+
+    /**
+     * BATCH RELEASE – as RELEASE, for many IP addresses at once, given as a JSON array.
+     *
+     * @param ipAddrs attempt to give up use of these IP addresses and return them to the pool.
+     * @param allOrNothing if any cannot be released, release none.
+     * @return outcome per IP address; CONFLICT if all-or-nothing was asked for and not achieved, or spans blocks
+     * leased to another instance.
+     */
+    @PutMapping(path="/freed", consumes = { MediaType.APPLICATION_JSON_VALUE })
+    public ResponseEntity<List<IpBatchResult>> releaseIps(
+            @RequestBody List<String> ipAddrs,
+            @RequestParam(name = ALL_OR_NOTHING_PARAM, defaultValue = "false") boolean allOrNothing) {
+        log.debug("Got batch of {} IP addresses to release.", ipAddrs.size());
+        try {
+            return toBatchResponse(ipStateService.setIpStatesReleased(ipAddrs, allOrNothing), allOrNothing);
+        } catch (BlockLeasedElsewhereException blee) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        } catch (IpStateServiceException ipse) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        }
+    }
+
+    /**
+     * BATCH RELEASE – as RELEASE, for many IP addresses at once, given one per line.
+     *
+     * @param ipAddrLines attempt to give up use of these IP addresses and return them to the pool.
+     * @param allOrNothing if any cannot be released, release none.
+     * @return outcome per IP address; CONFLICT if all-or-nothing was asked for and not achieved.
+     */
+    @PutMapping(path="/freed", consumes = { MediaType.TEXT_PLAIN_VALUE })
+    public ResponseEntity<List<IpBatchResult>> releaseIpLines(
+            @RequestBody String ipAddrLines,
+            @RequestParam(name = ALL_OR_NOTHING_PARAM, defaultValue = "false") boolean allOrNothing) {
+        return releaseIps(splitLines(ipAddrLines), allOrNothing);
+    }
+
+    /**
+     * LIST - Return states of all the IP addresses managed herein.  Written out block by block as it is read, so
+     * that the report is never held whole.  Given any of state, from, to, cursor or limit, returns instead one
+     * page of the IP addresses matching, read from the first block holding any of them.
      *
+     * @param format json (shaped as IpReport), array, ndjson, tsv, or ranges (first-last STATE per run).
+     * @param state optional; only IP addresses in this state (ACQUIRED or FREE).
+     * @param fromIpAddr optional; first IP address wanted.
+     * @param toIpAddr optional; last IP address wanted.
+     * @param cursor optional; as returned with the previous page.
+     * @param limit optional; most IP addresses per page.
+     * @param webRequest for If-None-Match.
+     * @return IP Report telling if each and every IP address has been acquired; or one page of it.  NOT_MODIFIED
+     * if the ETag given still matches.
+     */
+    @GetMapping(path="/ip_states")
+    public ResponseEntity<StreamingResponseBody> listIps(
+            @RequestParam(name = FORMAT_PARAM, defaultValue = "json") String format,
+            @RequestParam(name = STATE_PARAM, required = false) String state,
+            @RequestParam(name = FROM_PARAM, required = false) String fromIpAddr,
+            @RequestParam(name = TO_PARAM, required = false) String toIpAddr,
+            @RequestParam(name = CURSOR_PARAM, required = false) String cursor,
+            @RequestParam(name = LIMIT_PARAM, required = false) Integer limit,
+            WebRequest webRequest) {
+        String eTag = getStateETag();
+        if (eTag != null  &&  webRequest.checkNotModified(eTag)) {
+            return notModified(eTag);
+        }
+        if (state != null  ||  fromIpAddr != null  ||  toIpAddr != null  ||  cursor != null  ||  limit != null) {
+            return queryIps(state, fromIpAddr, toIpAddr, cursor, limit);
+        }
+        log.debug("Report request.");
+        try {
+            return streamReport(IpReportFormat.valueOf(format.trim().toUpperCase()));
+        } catch (IllegalArgumentException iae) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        }
+    }
+
+    /**
+     * LIST - Return states of all the IP addresses managed herein, tab separated.
+     *
+     * @param webRequest for If-None-Match.
      * @return IP Report telling if each and every IP address has been acquired.
      */
     @GetMapping(path="/ip_states_flat", produces = { MediaType.TEXT_PLAIN_VALUE })
-    public ResponseEntity<String> listIpsFlat() {
+    public ResponseEntity<StreamingResponseBody> listIpsFlat(WebRequest webRequest) {
         log.debug("Report request.");
-        ResponseEntity<String> responseEntity;
+        String eTag = getStateETag();
+        if (eTag != null  &&  webRequest.checkNotModified(eTag)) {
+            return notModified(eTag);
+        }
+        return streamReport(IpReportFormat.TSV);
+    }
+
+    /**
+     * STATS - Return how many IP addresses are managed, acquired and free, in all and per CIDR block.  Read from
+     * running counters, so costs the same however large the CIDR blocks; except where other applications share
+     * the store, when every block is counted.
+     *
+     * @param histogram optional; also count per prefix (of length ipstate.stats.prefix-length, e.g. per /24).
+     * @return counts; NO_CONTENT if no CIDR block is in use.
+     */
+    @GetMapping(path="/stats")
+    public ResponseEntity<IpStats> getStats(@RequestParam(name = "histogram", defaultValue = "false") boolean histogram) {
+        log.debug("Stats request.");
+        if (! cidrStateService.isPopulated()) {
+            return ResponseEntity.status(HttpStatus.NO_CONTENT).build();
+        }
         try {
-            IpReport report = ipStateService.getIpReport();
-            responseEntity =  ResponseEntity.ok(report.toString());
+            return ResponseEntity.ok(ipStateService.getIpStats(histogram));
         } catch (IpStateServiceException ipse) {
-            responseEntity = ResponseEntity.status(HttpStatus.NO_CONTENT).body(null);
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
         }
+    }
 
-        return responseEntity;
+    /**
+     * EXPORT - Return the bit blocks of every CIDR block, in binary, for consumers rebuilding state themselves.
+     * Per CIDR block: first address, last address, block size and block count, then the blocks.  See
+     * IpStateExportWriter for the layout.
+     *
+     * @param webRequest for If-None-Match.
+     * @return binary export, streamed block by block.
+     */
+    @GetMapping(path="/ip_states_raw", produces = { MediaType.APPLICATION_OCTET_STREAM_VALUE })
+    public ResponseEntity<StreamingResponseBody> exportIps(WebRequest webRequest) {
+        log.debug("Export request.");
+        String eTag = getStateETag();
+        if (eTag != null  &&  webRequest.checkNotModified(eTag)) {
+            return notModified(eTag);
+        }
+        IpStateLayout layout = getLayout();
+        if (layout == null) {
+            return ResponseEntity.status(HttpStatus.NO_CONTENT).body(null);
+        }
+        List<CIDR> cidrBlocks = new ArrayList<>(layout.getCidrPools().getCidrBlocks());
+        cidrBlocks.sort(Comparator.comparingInt(CIDR::getFirstBlock));
+        int wordsPerBlock = layout.getWordsPerBlock();
+        StreamingResponseBody body = outputStream -> {
+            IpStateExportWriter exportWriter = new IpStateExportWriter(
+                    new BufferedOutputStream(outputStream, REPORT_BUFFER_SIZE), cidrBlocks, layout.getBlockSize(), wordsPerBlock
+            );
+            try {
+                ipStateService.visitIpStates(layout, exportWriter);
+            } catch (IpStateServiceException ipse) {
+                throw new IOException(ipse);
+            } catch (UncheckedIOException uioe) {
+                throw uioe.getCause();
+            }
+            exportWriter.writeEnd();
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .contentLength(IpStateExportWriter.getExportLength(cidrBlocks, wordsPerBlock))
+                .body(body);
+    }
+
+    /**
+     * Limit defaults, and is capped, so no one page can grow to the whole report.  The page is found before
+     * returning, so that bad inputs can still be answered with BAD_REQUEST, then written as JSON.
+     */
+    private ResponseEntity<StreamingResponseBody> queryIps(String state, String fromIpAddr, String toIpAddr, String cursor, Integer limit) {
+        log.debug("Query request: state {} from {} to {} cursor {} limit {}.", state, fromIpAddr, toIpAddr, cursor, limit);
+        if (! cidrStateService.isPopulated()) {
+            return ResponseEntity.status(HttpStatus.NO_CONTENT).build();
+        }
+        try {
+            IpCheckoutState checkoutState = state != null ? IpCheckoutState.valueOf(state.trim().toUpperCase()) : null;
+            int pageLimit = Math.min(limit != null ? limit : DEFAULT_PAGE_LIMIT, maxPageLimit);
+            IpStatePage page = ipStateService.queryIpStates(checkoutState, fromIpAddr, toIpAddr, cursor, pageLimit);
+            StreamingResponseBody body = outputStream -> objectMapper.writeValue(outputStream, page);
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+        } catch (IllegalArgumentException | IpStateServiceException ex) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        }
+    }
+
+    /** Report is written after this returns, straight to the response. */
+    private ResponseEntity<StreamingResponseBody> streamReport(IpReportFormat format) {
+        IpStateLayout layout = getLayout();
+        if (layout == null) {
+            return ResponseEntity.status(HttpStatus.NO_CONTENT).body(null);
+        }
+        String cidr = layout.getCidrPools().getCidrBlocks().stream()
+                .map(CIDR::getCidrBlockNotation)
+                .collect(Collectors.joining(","));
+        StreamingResponseBody body = outputStream -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), REPORT_BUFFER_SIZE);
+            IpReportWriter reportWriter = new IpReportWriter(writer, format);
+            reportWriter.writeStart(cidr);
+            try {
+                ipStateService.visitIpStates(layout, reportWriter);
+            } catch (IpStateServiceException ipse) {
+                throw new IOException(ipse);
+            } catch (UncheckedIOException uioe) {
+                throw uioe.getCause();
+            }
+            reportWriter.writeEnd();
+        };
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(format.getContentType())).body(body);
+    }
+
+    /**
+     * Tag for the states as they are now.  Made of the state version and the number of CIDR blocks, which only
+     * grows.  Taken before reading any states, so that a report never carries a tag newer than its content.
+     * WebRequest.checkNotModified puts it on the response, whether or not it matched.  None where other
+     * applications share the store: their changes do not move the version, so a match would prove nothing.
+     */
+    private String getStateETag() {
+        if (! ipStateService.isSoleWriter()) {
+            return null;
+        }
+        return "\"" + ipStateService.getStateVersion() + "-" + cidrStateService.getCidrPools().getCidrBlocks().size() + "\"";
+    }
+
+    /**
+     * Layout for a report or export, captured before anything is written, so that what is written first (CIDR
+     * blocks, block size, length) agrees with the blocks written after.
+     *
+     * @return the layout; null if no CIDR block is in use.
+     */
+    private IpStateLayout getLayout() {
+        try {
+            return ipStateService.getLayout();
+        } catch (IpStateServiceException ipse) {
+            return null;
+        }
+    }
+
+    /** Nothing read, and no report built. */
+    private ResponseEntity<StreamingResponseBody> notModified(String eTag) {
+        log.debug("Report unchanged since {}.", eTag);
+        return ResponseEntity.status(HttpStatus.NOT_MODIFIED).build();
+    }
+
+    /** All-or-nothing batches either fully happened, or conflicted. */
+    private ResponseEntity<List<IpBatchResult>> toBatchResponse(List<IpBatchResult> results, boolean allOrNothing) {
+        boolean allApplied = results.stream().allMatch(
+                result -> result.getOutcome() == IpBatchOutcome.ACQUIRED  ||  result.getOutcome() == IpBatchOutcome.RELEASED
+        );
+        if (allOrNothing  &&  ! allApplied) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(results);
+        }
+        return ResponseEntity.ok(results);
+    }
+
+    /**
+     * Send the client to the instance holding the block, to repeat the request there, method and body unchanged.
+     * Where the holder is not known, the client should retry later.
+     */
+    private ResponseEntity<Void> redirectToOwner(BlockLeasedElsewhereException blee, String path) {
+        if (blee.getOwnerUrl() == null) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        return ResponseEntity.status(HttpStatus.TEMPORARY_REDIRECT)
+                .location(URI.create(blee.getOwnerUrl() + "/" + STD_PATH + path))
+                .build();
+    }
+
+    /** Newline-delimited IP addresses, ignoring blank lines. */
+    private List<String> splitLines(String ipAddrLines) {
+        return Arrays.stream(ipAddrLines.split("\\r?\\n"))
+                .map(String::trim)
+                .filter(line -> ! line.isEmpty())
+                .collect(Collectors.toList());
     }
 
 }
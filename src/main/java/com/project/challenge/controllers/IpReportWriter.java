@@ -0,0 +1,189 @@
+package com.project.challenge.controllers;
+
+import com.project.challenge.model.CIDR;
+import com.project.challenge.model.IpCheckoutState;
+import com.project.challenge.model.IpReportFormat;
+import com.project.challenge.services.BitContainer;
+import com.project.challenge.services.IpStateService;
+import com.project.challenge.services.Ipv4Formatter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+/**
+ * Writes IP address states out as they are visited, one block at a time, in any of the report formats.  Nothing
+ * is held beyond the line being written.  Addresses are formatted straight into the writer, mostly by rewriting
+ * the last octet of the one before.
+ */
+public class IpReportWriter implements IpStateService.IpStateVisitor {
+    private static final String FLAT_FIELD_SEP = "\t";
+    private static final String FLAT_LINE_SEP = "\n";
+
+    private final Writer out;
+    private final IpReportFormat format;
+    private final Ipv4Formatter formatter = new Ipv4Formatter();
+    private boolean firstEntry = true;
+
+    // Run not yet written, as runs may carry on into the next block.  Only for RANGES.
+    private long runFirstAddress = -1;
+    private long runLastAddress = -1;
+    private boolean runAcquired;
+
+    /**
+     * Construct for writing a single report.
+     *
+     * @param out where to write.  Should be buffered.
+     * @param format how to write.
+     */
+    public IpReportWriter(Writer out, IpReportFormat format) {
+        this.out = out;
+        this.format = format;
+    }
+
+    /**
+     * Write whatever comes before the first IP address.
+     *
+     * @param cidr all CIDR blocks reported on.
+     */
+    public void writeStart(String cidr) throws IOException {
+        switch (format) {
+            case JSON:
+                out.write("{\"cidr\":\"");
+                out.write(cidr);
+                out.write("\",\"ipStatus\":{");
+                break;
+            case ARRAY:
+                out.write('[');
+                break;
+            case TSV:
+                out.write(cidr);
+                out.write(FLAT_FIELD_SEP + "status" + FLAT_LINE_SEP);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Write whatever comes after the last IP address.
+     */
+    public void writeEnd() throws IOException {
+        switch (format) {
+            case RANGES:
+                writePendingRun();
+                break;
+            case JSON:
+                out.write("}}");
+                break;
+            case ARRAY:
+                out.write(']');
+                break;
+            default:
+                break;
+        }
+        out.flush();
+    }
+
+    @Override
+    public void visitBlock(CIDR cidrBlock, long firstAddress, BitContainer container, int bitsInBlock) {
+        try {
+            if (format == IpReportFormat.RANGES) {
+                visitRuns(firstAddress, container, bitsInBlock);
+                return;
+            }
+            for (int blockOffset = 0; blockOffset < bitsInBlock; blockOffset++) {
+                IpCheckoutState state = container.get(blockOffset) ? IpCheckoutState.ACQUIRED : IpCheckoutState.FREE;
+                writeEntry(firstAddress + blockOffset, state);
+            }
+        } catch (IOException ioe) {
+            // Visitors cannot throw checked exceptions; unwrapped by the caller.
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * Jump from each state change to the next, rather than visiting each address.
+     */
+    private void visitRuns(long firstAddress, BitContainer container, int bitsInBlock) throws IOException {
+        int blockOffset = 0;
+        while (blockOffset < bitsInBlock) {
+            boolean acquired = container.get(blockOffset);
+            int runEnd = acquired
+                    ? container.nextClearBit(blockOffset, bitsInBlock)
+                    : container.nextSetBit(blockOffset, bitsInBlock);
+            if (runEnd < 0) {
+                runEnd = bitsInBlock;
+            }
+            addRun(firstAddress + blockOffset, firstAddress + runEnd - 1, acquired);
+            blockOffset = runEnd;
+        }
+    }
+
+    /** Extend the pending run if this one carries it on; otherwise write it, and start anew. */
+    private void addRun(long firstAddress, long lastAddress, boolean acquired) throws IOException {
+        if (runFirstAddress >= 0  &&  runAcquired == acquired  &&  runLastAddress + 1 == firstAddress) {
+            runLastAddress = lastAddress;
+            return;
+        }
+        writePendingRun();
+        runFirstAddress = firstAddress;
+        runLastAddress = lastAddress;
+        runAcquired = acquired;
+    }
+
+    private void writePendingRun() throws IOException {
+        if (runFirstAddress < 0) {
+            return;
+        }
+        formatter.write(out, runFirstAddress);
+        out.write('-');
+        formatter.write(out, runLastAddress);
+        out.write(' ');
+        out.write(runAcquired ? IpCheckoutState.ACQUIRED.name() : IpCheckoutState.FREE.name());
+        out.write(FLAT_LINE_SEP);
+        runFirstAddress = -1;
+    }
+
+    private void writeEntry(long address, IpCheckoutState state) throws IOException {
+        switch (format) {
+            case JSON:
+                if (! firstEntry) {
+                    out.write(',');
+                }
+                out.write('"');
+                formatter.write(out, address);
+                out.write("\":\"");
+                out.write(state.name());
+                out.write('"');
+                break;
+            case ARRAY:
+                if (! firstEntry) {
+                    out.write(',');
+                }
+                writeObject(address, state);
+                break;
+            case NDJSON:
+                writeObject(address, state);
+                out.write(FLAT_LINE_SEP);
+                break;
+            case TSV:
+                formatter.write(out, address);
+                out.write(FLAT_FIELD_SEP);
+                out.write(state.name());
+                out.write(FLAT_LINE_SEP);
+                break;
+            default:
+                break;
+        }
+        firstEntry = false;
+    }
+
+    private void writeObject(long address, IpCheckoutState state) throws IOException {
+        out.write("{\"ip\":\"");
+        formatter.write(out, address);
+        out.write("\",\"state\":\"");
+        out.write(state.name());
+        out.write("\"}");
+    }
+}
@@ -0,0 +1,138 @@
+package com.project.challenge.controllers;
+
+import com.project.challenge.model.CIDR;
+import com.project.challenge.services.BitContainer;
+import com.project.challenge.services.IpStateService;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.List;
+
+/**
+ * Writes the bit blocks of every CIDR block as they are visited, in binary.  For each CIDR block, in order of its
+ * blocks: a header of four unsigned 32-bit integers (first address, last address, block size in bits, block
+ * count), followed by each block's words.  All little-endian; bit N of the CIDR block's bits is the state of
+ * first address + N, set meaning acquired.  Blocks absent from the store are written as all free.
+ */
+public class IpStateExportWriter implements IpStateService.IpStateVisitor {
+    public static final int HEADER_SIZE = 4 * Integer.BYTES;
+
+    private final OutputStream out;
+    private final List<CIDR> cidrBlocks;
+    private final long blockSize;
+    private final int wordsPerBlock;
+
+    // One block's bytes, reused for every block.
+    private final ByteBuffer blockBuffer;
+    private final LongBuffer blockWords;
+
+    // Position reached: index into the CIDR blocks, and the next block number of that one to write.
+    private int cidrIndex = -1;
+    private int nextBlockNum;
+
+    /**
+     * Construct for writing a single export.
+     *
+     * @param out where to write.  Should be buffered.
+     * @param cidrBlocks every CIDR block, in order of first block.
+     * @param blockSize bits per block.
+     * @param wordsPerBlock words per block.
+     */
+    public IpStateExportWriter(OutputStream out, List<CIDR> cidrBlocks, long blockSize, int wordsPerBlock) {
+        this.out = out;
+        this.cidrBlocks = cidrBlocks;
+        this.blockSize = blockSize;
+        this.wordsPerBlock = wordsPerBlock;
+        blockBuffer = ByteBuffer.allocate(wordsPerBlock * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        blockWords = blockBuffer.asLongBuffer();
+    }
+
+    /**
+     * Tell how long the export of these CIDR blocks will be.
+     *
+     * @param cidrBlocks what will be exported.
+     * @param wordsPerBlock words per block.
+     * @return length in bytes.
+     */
+    public static long getExportLength(List<CIDR> cidrBlocks, int wordsPerBlock) {
+        long length = 0;
+        for (CIDR cidrBlock : cidrBlocks) {
+            length += HEADER_SIZE + (long) cidrBlock.getBlockCount() * wordsPerBlock * Long.BYTES;
+        }
+        return length;
+    }
+
+    @Override
+    public void visitBlock(CIDR cidrBlock, long firstAddress, BitContainer container, int bitsInBlock) {
+        try {
+            int blockNum = cidrBlock.getFirstBlock() + (int) ((firstAddress - cidrBlock.getStartingAddrLong()) / blockSize);
+            if (! advanceTo(cidrBlock)) {
+                // Added after the export began.
+                return;
+            }
+            writeEmptyBlocks(blockNum);
+            blockWords.clear();
+            blockWords.put(container.toWords(wordsPerBlock));
+            out.write(blockBuffer.array());
+            nextBlockNum++;
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * Write whatever was not visited: trailing blocks, and CIDR blocks having none in the store.
+     */
+    public void writeEnd() throws IOException {
+        finishCidrBlock();
+        while (cidrIndex < cidrBlocks.size() - 1) {
+            startCidrBlock();
+            finishCidrBlock();
+        }
+        out.flush();
+    }
+
+    /** Finish CIDR blocks up to the one given, and start it.  F=it is not among those exported. */
+    private boolean advanceTo(CIDR cidrBlock) throws IOException {
+        while (cidrIndex < 0  ||  cidrBlocks.get(cidrIndex).getFirstBlock() < cidrBlock.getFirstBlock()) {
+            if (cidrIndex == cidrBlocks.size() - 1) {
+                return false;
+            }
+            finishCidrBlock();
+            startCidrBlock();
+        }
+        return cidrBlocks.get(cidrIndex).getFirstBlock() == cidrBlock.getFirstBlock();
+    }
+
+    private void startCidrBlock() throws IOException {
+        CIDR cidrBlock = cidrBlocks.get(++cidrIndex);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt((int) cidrBlock.getStartingAddrLong());
+        header.putInt((int) (cidrBlock.getStartingAddrLong() + cidrBlock.getAddressCount() - 1));
+        header.putInt((int) blockSize);
+        header.putInt(cidrBlock.getBlockCount());
+        out.write(header.array());
+        nextBlockNum = cidrBlock.getFirstBlock();
+    }
+
+    private void finishCidrBlock() throws IOException {
+        if (cidrIndex >= 0) {
+            CIDR cidrBlock = cidrBlocks.get(cidrIndex);
+            writeEmptyBlocks(cidrBlock.getFirstBlock() + cidrBlock.getBlockCount());
+        }
+    }
+
+    /** Fill the gap up to the block given with blocks of all free. */
+    private void writeEmptyBlocks(int toBlockNum) throws IOException {
+        if (nextBlockNum < toBlockNum) {
+            byte[] empty = new byte[blockBuffer.capacity()];
+            for (; nextBlockNum < toBlockNum; nextBlockNum++) {
+                out.write(empty);
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.project.challenge.entities;
 
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.Version;
 
 /**
  * Database-holder class for very simple bit-wise store of acquired/free indicators for IP addresses.
@@ -14,6 +15,13 @@ public class CidrBitBlock {
 
     private String encodedBits;
 
+    // Raw form of the block: its words, packed little-endian.  Where set, it is used instead of encodedBits.
+    private byte[] rawBits;
+
+    // Optimistic check: a save based on a stale read of this block fails, rather than overwriting.
+    @Version
+    private Long version;
+
     public Integer getId() {
         return id;
     }
@@ -29,4 +37,20 @@ public class CidrBitBlock {
     public void setEncodedBits(String encodedBits) {
         this.encodedBits = encodedBits;
     }
+
+    public byte[] getRawBits() {
+        return rawBits;
+    }
+
+    public void setRawBits(byte[] rawBits) {
+        this.rawBits = rawBits;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
 }
@@ -4,13 +4,18 @@ import javax.persistence.Entity;
 import javax.persistence.Id;
 
 /**
- * CIDR definition.  Tells the current CIDR block in use for this whole schema.
+ * CIDR definition.  Tells one of the CIDR blocks (pools) in use, where its range of bit blocks starts, and the size
+ * (in bits) its blocks are stored at.
  */
 @Entity
 public class CidrDef {
     @Id
     private String cidr;
 
+    private Integer firstBlock;
+
+    private Integer blockSize;
+
     public String getCidr() {
         return cidr;
     }
@@ -18,4 +23,20 @@ public class CidrDef {
     public void setCidr(String cidr) {
         this.cidr = cidr;
     }
+
+    public Integer getFirstBlock() {
+        return firstBlock;
+    }
+
+    public void setFirstBlock(Integer firstBlock) {
+        this.firstBlock = firstBlock;
+    }
+
+    public Integer getBlockSize() {
+        return blockSize;
+    }
+
+    public void setBlockSize(Integer blockSize) {
+        this.blockSize = blockSize;
+    }
 }
@@ -0,0 +1,11 @@
+package com.project.challenge.model;
+
+/**
+ * How the bits of a block are held in the database.
+ */
+public enum BlockFormat {
+    /** Base64 text of the block's bytes, in the ENCODED_BITS column. */
+    BASE64,
+    /** The block's words, packed little-endian, in the RAW_BITS column. */
+    BINARY
+}
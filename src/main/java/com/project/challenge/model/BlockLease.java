@@ -0,0 +1,41 @@
+package com.project.challenge.model;
+
+/**
+ * Ownership of one range of blocks, by one application instance, until a point in time.
+ */
+public class BlockLease {
+    private int rangeId;
+    private String owner;
+    private String ownerUrl;
+    private long expiresAt;
+
+    public BlockLease(int rangeId, String owner, String ownerUrl, long expiresAt) {
+        this.rangeId = rangeId;
+        this.owner = owner;
+        this.ownerUrl = ownerUrl;
+        this.expiresAt = expiresAt;
+    }
+
+    public int getRangeId() {
+        return rangeId;
+    }
+
+    /** Instance ID of the owner. */
+    public String getOwner() {
+        return owner;
+    }
+
+    /** Base URL the owner serves requests at; may be null. */
+    public String getOwnerUrl() {
+        return ownerUrl;
+    }
+
+    /** Epoch milliseconds at which the lease lapses, unless renewed. */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public boolean isExpired(long now) {
+        return expiresAt < now;
+    }
+}
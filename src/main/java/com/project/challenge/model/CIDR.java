@@ -11,6 +11,8 @@ public class CIDR {
     private boolean inclusiveRange;
     private long startingAddr;
     private long endingAddr;
+    private int firstBlock;
+    private int blockCount;
 
     /**
      * Construct with everything needed to describe the block.  This class will be immutable.
@@ -50,7 +52,57 @@ public class CIDR {
         return endingAddr - startingAddr;
     }
 
+    /**
+     * How many addresses are managed, including both starting and ending addresses.
+     *
+     * @return address count.
+     */
+    public long getAddressCount() {
+        return endingAddr - startingAddr + 1;
+    }
+
+    /**
+     * Where the address falls among those managed, found with one subtraction.  Addresses below the starting
+     * address wrap around to large offsets, so a single unsigned comparison against the address count is the
+     * whole range check.
+     *
+     * @param address IP address, as the int holding its 32 bits.
+     * @return offset from the starting address; at least getAddressCount() if not managed.
+     */
+    public long offsetOf(int address) {
+        return Integer.toUnsignedLong(address - (int) startingAddr);
+    }
+
+    /**
+     * @param address IP address, as the int holding its 32 bits.
+     * @return T=address is managed by this block.
+     */
+    public boolean contains(int address) {
+        return offsetOf(address) < getAddressCount();
+    }
+
     public String getCidrBlockNotation() {
         return cidrBlockNotation;
     }
+
+    /**
+     * Each CIDR block (pool) owns a range of bit blocks in the block store.  This is where its range starts.
+     *
+     * @return block number of the pool's first block.
+     */
+    public int getFirstBlock() {
+        return firstBlock;
+    }
+
+    public void setFirstBlock(int firstBlock) {
+        this.firstBlock = firstBlock;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public void setBlockCount(int blockCount) {
+        this.blockCount = blockCount;
+    }
 }
@@ -0,0 +1,9 @@
+package com.project.challenge.model;
+
+/**
+ * What became of one IP address in a batch acquire or release.  LEASED_ELSEWHERE: its block is held by another
+ * instance, which alone may change it.
+ */
+public enum IpBatchOutcome {
+    ACQUIRED, RELEASED, ALREADY_ACQUIRED, INVALID, NOT_APPLIED, LEASED_ELSEWHERE;
+}
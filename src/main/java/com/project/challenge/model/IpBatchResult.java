@@ -0,0 +1,25 @@
+package com.project.challenge.model;
+
+/**
+ * Outcome for one IP address of a batch acquire or release.
+ */
+public class IpBatchResult {
+    private String ipAddr;
+    private IpBatchOutcome outcome;
+
+    public IpBatchResult(String ipAddr) {
+        this.ipAddr = ipAddr;
+    }
+
+    public String getIpAddr() {
+        return ipAddr;
+    }
+
+    public IpBatchOutcome getOutcome() {
+        return outcome;
+    }
+
+    public void setOutcome(IpBatchOutcome outcome) {
+        this.outcome = outcome;
+    }
+}
@@ -0,0 +1,28 @@
+package com.project.challenge.model;
+
+/**
+ * Run of consecutive IP addresses, first to last inclusive.
+ */
+public class IpRange {
+    private String firstIp;
+    private String lastIp;
+    private long count;
+
+    public IpRange(String firstIp, String lastIp, long count) {
+        this.firstIp = firstIp;
+        this.lastIp = lastIp;
+        this.count = count;
+    }
+
+    public String getFirstIp() {
+        return firstIp;
+    }
+
+    public String getLastIp() {
+        return lastIp;
+    }
+
+    public long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,27 @@
+package com.project.challenge.model;
+
+/**
+ * Ways to write out the state of every IP address.
+ */
+public enum IpReportFormat {
+    /** One object, shaped as IpReport: CIDR blocks, then a map of IP address to state. */
+    JSON("application/json"),
+    /** Array of objects, each with an IP address and its state. */
+    ARRAY("application/json"),
+    /** Object per line, each with an IP address and its state. */
+    NDJSON("application/x-ndjson"),
+    /** Header line, then IP address and state per line, tab separated.  As IpReport.toString(). */
+    TSV("text/plain"),
+    /** Line per run of IP addresses in the same state: first-last STATE.  Size grows with state changes only. */
+    RANGES("text/plain");
+
+    private final String contentType;
+
+    IpReportFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+}
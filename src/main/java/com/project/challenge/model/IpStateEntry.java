@@ -0,0 +1,22 @@
+package com.project.challenge.model;
+
+/**
+ * One IP address and its state.
+ */
+public class IpStateEntry {
+    private String ip;
+    private IpCheckoutState state;
+
+    public IpStateEntry(String ip, IpCheckoutState state) {
+        this.ip = ip;
+        this.state = state;
+    }
+
+    public String getIp() {
+        return ip;
+    }
+
+    public IpCheckoutState getState() {
+        return state;
+    }
+}
@@ -0,0 +1,25 @@
+package com.project.challenge.model;
+
+import java.util.List;
+
+/**
+ * One page of IP addresses matching a query, in address order.  Ask for the next page by passing back the cursor.
+ */
+public class IpStatePage {
+    private List<IpStateEntry> entries;
+    private String nextCursor;
+
+    public IpStatePage(List<IpStateEntry> entries, String nextCursor) {
+        this.entries = entries;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<IpStateEntry> getEntries() {
+        return entries;
+    }
+
+    /** First IP address of the next page; null if this page is the last. */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -0,0 +1,32 @@
+package com.project.challenge.model;
+
+import java.util.List;
+
+/**
+ * How full the CIDR blocks are: in all, per CIDR block, and optionally per prefix.
+ */
+public class IpStats {
+    private IpUsage overall;
+    private List<IpUsage> cidrBlocks;
+    private List<IpUsage> histogram;
+
+    public IpStats(IpUsage overall, List<IpUsage> cidrBlocks, List<IpUsage> histogram) {
+        this.overall = overall;
+        this.cidrBlocks = cidrBlocks;
+        this.histogram = histogram;
+    }
+
+    public IpUsage getOverall() {
+        return overall;
+    }
+
+    /** In order of starting address. */
+    public List<IpUsage> getCidrBlocks() {
+        return cidrBlocks;
+    }
+
+    /** Per prefix holding any managed address, in address order; null unless asked for. */
+    public List<IpUsage> getHistogram() {
+        return histogram;
+    }
+}
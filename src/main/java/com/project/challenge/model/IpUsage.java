@@ -0,0 +1,33 @@
+package com.project.challenge.model;
+
+/**
+ * Counts of IP addresses in some range: managed in all, acquired, and free.
+ */
+public class IpUsage {
+    private String cidr;
+    private long total;
+    private long acquired;
+
+    public IpUsage(String cidr, long total, long acquired) {
+        this.cidr = cidr;
+        this.total = total;
+        this.acquired = acquired;
+    }
+
+    /** Range counted, in CIDR notation; null for all. */
+    public String getCidr() {
+        return cidr;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public long getAcquired() {
+        return acquired;
+    }
+
+    public long getFree() {
+        return total - acquired;
+    }
+}
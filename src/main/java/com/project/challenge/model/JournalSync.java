@@ -0,0 +1,13 @@
+package com.project.challenge.model;
+
+/**
+ * When journal records are forced to disk.
+ */
+public enum JournalSync {
+    /** Before the change is reported done.  Changes waiting together share one force (group commit). */
+    GROUP,
+    /** On a fixed interval.  Changes do not wait; a power failure loses up to one interval of them. */
+    INTERVAL,
+    /** Never, by this application: written to the file on the interval, and left to the operating system. */
+    NONE
+}
@@ -0,0 +1,126 @@
+package com.project.challenge.repositories;
+
+import com.project.challenge.model.BlockLease;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Leases on ranges of blocks, in BLOCK_LEASE.  Claiming, renewing and releasing are each one conditional
+ * statement, so that the database decides between instances racing for the same range.  A range with no row,
+ * or whose lease has expired, may be claimed by anyone.
+ *
+ * Expiry is written and judged by the database's clock alone, never by a caller's: instances whose clocks disagree
+ * still agree on when a lease lapses.
+ */
+@Repository
+public class BlockLeaseRepository {
+    private static final String TAKE_OVER_SQL =
+            "UPDATE BLOCK_LEASE SET OWNER = ?, OWNER_URL = ?, EXPIRES_AT = ? WHERE RANGE_ID = ? AND (OWNER = ? OR EXPIRES_AT < ?)";
+    private static final String INSERT_SQL = "INSERT INTO BLOCK_LEASE (RANGE_ID, OWNER, OWNER_URL, EXPIRES_AT) VALUES (?, ?, ?, ?)";
+    private static final String RENEW_SQL = "UPDATE BLOCK_LEASE SET EXPIRES_AT = ? WHERE RANGE_ID = ? AND OWNER = ?";
+    private static final String RELEASE_SQL = "DELETE FROM BLOCK_LEASE WHERE RANGE_ID = ? AND OWNER = ?";
+    private static final String LOCK_HELD_SQL =
+            "UPDATE BLOCK_LEASE SET EXPIRES_AT = EXPIRES_AT WHERE RANGE_ID = ? AND OWNER = ? AND EXPIRES_AT >= ?";
+    private static final String NOW_SQL = "SELECT CURRENT_TIMESTAMP";
+    private static final String FIND_SQL = "SELECT RANGE_ID, OWNER, OWNER_URL, EXPIRES_AT FROM BLOCK_LEASE WHERE RANGE_ID = ?";
+
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    public BlockLeaseRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Take the lease on a range, provided nobody else holds it unexpired.
+     *
+     * @param rangeId which range.
+     * @param owner instance ID of the claimant.
+     * @param ownerUrl where the claimant serves requests.
+     * @param durationMs how long, from now by the database's clock, until the new lease lapses.
+     * @return T=claimed; F=held by another.
+     */
+    public boolean claim(int rangeId, String owner, String ownerUrl, long durationMs) {
+        long now = currentTimeMillis();
+        long expiresAt = now + durationMs;
+        if (jdbcTemplate.update(TAKE_OVER_SQL, owner, ownerUrl, expiresAt, rangeId, owner, now) == 1) {
+            return true;
+        }
+        try {
+            jdbcTemplate.update(INSERT_SQL, rangeId, owner, ownerUrl, expiresAt);
+            return true;
+        } catch (DuplicateKeyException dke) {
+            // A row exists, held by another, or claimed by another since the update.
+            return false;
+        }
+    }
+
+    /**
+     * Extend a lease, provided the owner still holds it.  A lease that expired, but was not taken over, is still
+     * held: nobody else can have changed its blocks.
+     *
+     * @param rangeId which range.
+     * @param owner instance ID of the holder.
+     * @param durationMs how long, from now by the database's clock, until the lease lapses.
+     * @return T=renewed; F=taken over, or released.
+     */
+    public boolean renew(int rangeId, String owner, long durationMs) {
+        return jdbcTemplate.update(RENEW_SQL, currentTimeMillis() + durationMs, rangeId, owner) == 1;
+    }
+
+    /**
+     * Lock the leases the owner holds, unexpired, among those of the ranges given, until the transaction ends.
+     * Nobody can take those over meanwhile: claiming waits on the lock, and by then finds them as they are left.
+     * Only within a transaction.
+     *
+     * @param rangeIds which ranges.
+     * @param owner instance ID of the holder.
+     * @return those of the ranges held, and now locked.
+     */
+    public Set<Integer> lockHeld(Collection<Integer> rangeIds, String owner) {
+        long now = currentTimeMillis();
+        Set<Integer> held = new HashSet<>();
+        for (Integer rangeId : rangeIds) {
+            if (jdbcTemplate.update(LOCK_HELD_SQL, rangeId, owner, now) == 1) {
+                held.add(rangeId);
+            }
+        }
+        return held;
+    }
+
+    /**
+     * Give up a lease, provided the owner still holds it.
+     *
+     * @param rangeId which range.
+     * @param owner instance ID of the holder.
+     */
+    public void release(int rangeId, String owner) {
+        jdbcTemplate.update(RELEASE_SQL, rangeId, owner);
+    }
+
+    /**
+     * @return the database's clock, in epoch milliseconds.
+     */
+    public long currentTimeMillis() {
+        return jdbcTemplate.queryForObject(NOW_SQL, Timestamp.class).getTime();
+    }
+
+    /**
+     * @param rangeId which range.
+     * @return its lease, expired or not; null if none.
+     */
+    public BlockLease find(int rangeId) {
+        List<BlockLease> leases = jdbcTemplate.query(FIND_SQL, (resultSet, rowNum) -> new BlockLease(
+                resultSet.getInt(1), resultSet.getString(2), resultSet.getString(3), resultSet.getLong(4)
+        ), rangeId);
+        return leases.isEmpty() ? null : leases.get(0);
+    }
+}
@@ -1,7 +1,18 @@
 package com.project.challenge.repositories;
 
 import com.project.challenge.entities.CidrBitBlock;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 
-public interface BlockRepository extends JpaRepository<CidrBitBlock, Integer> {
+import java.util.List;
+
+public interface BlockRepository extends JpaRepository<CidrBitBlock, Integer>, BlockRepositoryCustom {
+    /** Next page of blocks after the one given, in order of block number. */
+    List<CidrBitBlock> findByIdGreaterThanOrderByIdAsc(Integer id, Pageable pageable);
+
+    /** Blocks not yet held in raw form. */
+    List<CidrBitBlock> findByRawBitsIsNull(Pageable pageable);
+
+    /** Blocks not yet held in base64 form. */
+    List<CidrBitBlock> findByEncodedBitsIsNull(Pageable pageable);
 }
@@ -0,0 +1,51 @@
+package com.project.challenge.repositories;
+
+import com.project.challenge.entities.CidrBitBlock;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Bulk block operations, done in plain JDBC rather than through the entity manager.
+ */
+public interface BlockRepositoryCustom {
+    /**
+     * Insert identical blocks, with consecutive block numbers, in JDBC batches.  None of them may exist yet.
+     *
+     * @param firstBlock block number of the first.
+     * @param blockCount how many.
+     * @param encodedBits content of each, in base64 form; may be null.
+     * @param rawBits content of each, in raw form; may be null.
+     * @param batchSize rows sent per batch.
+     */
+    void insertBlocks(int firstBlock, int blockCount, String encodedBits, byte[] rawBits, int batchSize);
+
+    /**
+     * Version of every block stored, by block number.  Shadow blocks are left out.
+     *
+     * @return block versions.
+     */
+    Map<Integer, Long> findBlockVersions();
+
+    /**
+     * Replace shadow blocks: those of a layout being built, kept out of sight under negative block numbers (block
+     * number n as -n - 1).  Every shadow block numbered is deleted, then those given words are inserted.
+     *
+     * @param blockNums block numbers, in the layout being built, of every shadow block to replace.
+     * @param blocks content of those not left empty, with their block numbers in the layout being built.
+     * @param batchSize rows sent per batch.
+     */
+    void replaceShadowBlocks(Collection<Integer> blockNums, Collection<CidrBitBlock> blocks, int batchSize);
+
+    /**
+     * Make the shadow blocks the blocks: delete every block, then give each shadow block its block number.
+     *
+     * @return how many blocks there now are.
+     */
+    int promoteShadowBlocks();
+
+    /**
+     * Delete every shadow block, as left by a layout not finished.
+     */
+    void deleteShadowBlocks();
+}
@@ -0,0 +1,82 @@
+package com.project.challenge.repositories;
+
+import com.project.challenge.entities.CidrBitBlock;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Found by Spring Data by its name, and merged into BlockRepository.
+ */
+public class BlockRepositoryImpl implements BlockRepositoryCustom {
+    private static final String INSERT_SQL = "INSERT INTO CIDR_BIT_BLOCK (ID, ENCODED_BITS, RAW_BITS, VERSION) VALUES (?, ?, ?, 0)";
+    private static final String VERSIONS_SQL = "SELECT ID, VERSION FROM CIDR_BIT_BLOCK WHERE ID >= 0";
+    private static final String DELETE_SQL = "DELETE FROM CIDR_BIT_BLOCK WHERE ID = ?";
+    private static final String DELETE_BLOCKS_SQL = "DELETE FROM CIDR_BIT_BLOCK WHERE ID >= 0";
+    private static final String DELETE_SHADOWS_SQL = "DELETE FROM CIDR_BIT_BLOCK WHERE ID < 0";
+    // Versions move on, so that a save based on a read from before is caught.
+    private static final String PROMOTE_SHADOWS_SQL = "UPDATE CIDR_BIT_BLOCK SET ID = -ID - 1, VERSION = VERSION + 1 WHERE ID < 0";
+
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    public BlockRepositoryImpl(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    public void insertBlocks(int firstBlock, int blockCount, String encodedBits, byte[] rawBits, int batchSize) {
+        jdbcTemplate.batchUpdate(
+                INSERT_SQL,
+                IntStream.range(firstBlock, firstBlock + blockCount).boxed().collect(Collectors.toList()),
+                batchSize,
+                (statement, blockNum) -> {
+                    statement.setInt(1, blockNum);
+                    statement.setString(2, encodedBits);
+                    statement.setBytes(3, rawBits);
+                }
+        );
+    }
+
+    @Override
+    public Map<Integer, Long> findBlockVersions() {
+        Map<Integer, Long> versions = new HashMap<>();
+        jdbcTemplate.query(VERSIONS_SQL, resultSet -> {
+            versions.put(resultSet.getInt(1), resultSet.getLong(2));
+        });
+        return versions;
+    }
+
+    @Override
+    public void replaceShadowBlocks(Collection<Integer> blockNums, Collection<CidrBitBlock> blocks, int batchSize) {
+        jdbcTemplate.batchUpdate(
+                DELETE_SQL, blockNums, batchSize, (statement, blockNum) -> statement.setInt(1, -blockNum - 1)
+        );
+        jdbcTemplate.batchUpdate(
+                INSERT_SQL,
+                blocks,
+                batchSize,
+                (statement, bitBlock) -> {
+                    statement.setInt(1, -bitBlock.getId() - 1);
+                    statement.setString(2, bitBlock.getEncodedBits());
+                    statement.setBytes(3, bitBlock.getRawBits());
+                }
+        );
+    }
+
+    @Override
+    public int promoteShadowBlocks() {
+        jdbcTemplate.update(DELETE_BLOCKS_SQL);
+        return jdbcTemplate.update(PROMOTE_SHADOWS_SQL);
+    }
+
+    @Override
+    public void deleteShadowBlocks() {
+        jdbcTemplate.update(DELETE_SHADOWS_SQL);
+    }
+}
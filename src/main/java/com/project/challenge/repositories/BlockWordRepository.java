@@ -0,0 +1,192 @@
+package com.project.challenge.repositories;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+/**
+ * Blocks held as one row per 64-bit word, in CIDR_BIT_WORD.  Single bits are set and cleared by conditional
+ * updates, each one statement: the database makes them atomic, and the count of rows updated tells whether the
+ * bit changed.  A missing row is a word of all zeros.
+ *
+ * Re-blocking moves rows to their new block and word, out of sight first as shadow rows (block -n-1 for block n),
+ * as BlockRepositoryCustom does for whole blocks.  Blocks are at least a word, so a word keeps its place within
+ * its pool: only the block it falls in, and its index there, change.
+ */
+@Repository
+public class BlockWordRepository {
+    private static final String SET_BITS_SQL =
+            "UPDATE CIDR_BIT_WORD SET BITS = BITOR(BITS, ?) WHERE BLOCK_ID = ? AND WORD_INDEX = ? AND BITAND(BITS, ?) = 0";
+    private static final String CLEAR_BITS_SQL =
+            "UPDATE CIDR_BIT_WORD SET BITS = BITAND(BITS, ?) WHERE BLOCK_ID = ? AND WORD_INDEX = ? AND BITAND(BITS, ?) <> 0";
+    private static final String COMPARE_AND_SET_SQL =
+            "UPDATE CIDR_BIT_WORD SET BITS = ? WHERE BLOCK_ID = ? AND WORD_INDEX = ? AND BITS = ?";
+    private static final String INSERT_SQL = "INSERT INTO CIDR_BIT_WORD (BLOCK_ID, WORD_INDEX, BITS) VALUES (?, ?, ?)";
+    private static final String FIND_BLOCK_SQL = "SELECT BLOCK_ID, WORD_INDEX, BITS FROM CIDR_BIT_WORD WHERE BLOCK_ID = ?";
+    private static final String FIND_ALL_SQL = "SELECT BLOCK_ID, WORD_INDEX, BITS FROM CIDR_BIT_WORD ORDER BY BLOCK_ID, WORD_INDEX";
+    private static final String FIND_BLOCKS_SQL =
+            "SELECT BLOCK_ID, WORD_INDEX, BITS FROM CIDR_BIT_WORD WHERE BLOCK_ID >= ? AND BLOCK_ID < ?";
+    private static final String ANY_SQL = "SELECT COUNT(*) FROM (SELECT 1 FROM CIDR_BIT_WORD LIMIT 1)";
+    // Parameters: old first block, old words per block, new first block, new words per block; then old first block
+    // and old block count, and the pool's word count at the new size.  Right-hand sides see the row as it was.
+    private static final String SHADOW_POOL_SQL =
+            "UPDATE CIDR_BIT_WORD SET"
+                    + " BLOCK_ID = -(? + ((BLOCK_ID - ?) * ? + WORD_INDEX) / ?) - 1,"
+                    + " WORD_INDEX = MOD((BLOCK_ID - ?) * ? + WORD_INDEX, ?)"
+                    + " WHERE BLOCK_ID >= ? AND BLOCK_ID < ? AND (BLOCK_ID - ?) * ? + WORD_INDEX < ?";
+    private static final String DELETE_WORDS_SQL = "DELETE FROM CIDR_BIT_WORD WHERE BLOCK_ID >= 0";
+    private static final String PROMOTE_SHADOWS_SQL = "UPDATE CIDR_BIT_WORD SET BLOCK_ID = -BLOCK_ID - 1 WHERE BLOCK_ID < 0";
+
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    public BlockWordRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Set bits of a word, provided none of them is set already.
+     *
+     * @param blockId which block.
+     * @param wordIndex which word of the block.
+     * @param mask bits to set.
+     * @return T=set; F=some were set already, or the word has no row.
+     */
+    public boolean setBits(int blockId, int wordIndex, long mask) {
+        return jdbcTemplate.update(SET_BITS_SQL, mask, blockId, wordIndex, mask) == 1;
+    }
+
+    /**
+     * Clear bits of a word, provided any of them is set.
+     *
+     * @param blockId which block.
+     * @param wordIndex which word of the block.
+     * @param mask bits to clear.
+     * @return T=cleared; F=none were set, or the word has no row.
+     */
+    public boolean clearBits(int blockId, int wordIndex, long mask) {
+        return jdbcTemplate.update(CLEAR_BITS_SQL, ~mask, blockId, wordIndex, mask) == 1;
+    }
+
+    /**
+     * Replace a word, provided it still holds what was read.
+     *
+     * @param blockId which block.
+     * @param wordIndex which word of the block.
+     * @param expected what was read.
+     * @param bits new content.
+     * @return T=replaced; F=it changed since it was read.
+     */
+    public boolean compareAndSet(int blockId, int wordIndex, long expected, long bits) {
+        return jdbcTemplate.update(COMPARE_AND_SET_SQL, bits, blockId, wordIndex, expected) == 1;
+    }
+
+    /**
+     * Add the row of a word.
+     *
+     * @param blockId which block.
+     * @param wordIndex which word of the block.
+     * @param bits its content.
+     * @throws org.springframework.dao.DuplicateKeyException if the row exists.
+     */
+    public void insert(int blockId, int wordIndex, long bits) {
+        jdbcTemplate.update(INSERT_SQL, blockId, wordIndex, bits);
+    }
+
+    /**
+     * Add the rows of many words, in JDBC batches.  None may exist yet.
+     *
+     * @param words each as block ID, word index and content.
+     * @param batchSize rows sent per batch.
+     */
+    public void insertAll(List<long[]> words, int batchSize) {
+        jdbcTemplate.batchUpdate(INSERT_SQL, words, batchSize, (statement, word) -> {
+            statement.setInt(1, (int) word[0]);
+            statement.setInt(2, (int) word[1]);
+            statement.setLong(3, word[2]);
+        });
+    }
+
+    /**
+     * Visit the rows of one block, in no particular order.
+     *
+     * @param blockId which block.
+     * @param visitor called once per row.
+     */
+    public void findBlock(int blockId, WordVisitor visitor) {
+        jdbcTemplate.query(FIND_BLOCK_SQL, resultSet -> {
+            visitor.visit(resultSet.getInt(1), resultSet.getInt(2), resultSet.getLong(3));
+        }, blockId);
+    }
+
+    /**
+     * Visit the rows of a range of blocks, in no particular order.
+     *
+     * @param fromBlockId first block.
+     * @param toBlockId block after the last.
+     * @param visitor called once per row.
+     */
+    public void findBlocks(int fromBlockId, int toBlockId, WordVisitor visitor) {
+        jdbcTemplate.query(FIND_BLOCKS_SQL, resultSet -> {
+            visitor.visit(resultSet.getInt(1), resultSet.getInt(2), resultSet.getLong(3));
+        }, fromBlockId, toBlockId);
+    }
+
+    /**
+     * Visit every row, in order of block, then word.  Rows are streamed, not held.
+     *
+     * @param visitor called once per row.
+     */
+    public void findAll(WordVisitor visitor) {
+        jdbcTemplate.query(FIND_ALL_SQL, resultSet -> {
+            visitor.visit(resultSet.getInt(1), resultSet.getInt(2), resultSet.getLong(3));
+        });
+    }
+
+    /**
+     * Move the rows of one pool to shadow rows of its new layout.  Rows of words past the pool's end at the new
+     * size, which can only be all zeros, are left where they are.
+     *
+     * @param oldFirst pool's first block, as stored.
+     * @param oldCount pool's block count, as stored.
+     * @param oldWordsPerBlock words per block, as stored.
+     * @param newFirst pool's first block, at the new size.
+     * @param newCount pool's block count, at the new size.
+     * @param newWordsPerBlock words per block, at the new size.
+     * @return rows moved.
+     */
+    public int shadowPool(int oldFirst, int oldCount, int oldWordsPerBlock, int newFirst, int newCount, int newWordsPerBlock) {
+        return jdbcTemplate.update(
+                SHADOW_POOL_SQL,
+                newFirst, oldFirst, oldWordsPerBlock, newWordsPerBlock,
+                oldFirst, oldWordsPerBlock, newWordsPerBlock,
+                oldFirst, oldFirst + oldCount, oldFirst, oldWordsPerBlock, (long) newCount * newWordsPerBlock
+        );
+    }
+
+    /**
+     * Delete every row not moved to a shadow row, and give the shadow rows their block numbers.  Only in the
+     * transaction that moved them, after every pool's rows have been.
+     *
+     * @return rows now in use.
+     */
+    public int promoteShadowWords() {
+        jdbcTemplate.update(DELETE_WORDS_SQL);
+        return jdbcTemplate.update(PROMOTE_SHADOWS_SQL);
+    }
+
+    public boolean isEmpty() {
+        Integer count = jdbcTemplate.queryForObject(ANY_SQL, Integer.class);
+        return count == null  ||  count == 0;
+    }
+
+    /**
+     * Visit of one word's row.
+     */
+    @FunctionalInterface
+    public interface WordVisitor {
+        void visit(int blockId, int wordIndex, long bits);
+    }
+}
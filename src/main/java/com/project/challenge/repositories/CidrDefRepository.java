@@ -2,6 +2,17 @@ package com.project.challenge.repositories;
 
 import com.project.challenge.entities.CidrDef;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 
-public interface CidrDefRepository extends JpaRepository<CidrDef, Integer> {
+public interface CidrDefRepository extends JpaRepository<CidrDef, String> {
+    /**
+     * Lock the layout of pools' blocks until the transaction ends, by updating its one row.  Whoever else lays
+     * out blocks, here or in another application sharing the database, waits.  Only within a transaction.
+     *
+     * @return rows locked: 1.
+     */
+    @Modifying
+    @Query(value = "UPDATE CIDR_LAYOUT SET VERSION = VERSION + 1 WHERE ID = 0", nativeQuery = true)
+    int lockLayout();
 }
@@ -0,0 +1,210 @@
+package com.project.challenge.services;
+
+/**
+ * Implementations hold the bit blocks representing states of IP addresses, and decide how (and when) those
+ * blocks reach the persistent store.  All block contents are exchanged as arrays of words; see BitWords.
+ */
+public interface BitBlockStore {
+    /**
+     * Apply a change to a single block.  Implementations guarantee the update sees the current content of the
+     * block, and that its changes are kept.  An update that throws must do so before modifying the words.
+     *
+     * @param blockNum which block to change.
+     * @param update gets the block's words, which it may modify in place.
+     * @param <T> whatever the update wishes to tell its caller.
+     * @return value returned by the update.
+     * @throws IpStateServiceException if the block cannot be found, or as thrown by the update.
+     */
+    <T> T updateBlock(int blockNum, BlockUpdate<T> update) throws IpStateServiceException;
+
+    /**
+     * Apply a change to several blocks at once.  No other change to those blocks can interleave with it, and
+     * either all of its changes are kept, or none are.  Locks on the blocks are taken in a fixed order, so that
+     * overlapping multi-block changes cannot deadlock.  An update that throws must do so before modifying the
+     * words.
+     *
+     * @param blockNums which blocks to change; distinct, in ascending order.
+     * @param update gets the words of each block, in the order given.  It may modify them in place.
+     * @param <T> whatever the update wishes to tell its caller.
+     * @return value returned by the update.
+     * @throws IpStateServiceException if any block cannot be found, or as thrown by the update.
+     */
+    <T> T updateBlocks(int[] blockNums, BlocksUpdate<T> update) throws IpStateServiceException;
+
+    /**
+     * Set one bit to the value given.  Stores able to do this in a single atomic step, without reading the block,
+     * override this; by default, it is an update of the block like any other.
+     *
+     * @param blockNum which block to change.
+     * @param blockOffset which bit of the block.
+     * @param value T=set; F=clear.
+     * @param listener told of the block's words where the store read them, or else of the bit changed.
+     * @return T=the bit was changed; F=it already had that value.
+     * @throws IpStateServiceException if the block cannot be found.
+     */
+    default boolean setBit(int blockNum, int blockOffset, boolean value, BitChangeListener listener)
+            throws IpStateServiceException {
+        return updateBlock(blockNum, words -> {
+            boolean changed = BitWords.get(words, blockOffset) != value;
+            BitWords.set(words, blockOffset, value);
+            listener.blockUpdated(blockNum, words);
+            return changed;
+        });
+    }
+
+    /**
+     * Return whether this application may change the block now.  Stores sharing blocks out among applications
+     * override this, so that searches for free addresses pass over blocks another one serves; by default, every
+     * block may be changed here.
+     *
+     * @param blockNum which block.
+     * @return T=updates of the block will be served here.
+     */
+    default boolean canServe(int blockNum) {
+        return true;
+    }
+
+    /**
+     * Tell whether every block is read from, and saved straight back to, the block table, with nothing held in
+     * between.  If so, the table may be rewritten under the store, so long as no change is made meanwhile.
+     *
+     * @return T=the block table alone holds the blocks.
+     */
+    default boolean isWriteThrough() {
+        return false;
+    }
+
+    /**
+     * Tell whether re-blocking the block table at startup, before the store loads, re-blocks every block it will
+     * hold.  Not so for a store whose blocks are kept in a file of its own: laid out at the size they were written
+     * at, they would no longer fit.
+     *
+     * @return T=the store may be re-blocked at startup.
+     */
+    default boolean canReblockAtStartup() {
+        return true;
+    }
+
+    /**
+     * Tell whether other applications may change the blocks too.  If so, nothing this application keeps about the
+     * blocks follows every change: versions, counts, and the block layout itself.
+     *
+     * @return T=blocks are changed elsewhere as well.
+     */
+    default boolean isShared() {
+        return false;
+    }
+
+    /**
+     * Read a single block.  Words returned are a copy, and changes to them will not be kept.
+     *
+     * @param blockNum which block to read.
+     * @return words of the block.
+     * @throws IpStateServiceException if the block cannot be found.
+     */
+    long[] readBlock(int blockNum) throws IpStateServiceException;
+
+    /**
+     * Visit every block in the store, in order of block number.  Words handed to the visitor are a copy,
+     * and changes to them will not be kept.
+     *
+     * @param visitor called once per block.
+     */
+    void forEachBlock(BlockVisitor visitor);
+
+    /**
+     * Read a single block as a container.  Stores keeping blocks in containers hand out their own, with no
+     * copying or expanding; others wrap a copy of the words.
+     *
+     * @param blockNum which block to read.
+     * @return bits of the block.
+     * @throws IpStateServiceException if the block cannot be found.
+     */
+    default BitContainer readContainer(int blockNum) throws IpStateServiceException {
+        return BitContainers.dense(readBlock(blockNum));
+    }
+
+    /**
+     * Visit every block in the store as a container, in order of block number.
+     *
+     * @param visitor called once per block.
+     * @see #readContainer(int)
+     */
+    default void forEachContainer(ContainerVisitor visitor) {
+        forEachBlock((blockNum, words) -> visitor.visit(blockNum, BitContainers.dense(words)));
+    }
+
+    /**
+     * Visit a range of blocks as containers, in order of block number, missing ones as all free.  By default, each
+     * is read alone; stores reading from the database read the range at once.
+     *
+     * @param fromBlock first block to visit.
+     * @param toBlock block after the last to visit.
+     * @param visitor called once per block.
+     * @throws IpStateServiceException if a block cannot be found.
+     * @see #readContainer(int)
+     */
+    default void forEachContainer(int fromBlock, int toBlock, ContainerVisitor visitor) throws IpStateServiceException {
+        for (int blockNum = fromBlock; blockNum < toBlock; blockNum++) {
+            visitor.visit(blockNum, readContainer(blockNum));
+        }
+    }
+
+    /**
+     * Change applied to the words of a block.
+     *
+     * @param <T> result of the change.
+     */
+    @FunctionalInterface
+    interface BlockUpdate<T> {
+        T apply(long[] words) throws IpStateServiceException;
+    }
+
+    /**
+     * Change applied to the words of several blocks.
+     *
+     * @param <T> result of the change.
+     */
+    @FunctionalInterface
+    interface BlocksUpdate<T> {
+        T apply(long[][] blocksWords) throws IpStateServiceException;
+    }
+
+    /**
+     * Told of the outcome of setBit, in whichever form the store has it.
+     */
+    interface BitChangeListener {
+        /**
+         * The block as updated, under the same guarantees as an update: possibly more than once, if retried.
+         *
+         * @param blockNum which block.
+         * @param words its content.  Read only.
+         */
+        void blockUpdated(int blockNum, long[] words);
+
+        /**
+         * The bit was changed, by a store not reading the block.  Told once, and only if the bit changed.
+         *
+         * @param blockNum which block.
+         * @param blockOffset which bit of the block.
+         * @param value its new value.
+         */
+        void bitChanged(int blockNum, int blockOffset, boolean value);
+    }
+
+    /**
+     * Read-only visit of the words of a block.
+     */
+    @FunctionalInterface
+    interface BlockVisitor {
+        void visit(int blockNum, long[] words);
+    }
+
+    /**
+     * Read-only visit of the container of a block.
+     */
+    @FunctionalInterface
+    interface ContainerVisitor {
+        void visit(int blockNum, BitContainer container);
+    }
+}
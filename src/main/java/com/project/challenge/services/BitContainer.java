@@ -0,0 +1,59 @@
+package com.project.challenge.services;
+
+/**
+ * Read-only view of the bits of one block, in whichever form holds them most compactly.  Containers never
+ * change once built, so they may be shared between threads without copying.  A changed block gets a new
+ * container; see BitContainers.
+ *
+ * Methods take the same bounds as their BitWords counterparts.
+ */
+public interface BitContainer {
+    /**
+     * Tell whether the bit is set.
+     *
+     * @param bitIndex which one.
+     * @return T=set
+     */
+    boolean get(int bitIndex);
+
+    /**
+     * Count the set bits before limit.
+     *
+     * @param limit stop counting here (exclusive).
+     * @return number of set bits.
+     */
+    int cardinality(int limit);
+
+    /**
+     * Find the first set bit at or after fromIndex, and before limit.
+     *
+     * @param fromIndex start looking here.
+     * @param limit stop looking here (exclusive).
+     * @return index of the set bit; -1 if none.
+     */
+    int nextSetBit(int fromIndex, int limit);
+
+    /**
+     * Find the first clear bit at or after fromIndex, and before limit.
+     *
+     * @param fromIndex start looking here.
+     * @param limit stop looking here (exclusive).
+     * @return index of the clear bit; -1 if none.
+     */
+    int nextClearBit(int fromIndex, int limit);
+
+    /**
+     * Expand into words.  The result belongs to the caller.
+     *
+     * @param wordCount length of result.
+     * @return bits as words.
+     */
+    long[] toWords(int wordCount);
+
+    /**
+     * Rough amount of memory held by the bits of this container.
+     *
+     * @return size in bytes.
+     */
+    int getSizeInBytes();
+}
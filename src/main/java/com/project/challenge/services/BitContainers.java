@@ -0,0 +1,280 @@
+package com.project.challenge.services;
+
+import java.util.Arrays;
+
+/**
+ * Builds containers for blocks, choosing the form by content:
+ * <ul>
+ *     <li>array - sorted positions of the set bits.  Wins for nearly empty blocks.</li>
+ *     <li>run - start and length of each run of set bits.  Wins for nearly full, or clustered, blocks.</li>
+ *     <li>bitmap - the words themselves.  Wins for everything else.</li>
+ * </ul>
+ * Positions are held as 16-bit values, so array and run forms serve blocks of up to 65536 bits.
+ */
+public final class BitContainers {
+    private static final int MAX_COMPRESSED_BITS = 1 << Character.SIZE;
+
+    private BitContainers() {
+    }
+
+    /**
+     * Build the smallest container holding these bits.
+     *
+     * @param words bits of the block.  Kept by a bitmap container, so must not be changed afterwards.
+     * @return container.
+     */
+    public static BitContainer compact(long[] words) {
+        if ((long) words.length * BitWords.BITS_PER_WORD > MAX_COMPRESSED_BITS) {
+            return new BitmapContainer(words);
+        }
+        int cardinality = 0;
+        int runCount = 0;
+        long carry = 0;
+        for (long word : words) {
+            cardinality += Long.bitCount(word);
+            // A run starts at each set bit whose lower neighbour is clear.
+            runCount += Long.bitCount(word & ~((word << 1) | carry));
+            carry = word >>> (BitWords.BITS_PER_WORD - 1);
+        }
+
+        int arrayBytes = cardinality * Character.BYTES;
+        int runBytes = runCount * 2 * Character.BYTES;
+        int bitmapBytes = words.length * Long.BYTES;
+        if (arrayBytes < runBytes  &&  arrayBytes < bitmapBytes) {
+            return ArrayContainer.of(words, cardinality);
+        } else if (runBytes < bitmapBytes) {
+            return RunContainer.of(words, runCount);
+        } else {
+            return new BitmapContainer(words);
+        }
+    }
+
+    /**
+     * Wrap the words as they are.
+     *
+     * @param words bits of the block.  Kept by the container, so must not be changed afterwards.
+     * @return container.
+     */
+    public static BitContainer dense(long[] words) {
+        return new BitmapContainer(words);
+    }
+
+    /** Words kept as they are. */
+    static final class BitmapContainer implements BitContainer {
+        private final long[] words;
+
+        BitmapContainer(long[] words) {
+            this.words = words;
+        }
+
+        @Override
+        public boolean get(int bitIndex) {
+            return bitIndex < words.length * BitWords.BITS_PER_WORD  &&  BitWords.get(words, bitIndex);
+        }
+
+        @Override
+        public int cardinality(int limit) {
+            return BitWords.cardinality(words, limit);
+        }
+
+        @Override
+        public int nextSetBit(int fromIndex, int limit) {
+            return BitWords.nextSetBit(words, fromIndex, limit);
+        }
+
+        @Override
+        public int nextClearBit(int fromIndex, int limit) {
+            return BitWords.nextClearBit(words, fromIndex, limit);
+        }
+
+        @Override
+        public long[] toWords(int wordCount) {
+            return Arrays.copyOf(words, wordCount);
+        }
+
+        @Override
+        public int getSizeInBytes() {
+            return words.length * Long.BYTES;
+        }
+    }
+
+    /** Sorted positions of the set bits. */
+    static final class ArrayContainer implements BitContainer {
+        private final char[] positions;
+
+        private ArrayContainer(char[] positions) {
+            this.positions = positions;
+        }
+
+        static ArrayContainer of(long[] words, int cardinality) {
+            char[] positions = new char[cardinality];
+            int bitCount = words.length * BitWords.BITS_PER_WORD;
+            int i = 0;
+            for (int bitIndex = BitWords.nextSetBit(words, 0, bitCount); bitIndex >= 0; bitIndex = BitWords.nextSetBit(words, bitIndex + 1, bitCount)) {
+                positions[i++] = (char) bitIndex;
+            }
+            return new ArrayContainer(positions);
+        }
+
+        @Override
+        public boolean get(int bitIndex) {
+            int i = lowerBound(bitIndex);
+            return i < positions.length  &&  positions[i] == bitIndex;
+        }
+
+        @Override
+        public int cardinality(int limit) {
+            return lowerBound(limit);
+        }
+
+        @Override
+        public int nextSetBit(int fromIndex, int limit) {
+            int i = lowerBound(fromIndex);
+            return i < positions.length  &&  positions[i] < limit ? positions[i] : -1;
+        }
+
+        @Override
+        public int nextClearBit(int fromIndex, int limit) {
+            int bitIndex = fromIndex;
+            for (int i = lowerBound(fromIndex); i < positions.length  &&  positions[i] == bitIndex; i++) {
+                bitIndex++;
+            }
+            return bitIndex < limit ? bitIndex : -1;
+        }
+
+        @Override
+        public long[] toWords(int wordCount) {
+            long[] words = new long[wordCount];
+            for (char position : positions) {
+                BitWords.set(words, position, true);
+            }
+            return words;
+        }
+
+        @Override
+        public int getSizeInBytes() {
+            return positions.length * Character.BYTES;
+        }
+
+        /** Index of the first position at or after bitIndex. */
+        private int lowerBound(int bitIndex) {
+            int low = 0;
+            int high = positions.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (positions[mid] < bitIndex) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Runs of set bits, as pairs of (first bit, last bit).  Runs are maximal, so the bit after each run is
+     * clear.
+     */
+    static final class RunContainer implements BitContainer {
+        private final char[] runs;
+
+        private RunContainer(char[] runs) {
+            this.runs = runs;
+        }
+
+        static RunContainer of(long[] words, int runCount) {
+            char[] runs = new char[runCount * 2];
+            int bitCount = words.length * BitWords.BITS_PER_WORD;
+            int i = 0;
+            int start = BitWords.nextSetBit(words, 0, bitCount);
+            while (start >= 0) {
+                int end = BitWords.nextClearBit(words, start, bitCount);
+                if (end < 0) {
+                    end = bitCount;
+                }
+                runs[i++] = (char) start;
+                runs[i++] = (char) (end - 1);
+                start = BitWords.nextSetBit(words, end, bitCount);
+            }
+            return new RunContainer(runs);
+        }
+
+        @Override
+        public boolean get(int bitIndex) {
+            int run = runAtOrBefore(bitIndex);
+            return run >= 0  &&  bitIndex <= last(run);
+        }
+
+        @Override
+        public int cardinality(int limit) {
+            int count = 0;
+            for (int run = 0; run < runCount()  &&  first(run) < limit; run++) {
+                count += Math.min(last(run), limit - 1) - first(run) + 1;
+            }
+            return count;
+        }
+
+        @Override
+        public int nextSetBit(int fromIndex, int limit) {
+            int run = runAtOrBefore(fromIndex);
+            int bitIndex;
+            if (run >= 0  &&  fromIndex <= last(run)) {
+                bitIndex = fromIndex;
+            } else if (run + 1 < runCount()) {
+                bitIndex = first(run + 1);
+            } else {
+                return -1;
+            }
+            return bitIndex < limit ? bitIndex : -1;
+        }
+
+        @Override
+        public int nextClearBit(int fromIndex, int limit) {
+            int run = runAtOrBefore(fromIndex);
+            int bitIndex = run >= 0  &&  fromIndex <= last(run) ? last(run) + 1 : fromIndex;
+            return bitIndex < limit ? bitIndex : -1;
+        }
+
+        @Override
+        public long[] toWords(int wordCount) {
+            long[] words = new long[wordCount];
+            for (int run = 0; run < runCount(); run++) {
+                BitWords.setRange(words, first(run), last(run) + 1);
+            }
+            return words;
+        }
+
+        @Override
+        public int getSizeInBytes() {
+            return runs.length * Character.BYTES;
+        }
+
+        private int runCount() {
+            return runs.length / 2;
+        }
+
+        private int first(int run) {
+            return runs[run * 2];
+        }
+
+        private int last(int run) {
+            return runs[run * 2 + 1];
+        }
+
+        /** Index of the last run starting at or before bitIndex; -1 if none. */
+        private int runAtOrBefore(int bitIndex) {
+            int low = 0;
+            int high = runCount();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (first(mid) <= bitIndex) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low - 1;
+        }
+    }
+}
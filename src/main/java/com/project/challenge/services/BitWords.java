@@ -0,0 +1,158 @@
+package com.project.challenge.services;
+
+/**
+ * Helpers for treating a plain array of longs as a bit set.  Bit ordering is the same as that of
+ * java.util.BitSet, so that words may be handed back and forth with BitSet.valueOf/toLongArray.
+ */
+public final class BitWords {
+    public static final int BITS_PER_WORD = Long.SIZE;
+    private static final int ADDRESS_BITS_PER_WORD = 6;
+    private static final long WORD_MASK = 0xffffffffffffffffL;
+
+    private BitWords() {
+    }
+
+    /**
+     * How many words does it take to hold this many bits?
+     *
+     * @param bitCount number of bits.
+     * @return word count.
+     */
+    public static int wordCount(long bitCount) {
+        return (int) ((bitCount + BITS_PER_WORD - 1) >>> ADDRESS_BITS_PER_WORD);
+    }
+
+    /**
+     * Tell whether the bit is set.
+     *
+     * @param words bits.
+     * @param bitIndex which one.
+     * @return T=set
+     */
+    public static boolean get(long[] words, int bitIndex) {
+        return (words[bitIndex >>> ADDRESS_BITS_PER_WORD] & (1L << bitIndex)) != 0;
+    }
+
+    /**
+     * Set or clear the bit.
+     *
+     * @param words bits.
+     * @param bitIndex which one.
+     * @param value T=set; F=clear
+     */
+    public static void set(long[] words, int bitIndex, boolean value) {
+        if (value) {
+            words[bitIndex >>> ADDRESS_BITS_PER_WORD] |= (1L << bitIndex);
+        } else {
+            words[bitIndex >>> ADDRESS_BITS_PER_WORD] &= ~(1L << bitIndex);
+        }
+    }
+
+    /**
+     * Find the first clear bit at or after fromIndex, and before limit.
+     *
+     * @param words bits.
+     * @param fromIndex start looking here.
+     * @param limit stop looking here (exclusive).  Must be within the words.
+     * @return index of the clear bit; -1 if none.
+     */
+    public static int nextClearBit(long[] words, int fromIndex, int limit) {
+        if (fromIndex >= limit) {
+            return -1;
+        }
+        int wordIndex = fromIndex >>> ADDRESS_BITS_PER_WORD;
+        int lastWordIndex = (limit - 1) >>> ADDRESS_BITS_PER_WORD;
+        long word = ~words[wordIndex] & (WORD_MASK << fromIndex);
+        while (word == 0) {
+            if (++wordIndex > lastWordIndex) {
+                return -1;
+            }
+            word = ~words[wordIndex];
+        }
+        int bitIndex = (wordIndex << ADDRESS_BITS_PER_WORD) + Long.numberOfTrailingZeros(word);
+        return bitIndex < limit ? bitIndex : -1;
+    }
+
+    /**
+     * Find the first set bit at or after fromIndex, and before limit.
+     *
+     * @param words bits.
+     * @param fromIndex start looking here.
+     * @param limit stop looking here (exclusive).  Must be within the words.
+     * @return index of the set bit; -1 if none.
+     */
+    public static int nextSetBit(long[] words, int fromIndex, int limit) {
+        if (fromIndex >= limit) {
+            return -1;
+        }
+        int wordIndex = fromIndex >>> ADDRESS_BITS_PER_WORD;
+        int lastWordIndex = (limit - 1) >>> ADDRESS_BITS_PER_WORD;
+        long word = words[wordIndex] & (WORD_MASK << fromIndex);
+        while (word == 0) {
+            if (++wordIndex > lastWordIndex) {
+                return -1;
+            }
+            word = words[wordIndex];
+        }
+        int bitIndex = (wordIndex << ADDRESS_BITS_PER_WORD) + Long.numberOfTrailingZeros(word);
+        return bitIndex < limit ? bitIndex : -1;
+    }
+
+    /**
+     * Count the set bits before limit.
+     *
+     * @param words bits.
+     * @param limit stop counting here (exclusive).  Must be within the words.
+     * @return number of set bits.
+     */
+    public static int cardinality(long[] words, int limit) {
+        int fullWords = limit >>> ADDRESS_BITS_PER_WORD;
+        int count = 0;
+        for (int i = 0; i < fullWords; i++) {
+            count += Long.bitCount(words[i]);
+        }
+        int remainingBits = limit & (BITS_PER_WORD - 1);
+        if (remainingBits != 0) {
+            count += Long.bitCount(words[fullWords] & ~(WORD_MASK << remainingBits));
+        }
+        return count;
+    }
+
+    /**
+     * Tell whether every bit from fromIndex up to toIndex is clear.
+     *
+     * @param words bits.
+     * @param fromIndex first bit to check.
+     * @param toIndex stop checking here (exclusive).  Must be within the words.
+     * @return T=all clear
+     */
+    public static boolean isClear(long[] words, int fromIndex, int toIndex) {
+        return nextSetBit(words, fromIndex, toIndex) < 0;
+    }
+
+    /**
+     * Set every bit from fromIndex up to toIndex, a word at a time.
+     *
+     * @param words bits.
+     * @param fromIndex first bit to set.
+     * @param toIndex stop setting here (exclusive).  Must be within the words.
+     */
+    public static void setRange(long[] words, int fromIndex, int toIndex) {
+        if (fromIndex >= toIndex) {
+            return;
+        }
+        int startWordIndex = fromIndex >>> ADDRESS_BITS_PER_WORD;
+        int endWordIndex = (toIndex - 1) >>> ADDRESS_BITS_PER_WORD;
+        long firstWordMask = WORD_MASK << fromIndex;
+        long lastWordMask = WORD_MASK >>> -toIndex;
+        if (startWordIndex == endWordIndex) {
+            words[startWordIndex] |= (firstWordMask & lastWordMask);
+        } else {
+            words[startWordIndex] |= firstWordMask;
+            for (int i = startWordIndex + 1; i < endWordIndex; i++) {
+                words[i] = WORD_MASK;
+            }
+            words[endWordIndex] |= lastWordMask;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.project.challenge.services;
+
+import com.project.challenge.entities.CidrBitBlock;
+import com.project.challenge.model.BlockFormat;
+import com.project.challenge.repositories.BlockRepository;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+
+/**
+ * One-shot rewrite of stored blocks into the configured block format.  Blocks are readable in either format
+ * at all times, so this may run while the application serves requests; it only spares later reads the slower
+ * decoding, and the database the larger rows.
+ *
+ * Blocks are rewritten a batch at a time, each batch in its own transaction.  A block changed by another
+ * writer meanwhile has already been saved in the configured format, so a batch failing its version check
+ * is simply fetched again.
+ */
+@Component
+public class BlockFormatMigration {
+    private IpBlockService blockService;
+    private BlockRepository blockRepository;
+    private TransactionTemplate transactionTemplate;
+
+    private boolean migrateOnStartup = true;
+    private int batchSize = 512;
+    private int maxRetries = 5;
+
+    private static Logger logger = LogManager.getLogger(BlockFormatMigration.class);
+
+    /**
+     * Construct with all injected services.
+     *
+     * @param blockService knows the configured format, and how to convert to it.
+     * @param blockRepository for serializing.
+     * @param transactionManager for committing each batch.
+     */
+    @Autowired
+    public BlockFormatMigration(
+            IpBlockService blockService,
+            BlockRepository blockRepository,
+            PlatformTransactionManager transactionManager
+    ) {
+        this.blockService = blockService;
+        this.blockRepository = blockRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @Value("${ipstate.block-format.migrate-on-startup:true}")
+    public void setMigrateOnStartup(boolean migrateOnStartup) {
+        this.migrateOnStartup = migrateOnStartup;
+    }
+
+    @Value("${ipstate.block-format.migration-batch-size:512}")
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    @Value("${ipstate.optimistic.max-retries:5}")
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrateAtStartup() {
+        if (migrateOnStartup) {
+            migrate();
+        }
+    }
+
+    /**
+     * Rewrite every block not yet held in the configured format.
+     *
+     * @return how many blocks were rewritten.
+     */
+    public int migrate() {
+        BlockFormat blockFormat = blockService.getBlockFormat();
+        int migrated = 0;
+        int failures = 0;
+        while (true) {
+            int batchCount;
+            try {
+                batchCount = transactionTemplate.execute(status -> migrateBatch(blockFormat));
+            } catch (OptimisticLockingFailureException olfe) {
+                if (++failures > maxRetries) {
+                    logger.warn("Block migration to {} abandoned after {} blocks.  Will resume at next startup.",
+                            blockFormat, migrated, olfe);
+                    return migrated;
+                }
+                continue;
+            }
+            failures = 0;
+            migrated += batchCount;
+            if (batchCount < batchSize) {
+                break;
+            }
+        }
+        if (migrated > 0) {
+            logger.info("Migrated {} blocks to {} format.", migrated, blockFormat);
+        }
+        return migrated;
+    }
+
+    /** Rewrite one batch.  Rewritten blocks leave the query, so the first page is always the next batch. */
+    private int migrateBatch(BlockFormat blockFormat) {
+        PageRequest firstPage = PageRequest.of(0, batchSize, Sort.by("id"));
+        List<CidrBitBlock> toMigrate = blockFormat == BlockFormat.BINARY
+                ? blockRepository.findByRawBitsIsNull(firstPage)
+                : blockRepository.findByEncodedBitsIsNull(firstPage);
+        for (CidrBitBlock bitBlock : toMigrate) {
+            blockService.setBlockWords(bitBlock, blockService.getBlockWords(bitBlock));
+        }
+        blockRepository.saveAll(toMigrate);
+        return toMigrate.size();
+    }
+}
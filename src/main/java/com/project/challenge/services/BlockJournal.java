@@ -0,0 +1,526 @@
+package com.project.challenge.services;
+
+import com.project.challenge.model.JournalSync;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of bit changes, with periodic snapshots of every block, in one directory.
+ *
+ * Each change of one bit is a fixed 16-byte record: version (8 bytes, one more than the record before), block
+ * number (4), and bit offset within the block (4), whose top bit is set for a clear.  Records go to segment files,
+ * named after the version of their first record.  Appending only fills a buffer; a syncer thread writes the buffer
+ * out, and forces it to disk as JournalSync says.  Under GROUP, every change waiting on a force is covered by the
+ * same one.
+ *
+ * A snapshot holds every block as of one version, with a CRC32 of its content.  It is written to a temporary file,
+ * forced, then renamed over the last one; segments it covers are then deleted.  Recovery reads the snapshot, then
+ * replays the records after its version.  Replay stops at the first record out of sequence, as left by a write torn
+ * by a crash, and the journal is cut back to the record before it.
+ *
+ * Appends from one thread at a time per block, in the order of the changes they record: callers hold the block's
+ * lock across the change and its append.
+ */
+public class BlockJournal implements Closeable {
+    public static final int RECORD_SIZE = 16;
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_NAME = "snapshot.bin";
+    private static final String SNAPSHOT_TEMP_NAME = "snapshot.tmp";
+    private static final int SNAPSHOT_MAGIC = 0x49505353;
+    private static final int SNAPSHOT_FORMAT = 1;
+    private static final int SNAPSHOT_HEADER_SIZE = 24;
+    private static final int CLEAR_FLAG = 0x8000_0000;
+    private static final int REPLAY_CHUNK_RECORDS = 4096;
+
+    private final Path directory;
+    private final JournalSync sync;
+    private final long syncIntervalMs;
+
+    // Guards the buffers and versions.  Taken after channelLock, never before.
+    private final Object appendLock = new Object();
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer writing = ByteBuffer.allocate(64 * 1024);
+    private long appendedVersion;
+    private long durableVersion;
+    private long snapshotVersion;
+    private IOException failure;
+
+    // Guards the segment being written.
+    private final ReentrantLock channelLock = new ReentrantLock();
+    private FileChannel channel;
+
+    private Thread syncer;
+    private volatile boolean running;
+
+    private static Logger logger = LogManager.getLogger(BlockJournal.class);
+
+    /**
+     * Construct over a directory, created if need be.  Nothing is read until open().
+     *
+     * @param directory holds the snapshot and segments.
+     * @param sync when records are forced to disk.
+     * @param syncIntervalMs how often, under INTERVAL or NONE.
+     */
+    public BlockJournal(Path directory, JournalSync sync, long syncIntervalMs) {
+        this.directory = directory;
+        this.sync = sync;
+        this.syncIntervalMs = syncIntervalMs;
+    }
+
+    /**
+     * Tell whether anything has been journalled here, without opening the journal.
+     *
+     * @return T=a snapshot or records are found; F=the journal is new.
+     */
+    public boolean exists() throws IOException {
+        return Files.exists(directory.resolve(SNAPSHOT_NAME))
+                ||  (Files.isDirectory(directory)  &&  ! listSegments().isEmpty());
+    }
+
+    /**
+     * Recover the blocks, then make ready for appending.
+     *
+     * @param visitor told of each block in the snapshot, then of each change since, in order.
+     * @return T=a snapshot or records were found; F=the journal is new.
+     */
+    public boolean open(RecoveryVisitor visitor) throws IOException {
+        Files.createDirectories(directory);
+        Files.deleteIfExists(directory.resolve(SNAPSHOT_TEMP_NAME));
+        boolean found = Files.exists(directory.resolve(SNAPSHOT_NAME));
+        snapshotVersion = readSnapshot(visitor);
+        List<Path> segments = listSegments();
+        found |= ! segments.isEmpty();
+        long version = replay(segments, snapshotVersion, visitor);
+
+        synchronized (appendLock) {
+            appendedVersion = version;
+            durableVersion = version;
+        }
+        // Carry on in the last segment, as cut back; or start one.
+        segments = listSegments();
+        Path segment = segments.isEmpty() ? segmentPath(version + 1) : segments.get(segments.size() - 1);
+        channel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        logger.info("Journal recovered to version {} (snapshot at {}), in {}.", version, snapshotVersion, directory);
+
+        running = true;
+        syncer = new Thread(this::runSyncer, "block-journal-syncer");
+        syncer.setDaemon(true);
+        syncer.start();
+        return found;
+    }
+
+    /**
+     * Record every bit differing between the words as they were and as they are.
+     *
+     * @param blockNum which block.
+     * @param original words before the change.
+     * @param words words after it.
+     * @return version of the last record; 0 if nothing differed.
+     */
+    public long appendChanges(int blockNum, long[] original, long[] words) throws IOException {
+        return appendChanges(new int[] { blockNum }, new long[][] { original }, new long[][] { words });
+    }
+
+    /**
+     * Record every bit differing in each of several blocks, in one append: either every block's records are taken,
+     * or, the journal having failed, none is.
+     *
+     * @param blockNums which blocks.
+     * @param originals each block's words before the change.
+     * @param blocksWords each block's words after it.
+     * @return version of the last record; 0 if nothing differed.
+     */
+    public long appendChanges(int[] blockNums, long[][] originals, long[][] blocksWords) throws IOException {
+        synchronized (appendLock) {
+            checkFailure();
+            long version = 0;
+            for (int i = 0; i < blockNums.length; i++) {
+                long[] original = originals[i];
+                long[] words = blocksWords[i];
+                for (int wordIndex = 0; wordIndex < words.length; wordIndex++) {
+                    long changed = original[wordIndex] ^ words[wordIndex];
+                    while (changed != 0) {
+                        int bit = Long.numberOfTrailingZeros(changed);
+                        int blockOffset = (wordIndex << 6) + bit;
+                        version = appendLocked(blockNums[i], blockOffset, (words[wordIndex] & (1L << bit)) != 0);
+                        changed &= changed - 1;
+                    }
+                }
+            }
+            if (version != 0  &&  sync == JournalSync.GROUP) {
+                appendLock.notifyAll();
+            }
+            return version;
+        }
+    }
+
+    /**
+     * Wait until the record is on disk, where JournalSync is GROUP.  Otherwise returns at once.
+     *
+     * @param version as returned by appendChanges.
+     */
+    public void awaitDurable(long version) throws IOException {
+        if (sync != JournalSync.GROUP  ||  version == 0) {
+            return;
+        }
+        synchronized (appendLock) {
+            while (durableVersion < version) {
+                checkFailure();
+                if (! running) {
+                    throw new IOException("Journal closed before version " + version + " was written");
+                }
+                try {
+                    appendLock.wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for journal version " + version);
+                }
+            }
+        }
+    }
+
+    /**
+     * Close the segment being written, and start another.  Callers hold every block's lock, so that the version
+     * returned is a consistent cut of all blocks.
+     *
+     * @return version of the last record before the new segment.
+     */
+    public long rotate() throws IOException {
+        channelLock.lock();
+        try {
+            long version = writeOut(true);
+            channel.close();
+            channel = FileChannel.open(segmentPath(version + 1), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            return version;
+        } finally {
+            channelLock.unlock();
+        }
+    }
+
+    /**
+     * Write every block as of a version, then delete the segments that version covers.
+     *
+     * @param version as returned by rotate().
+     * @param blockCount how many blocks.
+     * @param wordsPerBlock words in each.
+     * @param source gives the words of each block, as of the version.
+     */
+    public void writeSnapshot(long version, int blockCount, int wordsPerBlock, SnapshotSource source) throws IOException {
+        Path tempPath = directory.resolve(SNAPSHOT_TEMP_NAME);
+        CRC32 crc = new CRC32();
+        try (FileOutputStream fileOut = new FileOutputStream(tempPath.toFile());
+             BufferedOutputStream out = new BufferedOutputStream(fileOut, 64 * 1024)) {
+            ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE);
+            header.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_FORMAT).putLong(version).putInt(blockCount).putInt(wordsPerBlock);
+            crc.update(header.array());
+            out.write(header.array());
+            ByteBuffer blockBytes = ByteBuffer.allocate(wordsPerBlock * Long.BYTES);
+            for (int blockNum = 0; blockNum < blockCount; blockNum++) {
+                blockBytes.clear();
+                blockBytes.asLongBuffer().put(source.getWords(blockNum));
+                crc.update(blockBytes.array());
+                out.write(blockBytes.array());
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(Long.BYTES).putLong(crc.getValue());
+            out.write(trailer.array());
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(tempPath, directory.resolve(SNAPSHOT_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        synchronized (appendLock) {
+            snapshotVersion = version;
+        }
+        int deleted = 0;
+        for (Path segment : listSegments()) {
+            if (firstVersionOf(segment) <= version) {
+                Files.delete(segment);
+                deleted++;
+            }
+        }
+        logger.info("Wrote snapshot of {} blocks at version {}; deleted {} journal segments.", blockCount, version, deleted);
+    }
+
+    /** Version of the last record appended. */
+    public long getAppendedVersion() {
+        synchronized (appendLock) {
+            return appendedVersion;
+        }
+    }
+
+    /** Version the last snapshot covers. */
+    public long getSnapshotVersion() {
+        synchronized (appendLock) {
+            return snapshotVersion;
+        }
+    }
+
+    /**
+     * Stop the syncer, and write out and force whatever is buffered.
+     */
+    @Override
+    public void close() throws IOException {
+        if (! running) {
+            return;
+        }
+        running = false;
+        synchronized (appendLock) {
+            appendLock.notifyAll();
+        }
+        try {
+            syncer.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        channelLock.lock();
+        try {
+            writeOut(true);
+            channel.close();
+        } finally {
+            channelLock.unlock();
+        }
+    }
+
+    /** Write one record to the buffer.  Call holding appendLock.  Returns its version. */
+    private long appendLocked(int blockNum, int blockOffset, boolean value) {
+        if (pending.remaining() < RECORD_SIZE) {
+            ByteBuffer grown = ByteBuffer.allocate(pending.capacity() * 2);
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        long version = ++appendedVersion;
+        pending.putLong(version);
+        pending.putInt(blockNum);
+        pending.putInt(value ? blockOffset : blockOffset | CLEAR_FLAG);
+        return version;
+    }
+
+    /**
+     * Until closed: wait for records (GROUP), or for the interval to pass (INTERVAL, NONE), then write them out.
+     */
+    private void runSyncer() {
+        while (running) {
+            synchronized (appendLock) {
+                try {
+                    if (sync == JournalSync.GROUP) {
+                        while (running  &&  pending.position() == 0) {
+                            appendLock.wait();
+                        }
+                    } else {
+                        appendLock.wait(syncIntervalMs);
+                    }
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+            channelLock.lock();
+            try {
+                writeOut(sync != JournalSync.NONE);
+            } catch (IOException ioe) {
+                logger.error("Failed to write journal.  Changes will be refused.", ioe);
+                synchronized (appendLock) {
+                    failure = ioe;
+                    appendLock.notifyAll();
+                }
+                return;
+            } finally {
+                channelLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Write the buffer to the segment, swapping in the spare so that appends carry on meanwhile.  Call holding
+     * channelLock.
+     *
+     * @return version of the last record written.
+     */
+    private long writeOut(boolean force) throws IOException {
+        ByteBuffer toWrite;
+        long version;
+        synchronized (appendLock) {
+            toWrite = pending;
+            pending = writing;
+            writing = toWrite;
+            version = appendedVersion;
+        }
+        toWrite.flip();
+        while (toWrite.hasRemaining()) {
+            channel.write(toWrite);
+        }
+        toWrite.clear();
+        if (force) {
+            channel.force(false);
+        }
+        synchronized (appendLock) {
+            durableVersion = Math.max(durableVersion, version);
+            appendLock.notifyAll();
+        }
+        return version;
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Journal failed earlier", failure);
+        }
+    }
+
+    /** Read the snapshot, if any.  Returns the version it covers; 0 if none. */
+    private long readSnapshot(RecoveryVisitor visitor) throws IOException {
+        Path snapshotPath = directory.resolve(SNAPSHOT_NAME);
+        if (! Files.exists(snapshotPath)) {
+            return 0;
+        }
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath), 64 * 1024))) {
+            byte[] headerBytes = new byte[SNAPSHOT_HEADER_SIZE];
+            in.readFully(headerBytes);
+            crc.update(headerBytes);
+            ByteBuffer header = ByteBuffer.wrap(headerBytes);
+            if (header.getInt() != SNAPSHOT_MAGIC  ||  header.getInt() != SNAPSHOT_FORMAT) {
+                throw new IOException("Not a block snapshot: " + snapshotPath);
+            }
+            long version = header.getLong();
+            int blockCount = header.getInt();
+            int wordsPerBlock = header.getInt();
+            byte[] blockBytes = new byte[wordsPerBlock * Long.BYTES];
+            for (int blockNum = 0; blockNum < blockCount; blockNum++) {
+                in.readFully(blockBytes);
+                crc.update(blockBytes);
+                long[] words = new long[wordsPerBlock];
+                ByteBuffer.wrap(blockBytes).asLongBuffer().get(words);
+                visitor.snapshotBlock(blockNum, words);
+            }
+            if (in.readLong() != crc.getValue()) {
+                // Renamed into place only once whole: damaged since, and not to be trusted, nor silently dropped.
+                throw new IOException("Block snapshot fails its checksum: " + snapshotPath);
+            }
+            return version;
+        }
+    }
+
+    /**
+     * Replay records after the snapshot, segment by segment.  At the first record out of sequence, or partial,
+     * cut its segment back to the record before, and delete any later segments.
+     *
+     * @return version of the last good record.
+     */
+    private long replay(List<Path> segments, long fromVersion, RecoveryVisitor visitor) throws IOException {
+        long lastVersion = fromVersion;
+        long replayed = 0;
+        ByteBuffer chunk = ByteBuffer.allocate(RECORD_SIZE * REPLAY_CHUNK_RECORDS);
+        for (int i = 0; i < segments.size(); i++) {
+            Path segment = segments.get(i);
+            long goodLength = 0;
+            boolean torn = false;
+            try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ)) {
+                chunk.clear();
+                while (! torn  &&  in.read(chunk) > 0) {
+                    chunk.flip();
+                    while (chunk.remaining() >= RECORD_SIZE) {
+                        long version = chunk.getLong();
+                        int blockNum = chunk.getInt();
+                        int offsetAndOp = chunk.getInt();
+                        if (version <= fromVersion) {
+                            // Covered by the snapshot; the segment was not yet deleted.
+                            goodLength += RECORD_SIZE;
+                            lastVersion = Math.max(lastVersion, version);
+                            continue;
+                        }
+                        if (version != lastVersion + 1  ||  blockNum < 0) {
+                            torn = true;
+                            break;
+                        }
+                        visitor.bitChanged(blockNum, offsetAndOp & ~CLEAR_FLAG, (offsetAndOp & CLEAR_FLAG) == 0);
+                        lastVersion = version;
+                        goodLength += RECORD_SIZE;
+                        replayed++;
+                    }
+                    chunk.compact();
+                }
+                torn |= in.size() != goodLength;
+            }
+            if (torn) {
+                logger.warn("Journal segment {} cut back to {} bytes, at version {}.", segment, goodLength, lastVersion);
+                try (FileChannel out = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                    out.truncate(goodLength);
+                    out.force(true);
+                }
+                for (Path later : segments.subList(i + 1, segments.size())) {
+                    logger.warn("Journal segment {} follows a torn one, and is deleted.", later);
+                    Files.delete(later);
+                }
+                break;
+            }
+        }
+        logger.info("Replayed {} journal records.", replayed);
+        return lastVersion;
+    }
+
+    /** Segments, in order of first version. */
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            List<Path> segments = paths
+                    .filter(path -> {
+                        String name = path.getFileName().toString();
+                        return name.startsWith(SEGMENT_PREFIX)  &&  name.endsWith(SEGMENT_SUFFIX);
+                    })
+                    .collect(Collectors.toCollection(ArrayList::new));
+            segments.sort((a, b) -> Long.compare(firstVersionOf(a), firstVersionOf(b)));
+            return segments;
+        }
+    }
+
+    private Path segmentPath(long firstVersion) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstVersion, SEGMENT_SUFFIX));
+    }
+
+    private static long firstVersionOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Told of the blocks as recovered.
+     */
+    public interface RecoveryVisitor {
+        /**
+         * A block as the snapshot holds it.
+         *
+         * @param blockNum which block.
+         * @param words its content.  Belongs to the visitor.
+         */
+        void snapshotBlock(int blockNum, long[] words);
+
+        /**
+         * A change since the snapshot, in the order made.
+         *
+         * @param blockNum which block.
+         * @param blockOffset which bit of the block.
+         * @param value T=set; F=clear.
+         */
+        void bitChanged(int blockNum, int blockOffset, boolean value);
+    }
+
+    /**
+     * Gives the words of each block, for a snapshot.
+     */
+    @FunctionalInterface
+    public interface SnapshotSource {
+        long[] getWords(int blockNum);
+    }
+}
@@ -0,0 +1,95 @@
+package com.project.challenge.services;
+
+import com.project.challenge.model.BlockLease;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Ownership of ranges of blocks, among instances sharing one database.  Blocks are leased a range at a time; the
+ * instance holding a range's lease alone changes its blocks, until the lease expires.  Leases are claimed on first
+ * need, and renewed by a heartbeat.
+ *
+ * Whether a lease has lapsed is decided by the database's clock.  An instance's own view of what it holds is kept
+ * by its own clock, measured from before asking the database, so that it never outlasts the lease; even so, a
+ * write made on that view must be fenced (see lockHeld), for the instance may have stalled since it looked.
+ */
+public interface BlockLeaseService {
+    /**
+     * @param blockNum any block.
+     * @return the range holding it.
+     */
+    int getRangeId(int blockNum);
+
+    /** How many consecutive blocks make a range. */
+    int getRangeBlocks();
+
+    /**
+     * Return whether this instance holds the range's lease, unexpired.  Answered from memory.
+     *
+     * @param rangeId which range.
+     * @return T=held.
+     */
+    boolean isHeld(int rangeId);
+
+    /**
+     * Claim the range's lease, unless held already.  A range last seen leased to another instance is not asked for
+     * again until that lease would expire.
+     *
+     * @param rangeId which range.
+     * @return T=held now; F=held by another.
+     */
+    boolean claim(int rangeId);
+
+    /**
+     * Within a transaction, lock the leases this instance still holds among those of the ranges given, unexpired by
+     * the database's clock, until it ends.  None of those can be taken over meanwhile, so blocks of them written in
+     * the same transaction are written by their holder; blocks of the others must not be written.
+     *
+     * @param rangeIds which ranges.
+     * @return those of the ranges held, and now locked.
+     */
+    Set<Integer> lockHeld(Collection<Integer> rangeIds);
+
+    /**
+     * @param rangeId which range.
+     * @return lease of the range's holder, as last seen; null if none known.
+     */
+    BlockLease findHolder(int rangeId);
+
+    /**
+     * Extend every lease held.  Listeners are told of any no longer held: taken over, or lapsed unrenewed.
+     */
+    void renewAll();
+
+    /**
+     * @return ranges held, in no particular order.
+     */
+    List<Integer> getHeldRanges();
+
+    /**
+     * Give up the range's lease, so that another instance may claim it at once.
+     *
+     * @param rangeId which range.
+     */
+    void release(int rangeId);
+
+    /** Base URL this instance serves requests at, as told to others. */
+    String getInstanceUrl();
+
+    /**
+     * Be told of leases lost.
+     *
+     * @param listener told once per lease lost, before that range can be claimed again.
+     */
+    void addLeaseListener(LeaseListener listener);
+
+    /**
+     * Told of a range this instance held, and may no longer change.  Whatever it kept of the range's blocks is stale.
+     */
+    @FunctionalInterface
+    interface LeaseListener {
+        void leaseLost(int rangeId);
+    }
+}
@@ -0,0 +1,194 @@
+package com.project.challenge.services;
+
+import com.project.challenge.model.BlockLease;
+import com.project.challenge.repositories.BlockLeaseRepository;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Leases held in the database (see BlockLeaseRepository), with this instance's own view kept in memory: the
+ * deadline of each lease it holds, and the last lease seen held by another, per range.
+ *
+ * A lease is counted held until the time it was claimed or last renewed, plus its duration, measured by this
+ * instance's clock from just before asking the database.  Others may take it over only after the expiry written
+ * there, by the database's clock from later, which is no sooner.  A lease last seen held by another is only a hint
+ * of when to ask again: the database decides.
+ */
+@Service
+@ConditionalOnProperty(name = "ipstate.store", havingValue = "leased")
+public class BlockLeaseServiceImpl implements BlockLeaseService {
+    private BlockLeaseRepository leaseRepository;
+
+    private String instanceId = UUID.randomUUID().toString();
+    private String instanceUrl;
+    private int rangeBlocks = 64;
+    private long durationMs = 10_000;
+
+    // Epoch milliseconds until which each range held is held.
+    private final Map<Integer, Long> heldUntil = new ConcurrentHashMap<>();
+    // Leases last seen held by others.
+    private final Map<Integer, BlockLease> foreignLeases = new ConcurrentHashMap<>();
+    private final List<LeaseListener> listeners = new CopyOnWriteArrayList<>();
+
+    private static Logger logger = LogManager.getLogger(BlockLeaseServiceImpl.class);
+
+    /**
+     * Construct with all injected services.
+     *
+     * @param leaseRepository holds the leases of all instances.
+     */
+    @Autowired
+    public BlockLeaseServiceImpl(BlockLeaseRepository leaseRepository) {
+        this.leaseRepository = leaseRepository;
+    }
+
+    /** Identifies this instance in the lease table; random unless given. */
+    @Value("${ipstate.lease.instance-id:}")
+    public void setInstanceId(String instanceId) {
+        if (! instanceId.isEmpty()) {
+            this.instanceId = instanceId;
+        }
+    }
+
+    @Value("${ipstate.lease.instance-url:http://localhost:${server.port:8080}}")
+    public void setInstanceUrl(String instanceUrl) {
+        this.instanceUrl = instanceUrl;
+    }
+
+    @Value("${ipstate.lease.range-blocks:64}")
+    public void setRangeBlocks(int rangeBlocks) {
+        this.rangeBlocks = rangeBlocks;
+    }
+
+    @Value("${ipstate.lease.duration-ms:10000}")
+    public void setDurationMs(long durationMs) {
+        this.durationMs = durationMs;
+    }
+
+    @Override
+    public int getRangeId(int blockNum) {
+        return blockNum / rangeBlocks;
+    }
+
+    @Override
+    public int getRangeBlocks() {
+        return rangeBlocks;
+    }
+
+    @Override
+    public boolean isHeld(int rangeId) {
+        Long deadline = heldUntil.get(rangeId);
+        return deadline != null  &&  System.currentTimeMillis() < deadline;
+    }
+
+    /**
+     * A lease this instance held, but let lapse, is renewed if nobody took it over meanwhile; only then were its
+     * blocks left untouched.  Otherwise it is lost, and claimed afresh.
+     */
+    @Override
+    public synchronized boolean claim(int rangeId) {
+        if (isHeld(rangeId)) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (heldUntil.containsKey(rangeId)) {
+            if (leaseRepository.renew(rangeId, instanceId, durationMs)) {
+                heldUntil.put(rangeId, now + durationMs);
+                return true;
+            }
+            lose(rangeId);
+        }
+        BlockLease foreignLease = foreignLeases.get(rangeId);
+        if (foreignLease != null  &&  ! foreignLease.isExpired(now)) {
+            return false;
+        }
+        if (leaseRepository.claim(rangeId, instanceId, instanceUrl, durationMs)) {
+            heldUntil.put(rangeId, now + durationMs);
+            foreignLeases.remove(rangeId);
+            logger.info("Claimed lease on block range {}.", rangeId);
+            return true;
+        }
+        BlockLease holder = leaseRepository.find(rangeId);
+        if (holder != null) {
+            foreignLeases.put(rangeId, holder);
+        }
+        return false;
+    }
+
+    @Override
+    public Set<Integer> lockHeld(Collection<Integer> rangeIds) {
+        return leaseRepository.lockHeld(rangeIds, instanceId);
+    }
+
+    @Override
+    public BlockLease findHolder(int rangeId) {
+        if (isHeld(rangeId)) {
+            return new BlockLease(rangeId, instanceId, instanceUrl, heldUntil.get(rangeId));
+        }
+        return foreignLeases.get(rangeId);
+    }
+
+    @Override
+    public synchronized void renewAll() {
+        for (Integer rangeId : new ArrayList<>(heldUntil.keySet())) {
+            long now = System.currentTimeMillis();
+            try {
+                if (leaseRepository.renew(rangeId, instanceId, durationMs)) {
+                    heldUntil.put(rangeId, now + durationMs);
+                    continue;
+                }
+                logger.warn("Lease on block range {} was taken over.", rangeId);
+            } catch (DataAccessException dae) {
+                if (isHeld(rangeId)) {
+                    logger.warn("Failed to renew lease on block range {}.  Will retry.", rangeId, dae);
+                    continue;
+                }
+                logger.error("Lease on block range {} lapsed unrenewed.", rangeId, dae);
+            }
+            lose(rangeId);
+        }
+    }
+
+    @Override
+    public List<Integer> getHeldRanges() {
+        return new ArrayList<>(heldUntil.keySet());
+    }
+
+    @Override
+    public synchronized void release(int rangeId) {
+        heldUntil.remove(rangeId);
+        leaseRepository.release(rangeId, instanceId);
+        logger.info("Released lease on block range {}.", rangeId);
+    }
+
+    @Override
+    public String getInstanceUrl() {
+        return instanceUrl;
+    }
+
+    @Override
+    public void addLeaseListener(LeaseListener listener) {
+        listeners.add(listener);
+    }
+
+    private void lose(int rangeId) {
+        heldUntil.remove(rangeId);
+        for (LeaseListener listener : listeners) {
+            listener.leaseLost(rangeId);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.project.challenge.services;
+
+/**
+ * Custom exception to allow precise determination of cause of not being able to change an IP address: its block
+ * is leased to another instance, which alone may change it.
+ */
+public class BlockLeasedElsewhereException extends IpStateServiceException {
+    private final String ownerUrl;
+
+    public BlockLeasedElsewhereException(int blockNum, String ownerUrl) {
+        super(new IllegalStateException("Block " + blockNum + " is leased to the instance at " + ownerUrl));
+        this.ownerUrl = ownerUrl;
+    }
+
+    /** Base URL of the instance holding the block; null if unknown. */
+    public String getOwnerUrl() {
+        return ownerUrl;
+    }
+}
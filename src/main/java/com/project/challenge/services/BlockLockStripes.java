@@ -0,0 +1,88 @@
+package com.project.challenge.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.BitSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks, shared out among blocks by block number.  Changes to different blocks usually land on
+ * different locks, and so run in parallel; changes to the same block are always serialized.
+ */
+@Component
+public class BlockLockStripes {
+    private final ReentrantLock[] locks;
+    private final int stripeMask;
+
+    /**
+     * Construct with the number of locks to use.  Rounded up to a power of two.
+     *
+     * @param stripeCount how many locks.
+     */
+    public BlockLockStripes(@Value("${ipstate.lock-stripes:64}") int stripeCount) {
+        int roundedCount = stripeCount <= 1 ? 1 : Integer.highestOneBit(stripeCount - 1) << 1;
+        locks = new ReentrantLock[roundedCount];
+        for (int i = 0; i < roundedCount; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        stripeMask = roundedCount - 1;
+    }
+
+    /**
+     * Find the lock guarding the block.
+     *
+     * @param blockNum which block.
+     * @return its lock.
+     */
+    public Lock lockFor(int blockNum) {
+        return locks[blockNum & stripeMask];
+    }
+
+    /**
+     * Find the locks guarding all of the blocks, in the one order every caller must take them in, to avoid
+     * deadlock.  Blocks sharing a lock yield that lock once.
+     *
+     * @param blockNums which blocks.
+     * @return their locks, to be taken first to last.
+     */
+    public Lock[] locksFor(int[] blockNums) {
+        BitSet stripes = new BitSet(locks.length);
+        for (int blockNum : blockNums) {
+            stripes.set(blockNum & stripeMask);
+        }
+        Lock[] result = new Lock[stripes.cardinality()];
+        int i = 0;
+        for (int stripe = stripes.nextSetBit(0); stripe >= 0; stripe = stripes.nextSetBit(stripe + 1)) {
+            result[i++] = locks[stripe];
+        }
+        return result;
+    }
+
+    /**
+     * Take all the locks, first to last.
+     *
+     * @param toLock as returned by locksFor.
+     */
+    public static void lockAll(Lock[] toLock) {
+        for (Lock lock : toLock) {
+            lock.lock();
+        }
+    }
+
+    /**
+     * Release all the locks, last to first.
+     *
+     * @param toUnlock as returned by locksFor.
+     */
+    public static void unlockAll(Lock[] toUnlock) {
+        for (int i = toUnlock.length - 1; i >= 0; i--) {
+            toUnlock[i].unlock();
+        }
+    }
+
+    public int getStripeCount() {
+        return locks.length;
+    }
+}
@@ -0,0 +1,407 @@
+package com.project.challenge.services;
+
+import com.project.challenge.entities.CidrBitBlock;
+import com.project.challenge.entities.CidrDef;
+import com.project.challenge.model.CIDR;
+import com.project.challenge.repositories.BlockRepository;
+import com.project.challenge.repositories.BlockWordRepository;
+import com.project.challenge.repositories.CidrDefRepository;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Rewrites the stored blocks of every CIDR block (pool) at another block size.  Pools keep their order, but each
+ * starts where the pools before it now end, so every block number may change.
+ *
+ * The new layout is built as shadow blocks, out of sight of the blocks in use (see BlockRepositoryCustom), so that
+ * building it may run while blocks are changed.  Each stretch of a pool as long as the larger of the two block
+ * sizes is rebuilt from its blocks as stored.  Block versions are noted before any is read: a later catch-up
+ * rebuilds the stretches of blocks whose version has since moved, until few do.  Promotion then deletes the old
+ * blocks, gives the shadow blocks their numbers, and records the pools' new layout, in one transaction.  Nothing
+ * may change a block between the last catch-up and promotion; re-blocking while serving is up to the caller.
+ *
+ * The words store's rows (CIDR_BIT_WORD) are moved to the new layout in the same transaction, in place, by the
+ * database: they are never read here.
+ *
+ * Sparse throughout: a missing block is all free, so only blocks with any address in use are written.
+ */
+@Component
+public class BlockReblocking {
+    private IpBlockService blockService;
+    private Ipv4ConversionService conversionService;
+    private BlockRepository blockRepository;
+    private BlockWordRepository blockWordRepository;
+    private CidrDefRepository cidrDefRepository;
+    private TransactionTemplate transactionTemplate;
+
+    private int batchSize = 512;
+    private int maxCatchUpPasses = 8;
+
+    private static Logger logger = LogManager.getLogger(BlockReblocking.class);
+
+    /**
+     * Construct with all injected services.
+     *
+     * @param blockService for encoding blocks.
+     * @param conversionService for reading CIDR definitions.
+     * @param blockRepository for reading blocks, and writing shadow blocks.
+     * @param blockWordRepository for moving the words store's rows.
+     * @param cidrDefRepository for recording each pool's new layout.
+     * @param transactionManager for promoting the new layout at once.
+     */
+    @Autowired
+    public BlockReblocking(
+            IpBlockService blockService,
+            Ipv4ConversionService conversionService,
+            BlockRepository blockRepository,
+            BlockWordRepository blockWordRepository,
+            CidrDefRepository cidrDefRepository,
+            PlatformTransactionManager transactionManager
+    ) {
+        this.blockService = blockService;
+        this.conversionService = conversionService;
+        this.blockRepository = blockRepository;
+        this.blockWordRepository = blockWordRepository;
+        this.cidrDefRepository = cidrDefRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @Value("${ipstate.reblock.batch-size:512}")
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Most catch-ups before giving up on blocks falling quiet, and leaving the rest to the last one.
+     *
+     * @param maxCatchUpPasses passes.
+     */
+    @Value("${ipstate.reblock.max-catch-up-passes:8}")
+    public void setMaxCatchUpPasses(int maxCatchUpPasses) {
+        this.maxCatchUpPasses = maxCatchUpPasses;
+    }
+
+    /**
+     * Re-block every pool recorded at another size, in one go.  Only where nothing else changes blocks meanwhile:
+     * at startup.
+     *
+     * @param cidrDefs every pool, as recorded.
+     * @param blockSize bits per block, to lay out at.
+     * @return the pools, as now recorded.
+     * @throws InvalidFormatException if a recorded pool is not a CIDR block.
+     */
+    public List<CidrDef> reblock(Collection<CidrDef> cidrDefs, int blockSize) throws InvalidFormatException {
+        Plan plan = plan(cidrDefs, blockSize);
+        try {
+            copy(plan);
+            return promote(plan);
+        } catch (RuntimeException ex) {
+            abandon();
+            throw ex;
+        }
+    }
+
+    /**
+     * Work out the layout of every pool at the new size.  Shadow blocks left from any layout not finished are
+     * deleted.
+     *
+     * @param cidrDefs every pool, as recorded.
+     * @param blockSize bits per block, to lay out at.
+     * @return plan for the other steps.
+     * @throws InvalidFormatException if a recorded pool is not a CIDR block.
+     */
+    public Plan plan(Collection<CidrDef> cidrDefs, int blockSize) throws InvalidFormatException {
+        if (! IpBlockServiceImpl.isValidBlockSize(blockSize)) {
+            throw new IllegalArgumentException("Not a valid block size: " + blockSize);
+        }
+        List<Pool> pools = new ArrayList<>(cidrDefs.size());
+        for (CidrDef cidrDef : cidrDefs) {
+            pools.add(new Pool(cidrDef, conversionService.toCidr(cidrDef.getCidr()), blockSize));
+        }
+        pools.sort(Comparator.comparingInt(pool -> pool.oldFirst));
+        int nextBlock = 0;
+        for (Pool pool : pools) {
+            pool.newFirst = nextBlock;
+            nextBlock += pool.newCount;
+        }
+        blockRepository.deleteShadowBlocks();
+        return new Plan(pools, blockSize);
+    }
+
+    /**
+     * Plan from the pools as recorded now.
+     *
+     * @param blockSize bits per block, to lay out at.
+     * @return plan for the other steps.
+     * @throws InvalidFormatException if a recorded pool is not a CIDR block.
+     */
+    public Plan plan(int blockSize) throws InvalidFormatException {
+        return plan(cidrDefRepository.findAll(), blockSize);
+    }
+
+    /**
+     * Build the whole new layout, from every block as stored.  Blocks are read in order of block number, a page at
+     * a time, so that only stretches holding stored blocks are visited.
+     *
+     * @param plan as from plan().
+     */
+    public void copy(Plan plan) {
+        plan.versions = blockRepository.findBlockVersions();
+        ShadowWriter writer = new ShadowWriter();
+        List<CidrBitBlock> stretchBlocks = new ArrayList<>();
+        Pool stretchPool = null;
+        long stretch = -1;
+        PageRequest firstPage = PageRequest.of(0, batchSize);
+        List<CidrBitBlock> page = blockRepository.findByIdGreaterThanOrderByIdAsc(-1, firstPage);
+        while (! page.isEmpty()) {
+            for (CidrBitBlock bitBlock : page) {
+                Pool pool = plan.findByOldBlock(bitBlock.getId());
+                if (pool == null) {
+                    continue;
+                }
+                long blockStretch = pool.stretchOf(bitBlock.getId());
+                if (pool != stretchPool  ||  blockStretch != stretch) {
+                    if (stretchPool != null) {
+                        rebuildStretch(stretchPool, stretch, stretchBlocks, writer);
+                    }
+                    stretchBlocks.clear();
+                    stretchPool = pool;
+                    stretch = blockStretch;
+                }
+                stretchBlocks.add(bitBlock);
+            }
+            page = blockRepository.findByIdGreaterThanOrderByIdAsc(page.get(page.size() - 1).getId(), firstPage);
+        }
+        if (stretchPool != null) {
+            rebuildStretch(stretchPool, stretch, stretchBlocks, writer);
+        }
+        writer.flush();
+        logger.info("Copied {} stored blocks into {} blocks of {} bits.", plan.versions.size(), writer.written, plan.blockSize);
+    }
+
+    /**
+     * Rebuild the stretches of every block changed or added since last noted, noting versions afresh.
+     *
+     * @param plan as copied.
+     * @return how many blocks had changed.
+     */
+    public int catchUp(Plan plan) {
+        Map<Integer, Long> versions = blockRepository.findBlockVersions();
+        Map<Pool, Set<Long>> changedStretches = new HashMap<>();
+        int changed = 0;
+        for (Map.Entry<Integer, Long> entry : versions.entrySet()) {
+            if (! entry.getValue().equals(plan.versions.get(entry.getKey()))) {
+                changed++;
+                Pool pool = plan.findByOldBlock(entry.getKey());
+                if (pool != null) {
+                    changedStretches.computeIfAbsent(pool, p -> new TreeSet<>()).add(pool.stretchOf(entry.getKey()));
+                }
+            }
+        }
+        plan.versions = versions;
+
+        ShadowWriter writer = new ShadowWriter();
+        for (Map.Entry<Pool, Set<Long>> entry : changedStretches.entrySet()) {
+            Pool pool = entry.getKey();
+            for (long stretch : entry.getValue()) {
+                List<Integer> oldBlockNums = IntStream.range(pool.oldBlockOf(stretch), pool.oldBlockEnd(stretch))
+                        .boxed()
+                        .collect(Collectors.toList());
+                rebuildStretch(pool, stretch, blockRepository.findAllById(oldBlockNums), writer);
+            }
+        }
+        writer.flush();
+        return changed;
+    }
+
+    /**
+     * Catch up until a pass finds no more than a batch of blocks changed, or the passes run out.
+     *
+     * @param plan as copied.
+     */
+    public void catchUpUntilQuiet(Plan plan) {
+        for (int pass = 0; pass < maxCatchUpPasses; pass++) {
+            if (catchUp(plan) <= batchSize) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Make the new layout the one in use, moving the words store's rows to it, and record each pool's new first
+     * block and block size, in one transaction, under the layout lock: no pool is added meanwhile.
+     *
+     * @param plan as copied, and caught up with every change.
+     * @return the pools, as now recorded.
+     * @throws IllegalStateException if a pool was added since the plan was made.  Abandon the layout.
+     */
+    public List<CidrDef> promote(Plan plan) {
+        List<CidrDef> cidrDefs = transactionTemplate.execute(status -> {
+            cidrDefRepository.lockLayout();
+            if (cidrDefRepository.count() != plan.pools.size()) {
+                throw new IllegalStateException("Pools were added while re-blocking.");
+            }
+            int promoted = blockRepository.promoteShadowBlocks();
+            for (Pool pool : plan.pools) {
+                blockWordRepository.shadowPool(
+                        pool.oldFirst, pool.oldCount, BitWords.wordCount(pool.oldSize),
+                        pool.newFirst, pool.newCount, BitWords.wordCount(pool.newSize)
+                );
+            }
+            int promotedWords = blockWordRepository.promoteShadowWords();
+            List<CidrDef> updated = new ArrayList<>(plan.pools.size());
+            for (Pool pool : plan.pools) {
+                pool.cidrDef.setFirstBlock(pool.newFirst);
+                pool.cidrDef.setBlockSize(plan.blockSize);
+                updated.add(pool.cidrDef);
+            }
+            cidrDefRepository.saveAll(updated);
+            logger.info(
+                    "Re-blocked {} pools into {} stored blocks, and {} stored words, of {} bits.",
+                    updated.size(), promoted, promotedWords, plan.blockSize
+            );
+            return updated;
+        });
+        return cidrDefs;
+    }
+
+    /**
+     * Drop a layout not to be promoted.
+     */
+    public void abandon() {
+        blockRepository.deleteShadowBlocks();
+    }
+
+    /**
+     * Lay the stretch's stored blocks end to end, and cut them into blocks at the new size.  Every block of the
+     * new size in the stretch is replaced; those left empty are not written.
+     */
+    private void rebuildStretch(Pool pool, long stretch, List<CidrBitBlock> oldBlocks, ShadowWriter writer) {
+        int oldWords = BitWords.wordCount(pool.oldSize);
+        int newWords = BitWords.wordCount(pool.newSize);
+        long[] stretchWords = new long[BitWords.wordCount(pool.stretchBits)];
+        int oldFrom = pool.oldBlockOf(stretch);
+        for (CidrBitBlock bitBlock : oldBlocks) {
+            long[] words = blockService.getBlockWords(bitBlock, oldWords);
+            System.arraycopy(words, 0, stretchWords, (bitBlock.getId() - oldFrom) * oldWords, oldWords);
+        }
+        int newFrom = pool.newBlockOf(stretch);
+        for (int blockNum = newFrom; blockNum < pool.newBlockEnd(stretch); blockNum++) {
+            long[] words = Arrays.copyOfRange(stretchWords, (blockNum - newFrom) * newWords, (blockNum - newFrom + 1) * newWords);
+            CidrBitBlock newBlock = null;
+            if (! BitWords.isClear(words, 0, pool.newSize)) {
+                newBlock = new CidrBitBlock();
+                newBlock.setId(blockNum);
+                blockService.setBlockWords(newBlock, words);
+            }
+            writer.add(blockNum, newBlock);
+        }
+    }
+
+    /** Sends shadow blocks in batches. */
+    private final class ShadowWriter {
+        private final List<Integer> blockNums = new ArrayList<>();
+        private final List<CidrBitBlock> blocks = new ArrayList<>();
+        private int written;
+
+        private void add(int blockNum, CidrBitBlock bitBlock) {
+            blockNums.add(blockNum);
+            if (bitBlock != null) {
+                blocks.add(bitBlock);
+            }
+            if (blockNums.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (! blockNums.isEmpty()) {
+                blockRepository.replaceShadowBlocks(blockNums, blocks, batchSize);
+                written += blocks.size();
+                blockNums.clear();
+                blocks.clear();
+            }
+        }
+    }
+
+    /**
+     * Layout of every pool, before and after, and the block versions last noted.
+     */
+    public static final class Plan {
+        private final List<Pool> pools;
+        private final int blockSize;
+        private Map<Integer, Long> versions = Collections.emptyMap();
+
+        private Plan(List<Pool> pools, int blockSize) {
+            this.pools = pools;
+            this.blockSize = blockSize;
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        private Pool findByOldBlock(int blockNum) {
+            for (Pool pool : pools) {
+                if (blockNum >= pool.oldFirst  &&  blockNum < pool.oldFirst + pool.oldCount) {
+                    return pool;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * One pool's blocks, before and after.  Stretches are numbered from the pool's start.
+     */
+    private static final class Pool {
+        private final CidrDef cidrDef;
+        private final int oldFirst;
+        private final int oldSize;
+        private final int oldCount;
+        private final int newSize;
+        private final int newCount;
+        private final int stretchBits;
+        private int newFirst;
+
+        private Pool(CidrDef cidrDef, CIDR cidrBlock, int newSize) {
+            this.cidrDef = cidrDef;
+            this.oldFirst = cidrDef.getFirstBlock();
+            this.oldSize = cidrDef.getBlockSize() != null ? cidrDef.getBlockSize() : newSize;
+            this.oldCount = IpBlockServiceImpl.getBlockCount(cidrBlock, oldSize);
+            this.newSize = newSize;
+            this.newCount = IpBlockServiceImpl.getBlockCount(cidrBlock, newSize);
+            this.stretchBits = Math.max(oldSize, newSize);
+        }
+
+        private long stretchOf(int oldBlockNum) {
+            return (long) (oldBlockNum - oldFirst) * oldSize / stretchBits;
+        }
+
+        private int oldBlockOf(long stretch) {
+            return oldFirst + (int) (stretch * stretchBits / oldSize);
+        }
+
+        private int oldBlockEnd(long stretch) {
+            return Math.min(oldBlockOf(stretch) + stretchBits / oldSize, oldFirst + oldCount);
+        }
+
+        private int newBlockOf(long stretch) {
+            return newFirst + (int) (stretch * stretchBits / newSize);
+        }
+
+        private int newBlockEnd(long stretch) {
+            return Math.min(newBlockOf(stretch) + stretchBits / newSize, newFirst + newCount);
+        }
+    }
+}
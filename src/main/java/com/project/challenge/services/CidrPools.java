@@ -0,0 +1,170 @@
+package com.project.challenge.services;
+
+import com.project.challenge.model.CIDR;
+
+import java.util.*;
+
+/**
+ * Immutable set of CIDR blocks (pools) in use, indexed for finding the pool of an address, or of a bit block.
+ * Both lookups are binary searches over primitive arrays, so their cost barely grows with the number of pools.
+ *
+ * Pools never overlap, and each owns a contiguous range of bit blocks, following those of earlier pools.
+ * Adding a pool makes a new instance; readers holding an old one carry on undisturbed.
+ */
+public final class CidrPools {
+    public static final CidrPools EMPTY = new CidrPools(Collections.emptyList());
+
+    // In order of starting address.
+    private final CIDR[] byAddress;
+    private final long[] startingAddrs;
+    private final long[] endingAddrs;
+    // In order of first block.
+    private final CIDR[] byBlock;
+    private final int[] firstBlocks;
+    // Keyed by network address and prefix length, as packed by networkKey.
+    private final Map<Long, CIDR> byNetwork = new HashMap<>();
+    private final int blockCount;
+
+    private CidrPools(Collection<CIDR> cidrBlocks) {
+        byAddress = cidrBlocks.toArray(new CIDR[0]);
+        Arrays.sort(byAddress, Comparator.comparingLong(CIDR::getStartingAddrLong));
+        startingAddrs = new long[byAddress.length];
+        endingAddrs = new long[byAddress.length];
+        for (int i = 0; i < byAddress.length; i++) {
+            startingAddrs[i] = byAddress[i].getStartingAddrLong();
+            endingAddrs[i] = byAddress[i].getEndingAddrLong();
+            long key = networkKey(byAddress[i].getCidrBlockNotation());
+            if (key != Ipv4Parser.INVALID) {
+                byNetwork.put(key, byAddress[i]);
+            }
+        }
+
+        byBlock = byAddress.clone();
+        Arrays.sort(byBlock, Comparator.comparingInt(CIDR::getFirstBlock));
+        firstBlocks = new int[byBlock.length];
+        int maxBlock = 0;
+        for (int i = 0; i < byBlock.length; i++) {
+            firstBlocks[i] = byBlock[i].getFirstBlock();
+            maxBlock = Math.max(maxBlock, byBlock[i].getFirstBlock() + byBlock[i].getBlockCount());
+        }
+        blockCount = maxBlock;
+    }
+
+    /**
+     * Index pools whose block ranges are already assigned.
+     *
+     * @param cidrBlocks pools, with first block and block count set.
+     * @return the index.
+     */
+    public static CidrPools of(Collection<CIDR> cidrBlocks) {
+        return new CidrPools(cidrBlocks);
+    }
+
+    /**
+     * Add a pool, giving it the block range following all existing ones.
+     *
+     * @param cidrBlock new pool.  Its first block and block count are set here.
+     * @param poolBlockCount how many blocks the pool needs.
+     * @return index including the new pool.
+     * @throws CidrExistsException if the new pool overlaps an existing one.
+     */
+    public CidrPools with(CIDR cidrBlock, int poolBlockCount) throws CidrExistsException {
+        if (overlaps(cidrBlock)) {
+            throw new CidrExistsException();
+        }
+        cidrBlock.setFirstBlock(blockCount);
+        cidrBlock.setBlockCount(poolBlockCount);
+        List<CIDR> cidrBlocks = new ArrayList<>(Arrays.asList(byAddress));
+        cidrBlocks.add(cidrBlock);
+        return new CidrPools(cidrBlocks);
+    }
+
+    /**
+     * Find the pool managing the address.
+     *
+     * @param address unsigned integer form of IP address.
+     * @return its pool; null if none.
+     */
+    public CIDR findByAddress(long address) {
+        int i = Arrays.binarySearch(startingAddrs, address);
+        if (i < 0) {
+            // Last pool starting before the address.
+            i = -i - 2;
+        }
+        return i >= 0  &&  address <= endingAddrs[i] ? byAddress[i] : null;
+    }
+
+    /**
+     * Find the pool owning the bit block.
+     *
+     * @param blockNum block number within the store.
+     * @return its pool; null if none.
+     */
+    public CIDR findByBlock(int blockNum) {
+        int i = Arrays.binarySearch(firstBlocks, blockNum);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        return i >= 0  &&  blockNum < firstBlocks[i] + byBlock[i].getBlockCount() ? byBlock[i] : null;
+    }
+
+    /**
+     * Find the pool by its notation.  Any notation of the same block will do: 10.0.0.1/24 finds the pool posted
+     * as 10.0.0.0/24, and surrounding spaces are ignored.
+     *
+     * @param cidrBlockNotation like NNN.NNN.NNN.NNN/MM
+     * @return the pool; null if none, or if not a valid CIDR block.
+     */
+    public CIDR findByNotation(String cidrBlockNotation) {
+        long key = cidrBlockNotation == null ? Ipv4Parser.INVALID : networkKey(cidrBlockNotation.trim());
+        return key == Ipv4Parser.INVALID ? null : byNetwork.get(key);
+    }
+
+    /** Network address and prefix length, packed as parseCidr has them; INVALID if not a valid CIDR block. */
+    private static long networkKey(String cidrBlockNotation) {
+        long parsedCidr = Ipv4Parser.parseCidr(cidrBlockNotation);
+        if (parsedCidr == Ipv4Parser.INVALID) {
+            return Ipv4Parser.INVALID;
+        }
+        int prefixLength = Ipv4Parser.cidrPrefixLength(parsedCidr);
+        long network = Ipv4Parser.cidrAddress(parsedCidr) & Ipv4Parser.networkMask(prefixLength);
+        return ((long) prefixLength << Integer.SIZE) | network;
+    }
+
+    /**
+     * Tell whether any pool shares an address with the one given.
+     *
+     * @param cidrBlock check this.
+     * @return T=overlap
+     */
+    public boolean overlaps(CIDR cidrBlock) {
+        int i = Arrays.binarySearch(startingAddrs, cidrBlock.getEndingAddrLong());
+        if (i < 0) {
+            i = -i - 2;
+        }
+        // Only the last pool starting at or before the new one's end can reach into it.
+        return i >= 0  &&  endingAddrs[i] >= cidrBlock.getStartingAddrLong();
+    }
+
+    /**
+     * All pools, in order of starting address.
+     *
+     * @return pools.
+     */
+    public List<CIDR> getCidrBlocks() {
+        return Collections.unmodifiableList(Arrays.asList(byAddress));
+    }
+
+    /**
+     * How many bit blocks all pools need together: one past the last block of any pool.
+     *
+     * @return block count.
+     */
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public boolean isEmpty() {
+        return byAddress.length == 0;
+    }
+}
@@ -3,27 +3,45 @@ package com.project.challenge.services;
 import com.project.challenge.model.CIDR;
 
 /**
- * This service more-or-less caches the state of the CIDR block.  Prior to establishing a CIDR block,
- * which is kept here, there will not be one.  After it is established, it needs to be stored here.
+ * This service more-or-less caches the state of the CIDR blocks (pools).  Prior to establishing a CIDR block,
+ * which is kept here, there will not be one.  After each is established, it needs to be stored here.
  */
 public interface CidrStateService {
     /**
-     * Return the cidr block.  May return null.
-     * @return CIDR block - constructed as convenience obj.
+     * Return all CIDR blocks in use, indexed for lookup.  Never null; empty until one is added.
+     * @return current pools.  Will not change after return.
      */
-    CIDR getCidrBlock();
+    CidrPools getCidrPools();
+
+    /**
+     * Load the CIDR blocks from the database again, picking up any added by other applications sharing it.
+     *
+     * @return pools as now loaded.
+     */
+    CidrPools refresh();
+
+    /**
+     * An address or pool was not found among the pools held: they may be out of date, so load them again, unless
+     * they were loaded too recently for that to be worthwhile.
+     *
+     * @return pools as now held.
+     */
+    CidrPools refreshAfterMiss();
+
     /**
-     * Establish the CIDR block.
+     * Establish another CIDR block, with its own range of bit blocks.
      * @param cidrBlock
+     * @throws CidrExistsException if it overlaps a CIDR block already in use.
      */
-    void setCidrBlock(CIDR cidrBlock) throws CidrExistsException;
+    void addCidrBlock(CIDR cidrBlock) throws CidrExistsException;
 
     /**
-     * Establish CIDR block.
+     * Establish another CIDR block.
      *
      * @param cidrBlockNotation string rep of CIDR block.
+     * @throws CidrExistsException if it overlaps a CIDR block already in use.
      */
-    void setCidrBlock(String cidrBlockNotation) throws CidrExistsException, InvalidFormatException;
+    void addCidrBlock(String cidrBlockNotation) throws CidrExistsException, InvalidFormatException;
 
     /**
      * Return whether any CIDR block has been populated.
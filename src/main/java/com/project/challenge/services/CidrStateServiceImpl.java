@@ -7,23 +7,65 @@ import com.project.challenge.repositories.BlockRepository;
 import com.project.challenge.repositories.CidrDefRepository;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Optional;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
 /**
- * This service more-or-less caches the state of the CIDR block.  Prior to establishing a CIDR block,
- * which is kept here, there will not be one.  After it is established, it needs to be stored here.
+ * This service more-or-less caches the state of the CIDR blocks (pools).  Prior to establishing a CIDR block,
+ * which is kept here, there will not be one.  After each is established, it needs to be stored here.
+ *
+ * Pools are held as an immutable CidrPools, replaced whole when a pool is added, so lookups take no lock.  Once
+ * loaded, they are only reloaded on request (see refresh, refreshAfterMiss), so getting them never touches the
+ * database.  Finding no pools is remembered only for a while: then the database is asked again.  So is failing to
+ * load them, meanwhile keeping those held before, if any.
+ *
+ * Adding a pool goes by the pools as recorded, not as held: under the layout lock (see
+ * CidrDefRepository.lockLayout), they are read afresh, the new pool is checked against them and given the blocks
+ * following theirs, and it is recorded, in one transaction.  Applications sharing the database cannot add
+ * overlapping pools, or two pools on the same blocks.
+ *
+ * By default, adding a pool writes none of its bit blocks: a block missing from the repository is all free,
+ * and gets its row on first change.  Dense creation writes every block up front, in JDBC batches.
+ *
+ * Each pool records the block size its blocks are stored at.  Pools stored at other than the configured size are
+ * re-blocked to it at startup, ahead of everything else that starts then (see reblockAtStartup); failing to
+ * re-block fails startup.  So does a store holding blocks of its own, at the old size, that re-blocking would not
+ * reach: refused before anything is rewritten.  Where the store is shared, other applications would go on changing
+ * blocks by the old layout, so it is re-blocked only on being told that they are all stopped.  Until they are re-blocked, loading them fails, so that nothing reads or changes their
+ * blocks, nor adds a pool, by the wrong layout.
  */
 @Service
 public class CidrStateServiceImpl implements CidrStateService {
-    private CIDR cidrBlock = null;
+    // Null until loaded from the database.
+    private volatile Snapshot snapshot = null;
     private Ipv4ConversionService conversionService;
     private IpBlockService blockService;
     private BlockRepository blockRepository;
     private CidrDefRepository cidrDefRepository;
+    private BlockReblocking blockReblocking;
+    private TransactionTemplate transactionTemplate;
+    // Looked up only when re-blocking at startup: stores need the pools to be built.
+    private ObjectProvider<BitBlockStore> blockStoreProvider;
+
+    private boolean sparseBlocks = true;
+    private int insertBatchSize = 1000;
+    private long emptyRetentionNanos = TimeUnit.SECONDS.toNanos(5);
+    private long missRefreshNanos = TimeUnit.SECONDS.toNanos(1);
+    private boolean peersStopped = false;
 
     private static Logger log = LogManager.getLogger( CidrStateServiceImpl.class );
 
@@ -33,93 +75,289 @@ public class CidrStateServiceImpl implements CidrStateService {
      * @param conversionService for handling cidr block format.
      * @param blockService for calculating block-related things
      * @param blockRepository for serializing.
+     * @param cidrDefRepository for serializing CIDR definitions.
+     * @param blockReblocking for pools stored at another block size.
+     * @param transactionManager for adding a pool under the layout lock.
+     * @param blockStoreProvider gives the block store, to be asked whether it can be re-blocked.
      */
     @Autowired
     public CidrStateServiceImpl(
             Ipv4ConversionService conversionService,
             IpBlockService blockService,
             BlockRepository blockRepository,
-            CidrDefRepository cidrDefRepository
+            CidrDefRepository cidrDefRepository,
+            BlockReblocking blockReblocking,
+            PlatformTransactionManager transactionManager,
+            ObjectProvider<BitBlockStore> blockStoreProvider
     ) {
         this.conversionService = conversionService;
         this.blockService = blockService;
         this.blockRepository = blockRepository;
         this.cidrDefRepository = cidrDefRepository;
+        this.blockReblocking = blockReblocking;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.blockStoreProvider = blockStoreProvider;
+    }
+
+    /**
+     * Choose how a new pool's bit blocks are created.
+     *
+     * @param blockCreation "sparse" (on first change) or "dense" (all at once, when the pool is added).
+     */
+    @Value("${ipstate.block-creation:sparse}")
+    public void setBlockCreation(String blockCreation) {
+        this.sparseBlocks = ! "dense".equalsIgnoreCase(blockCreation.trim());
+    }
+
+    @Value("${ipstate.block-creation.batch-size:1000}")
+    public void setInsertBatchSize(int insertBatchSize) {
+        this.insertBatchSize = insertBatchSize;
+    }
+
+    /**
+     * How long finding no CIDR blocks is believed, before the database is asked again.
+     *
+     * @param emptyRetentionMs in milliseconds.
+     */
+    @Value("${ipstate.cidr.empty-retention-ms:5000}")
+    public void setEmptyRetentionMs(long emptyRetentionMs) {
+        this.emptyRetentionNanos = TimeUnit.MILLISECONDS.toNanos(emptyRetentionMs);
     }
 
     /**
-     * Return the cidr block.  May return null.
-     * @return CIDR block.
+     * Least time between reloads on finding no pool for an address, so that a stream of unmanaged addresses does not
+     * become a stream of queries.
+     *
+     * @param missRefreshMs in milliseconds.
      */
-    public CIDR getCidrBlock() {
-        lazyLoadCidr();
-        return cidrBlock;
+    @Value("${ipstate.cidr.miss-refresh-ms:1000}")
+    public void setMissRefreshMs(long missRefreshMs) {
+        this.missRefreshNanos = TimeUnit.MILLISECONDS.toNanos(missRefreshMs);
     }
 
     /**
-     * Establish the CIDR block.
+     * Confirm that every other application sharing the store is stopped, so that pools stored at another block size
+     * may be re-blocked at startup.  Meant for that one startup only.
+     *
+     * @param peersStopped T=none is running.
+     */
+    @Value("${ipstate.reblock.peers-stopped:false}")
+    public void setPeersStopped(boolean peersStopped) {
+        this.peersStopped = peersStopped;
+    }
+
+    /**
+     * Re-block pools stored at other than the configured block size, before any of their blocks is read: ahead of
+     * the stores loading, and of every other startup step.  Any failure propagates, failing startup, rather than
+     * leaving the application serving without its pools.  A store that cannot be re-blocked at startup (see
+     * BitBlockStore.canReblockAtStartup) fails it before anything is rewritten: the pools stay as recorded, so
+     * that restarting at their block size finds everything as it was.  So does a shared store, unless every other
+     * application sharing it is said to be stopped (see setPeersStopped).
+     *
+     * @throws InvalidFormatException if a recorded pool is not a CIDR block.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void reblockAtStartup() throws InvalidFormatException {
+        List<CidrDef> cidrDefs = cidrDefRepository.findAll();
+        if (isAtOtherBlockSize(cidrDefs)) {
+            int storedBlockSize = getOtherBlockSize(cidrDefs);
+            BitBlockStore blockStore = blockStoreProvider.getObject();
+            if (! blockStore.canReblockAtStartup()) {
+                throw new IllegalStateException(
+                        "Pools stored at " + storedBlockSize + "-bit blocks, held by the block store in a file of its "
+                                + "own at that size, cannot be re-blocked.  Set ipstate.block-size=" + storedBlockSize + "."
+                );
+            }
+            if (blockStore.isShared()  &&  ! peersStopped) {
+                // Bits set meanwhile at the old block and word numbers would land on other addresses.
+                throw new IllegalStateException(
+                        "Pools stored at " + storedBlockSize + "-bit blocks are shared with other applications.  Stop "
+                                + "them all, and start this one with ipstate.reblock.peers-stopped=true; or set "
+                                + "ipstate.block-size=" + storedBlockSize + "."
+                );
+            }
+            log.info("Pools stored at other than {}-bit blocks.  Re-blocking.", blockService.getBlockSize());
+            blockReblocking.reblock(cidrDefs, (int) blockService.getBlockSize());
+            refresh();
+        }
+    }
+
+    /**
+     * Return the cidr blocks.
+     * @return CIDR blocks.
+     */
+    @Override
+    public CidrPools getCidrPools() {
+        Snapshot current = snapshot;
+        return current != null  &&  current.isCurrent() ? current.cidrPools : lazyLoadCidrs();
+    }
+
+    @Override
+    public synchronized CidrPools refresh() {
+        snapshot = load(snapshot);
+        return snapshot.cidrPools;
+    }
+
+    @Override
+    public synchronized CidrPools refreshAfterMiss() {
+        Snapshot current = snapshot;
+        if (current != null  &&  current.isCurrent()  &&  System.nanoTime() - current.loadedAt < missRefreshNanos) {
+            return current.cidrPools;
+        }
+        return refresh();
+    }
+
+    /**
+     * Establish another CIDR block.
      * @param cidrBlockStr populate w/ this one.
      */
-    public void setCidrBlock(String cidrBlockStr) throws CidrExistsException, InvalidFormatException {
-        setCidrBlock(conversionService.toCidr(cidrBlockStr));
+    @Override
+    public void addCidrBlock(String cidrBlockStr) throws CidrExistsException, InvalidFormatException {
+        addCidrBlock(conversionService.toCidr(cidrBlockStr));
     }
 
     /**
-     * Establish the CIDR block.
+     * Establish another CIDR block.  Its bit blocks follow those of all existing CIDR blocks, as recorded.
      * @param cidrBlock populate w/ this one.
      */
-    public void setCidrBlock(CIDR cidrBlock) throws CidrExistsException {
-        if (isPopulated()) {
+    @Override
+    public synchronized void addCidrBlock(CIDR cidrBlock) throws CidrExistsException {
+        CidrPools updatedPools = transactionTemplate.execute(status -> {
+            try {
+                return addInLayout(cidrBlock);
+            } catch (CidrExistsException cee) {
+                // Nothing recorded: committing just releases the lock.
+                return null;
+            }
+        });
+        if (updatedPools == null) {
             throw new CidrExistsException();
         }
-        this.cidrBlock = cidrBlock;
-        int blockCount = blockService.getBlockCount(this.cidrBlock);
-        String emptyBlockStr = blockService.getEmptyBlock();
-
-        // Make empty blocks with hardcoded identifiers.
-        for (int i = 0; i < blockCount; i++) {
-            // Write one block for each.
-            CidrBitBlock bitBlock = new CidrBitBlock();
-            bitBlock.setId(i);
-            bitBlock.setEncodedBits(emptyBlockStr);
-            blockRepository.save(bitBlock);
+        snapshot = Snapshot.kept(updatedPools);
+    }
+
+    /** Only under the layout lock, taken here: the transaction holds it until the pool is recorded. */
+    private CidrPools addInLayout(CIDR cidrBlock) throws CidrExistsException {
+        cidrDefRepository.lockLayout();
+        CidrPools storedPools;
+        try {
+            storedPools = attemptDbFetchOfCidrs();
+        } catch (InvalidFormatException ife) {
+            throw new IllegalStateException("Invalid CIDR in Database.", ife);
+        }
+        CidrPools updatedPools = storedPools.with(cidrBlock, blockService.getBlockCount(cidrBlock));
+
+        if (! sparseBlocks) {
+            // Make empty blocks with identifiers in this CIDR block's range.  All are alike, so encode just one.
+            CidrBitBlock emptyBlock = new CidrBitBlock();
+            blockService.setBlockWords(emptyBlock, new long[blockService.getWordsPerBlock()]);
+            blockRepository.insertBlocks(
+                    cidrBlock.getFirstBlock(),
+                    cidrBlock.getBlockCount(),
+                    emptyBlock.getEncodedBits(),
+                    emptyBlock.getRawBits(),
+                    insertBatchSize
+            );
+            log.info("Created {} blocks for {}.", cidrBlock.getBlockCount(), cidrBlock.getCidrBlockNotation());
         }
 
-        //  Update the CIDR definition in the database.
-        cidrDefRepository.deleteAll();
+        //  Add the CIDR definition to the database.
         CidrDef cidrDef = new CidrDef();
         cidrDef.setCidr(cidrBlock.getCidrBlockNotation());
+        cidrDef.setFirstBlock(cidrBlock.getFirstBlock());
+        cidrDef.setBlockSize((int) blockService.getBlockSize());
         cidrDefRepository.save( cidrDef );
-
+        return updatedPools;
     }
 
     /**
-     * Assert populated state based on presence of CIDR block.
+     * Assert populated state based on presence of CIDR blocks.
      *
      * @return T = already populated
      */
     @Override
     public boolean isPopulated() {
-        lazyLoadCidr();
-        return this.cidrBlock != null;
+        return ! getCidrPools().isEmpty();
     }
 
-    private void lazyLoadCidr() {
-        if (this.cidrBlock == null) {
-            try {
-                attemptDbFetchOfCidr();
-            } catch (Exception ex) {
-                log.warn( "Invalid CIDR in Database.", ex );
-            }
+    private synchronized CidrPools lazyLoadCidrs() {
+        Snapshot current = snapshot;
+        if (current == null  ||  ! current.isCurrent()) {
+            current = load(current);
+            snapshot = current;
+        }
+        return current.cidrPools;
+    }
+
+    /** Pools as recorded; or, failing that, those held before, for a while. */
+    private Snapshot load(Snapshot current) {
+        try {
+            CidrPools loaded = attemptDbFetchOfCidrs();
+            return loaded.isEmpty() ? Snapshot.until(loaded, System.nanoTime() + emptyRetentionNanos) : Snapshot.kept(loaded);
+        } catch (Exception ex) {
+            log.warn( "Invalid CIDR in Database.", ex );
+            CidrPools held = current != null ? current.cidrPools : CidrPools.EMPTY;
+            return Snapshot.until(held, System.nanoTime() + emptyRetentionNanos);
         }
     }
 
-    private void attemptDbFetchOfCidr() throws InvalidFormatException {
+    private CidrPools attemptDbFetchOfCidrs() throws InvalidFormatException {
         Collection<CidrDef> cidrDefs = cidrDefRepository.findAll();
-        final Optional<CidrDef> firstCidrDef = cidrDefs.stream().findFirst();
-        if (firstCidrDef.isPresent()) {
-            this.cidrBlock = conversionService.toCidr(firstCidrDef.get().getCidr());
+        if (isAtOtherBlockSize(cidrDefs)) {
+            throw new IllegalStateException(
+                    "Pools stored at other than " + blockService.getBlockSize() + "-bit blocks.  Re-blocked only at startup."
+            );
+        }
+        List<CIDR> cidrBlocks = new ArrayList<>(cidrDefs.size());
+        for (CidrDef cidrDef : cidrDefs) {
+            CIDR cidrBlock = conversionService.toCidr(cidrDef.getCidr());
+            cidrBlock.setFirstBlock(cidrDef.getFirstBlock());
+            cidrBlock.setBlockCount(blockService.getBlockCount(cidrBlock));
+            cidrBlocks.add(cidrBlock);
         }
+        return CidrPools.of(cidrBlocks);
     }
 
+    private boolean isAtOtherBlockSize(Collection<CidrDef> cidrDefs) {
+        return cidrDefs.stream().anyMatch(cidrDef -> ! Objects.equals(cidrDef.getBlockSize(), (int) blockService.getBlockSize()));
+    }
+
+    private int getOtherBlockSize(Collection<CidrDef> cidrDefs) {
+        return cidrDefs.stream()
+                .map(CidrDef::getBlockSize)
+                .filter(blockSize -> ! Objects.equals(blockSize, (int) blockService.getBlockSize()))
+                .findFirst()
+                .orElseThrow(IllegalStateException::new);
+    }
+
+    /**
+     * Pools as loaded.  Empty ones, and those kept on failing to load, expire, so that pools added elsewhere are
+     * found in time.
+     */
+    private static final class Snapshot {
+        private final CidrPools cidrPools;
+        private final boolean expires;
+        // System.nanoTime() after which an expiring snapshot is stale.
+        private final long expiresAt;
+        private final long loadedAt = System.nanoTime();
+
+        private Snapshot(CidrPools cidrPools, boolean expires, long expiresAt) {
+            this.cidrPools = cidrPools;
+            this.expires = expires;
+            this.expiresAt = expiresAt;
+        }
+
+        private static Snapshot kept(CidrPools cidrPools) {
+            return new Snapshot(cidrPools, false, 0);
+        }
+
+        private static Snapshot until(CidrPools cidrPools, long expiresAt) {
+            return new Snapshot(cidrPools, true, expiresAt);
+        }
+
+        private boolean isCurrent() {
+            return ! expires  ||  System.nanoTime() - expiresAt < 0;
+        }
+    }
 }
@@ -0,0 +1,115 @@
+package com.project.challenge.services;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Summary of where free addresses remain, so that finding one needs no decoding of blocks.  Holds a free
+ * counter per block, and over those, a bitmap with one bit per block that still has a free address.  Finding
+ * a block with room is then a scan of that bitmap, one word (64 blocks) at a time.
+ *
+ * Counts are set absolutely, from the content of a block, by whoever holds that block's lock.  Stores changing a
+ * bit without reading its block have the count adjusted instead.  Where other writers share the blocks, the index
+ * is only a hint, to be checked against the block itself.
+ */
+public class FreeSpaceIndex {
+    private static final int ADDRESS_BITS_PER_WORD = 6;
+
+    private final AtomicIntegerArray freeCounts;
+    private final AtomicLongArray nonFullBlocks;
+    private final AtomicLong totalFree = new AtomicLong();
+
+    /**
+     * Construct with every block full.  Counts are expected to be set before use.
+     *
+     * @param blockCount how many blocks to track.
+     */
+    public FreeSpaceIndex(int blockCount) {
+        freeCounts = new AtomicIntegerArray(blockCount);
+        nonFullBlocks = new AtomicLongArray(BitWords.wordCount(blockCount));
+    }
+
+    public int getBlockCount() {
+        return freeCounts.length();
+    }
+
+    /**
+     * Record how many free addresses the block has.
+     *
+     * @param blockNum which block.
+     * @param freeCount its free address count.
+     */
+    public void setFreeCount(int blockNum, int freeCount) {
+        int previous = freeCounts.getAndSet(blockNum, freeCount);
+        if (previous != freeCount) {
+            totalFree.addAndGet(freeCount - previous);
+            setNonFull(blockNum, freeCount > 0);
+        }
+    }
+
+    /**
+     * Record the block's free address count, taken from its content.
+     *
+     * @param blockNum which block.
+     * @param words content of block.
+     * @param bitsInBlock how many bits of the block are in use.
+     */
+    public void setFreeCount(int blockNum, long[] words, int bitsInBlock) {
+        setFreeCount(blockNum, bitsInBlock - BitWords.cardinality(words, bitsInBlock));
+    }
+
+    /**
+     * Adjust the block's free address count, for a change made without reading the block.
+     *
+     * @param blockNum which block.
+     * @param delta change in its free address count.
+     */
+    public void addFreeCount(int blockNum, int delta) {
+        int freeCount = freeCounts.addAndGet(blockNum, delta);
+        totalFree.addAndGet(delta);
+        setNonFull(blockNum, freeCount > 0);
+    }
+
+    public int getFreeCount(int blockNum) {
+        return freeCounts.get(blockNum);
+    }
+
+    public long getTotalFree() {
+        return totalFree.get();
+    }
+
+    /**
+     * Find the next block at or after fromBlock that still has a free address.
+     *
+     * @param fromBlock start looking here.
+     * @return block number; -1 if none.
+     */
+    public int nextNonFullBlock(int fromBlock) {
+        int blockCount = getBlockCount();
+        if (fromBlock >= blockCount) {
+            return -1;
+        }
+        int wordIndex = fromBlock >>> ADDRESS_BITS_PER_WORD;
+        long word = nonFullBlocks.get(wordIndex) & (-1L << fromBlock);
+        while (word == 0) {
+            if (++wordIndex >= nonFullBlocks.length()) {
+                return -1;
+            }
+            word = nonFullBlocks.get(wordIndex);
+        }
+        int blockNum = (wordIndex << ADDRESS_BITS_PER_WORD) + Long.numberOfTrailingZeros(word);
+        return blockNum < blockCount ? blockNum : -1;
+    }
+
+    private void setNonFull(int blockNum, boolean nonFull) {
+        int wordIndex = blockNum >>> ADDRESS_BITS_PER_WORD;
+        long mask = 1L << blockNum;
+        long word;
+        long updated;
+        do {
+            word = nonFullBlocks.get(wordIndex);
+            updated = nonFull ? word | mask : word & ~mask;
+        } while (word != updated  &&  ! nonFullBlocks.compareAndSet(wordIndex, word, updated));
+    }
+}
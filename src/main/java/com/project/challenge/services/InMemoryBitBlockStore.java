@@ -0,0 +1,334 @@
+package com.project.challenge.services;
+
+import com.project.challenge.entities.CidrBitBlock;
+import com.project.challenge.repositories.BlockRepository;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Block store holding the whole pool in memory, each block in a container (see BitContainers).  Memory is the
+ * authority: updates never read the repository, and changed ("dirty") blocks are written behind, in batches.
+ * A flush happens on a fixed interval, or sooner once enough blocks are dirty.
+ *
+ * Changes to a block are serialized by its lock stripe, so changes to different blocks run in parallel.  A
+ * change expands its block into words, and replaces the container if anything changed.  Containers never
+ * change, so readers take no lock, and scans run on the compact form.
+ *
+ * Only suitable where this application is the sole writer of the block table.
+ */
+@Service
+@ConditionalOnProperty(name = "ipstate.store", havingValue = "memory")
+public class InMemoryBitBlockStore implements BitBlockStore {
+    private CidrStateService cidrStateService;
+    private IpBlockService blockService;
+    private BlockRepository blockRepository;
+    private TransactionTemplate transactionTemplate;
+    private BlockLockStripes lockStripes;
+
+    private long flushIntervalMs = 1000;
+    private int dirtyThreshold = 256;
+
+    // Null until loaded.  Replacing a block's container is guarded by its lock stripe.
+    private volatile AtomicReferenceArray<BitContainer> blocks;
+    // Guarded by dirtyBlocks.
+    private final BitSet dirtyBlocks = new BitSet();
+    private int dirtyCount;
+
+    private ScheduledExecutorService flusher;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private static Logger logger = LogManager.getLogger(InMemoryBitBlockStore.class);
+
+    /**
+     * Construct with all injected services.
+     *
+     * @param cidrStateService tells how many blocks there are.
+     * @param blockService for block sizing and encoding.
+     * @param blockRepository for loading and flushing.
+     * @param transactionManager each flush is one transaction.
+     * @param lockStripes serializes changes to each block.
+     */
+    @Autowired
+    public InMemoryBitBlockStore(
+            CidrStateService cidrStateService,
+            IpBlockService blockService,
+            BlockRepository blockRepository,
+            PlatformTransactionManager transactionManager,
+            BlockLockStripes lockStripes
+    ) {
+        this.cidrStateService = cidrStateService;
+        this.blockService = blockService;
+        this.blockRepository = blockRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.lockStripes = lockStripes;
+    }
+
+    @Value("${ipstate.writebehind.interval-ms:1000}")
+    public void setFlushIntervalMs(long flushIntervalMs) {
+        this.flushIntervalMs = flushIntervalMs;
+    }
+
+    @Value("${ipstate.writebehind.dirty-threshold:256}")
+    public void setDirtyThreshold(int dirtyThreshold) {
+        this.dirtyThreshold = dirtyThreshold;
+    }
+
+    @PostConstruct
+    public void start() {
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bit-block-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadAtStartup() {
+        ensureLoaded();
+    }
+
+    /**
+     * Stop writing behind, and push whatever is still dirty.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        flusher.shutdown();
+        flusher.awaitTermination(flushIntervalMs, TimeUnit.MILLISECONDS);
+        flush();
+    }
+
+    @Override
+    public <T> T updateBlock(int blockNum, BlockUpdate<T> update) throws IpStateServiceException {
+        getLoadedBlocks(blockNum);
+        Lock lock = lockStripes.lockFor(blockNum);
+        lock.lock();
+        try {
+            // Read under the lock: the array may have grown (see growBlocks) since it was checked.
+            AtomicReferenceArray<BitContainer> loadedBlocks = blocks;
+            long[] words = loadedBlocks.get(blockNum).toWords(blockService.getWordsPerBlock());
+            long[] original = words.clone();
+            T result = update.apply(words);
+            replaceIfChanged(loadedBlocks, blockNum, original, words);
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <T> T updateBlocks(int[] blockNums, BlocksUpdate<T> update) throws IpStateServiceException {
+        for (int blockNum : blockNums) {
+            getLoadedBlocks(blockNum);
+        }
+        Lock[] locks = lockStripes.locksFor(blockNums);
+        BlockLockStripes.lockAll(locks);
+        try {
+            AtomicReferenceArray<BitContainer> loadedBlocks = blocks;
+            long[][] blocksWords = new long[blockNums.length][];
+            long[][] originals = new long[blockNums.length][];
+            for (int i = 0; i < blockNums.length; i++) {
+                blocksWords[i] = loadedBlocks.get(blockNums[i]).toWords(blockService.getWordsPerBlock());
+                originals[i] = blocksWords[i].clone();
+            }
+            T result = update.apply(blocksWords);
+            for (int i = 0; i < blockNums.length; i++) {
+                replaceIfChanged(loadedBlocks, blockNums[i], originals[i], blocksWords[i]);
+            }
+            return result;
+        } finally {
+            BlockLockStripes.unlockAll(locks);
+        }
+    }
+
+    @Override
+    public long[] readBlock(int blockNum) throws IpStateServiceException {
+        return readContainer(blockNum).toWords(blockService.getWordsPerBlock());
+    }
+
+    @Override
+    public void forEachBlock(BlockVisitor visitor) {
+        forEachContainer((blockNum, container) -> visitor.visit(blockNum, container.toWords(blockService.getWordsPerBlock())));
+    }
+
+    @Override
+    public BitContainer readContainer(int blockNum) throws IpStateServiceException {
+        return getLoadedBlocks(blockNum).get(blockNum);
+    }
+
+    @Override
+    public void forEachContainer(ContainerVisitor visitor) {
+        AtomicReferenceArray<BitContainer> loadedBlocks = ensureLoaded();
+        if (loadedBlocks == null) {
+            return;
+        }
+        for (int blockNum = 0; blockNum < loadedBlocks.length(); blockNum++) {
+            visitor.visit(blockNum, loadedBlocks.get(blockNum));
+        }
+    }
+
+    /**
+     * Write all dirty blocks to the repository, in a single transaction.  Blocks failing to write are
+     * left dirty, for the next attempt.
+     */
+    public void flush() {
+        final BitSet toFlush;
+        synchronized (dirtyBlocks) {
+            toFlush = (BitSet) dirtyBlocks.clone();
+            dirtyBlocks.clear();
+            dirtyCount = 0;
+        }
+        if (toFlush.isEmpty()) {
+            return;
+        }
+        // Copy after clearing: a change racing with this is either in the copy, or marked dirty again.
+        final Map<Integer, long[]> pending = new TreeMap<>();
+        for (int blockNum = toFlush.nextSetBit(0); blockNum >= 0; blockNum = toFlush.nextSetBit(blockNum + 1)) {
+            pending.put(blockNum, blocks.get(blockNum).toWords(blockService.getWordsPerBlock()));
+        }
+
+        try {
+            transactionTemplate.execute(status -> {
+                Map<Integer, CidrBitBlock> existing = new HashMap<>();
+                blockRepository.findAllById(pending.keySet()).forEach(bitBlock -> existing.put(bitBlock.getId(), bitBlock));
+                List<CidrBitBlock> toSave = new ArrayList<>(pending.size());
+                pending.forEach((blockNum, words) -> {
+                    CidrBitBlock bitBlock = existing.get(blockNum);
+                    if (bitBlock == null) {
+                        bitBlock = new CidrBitBlock();
+                        bitBlock.setId(blockNum);
+                    }
+                    blockService.setBlockWords(bitBlock, words);
+                    toSave.add(bitBlock);
+                });
+                return blockRepository.saveAll(toSave);
+            });
+            logger.debug("Flushed {} dirty blocks.", pending.size());
+        } catch (RuntimeException ex) {
+            pending.keySet().forEach(this::markDirty);
+            throw ex;
+        }
+    }
+
+    private void flushQuietly() {
+        flushRequested.set(false);
+        try {
+            flush();
+        } catch (RuntimeException ex) {
+            logger.warn("Failed to flush dirty blocks.  Will retry.", ex);
+        }
+    }
+
+    private void markDirty(int blockNum) {
+        boolean thresholdReached;
+        synchronized (dirtyBlocks) {
+            if (! dirtyBlocks.get(blockNum)) {
+                dirtyBlocks.set(blockNum);
+                dirtyCount++;
+            }
+            thresholdReached = dirtyCount >= dirtyThreshold;
+        }
+        if (thresholdReached  &&  ! flusher.isShutdown()  &&  flushRequested.compareAndSet(false, true)) {
+            flusher.execute(this::flushQuietly);
+        }
+    }
+
+    /** Keep the changed words in a new container, and have them written behind.  Call under the block's lock. */
+    private void replaceIfChanged(AtomicReferenceArray<BitContainer> loadedBlocks, int blockNum, long[] original, long[] words) {
+        if (! Arrays.equals(original, words)) {
+            loadedBlocks.set(blockNum, blockService.toContainer(words));
+            markDirty(blockNum);
+        }
+    }
+
+    private AtomicReferenceArray<BitContainer> getLoadedBlocks(int blockNum) throws IpStateServiceException {
+        AtomicReferenceArray<BitContainer> loadedBlocks = ensureLoaded();
+        if (loadedBlocks == null  ||  blockNum < 0  ||  blockNum >= loadedBlocks.length()) {
+            throw new IpStateServiceException(new NullPointerException("No block found for block number " + blockNum));
+        }
+        return loadedBlocks;
+    }
+
+    /**
+     * Pull all blocks from the repository, once a CIDR block exists to size them by.  Grows the blocks
+     * as CIDR blocks are added.
+     *
+     * @return the loaded blocks; null if there is no CIDR block yet.
+     */
+    private AtomicReferenceArray<BitContainer> ensureLoaded() {
+        AtomicReferenceArray<BitContainer> loadedBlocks = blocks;
+        int blockCount = cidrStateService.getCidrPools().getBlockCount();
+        if (loadedBlocks != null  &&  loadedBlocks.length() >= blockCount) {
+            return loadedBlocks;
+        }
+        synchronized (this) {
+            if (blocks == null  &&  cidrStateService.isPopulated()) {
+                blocks = loadBlocks(blockCount);
+            } else if (blocks != null  &&  blocks.length() < blockCount) {
+                growBlocks(blockCount);
+            }
+            return blocks;
+        }
+    }
+
+    /**
+     * Make room for blocks of a newly added CIDR block.  New blocks start empty, as the repository has them.
+     * Every lock is held while copying, so that no change lands in the old array.
+     */
+    private void growBlocks(int blockCount) {
+        int[] allStripes = new int[lockStripes.getStripeCount()];
+        for (int i = 0; i < allStripes.length; i++) {
+            allStripes[i] = i;
+        }
+        Lock[] locks = lockStripes.locksFor(allStripes);
+        BlockLockStripes.lockAll(locks);
+        try {
+            AtomicReferenceArray<BitContainer> grown = new AtomicReferenceArray<>(blockCount);
+            for (int blockNum = 0; blockNum < blockCount; blockNum++) {
+                grown.set(blockNum, blockNum < blocks.length()
+                        ? blocks.get(blockNum)
+                        : blockService.toContainer(new long[blockService.getWordsPerBlock()]));
+            }
+            blocks = grown;
+            logger.info("Grew to {} blocks in memory.", blockCount);
+        } finally {
+            BlockLockStripes.unlockAll(locks);
+        }
+    }
+
+    private AtomicReferenceArray<BitContainer> loadBlocks(int blockCount) {
+        AtomicReferenceArray<BitContainer> loaded = new AtomicReferenceArray<>(blockCount);
+        blockRepository.findAll().forEach(bitBlock -> {
+            if (bitBlock.getId() < blockCount) {
+                loaded.set(bitBlock.getId(), blockService.toContainer(blockService.getBlockWords(bitBlock)));
+            }
+        });
+        long sizeInBytes = 0;
+        for (int blockNum = 0; blockNum < blockCount; blockNum++) {
+            if (loaded.get(blockNum) == null) {
+                loaded.set(blockNum, blockService.toContainer(new long[blockService.getWordsPerBlock()]));
+            }
+            sizeInBytes += loaded.get(blockNum).getSizeInBytes();
+        }
+        logger.info("Loaded {} blocks into memory, holding {} bytes of bits.", blockCount, sizeInBytes);
+        return loaded;
+    }
+}
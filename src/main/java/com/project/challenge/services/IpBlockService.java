@@ -1,5 +1,7 @@
 package com.project.challenge.services;
 
+import com.project.challenge.entities.CidrBitBlock;
+import com.project.challenge.model.BlockFormat;
 import com.project.challenge.model.CIDR;
 import com.project.challenge.model.IpBlockDescriptor;
 
@@ -9,7 +11,8 @@ import com.project.challenge.model.IpBlockDescriptor;
  */
 public interface IpBlockService {
     /**
-     * Create the descriptor for accessing a bit that represents the IP address given.
+     * Create the descriptor for accessing a bit that represents the IP address given.  Its block number is
+     * that within the block store, counting from the CIDR block's first block.
      *
      * @param cidrBlock This block is base for descriptor.
      * @param ipAddr looking this up.
@@ -18,6 +21,23 @@ public interface IpBlockService {
      */
     IpBlockDescriptor getBitBlockDescriptor(CIDR cidrBlock, String ipAddr) throws InvalidFormatException;
 
+    /**
+     * Which block, within the block store, holds the state of the address at this offset of the CIDR block.
+     *
+     * @param cidrBlock the address' CIDR block.
+     * @param offset from the CIDR block's starting address, as from CIDR.offsetOf.
+     * @return block number.
+     */
+    int getBlockNum(CIDR cidrBlock, long offset);
+
+    /**
+     * Where, within its block, is the state of the address at this offset of its CIDR block.
+     *
+     * @param offset from the CIDR block's starting address, as from CIDR.offsetOf.
+     * @return bit offset within the block.
+     */
+    int getBlockOffset(long offset);
+
     /**
      * How many blocks will it take to hold the currently-set CIDR block?
      *
@@ -33,6 +53,24 @@ public interface IpBlockService {
      */
     long getBlockSize();
 
+    /**
+     * Change the size of every block.  Only for use where every stored block is already laid out at the new size,
+     * and nothing is using the old one: at startup, or by re-blocking.
+     *
+     * @param blockSize bits in block; a power of two.
+     */
+    void setBlockSize(int blockSize);
+
+    /**
+     * How many bits of the block stand for addresses in the CIDR block?  All of them, except perhaps in
+     * the final block.
+     *
+     * @param cidrBlock the block's CIDR block.
+     * @param blockNum which block, within the block store.
+     * @return count of bits in use.
+     */
+    int getBitsInBlock(CIDR cidrBlock, int blockNum);
+
     /**
      * Create and return an empty block of the size appropriate to match an encoded
      * block of bits that are all zero.
@@ -41,4 +79,88 @@ public interface IpBlockService {
      * @see long IpBlockService.getBlockSize()
      */
     String getEmptyBlock();
+
+    /**
+     * How many 64-bit words it takes to hold one block.
+     *
+     * @return words per block.
+     */
+    int getWordsPerBlock();
+
+    /**
+     * Turn the stored (encoded) form of a block into its words.  Result always has the length given
+     * by getWordsPerBlock().
+     *
+     * @param encodedBits as stored.
+     * @return words of the block.
+     */
+    long[] decodeBlock(String encodedBits);
+
+    /**
+     * Turn the raw stored form of a block into its words.  Result always has the length given
+     * by getWordsPerBlock().
+     *
+     * @param rawBits as stored.
+     * @return words of the block.
+     */
+    long[] unpackBlock(byte[] rawBits);
+
+    /**
+     * Turn the words of a block into the raw stored form: the words, packed little-endian.
+     *
+     * @param words of the block.
+     * @return packed for storage.
+     */
+    byte[] packBlock(long[] words);
+
+    /**
+     * Turn the words of a block into the stored (encoded) form.
+     *
+     * @param words of the block.
+     * @return encoded for storage.
+     */
+    String encodeBlock(long[] words);
+
+    /**
+     * Which form new and changed blocks are stored in.
+     *
+     * @return storage format.
+     */
+    BlockFormat getBlockFormat();
+
+    /**
+     * Get the words of a stored block, whichever form it was stored in.  Result always has the length given
+     * by getWordsPerBlock(), and belongs to the caller.
+     *
+     * @param bitBlock as read from the repository.
+     * @return words of the block.
+     */
+    long[] getBlockWords(CidrBitBlock bitBlock);
+
+    /**
+     * As getBlockWords(CidrBitBlock), for a block stored at another size.
+     *
+     * @param bitBlock as read from the repository.
+     * @param wordsPerBlock length of the result.
+     * @return words of the block.
+     */
+    long[] getBlockWords(CidrBitBlock bitBlock, int wordsPerBlock);
+
+    /**
+     * Store words into the block, in the form given by getBlockFormat().  Any other form held by the block
+     * is cleared, so that it cannot go stale.
+     *
+     * @param bitBlock to be saved to the repository.
+     * @param words of the block.
+     */
+    void setBlockWords(CidrBitBlock bitBlock, long[] words);
+
+    /**
+     * Build the container to hold a block in memory.  Depending on configuration, either the most compact
+     * form for the block's content, or the words as they are.
+     *
+     * @param words of the block.  Kept by the container, so must not be changed afterwards.
+     * @return container of the block's bits.
+     */
+    BitContainer toContainer(long[] words);
 }
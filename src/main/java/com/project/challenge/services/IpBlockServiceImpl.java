@@ -1,25 +1,85 @@
 package com.project.challenge.services;
 
+import com.project.challenge.entities.CidrBitBlock;
+import com.project.challenge.model.BlockFormat;
 import com.project.challenge.model.CIDR;
 import com.project.challenge.model.IpBlockDescriptor;
 import org.apache.commons.net.util.Base64;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.BitSet;
 
 @Service
 public class IpBlockServiceImpl implements IpBlockService {
-    private static final long BIT_BLOCK_SIZE = 1024;
+    public static final int MIN_BLOCK_SIZE = 64;
+    public static final int MAX_BLOCK_SIZE = 1 << 16;
+
+    // Blocks are a power of two in size, so that finding an address' block takes a shift and a mask.
+    private volatile int blockShift = 10;
 
     private Ipv4ConversionService conversionService;
-    private String emptyBlock;
+    private volatile String emptyBlock;
+    private BlockFormat blockFormat = BlockFormat.BASE64;
+    private boolean adaptiveContainers = true;
 
     @Autowired
     public IpBlockServiceImpl(Ipv4ConversionService conversionService) {
         this.conversionService = conversionService;
     }
 
+    /**
+     * Choose the size of every block.  Blocks already stored at another size are re-blocked (see BlockReblocking)
+     * before they are read.
+     *
+     * @param blockSize in bits: a power of two, from MIN_BLOCK_SIZE to MAX_BLOCK_SIZE.
+     */
+    @Override
+    @Value("${ipstate.block-size:1024}")
+    public void setBlockSize(int blockSize) {
+        if (! isValidBlockSize(blockSize)) {
+            throw new IllegalArgumentException(
+                    "Block size must be a power of two from " + MIN_BLOCK_SIZE + " to " + MAX_BLOCK_SIZE + ": " + blockSize
+            );
+        }
+        blockShift = Integer.numberOfTrailingZeros(blockSize);
+        emptyBlock = null;
+    }
+
+    /**
+     * Tell whether blocks may be of this size.
+     *
+     * @param blockSize in bits.
+     * @return T=a power of two, from MIN_BLOCK_SIZE to MAX_BLOCK_SIZE.
+     */
+    public static boolean isValidBlockSize(long blockSize) {
+        return blockSize >= MIN_BLOCK_SIZE  &&  blockSize <= MAX_BLOCK_SIZE  &&  Long.bitCount(blockSize) == 1;
+    }
+
+    /**
+     * Choose the form in which blocks are stored.
+     *
+     * @param blockFormat "base64" or "binary".
+     */
+    @Value("${ipstate.block-format:base64}")
+    public void setBlockFormat(String blockFormat) {
+        this.blockFormat = BlockFormat.valueOf(blockFormat.trim().toUpperCase());
+    }
+
+    /**
+     * Choose how blocks are held in memory.
+     *
+     * @param blockContainers "adaptive" (array, run or bitmap, by content) or "dense" (always bitmap).
+     */
+    @Value("${ipstate.block-containers:adaptive}")
+    public void setBlockContainers(String blockContainers) {
+        this.adaptiveContainers = ! "dense".equalsIgnoreCase(blockContainers.trim());
+    }
+
     /**
      * Create the descriptor for accessing a bit that represents the IP address given.
      *
@@ -30,12 +90,18 @@ public class IpBlockServiceImpl implements IpBlockService {
      */
     @Override
     public IpBlockDescriptor getBitBlockDescriptor(CIDR cidrBlock, String ipAddr) throws InvalidFormatException {
-        long ipLocation = Integer.toUnsignedLong(conversionService.getIpAsInt(ipAddr));
-        long offsetLoc = getIpAddrOffsetWithinCidr(cidrBlock, ipLocation);
-        long blockNum = getBitBlockNumber(offsetLoc);
-        long blockOffset = getBlockOffset(offsetLoc);
+        long offset = cidrBlock.offsetOf((int) conversionService.getIpAsLong(ipAddr));
+        return new IpBlockDescriptor(ipAddr, getBlockNum(cidrBlock, offset), getBlockOffset(offset));
+    }
+
+    @Override
+    public int getBlockNum(CIDR cidrBlock, long offset) {
+        return cidrBlock.getFirstBlock() + (int) (offset >>> blockShift);
+    }
 
-        return new IpBlockDescriptor(ipAddr, blockNum, blockOffset);
+    @Override
+    public int getBlockOffset(long offset) {
+        return (int) (offset & (getBlockSize() - 1));
     }
 
     /**
@@ -49,9 +115,21 @@ public class IpBlockServiceImpl implements IpBlockService {
         if (cidrBlock == null) {
             return 0;
         }
-        final long size = cidrBlock.getSize();
-        final int naiveBlockCount = (int) (size / BIT_BLOCK_SIZE);
-        if (size % BIT_BLOCK_SIZE == 0) {
+        return getBlockCount(cidrBlock, getBlockSize());
+    }
+
+    /**
+     * How many blocks of the size given will it take to hold the CIDR block?
+     *
+     * @param cidrBlock find block count for this CIDR block.
+     * @param blockSize in bits.
+     * @return the block count.
+     */
+    public static int getBlockCount(CIDR cidrBlock, long blockSize) {
+        // Every managed address needs its bit: a single-address pool still owns a block.
+        final long size = cidrBlock.getAddressCount();
+        final int naiveBlockCount = (int) (size / blockSize);
+        if (size % blockSize == 0) {
             return naiveBlockCount;
         } else {
             return naiveBlockCount + 1;
@@ -65,7 +143,14 @@ public class IpBlockServiceImpl implements IpBlockService {
      */
     @Override
     public long getBlockSize() {
-        return BIT_BLOCK_SIZE;
+        return 1L << blockShift;
+    }
+
+    @Override
+    public int getBitsInBlock(CIDR cidrBlock, int blockNum) {
+        final long blockSize = getBlockSize();
+        long remaining = cidrBlock.getAddressCount() - (blockNum - cidrBlock.getFirstBlock()) * blockSize;
+        return (int) Math.max(0, Math.min(blockSize, remaining));
     }
 
     @Override
@@ -78,37 +163,83 @@ public class IpBlockServiceImpl implements IpBlockService {
         return emptyBlock;
     }
 
-    /**
-     * A CIDR range has a starting and ending position.  This method takes the "integer location" of
-     * this IP address and subtracts from that the start of the CIDR block.
-     *
-     * @param cidrBlock find where IP address goes in this cidr block.
-     * @param ipLocation absolute unsigned int location of IP address.
-     * @return location within CIDR block.
-     */
-    private long getIpAddrOffsetWithinCidr(CIDR cidrBlock, long ipLocation) {
-        return ipLocation - cidrBlock.getStartingAddrLong();
+    @Override
+    public int getWordsPerBlock() {
+        return BitWords.wordCount(getBlockSize());
     }
 
-    /**
-     * All acquired/free states of IP addresses are represented as bit values.  This tells location
-     * within the block containing it.
-     *
-     * @param offsetLoc location within the CIDR's space
-     * @return offset within the block.
-     */
-    private long getBlockOffset(long offsetLoc) {
-        return offsetLoc % BIT_BLOCK_SIZE;
+    @Override
+    public long[] decodeBlock(String encodedBits) {
+        return decodeBlock(encodedBits, getWordsPerBlock());
     }
 
-    /**
-     * All acquired/free states of IP addresses are represented as bit values.  This tells which
-     * block contains this one.
-     *
-     * @param offsetLoc offset within CIDR's space
-     * @return which block (given the chosen block size).
-     */
-    private long getBitBlockNumber(long offsetLoc) {
-        return offsetLoc / BIT_BLOCK_SIZE;
+    @Override
+    public String encodeBlock(long[] words) {
+        return Base64.encodeBase64StringUnChunked(BitSet.valueOf(words).toByteArray());
+    }
+
+    @Override
+    public long[] unpackBlock(byte[] rawBits) {
+        return unpackBlock(rawBits, getWordsPerBlock());
+    }
+
+    @Override
+    public byte[] packBlock(long[] words) {
+        ByteBuffer buffer = ByteBuffer.allocate(words.length * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asLongBuffer().put(words);
+        return buffer.array();
+    }
+
+    @Override
+    public BlockFormat getBlockFormat() {
+        return blockFormat;
+    }
+
+    @Override
+    public long[] getBlockWords(CidrBitBlock bitBlock) {
+        return getBlockWords(bitBlock, getWordsPerBlock());
+    }
+
+    @Override
+    public long[] getBlockWords(CidrBitBlock bitBlock, int wordsPerBlock) {
+        if (bitBlock.getRawBits() != null) {
+            return unpackBlock(bitBlock.getRawBits(), wordsPerBlock);
+        }
+        return decodeBlock(bitBlock.getEncodedBits(), wordsPerBlock);
+    }
+
+    @Override
+    public void setBlockWords(CidrBitBlock bitBlock, long[] words) {
+        if (blockFormat == BlockFormat.BINARY) {
+            bitBlock.setRawBits(packBlock(words));
+            bitBlock.setEncodedBits(null);
+        } else {
+            bitBlock.setEncodedBits(encodeBlock(words));
+            bitBlock.setRawBits(null);
+        }
+    }
+
+    @Override
+    public BitContainer toContainer(long[] words) {
+        return adaptiveContainers ? BitContainers.compact(words) : BitContainers.dense(words);
+    }
+
+    private static long[] decodeBlock(String encodedBits, int wordsPerBlock) {
+        if (encodedBits == null) {
+            return new long[wordsPerBlock];
+        }
+        long[] decoded = BitSet.valueOf(Base64.decodeBase64(encodedBits)).toLongArray();
+        return Arrays.copyOf(decoded, wordsPerBlock);
+    }
+
+    private static long[] unpackBlock(byte[] rawBits, int wordsPerBlock) {
+        long[] words = new long[wordsPerBlock];
+        if (rawBits != null) {
+            ByteBuffer.wrap(rawBits)
+                    .order(ByteOrder.LITTLE_ENDIAN)
+                    .asLongBuffer()
+                    .get(words, 0, Math.min(words.length, rawBits.length / Long.BYTES));
+        }
+        return words;
     }
 }
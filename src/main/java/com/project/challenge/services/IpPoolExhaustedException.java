@@ -0,0 +1,11 @@
+package com.project.challenge.services;
+
+/**
+ * Custom exception to allow precise determination of cause of not being able to acquire an IP address: there
+ * are none left.
+ */
+public class IpPoolExhaustedException extends IpStateServiceException {
+    public IpPoolExhaustedException(String msg) {
+        super(new IllegalStateException(msg));
+    }
+}
@@ -0,0 +1,247 @@
+package com.project.challenge.services;
+
+import com.project.challenge.model.CIDR;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Running counts of acquired addresses: in total, per CIDR block, and per prefix (e.g. per /24) for a histogram.
+ * Reading any count costs no block decoding.
+ *
+ * Each block is cut where prefix boundaries fall, into segments.  Every segment holds an acquired count, set
+ * absolutely from the block's content by whoever holds that block's lock; each change to a segment count is
+ * passed on to its prefix, its CIDR block and the total.  As with FreeSpaceIndex, setting a block again from the
+ * same content changes nothing, so retried updates cannot count twice.  A bit changed without reading its block
+ * (see BitBlockStore.setBit) is counted by adjusting its segment instead.
+ */
+public class IpStateCounters {
+    private final int prefixLength;
+    private final int blockCount;
+
+    // Per block: index of its first segment; one extra entry ends the last block's segments.
+    private final int[] blockSegments;
+    // Per block: index of its CIDR block, in order of starting address.
+    private final int[] blockCidrs;
+    // Per segment: first bit within its block, and index of its prefix.
+    private final int[] segmentFromBits;
+    private final int[] segmentPrefixes;
+    private final AtomicIntegerArray segmentAcquired;
+
+    // Per prefix, in address order: its network address, and how many of its addresses are managed.
+    private final long[] prefixAddrs;
+    private final int[] prefixManaged;
+    private final AtomicIntegerArray prefixAcquired;
+
+    // Per CIDR block, in order of starting address.
+    private final List<CIDR> cidrBlocks;
+    private final AtomicLongArray cidrAcquired;
+
+    private final long totalManaged;
+    private final AtomicLong totalAcquired = new AtomicLong();
+
+    /**
+     * Construct with nothing acquired.  Counts are expected to be set from the blocks before use.
+     *
+     * @param cidrPools every CIDR block, with its blocks.
+     * @param blockSize bits per block.
+     * @param prefixLength histogram groups addresses sharing this many leading bits.
+     */
+    public IpStateCounters(CidrPools cidrPools, long blockSize, int prefixLength) {
+        if (prefixLength < 8  ||  prefixLength > 32) {
+            throw new IllegalArgumentException("Prefix length must be from 8 to 32: " + prefixLength);
+        }
+        this.prefixLength = prefixLength;
+        this.blockCount = cidrPools.getBlockCount();
+        this.cidrBlocks = cidrPools.getCidrBlocks();
+        final int shift = 32 - prefixLength;
+
+        // Sizing pass: segments per block, and prefixes overall.  Pools never overlap, so walking them in address
+        // order meets every prefix in order, and each one once.
+        blockSegments = new int[blockCount + 1];
+        blockCidrs = new int[blockCount];
+        int prefixCount = 0;
+        long lastPrefix = -1;
+        long managed = 0;
+        for (int cidrIndex = 0; cidrIndex < cidrBlocks.size(); cidrIndex++) {
+            CIDR cidrBlock = cidrBlocks.get(cidrIndex);
+            long firstAddress = cidrBlock.getStartingAddrLong();
+            long lastAddress = firstAddress + cidrBlock.getAddressCount() - 1;
+            managed += cidrBlock.getAddressCount();
+            for (int blockIndex = 0; blockIndex < cidrBlock.getBlockCount(); blockIndex++) {
+                long blockFirst = firstAddress + blockIndex * blockSize;
+                long blockLast = Math.min(lastAddress, blockFirst + blockSize - 1);
+                int blockNum = cidrBlock.getFirstBlock() + blockIndex;
+                blockCidrs[blockNum] = cidrIndex;
+                blockSegments[blockNum + 1] = blockLast >= blockFirst ? (int) ((blockLast >>> shift) - (blockFirst >>> shift)) + 1 : 0;
+            }
+            // Neighbouring pools may share a prefix.
+            prefixCount += (int) ((lastAddress >>> shift) - (firstAddress >>> shift)) + 1;
+            if (firstAddress >>> shift == lastPrefix) {
+                prefixCount--;
+            }
+            lastPrefix = lastAddress >>> shift;
+        }
+        totalManaged = managed;
+        for (int blockNum = 0; blockNum < blockCount; blockNum++) {
+            blockSegments[blockNum + 1] += blockSegments[blockNum];
+        }
+
+        int segmentCount = blockSegments[blockCount];
+        segmentFromBits = new int[segmentCount];
+        segmentPrefixes = new int[segmentCount];
+        segmentAcquired = new AtomicIntegerArray(segmentCount);
+        prefixAddrs = new long[prefixCount];
+        prefixManaged = new int[prefixCount];
+        prefixAcquired = new AtomicIntegerArray(prefixCount);
+        cidrAcquired = new AtomicLongArray(cidrBlocks.size());
+
+        // Filling pass.
+        int prefixIndex = -1;
+        for (CIDR cidrBlock : cidrBlocks) {
+            long firstAddress = cidrBlock.getStartingAddrLong();
+            long lastAddress = firstAddress + cidrBlock.getAddressCount() - 1;
+            for (int blockIndex = 0; blockIndex < cidrBlock.getBlockCount(); blockIndex++) {
+                long blockFirst = firstAddress + blockIndex * blockSize;
+                long blockLast = Math.min(lastAddress, blockFirst + blockSize - 1);
+                int segment = blockSegments[cidrBlock.getFirstBlock() + blockIndex];
+                for (long address = blockFirst; address <= blockLast; segment++) {
+                    long prefixAddr = (address >>> shift) << shift;
+                    if (prefixIndex < 0  ||  prefixAddrs[prefixIndex] != prefixAddr) {
+                        prefixAddrs[++prefixIndex] = prefixAddr;
+                    }
+                    long segmentLast = Math.min(blockLast, prefixAddr + (1L << shift) - 1);
+                    segmentFromBits[segment] = (int) (address - blockFirst);
+                    segmentPrefixes[segment] = prefixIndex;
+                    prefixManaged[prefixIndex] += (int) (segmentLast - address + 1);
+                    address = segmentLast + 1;
+                }
+            }
+        }
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public int getPrefixLength() {
+        return prefixLength;
+    }
+
+    /**
+     * Record how many addresses of the block are acquired, taken from its content.
+     *
+     * @param blockNum which block.
+     * @param words content of block.
+     * @param bitsInBlock how many bits of the block are in use.
+     */
+    public void setAcquiredCounts(int blockNum, long[] words, int bitsInBlock) {
+        for (int segment = blockSegments[blockNum]; segment < blockSegments[blockNum + 1]; segment++) {
+            int fromBit = segmentFromBits[segment];
+            int toBit = segmentToBit(blockNum, segment, bitsInBlock);
+            setSegmentCount(blockNum, segment, BitWords.cardinality(words, toBit) - BitWords.cardinality(words, fromBit));
+        }
+    }
+
+    /**
+     * Record how many addresses of the block are acquired, taken from its container.
+     *
+     * @param blockNum which block.
+     * @param container content of block.
+     * @param bitsInBlock how many bits of the block are in use.
+     */
+    public void setAcquiredCounts(int blockNum, BitContainer container, int bitsInBlock) {
+        for (int segment = blockSegments[blockNum]; segment < blockSegments[blockNum + 1]; segment++) {
+            int fromBit = segmentFromBits[segment];
+            int toBit = segmentToBit(blockNum, segment, bitsInBlock);
+            setSegmentCount(blockNum, segment, container.cardinality(toBit) - container.cardinality(fromBit));
+        }
+    }
+
+    /**
+     * Count one address of the block as acquired or freed, for a change made without reading the block.
+     *
+     * @param blockNum which block.
+     * @param blockOffset which bit of the block changed.
+     * @param acquired T=it is now acquired; F=it is now free.
+     */
+    public void addAcquired(int blockNum, int blockOffset, boolean acquired) {
+        int segment = blockSegments[blockNum];
+        while (segment + 1 < blockSegments[blockNum + 1]  &&  segmentFromBits[segment + 1] <= blockOffset) {
+            segment++;
+        }
+        int delta = acquired ? 1 : -1;
+        segmentAcquired.addAndGet(segment, delta);
+        passOn(blockNum, segment, delta);
+    }
+
+    public long getTotalManaged() {
+        return totalManaged;
+    }
+
+    public long getTotalAcquired() {
+        return totalAcquired.get();
+    }
+
+    /** CIDR blocks counted, in order of starting address. */
+    public List<CIDR> getCidrBlocks() {
+        return cidrBlocks;
+    }
+
+    /**
+     * @param cidrIndex position among getCidrBlocks().
+     * @return acquired addresses of that CIDR block.
+     */
+    public long getCidrAcquired(int cidrIndex) {
+        return cidrAcquired.get(cidrIndex);
+    }
+
+    public int getPrefixCount() {
+        return prefixAddrs.length;
+    }
+
+    /**
+     * @param prefixIndex which prefix, in address order.
+     * @return unsigned integer form of its network address.
+     */
+    public long getPrefixAddr(int prefixIndex) {
+        return prefixAddrs[prefixIndex];
+    }
+
+    /**
+     * @param prefixIndex which prefix, in address order.
+     * @return how many of its addresses are managed.
+     */
+    public int getPrefixManaged(int prefixIndex) {
+        return prefixManaged[prefixIndex];
+    }
+
+    /**
+     * @param prefixIndex which prefix, in address order.
+     * @return how many of its addresses are acquired.
+     */
+    public int getPrefixAcquired(int prefixIndex) {
+        return prefixAcquired.get(prefixIndex);
+    }
+
+    /** Last segment of a block runs to the block's end. */
+    private int segmentToBit(int blockNum, int segment, int bitsInBlock) {
+        return segment + 1 < blockSegments[blockNum + 1] ? segmentFromBits[segment + 1] : bitsInBlock;
+    }
+
+    private void setSegmentCount(int blockNum, int segment, int acquired) {
+        int previous = segmentAcquired.getAndSet(segment, acquired);
+        if (previous != acquired) {
+            passOn(blockNum, segment, acquired - previous);
+        }
+    }
+
+    /** Pass a change of a segment's count on to its prefix, its CIDR block and the total. */
+    private void passOn(int blockNum, int segment, int delta) {
+        prefixAcquired.addAndGet(segmentPrefixes[segment], delta);
+        cidrAcquired.addAndGet(blockCidrs[blockNum], delta);
+        totalAcquired.addAndGet(delta);
+    }
+}
@@ -0,0 +1,51 @@
+package com.project.challenge.services;
+
+import com.project.challenge.model.CIDR;
+
+/**
+ * The layout of blocks as it was at one moment: the pools, and the block size they are stored at.  Captured
+ * before streaming a report or export, so that headers written first describe the blocks visited after, however
+ * long that takes.  Pools added since are not part of it.
+ */
+public final class IpStateLayout {
+    private final CidrPools cidrPools;
+    private final long blockSize;
+    private final int wordsPerBlock;
+    // Moves on with every re-blocking.
+    private final long generation;
+
+    IpStateLayout(CidrPools cidrPools, long blockSize, int wordsPerBlock, long generation) {
+        this.cidrPools = cidrPools;
+        this.blockSize = blockSize;
+        this.wordsPerBlock = wordsPerBlock;
+        this.generation = generation;
+    }
+
+    public CidrPools getCidrPools() {
+        return cidrPools;
+    }
+
+    public long getBlockSize() {
+        return blockSize;
+    }
+
+    public int getWordsPerBlock() {
+        return wordsPerBlock;
+    }
+
+    /**
+     * How many bits of the block stand for IP addresses: all but those past the end of the last block of a pool.
+     *
+     * @param cidrBlock pool owning the block.
+     * @param blockNum which block.
+     * @return bits in use.
+     */
+    public int getBitsInBlock(CIDR cidrBlock, int blockNum) {
+        long remaining = cidrBlock.getAddressCount() - (blockNum - cidrBlock.getFirstBlock()) * blockSize;
+        return (int) Math.max(0, Math.min(blockSize, remaining));
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+}
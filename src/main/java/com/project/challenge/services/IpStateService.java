@@ -1,8 +1,16 @@
 package com.project.challenge.services;
 
+import com.project.challenge.model.CIDR;
+import com.project.challenge.model.IpBatchResult;
+import com.project.challenge.model.IpCheckoutState;
+import com.project.challenge.model.IpRange;
 import com.project.challenge.model.IpReport;
+import com.project.challenge.model.IpStatePage;
+import com.project.challenge.model.IpStats;
 import org.springframework.stereotype.Service;
 
+import java.util.List;
+
 /**
  * Middle ware for REST interface.  Takes on business logic around IP interactions with persistent store.
  */
@@ -10,5 +18,178 @@ import org.springframework.stereotype.Service;
 public interface IpStateService {
     void setIpStateAcquired(String ipAddr) throws IpStateServiceException;
     void setIpStateReleased(String ipAddr) throws IpStateServiceException;
+
+    /**
+     * As setIpStateAcquired, for an address already parsed.  Nothing is formatted or allocated along the way,
+     * unless it fails.
+     *
+     * @param ipAddr IP address, as the int holding its 32 bits.
+     * @throws IpStateServiceException if not managed, already acquired, or in event of bad CIDR state.
+     */
+    void acquire(int ipAddr) throws IpStateServiceException;
+
+    /**
+     * As setIpStateReleased, for an address already parsed.
+     *
+     * @param ipAddr IP address, as the int holding its 32 bits.
+     * @throws IpStateServiceException if not managed, or in event of bad CIDR state.
+     */
+    void release(int ipAddr) throws IpStateServiceException;
+
+    /**
+     * Acquire whichever free IP address comes first in the CIDR block.
+     *
+     * @return the acquired IP address.
+     * @throws IpPoolExhaustedException if no free IP address remains.
+     * @throws IpStateServiceException in event of bad CIDR state.
+     */
+    String acquireNextIp() throws IpStateServiceException;
+
+    /**
+     * As acquireNextIp(), taking only from the CIDR block given.
+     *
+     * @param cidrBlockNotation which CIDR block, exactly as it was added; null means any.
+     * @return the acquired IP address.
+     * @throws IpPoolExhaustedException if no free IP address remains in that CIDR block.
+     * @throws IpStateServiceException in event of bad inputs or bad CIDR state.
+     */
+    String acquireNextIp(String cidrBlockNotation) throws IpStateServiceException;
+
+    /**
+     * Acquire the first run of consecutive free IP addresses that is long enough.  The whole run is acquired at
+     * once, or not at all.
+     *
+     * @param count how many consecutive IP addresses.
+     * @param fromIpAddr run may not start before this IP address.  Null means start of CIDR block.
+     * @return the acquired run.
+     * @throws IpPoolExhaustedException if no run is long enough.
+     * @throws IpStateServiceException in event of bad inputs or bad CIDR state.
+     */
+    IpRange acquireIpRange(int count, String fromIpAddr) throws IpStateServiceException;
+
+    /**
+     * Acquire many IP addresses.  Each block holding any of them is read and written once.
+     *
+     * @param ipAddrs standard IP address format.
+     * @param allOrNothing T=if any cannot be acquired, acquire none.
+     * @return outcome per IP address, in the order given.
+     * @throws IpStateServiceException in event of bad CIDR state.
+     */
+    List<IpBatchResult> setIpStatesAcquired(List<String> ipAddrs, boolean allOrNothing) throws IpStateServiceException;
+
+    /**
+     * Release many IP addresses.  Each block holding any of them is read and written once.
+     *
+     * @param ipAddrs standard IP address format.
+     * @param allOrNothing T=if any cannot be released, release none.
+     * @return outcome per IP address, in the order given.
+     * @throws IpStateServiceException in event of bad CIDR state.
+     */
+    List<IpBatchResult> setIpStatesReleased(List<String> ipAddrs, boolean allOrNothing) throws IpStateServiceException;
+
+    /**
+     * Tell how far IP address states have moved on.  Every change made through this service raises the version, so
+     * equal versions mean the same states.  Seeded from the clock at startup, so versions are not reused across
+     * restarts.  Changes made by other applications sharing the store are not seen: see isSoleWriter.
+     *
+     * @return current version.
+     */
+    long getStateVersion();
+
+    /**
+     * Tell whether every change to IP address states is made through this service, so that getStateVersion
+     * follows them all.  Not so where other applications share the store.
+     *
+     * @return T=no other application changes states.
+     */
+    boolean isSoleWriter();
+
+    /**
+     * Re-block every pool's stored blocks at another block size, while serving.  Changes and reads are held off
+     * only while the last changes are caught up, and the new blocks swapped in.  Only for stores reading and
+     * writing the block table directly, and only where no other application shares them: others are re-blocked
+     * at startup, from ipstate.block-size.
+     *
+     * @param blockSize bits per block: a power of two.
+     * @return how many blocks there now are.
+     * @throws IpStateServiceException if the size is not valid, the store cannot be re-blocked while serving, or
+     *      re-blocking failed, leaving the blocks as they were.
+     */
+    int reblock(int blockSize) throws IpStateServiceException;
+
+    /**
+     * Count managed, acquired and free IP addresses, from counters kept up to date by every change, so that no
+     * block is read.  Where other applications share the store, their changes never reach the counters: every
+     * block is counted afresh instead.
+     *
+     * @param withHistogram T=also count per prefix (of configured length, e.g. per /24).
+     * @return counts in total, per CIDR block, and optionally per prefix.
+     * @throws IpStateServiceException if nothing to count.
+     */
+    IpStats getIpStats(boolean withHistogram) throws IpStateServiceException;
+
+    /**
+     * Build the full report, holding every managed IP address at once.  For large CIDR blocks, prefer
+     * visitIpStates.
+     *
+     * @return every IP address and its state.
+     * @throws IpStateServiceException if nothing to report.
+     */
     IpReport getIpReport() throws IpStateServiceException;
+
+    /**
+     * Capture the layout of blocks as it is now, for visitIpStates.
+     *
+     * @return pools and block size.
+     * @throws IpStateServiceException if nothing to report.
+     */
+    IpStateLayout getLayout() throws IpStateServiceException;
+
+    /**
+     * Hand the states of all managed IP addresses to the visitor, one block at a time, in order of block.
+     * Nothing is held beyond a batch of blocks, so memory use does not grow with the CIDR blocks.
+     *
+     * @param visitor called once per block.
+     * @throws IpStateServiceException if nothing to report.
+     */
+    void visitIpStates(IpStateVisitor visitor) throws IpStateServiceException;
+
+    /**
+     * As visitIpStates(visitor), for the layout captured before: only its pools are visited.  The visitor is
+     * called with no lock held, so may be slow, as when writing to a client.
+     *
+     * @param layout as from getLayout.
+     * @param visitor called once per block.
+     * @throws IpStateServiceException if blocks were re-blocked since the layout was captured, or cannot be read.
+     */
+    void visitIpStates(IpStateLayout layout, IpStateVisitor visitor) throws IpStateServiceException;
+
+    /**
+     * Find one page of managed IP addresses, in address order, optionally only those in one state.  Reading
+     * starts at the block holding the first address wanted, and stops once the page is full.
+     *
+     * @param state only IP addresses in this state; null means either.
+     * @param fromIpAddr first IP address wanted; null means start of the first CIDR block.
+     * @param toIpAddr last IP address wanted; null means end of the last CIDR block.
+     * @param cursor as returned with the previous page; null means first page.
+     * @param limit most IP addresses in the page.
+     * @return page of IP addresses and their states, and the cursor for the next page.
+     * @throws IpStateServiceException in event of bad inputs or bad CIDR state.
+     */
+    IpStatePage queryIpStates(IpCheckoutState state, String fromIpAddr, String toIpAddr, String cursor, int limit)
+            throws IpStateServiceException;
+
+    /**
+     * Read-only visit of the states of the IP addresses in one block.
+     */
+    @FunctionalInterface
+    interface IpStateVisitor {
+        /**
+         * @param cidrBlock CIDR block the block belongs to.
+         * @param firstAddress unsigned integer form of the IP address at offset zero of the block.
+         * @param container bits of the block: set means acquired.
+         * @param bitsInBlock how many bits of the block stand for IP addresses.
+         */
+        void visitBlock(CIDR cidrBlock, long firstAddress, BitContainer container, int bitsInBlock);
+    }
 }
@@ -1,27 +1,51 @@
 package com.project.challenge.services;
 
-import com.project.challenge.entities.CidrBitBlock;
 import com.project.challenge.model.*;
-import com.project.challenge.repositories.BlockRepository;
-import org.apache.commons.net.util.Base64;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * Implements the state service transitioning states of IP addresses within CIDR range.
  */
 @Service
 public class IpStateServiceImpl implements IpStateService {
+    // A run found free may be taken by others before it can be claimed.  Search again this many times.
+    private static final int MAX_RANGE_ATTEMPTS = 8;
+    private static final long MAX_ADDRESS = 0xffffffffL;
+
     private Ipv4ConversionService conversionService;
     private CidrStateService cidrStateService;
     private IpBlockService blockService;
-    private BlockRepository blockRepository;
+    private BitBlockStore blockStore;
+    private BlockReblocking blockReblocking;
+
+    // Built on first need.
+    private volatile FreeSpaceIndex freeSpaceIndex;
+
+    // Built at startup, or on first need.
+    private volatile IpStateCounters stateCounters;
+    private int statsPrefixLength = 24;
+    private int visitBatchBlocks = 256;
 
-    private Base64 base64 = new Base64();
+    // Raised after every change to the blocks.
+    private final AtomicLong stateVersion = new AtomicLong(System.currentTimeMillis());
+
+    // Held for reading by everything working out block numbers, and for writing while re-blocking swaps layouts.
+    private final StripedReadWriteLock layoutLock = new StripedReadWriteLock(Runtime.getRuntime().availableProcessors() * 4);
+    private final Object reblockLock = new Object();
+    // Raised by every re-blocking, under the layout write lock.
+    private volatile long layoutGeneration;
 
     private static Logger logger = LogManager.getLogger(IpStateServiceImpl.class);
 
@@ -29,18 +53,48 @@ public class IpStateServiceImpl implements IpStateService {
      * Construct with all required inputs.
      * @param conversionService - util for remarshalling
      * @param cidrStateService - has the CIDR block in use.
+     * @param blockService - locates IP addresses within blocks.
+     * @param blockStore - holds the blocks.
+     * @param blockReblocking - rewrites stored blocks at another size.
      */
     @Autowired
     public IpStateServiceImpl(
             Ipv4ConversionService conversionService,
             CidrStateService cidrStateService,
             IpBlockService blockService,
-            BlockRepository blockRepository
+            BitBlockStore blockStore,
+            BlockReblocking blockReblocking
     ) {
         this.conversionService = conversionService;
         this.cidrStateService = cidrStateService;
-        this.blockRepository = blockRepository;
+        this.blockStore = blockStore;
         this.blockService = blockService;
+        this.blockReblocking = blockReblocking;
+    }
+
+    @Value("${ipstate.stats.prefix-length:24}")
+    public void setStatsPrefixLength(int statsPrefixLength) {
+        this.statsPrefixLength = statsPrefixLength;
+    }
+
+    /**
+     * Blocks read per hold of the layout lock while visiting every block, as for a streamed report.
+     *
+     * @param visitBatchBlocks how many blocks.
+     */
+    @Value("${ipstate.report.batch-blocks:256}")
+    public void setVisitBatchBlocks(int visitBatchBlocks) {
+        this.visitBatchBlocks = visitBatchBlocks;
+    }
+
+    /**
+     * Count acquired addresses as soon as the application is up, so that the first request for stats need not.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void seedStateCounters() {
+        if (cidrStateService.isPopulated()  &&  ! blockStore.isShared()) {
+            getStateCounters();
+        }
     }
 
     /**
@@ -51,15 +105,7 @@ public class IpStateServiceImpl implements IpStateService {
      */
     @Override
     public void setIpStateAcquired(String ipAddr) throws IpStateServiceException {
-        checkCidrState();
-        checkInputValidity(ipAddr);
-
-        logger.debug(
-                "IP address {} is within range, and will be marked as acquired if it is not already acquired.",
-                ipAddr
-        );
-
-        setIpAddressState(ipAddr, true);
+        acquire((int) toAddress(ipAddr));
     }
 
     /**
@@ -70,15 +116,242 @@ public class IpStateServiceImpl implements IpStateService {
      */
     @Override
     public void setIpStateReleased(String ipAddr) throws IpStateServiceException {
+        release((int) toAddress(ipAddr));
+    }
+
+    @Override
+    public void acquire(int ipAddr) throws IpStateServiceException {
+        checkCidrState();
+        withLayout(() -> setIpAddressState(findCidrBlock(ipAddr), ipAddr, true));
+    }
+
+    @Override
+    public void release(int ipAddr) throws IpStateServiceException {
+        checkCidrState();
+        withLayout(() -> setIpAddressState(findCidrBlock(ipAddr), ipAddr, false));
+    }
+
+    /**
+     * Find the first block the free space index says has room, and take its first free IP address.  The
+     * index is checked against the block itself, under the block's lock.
+     *
+     * @return the acquired IP address.
+     * @throws IpPoolExhaustedException if no free IP address remains.
+     * @throws IpStateServiceException in event of bad CIDR state.
+     */
+    @Override
+    public String acquireNextIp() throws IpStateServiceException {
+        return acquireNextIp(null);
+    }
+
+    /**
+     * As acquireNextIp(), searching only the blocks of the CIDR block given.
+     *
+     * @param cidrBlockNotation which CIDR block to take from; null means any.
+     * @return the acquired IP address.
+     * @throws IpPoolExhaustedException if no free IP address remains.
+     * @throws IpStateServiceException in event of bad inputs or bad CIDR state.
+     */
+    @Override
+    public String acquireNextIp(String cidrBlockNotation) throws IpStateServiceException {
+        checkCidrState();
+        return withLayout(() -> acquireNextIpInLayout(cidrBlockNotation));
+    }
+
+    private String acquireNextIpInLayout(String cidrBlockNotation) throws IpStateServiceException {
+        final CidrPools cidrPools = cidrStateService.getCidrPools();
+        int fromBlock = 0;
+        int toBlock = cidrPools.getBlockCount();
+        String searched = "any CIDR block";
+        if (cidrBlockNotation != null) {
+            CIDR cidrBlock = cidrPools.findByNotation(cidrBlockNotation);
+            if (cidrBlock == null) {
+                // Perhaps added by another application sharing the database.
+                cidrBlock = cidrStateService.refreshAfterMiss().findByNotation(cidrBlockNotation);
+            }
+            if (cidrBlock == null) {
+                throw new IpStateServiceException(new IllegalArgumentException("No such CIDR block: " + cidrBlockNotation));
+            }
+            fromBlock = cidrBlock.getFirstBlock();
+            toBlock = fromBlock + cidrBlock.getBlockCount();
+            searched = cidrBlock.getCidrBlockNotation();
+        }
+
+        long address = acquireNextFree(cidrPools, getFreeSpaceIndex(), fromBlock, toBlock);
+        if (address < 0) {
+            // The index may lag changes made elsewhere.  Rebuild it before giving up.
+            address = acquireNextFree(cidrPools, rebuildFreeSpaceIndex(), fromBlock, toBlock);
+        }
+        if (address < 0) {
+            throw new IpPoolExhaustedException("No free IP address remains in " + searched);
+        }
+
+        String ipAddr = conversionService.getLongAsIp(address);
+        logger.debug("IP address {} was next free, and has been marked as acquired.", ipAddr);
+        return ipAddr;
+    }
+
+    /**
+     * Search the blocks for a long-enough run of free IP addresses, then claim all of its blocks at once.  If the
+     * run was taken in the meantime, search again.
+     *
+     * @param count how many consecutive IP addresses.
+     * @param fromIpAddr run may not start before this IP address.  Null means start of CIDR block.
+     * @return the acquired run.
+     * @throws IpPoolExhaustedException if no run is long enough.
+     * @throws IpStateServiceException in event of bad inputs or bad CIDR state.
+     */
+    @Override
+    public IpRange acquireIpRange(int count, String fromIpAddr) throws IpStateServiceException {
+        checkCidrState();
+        return withLayout(() -> acquireIpRangeInLayout(count, fromIpAddr));
+    }
+
+    private IpRange acquireIpRangeInLayout(int count, String fromIpAddr) throws IpStateServiceException {
+        List<CIDR> candidates = cidrStateService.getCidrPools().getCidrBlocks();
+        long fromOffset = 0;
+        if (fromIpAddr != null) {
+            int fromAddress = (int) toAddress(fromIpAddr);
+            CIDR fromCidrBlock = findCidrBlock(fromAddress);
+            candidates = Collections.singletonList(fromCidrBlock);
+            fromOffset = fromCidrBlock.offsetOf(fromAddress);
+        }
+        if (count <= 0  ||  candidates.stream().noneMatch(candidate -> count <= candidate.getAddressCount())) {
+            throw new IpStateServiceException(new IllegalArgumentException("Cannot acquire a run of " + count + " IP addresses"));
+        }
+
+        for (int attempt = 0; attempt < MAX_RANGE_ATTEMPTS; attempt++) {
+            // Runs never cross from one CIDR block into another.
+            CIDR cidrBlock = null;
+            long runStart = -1;
+            FreeSpaceIndex index = getFreeSpaceIndex();
+            for (CIDR candidate : candidates) {
+                runStart = findFreeRun(candidate, index, fromIpAddr != null ? fromOffset : 0, count);
+                if (runStart >= 0) {
+                    cidrBlock = candidate;
+                    break;
+                }
+            }
+            if (cidrBlock == null) {
+                throw new IpPoolExhaustedException("No run of " + count + " free IP addresses remains");
+            }
+            if (claimRun(cidrBlock, runStart, count)) {
+                stateVersion.incrementAndGet();
+                long firstAddress = cidrBlock.getStartingAddrLong() + runStart;
+                logger.debug("Run of {} IP addresses from offset {} has been marked as acquired.", count, runStart);
+                return new IpRange(
+                        conversionService.getLongAsIp(firstAddress),
+                        conversionService.getLongAsIp(firstAddress + count - 1),
+                        count
+                );
+            }
+        }
+        throw new IpStateServiceException(new IllegalStateException("Free runs kept being taken.  Gave up."));
+    }
+
+    @Override
+    public List<IpBatchResult> setIpStatesAcquired(List<String> ipAddrs, boolean allOrNothing)
+            throws IpStateServiceException {
+        checkCidrState();
+        return withLayout(() -> setIpAddressStates(ipAddrs, true, allOrNothing));
+    }
+
+    @Override
+    public List<IpBatchResult> setIpStatesReleased(List<String> ipAddrs, boolean allOrNothing)
+            throws IpStateServiceException {
         checkCidrState();
-        checkInputValidity(ipAddr);
+        return withLayout(() -> setIpAddressStates(ipAddrs, false, allOrNothing));
+    }
+
+    @Override
+    public long getStateVersion() {
+        return stateVersion.get();
+    }
 
-        logger.debug(
-                "IP address {} is within range, and will be marked as freed if it is not already free.",
-                ipAddr
-        );
+    @Override
+    public boolean isSoleWriter() {
+        return ! blockStore.isShared();
+    }
+
+    /**
+     * Build the new layout while serving, catching up with changes made meanwhile.  Then hold off every change and
+     * read, catch up once more, and swap layouts.  The index and counters are rebuilt at the new size on next need.
+     */
+    @Override
+    public int reblock(int blockSize) throws IpStateServiceException {
+        if (! IpBlockServiceImpl.isValidBlockSize(blockSize)) {
+            throw new IpStateServiceException(new IllegalArgumentException("Not a valid block size: " + blockSize));
+        }
+        if (! blockStore.isWriteThrough()) {
+            throw new IpStateServiceException(new UnsupportedOperationException(
+                    "Blocks held by this store cannot be re-blocked while serving.  Set ipstate.block-size, and restart."
+            ));
+        }
+        if (blockStore.isShared()) {
+            // Others would go on changing bits where they were, by the old layout.
+            throw new IpStateServiceException(new UnsupportedOperationException(
+                    "Blocks shared with other applications cannot be re-blocked while serving.  Stop them all, set "
+                            + "ipstate.block-size, and restart."
+            ));
+        }
+        synchronized (reblockLock) {
+            if (blockSize == blockService.getBlockSize()) {
+                return cidrStateService.getCidrPools().getBlockCount();
+            }
+            try {
+                BlockReblocking.Plan plan = blockReblocking.plan(blockSize);
+                blockReblocking.copy(plan);
+                blockReblocking.catchUpUntilQuiet(plan);
+                layoutLock.lockWrite();
+                try {
+                    blockReblocking.catchUp(plan);
+                    blockReblocking.promote(plan);
+                    blockService.setBlockSize(blockSize);
+                    freeSpaceIndex = null;
+                    stateCounters = null;
+                    layoutGeneration++;
+                    stateVersion.incrementAndGet();
+                    return cidrStateService.refresh().getBlockCount();
+                } finally {
+                    layoutLock.unlockWrite();
+                }
+            } catch (InvalidFormatException | RuntimeException ex) {
+                blockReblocking.abandon();
+                throw new IpStateServiceException(ex);
+            }
+        }
+    }
 
-        setIpAddressState(ipAddr, false);
+    /**
+     * Read from the counters, which are kept in step with every change.  No block is read, unless the store is
+     * shared: then every block is counted, as it is now.
+     *
+     * @param withHistogram T=include counts per prefix.
+     * @return counts of IP addresses, in total and per CIDR block.
+     * @throws IpStateServiceException if nothing to count.
+     */
+    @Override
+    public IpStats getIpStats(boolean withHistogram) throws IpStateServiceException {
+        checkCidrState();
+        IpStateCounters counters = withLayout(() -> blockStore.isShared() ? countStates() : getStateCounters());
+        List<IpUsage> cidrUsages = new ArrayList<>(counters.getCidrBlocks().size());
+        for (int i = 0; i < counters.getCidrBlocks().size(); i++) {
+            CIDR cidrBlock = counters.getCidrBlocks().get(i);
+            cidrUsages.add(new IpUsage(cidrBlock.getCidrBlockNotation(), cidrBlock.getAddressCount(), counters.getCidrAcquired(i)));
+        }
+        List<IpUsage> histogram = null;
+        if (withHistogram) {
+            histogram = new ArrayList<>(counters.getPrefixCount());
+            String prefixSuffix = "/" + counters.getPrefixLength();
+            for (int i = 0; i < counters.getPrefixCount(); i++) {
+                histogram.add(new IpUsage(
+                        conversionService.getLongAsIp(counters.getPrefixAddr(i)) + prefixSuffix,
+                        counters.getPrefixManaged(i),
+                        counters.getPrefixAcquired(i)
+                ));
+            }
+        }
+        return new IpStats(new IpUsage(null, counters.getTotalManaged(), counters.getTotalAcquired()), cidrUsages, histogram);
     }
 
     /**
@@ -89,101 +362,628 @@ public class IpStateServiceImpl implements IpStateService {
      */
     @Override
     public IpReport getIpReport() throws IpStateServiceException {
+        return buildReport(getLayout());
+    }
+
+    @Override
+    public IpStateLayout getLayout() throws IpStateServiceException {
         checkCidrState();
+        return withLayout(() -> new IpStateLayout(
+                cidrStateService.getCidrPools(), blockService.getBlockSize(), blockService.getWordsPerBlock(), layoutGeneration
+        ));
+    }
+
+    @Override
+    public void visitIpStates(IpStateVisitor visitor) throws IpStateServiceException {
+        visitIpStates(getLayout(), visitor);
+    }
+
+    /**
+     * Blocks are read a batch at a time, each under the layout read lock, and visited with no lock held: a visitor
+     * writing to a slow client holds up no re-blocking, nor any change waiting behind one.
+     */
+    @Override
+    public void visitIpStates(IpStateLayout layout, IpStateVisitor visitor) throws IpStateServiceException {
+        final int blockCount = layout.getCidrPools().getBlockCount();
+        List<VisitedBlock> batch = new ArrayList<>(visitBatchBlocks);
+        for (int fromBlock = 0; fromBlock < blockCount; fromBlock += visitBatchBlocks) {
+            final int toBlock = Math.min(fromBlock + visitBatchBlocks, blockCount);
+            final int batchFrom = fromBlock;
+            batch.clear();
+            withLayout(() -> readBatch(layout, batchFrom, toBlock, batch));
+            for (VisitedBlock visited : batch) {
+                visitor.visitBlock(visited.cidrBlock, visited.firstAddress, visited.container, visited.bitsInBlock);
+            }
+        }
+    }
+
+    /** Only under the layout lock, and only while the layout is still the one given. */
+    private void readBatch(IpStateLayout layout, int fromBlock, int toBlock, List<VisitedBlock> batch)
+            throws IpStateServiceException {
+        if (layout.getGeneration() != layoutGeneration) {
+            throw new IpStateServiceException(new IllegalStateException("Blocks were re-blocked while being read."));
+        }
+        final CidrPools cidrPools = layout.getCidrPools();
+        blockStore.forEachContainer(fromBlock, toBlock, (blockNum, container) -> {
+            CIDR cidrBlock = cidrPools.findByBlock(blockNum);
+            if (cidrBlock != null) {
+                long firstAddress = cidrBlock.getStartingAddrLong() + (blockNum - cidrBlock.getFirstBlock()) * layout.getBlockSize();
+                batch.add(new VisitedBlock(cidrBlock, firstAddress, container, layout.getBitsInBlock(cidrBlock, blockNum)));
+            }
+        });
+    }
+
+    /**
+     * Walk only the CIDR blocks overlapping the addresses wanted.  Within the first of those, go straight to the
+     * block holding the first address; within each block, jump from one matching bit to the next.  One match
+     * beyond the limit is looked for, to tell whether another page follows.
+     */
+    @Override
+    public IpStatePage queryIpStates(IpCheckoutState state, String fromIpAddr, String toIpAddr, String cursor, int limit)
+            throws IpStateServiceException {
+        checkCidrState();
+        return withLayout(() -> queryIpStatesInLayout(state, fromIpAddr, toIpAddr, cursor, limit));
+    }
+
+    private IpStatePage queryIpStatesInLayout(IpCheckoutState state, String fromIpAddr, String toIpAddr, String cursor, int limit)
+            throws IpStateServiceException {
+        if (limit <= 0) {
+            throw new IpStateServiceException(new IllegalArgumentException("Page limit must be positive: " + limit));
+        }
+        final CidrPools cidrPools = cidrStateService.getCidrPools();
+        long fromAddress = fromIpAddr != null ? toAddress(fromIpAddr) : 0;
+        if (cursor != null) {
+            fromAddress = Math.max(fromAddress, toAddress(cursor));
+        }
+        final long toAddress = toIpAddr != null ? toAddress(toIpAddr) : MAX_ADDRESS;
+
+        List<IpStateEntry> entries = new ArrayList<>();
+        Ipv4Formatter formatter = new Ipv4Formatter();
+        long nextAddress = -1;
+        for (CIDR cidrBlock : cidrPools.getCidrBlocks()) {
+            long lastManaged = cidrBlock.getStartingAddrLong() + cidrBlock.getAddressCount() - 1;
+            if (lastManaged < fromAddress) {
+                continue;
+            }
+            if (cidrBlock.getStartingAddrLong() > toAddress  ||  nextAddress >= 0) {
+                break;
+            }
+            long firstWanted = Math.max(fromAddress, cidrBlock.getStartingAddrLong());
+            long lastWanted = Math.min(toAddress, lastManaged);
+            nextAddress = queryCidrBlock(cidrBlock, state, firstWanted, lastWanted, entries, limit, formatter);
+        }
+        return new IpStatePage(entries, nextAddress >= 0 ? conversionService.getLongAsIp(nextAddress) : null);
+    }
+
+    /**
+     * Add matching IP addresses of one CIDR block to the page, until it is full.
+     *
+     * @return first matching address which did not fit; -1 if the page is not yet full.
+     */
+    private long queryCidrBlock(
+            CIDR cidrBlock, IpCheckoutState state, long firstWanted, long lastWanted, List<IpStateEntry> entries, int limit,
+            Ipv4Formatter formatter) throws IpStateServiceException {
+        final long blockSize = blockService.getBlockSize();
+        long firstOffset = firstWanted - cidrBlock.getStartingAddrLong();
+        int position = blockService.getBlockOffset(firstOffset);
+        int lastBlockNum = blockService.getBlockNum(cidrBlock, lastWanted - cidrBlock.getStartingAddrLong());
+        for (int blockNum = blockService.getBlockNum(cidrBlock, firstOffset); blockNum <= lastBlockNum; blockNum++, position = 0) {
+            long blockFirstAddress = cidrBlock.getStartingAddrLong() + (blockNum - cidrBlock.getFirstBlock()) * blockSize;
+            int limitInBlock = (int) Math.min(blockService.getBitsInBlock(cidrBlock, blockNum), lastWanted - blockFirstAddress + 1);
+            BitContainer container = blockStore.readContainer(blockNum);
+            for (int blockOffset = nextMatch(container, state, position, limitInBlock);
+                 blockOffset >= 0;
+                 blockOffset = nextMatch(container, state, blockOffset + 1, limitInBlock)) {
+                long address = blockFirstAddress + blockOffset;
+                if (entries.size() == limit) {
+                    return address;
+                }
+                entries.add(new IpStateEntry(formatter.toString(address), checkoutState(container.get(blockOffset))));
+            }
+        }
+        return -1;
+    }
 
-        return buildReport();
+    /** Next bit at or after the position in the state wanted; -1 if none before the limit. */
+    private int nextMatch(BitContainer container, IpCheckoutState state, int position, int limit) {
+        if (state == IpCheckoutState.ACQUIRED) {
+            return container.nextSetBit(position, limit);
+        } else if (state == IpCheckoutState.FREE) {
+            return container.nextClearBit(position, limit);
+        }
+        return position < limit ? position : -1;
     }
 
     /**
      * Logic of how to set state disposition.  If has been acquired and acquired is being requested, then this
      * will not be allowed.
      *
-     * @param ipAddr which IP to acquire (or free).
+     * @param cidrBlock the CIDR block managing the IP address.
+     * @param ipAddr which IP to acquire (or free), as the int holding its 32 bits.
      * @param targetAcquiredState T=acquire; F=free
      * @throws IpStateServiceException thrown if acquire is requested, but already acquired.
      */
-    private void setIpAddressState(String ipAddr, boolean targetAcquiredState) throws IpStateServiceException {
+    private void setIpAddressState(CIDR cidrBlock, int ipAddr, boolean targetAcquiredState) throws IpStateServiceException {
         // Need to figure out where this thing is.
-        IpBlockDescriptor descriptor = getBlockDescriptor(ipAddr);
-        if (descriptor == null) {
-            throw new IpStateServiceException(new IllegalArgumentException("No descriptor found for Ip Address"));
-        }
-        Optional<CidrBitBlock> bitBlockOptional = blockRepository.findById((int)descriptor.getBlockNum());
-        if (bitBlockOptional.isPresent()) {
-            CidrBitBlock bitBlock = bitBlockOptional.get();
-            BitSet bitSet = BitSet.valueOf(base64.decode(bitBlock.getEncodedBits()));
-            final int blockOffset = (int) descriptor.getBlockOffset();
-            boolean hasBeenAcquired = bitSet.get( blockOffset );
-
-            if (targetAcquiredState   &&   hasBeenAcquired) {
-                // Too late!  This one is already in use.
-                throw new IpStateServiceException(new IllegalArgumentException("IP address already acquired: " + ipAddr));
+        final long offset = cidrBlock.offsetOf(ipAddr);
+        if (offset >= cidrBlock.getAddressCount()) {
+            throw new IpStateServiceException(new IllegalArgumentException("IP address not within " + cidrBlock.getCidrBlockNotation()));
+        }
+        final int blockNum = blockService.getBlockNum(cidrBlock, offset);
+        final int blockOffset = blockService.getBlockOffset(offset);
+        final int bitsInBlock = blockService.getBitsInBlock(cidrBlock, blockNum);
+        final FreeSpaceIndex index = freeSpaceIndex;
+        final IpStateCounters counters = stateCounters;
+        boolean changed = withCountsResynced(new int[] { blockNum }, () -> blockStore.setBit(
+                blockNum, blockOffset, targetAcquiredState, new BitBlockStore.BitChangeListener() {
+                    @Override
+                    public void blockUpdated(int blockNum, long[] words) {
+                        updateCounts(index, counters, blockNum, words, bitsInBlock);
+                    }
+
+                    @Override
+                    public void bitChanged(int blockNum, int blockOffset, boolean value) {
+                        adjustCounts(index, counters, blockNum, blockOffset, value);
+                    }
+                }
+        ));
+        if (targetAcquiredState  &&  ! changed) {
+            // Too late!  This one is already in use.
+            throw new IpStateServiceException(new IllegalArgumentException(
+                    "IP address already acquired: " + conversionService.getLongAsIp(Integer.toUnsignedLong(ipAddr))
+            ));
+        }
+        if (changed) {
+            stateVersion.incrementAndGet();
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug(
+                    "IP address {} is {}{}.",
+                    conversionService.getLongAsIp(Integer.toUnsignedLong(ipAddr)),
+                    changed ? "now " : "still ",
+                    checkoutState(targetAcquiredState)
+            );
+        }
+    }
+
+    /**
+     * Batch version of setting state disposition.  Changes are grouped by block, so that each block is read and
+     * written once.  In all-or-nothing mode, every affected block is locked (in a fixed order) for the length of
+     * the batch, and if any change fails, the blocks are put back as they were.
+     *
+     * @param ipAddrs which IPs to acquire (or free).
+     * @param targetAcquiredState T=acquire; F=free
+     * @param allOrNothing T=if any change fails, make none.
+     * @return outcome per IP address, in the order given.
+     */
+    private List<IpBatchResult> setIpAddressStates(List<String> ipAddrs, boolean targetAcquiredState, boolean allOrNothing)
+            throws IpStateServiceException {
+        CidrPools foundPools = cidrStateService.getCidrPools();
+        final FreeSpaceIndex index = freeSpaceIndex;
+        final IpStateCounters counters = stateCounters;
+        List<IpBatchResult> results = new ArrayList<>(ipAddrs.size());
+        SortedMap<Integer, List<BlockChange>> changesByBlock = new TreeMap<>();
+        boolean anyInvalid = false;
+        for (String ipAddr : ipAddrs) {
+            IpBatchResult result = new IpBatchResult(ipAddr);
+            results.add(result);
+            long address = Ipv4Parser.parseAddress(ipAddr);
+            CIDR cidrBlock = address != Ipv4Parser.INVALID ? foundPools.findByAddress(address) : null;
+            if (cidrBlock == null  &&  address != Ipv4Parser.INVALID) {
+                // Perhaps added by another application sharing the database.
+                foundPools = cidrStateService.refreshAfterMiss();
+                cidrBlock = foundPools.findByAddress(address);
+            }
+            if (cidrBlock == null) {
+                result.setOutcome(IpBatchOutcome.INVALID);
+                anyInvalid = true;
             } else {
-                bitSet.set( blockOffset, !hasBeenAcquired );
+                long offset = cidrBlock.offsetOf((int) address);
+                changesByBlock
+                        .computeIfAbsent(blockService.getBlockNum(cidrBlock, offset), blockNum -> new ArrayList<>())
+                        .add(new BlockChange(result, blockService.getBlockOffset(offset)));
+            }
+        }
+        final CidrPools cidrPools = foundPools;
 
-                bitBlock.setEncodedBits( base64.encodeToString( bitSet.toByteArray() ) );
-                blockRepository.save(bitBlock);
+        if (! allOrNothing) {
+            for (Map.Entry<Integer, List<BlockChange>> entry : changesByBlock.entrySet()) {
+                final int blockNum = entry.getKey();
+                final int bitsInBlock = blockService.getBitsInBlock(cidrPools.findByBlock(blockNum), blockNum);
+                try {
+                    withCountsResynced(new int[] { blockNum }, () -> blockStore.updateBlock(blockNum, words -> {
+                        applyChanges(words, entry.getValue(), targetAcquiredState);
+                        updateCounts(index, counters, blockNum, words, bitsInBlock);
+                        return null;
+                    }));
+                } catch (BlockLeasedElsewhereException blee) {
+                    logger.debug("Batch changes to block {} refused: {}", blockNum, blee.getCause().getMessage());
+                    entry.getValue().forEach(change -> change.result.setOutcome(IpBatchOutcome.LEASED_ELSEWHERE));
+                } catch (IpStateServiceException ipse) {
+                    logger.warn("Batch changes to block {} failed.", blockNum, ipse);
+                    entry.getValue().forEach(change -> change.result.setOutcome(IpBatchOutcome.INVALID));
+                }
             }
+        } else if (! anyInvalid  &&  ! changesByBlock.isEmpty()) {
+            final int[] blockNums = changesByBlock.keySet().stream().mapToInt(Integer::intValue).toArray();
+            final List<List<BlockChange>> changeLists = new ArrayList<>(changesByBlock.values());
+            withCountsResynced(blockNums, () -> blockStore.updateBlocks(blockNums, blocksWords -> {
+                long[][] originals = new long[blocksWords.length][];
+                boolean allSucceeded = true;
+                for (int i = 0; i < blocksWords.length; i++) {
+                    originals[i] = blocksWords[i].clone();
+                    allSucceeded &= applyChanges(blocksWords[i], changeLists.get(i), targetAcquiredState);
+                }
+                for (int i = 0; i < blocksWords.length; i++) {
+                    if (! allSucceeded) {
+                        System.arraycopy(originals[i], 0, blocksWords[i], 0, originals[i].length);
+                    } else {
+                        int bitsInBlock = blockService.getBitsInBlock(cidrPools.findByBlock(blockNums[i]), blockNums[i]);
+                        updateCounts(index, counters, blockNums[i], blocksWords[i], bitsInBlock);
+                    }
+                }
+                return allSucceeded;
+            }));
+        }
 
-        } else {
-            throw new IpStateServiceException(new NullPointerException("No block found for " + ipAddr));
+        if (results.stream().anyMatch(result -> isChanged(result.getOutcome()))) {
+            stateVersion.incrementAndGet();
+        }
+        if (allOrNothing  &&  ! results.stream().allMatch(result -> isChanged(result.getOutcome()))) {
+            results.stream()
+                    .filter(result -> result.getOutcome() == null  ||  isChanged(result.getOutcome()))
+                    .forEach(result -> result.setOutcome(IpBatchOutcome.NOT_APPLIED));
         }
+        return results;
     }
 
     /**
-     * Logic of extracting all IP addresses from all blocks.
+     * Apply all changes bound for one block, recording the outcome of each.
+     *
+     * @return T=every change could be made.
      */
-    private IpReport buildReport() {
-        // Need to figure out where this thing is.
-        List<CidrBitBlock> allCidrBlocks = blockRepository.findAll();
+    private boolean applyChanges(long[] words, List<BlockChange> changes, boolean targetAcquiredState) {
+        boolean allSucceeded = true;
+        for (BlockChange change : changes) {
+            if (targetAcquiredState  &&  BitWords.get(words, change.blockOffset)) {
+                change.result.setOutcome(IpBatchOutcome.ALREADY_ACQUIRED);
+                allSucceeded = false;
+            } else {
+                BitWords.set(words, change.blockOffset, targetAcquiredState);
+                change.result.setOutcome(targetAcquiredState ? IpBatchOutcome.ACQUIRED : IpBatchOutcome.RELEASED);
+            }
+        }
+        return allSucceeded;
+    }
 
-        final CIDR cidrBlock = cidrStateService.getCidrBlock();
+    private boolean isChanged(IpBatchOutcome outcome) {
+        return outcome == IpBatchOutcome.ACQUIRED  ||  outcome == IpBatchOutcome.RELEASED;
+    }
 
-        Long startingAddressOfCidr = cidrBlock.getStartingAddrLong();
-        Long endingAddressOfCidr = cidrBlock.getEndingAddrLong();
-        Long addressSpanOfCidr = endingAddressOfCidr - startingAddressOfCidr;
+    /**
+     * Walk the blocks which the index says have room, taking the first free IP address found.  Blocks the store
+     * cannot change here are passed over.
+     *
+     * @param cidrPools finds the CIDR block of each block.
+     * @param index where to look.  Corrected along the way.
+     * @param fromBlock first block to look in.
+     * @param toBlock stop looking here (exclusive).
+     * @return acquired address; -1 if none.
+     */
+    private long acquireNextFree(CidrPools cidrPools, FreeSpaceIndex index, int fromBlock, int toBlock)
+            throws IpStateServiceException {
+        final IpStateCounters counters = stateCounters;
+        for (int blockNum = index.nextNonFullBlock(fromBlock);
+             blockNum >= 0  &&  blockNum < toBlock;
+             blockNum = index.nextNonFullBlock(blockNum + 1)) {
+            final CIDR cidrBlock = cidrPools.findByBlock(blockNum);
+            if (cidrBlock == null  ||  ! blockStore.canServe(blockNum)) {
+                continue;
+            }
+            final int candidateBlockNum = blockNum;
+            final int bitsInBlock = blockService.getBitsInBlock(cidrBlock, candidateBlockNum);
+            int blockOffset = withCountsResynced(new int[] { candidateBlockNum }, () -> blockStore.updateBlock(candidateBlockNum, words -> {
+                int freeOffset = BitWords.nextClearBit(words, 0, bitsInBlock);
+                if (freeOffset >= 0) {
+                    BitWords.set(words, freeOffset, true);
+                }
+                updateCounts(index, counters, candidateBlockNum, words, bitsInBlock);
+                return freeOffset;
+            }));
+            if (blockOffset >= 0) {
+                stateVersion.incrementAndGet();
+                long blockIndex = candidateBlockNum - cidrBlock.getFirstBlock();
+                return cidrBlock.getStartingAddrLong() + blockIndex * blockService.getBlockSize() + blockOffset;
+            }
+        }
+        return -1;
+    }
 
+    /**
+     * Find a run of free IP addresses, which may span blocks.  Blocks the index says are full, or which the
+     * store cannot change here, break any run, and are not read.  Within a block, runs are found by alternately
+     * jumping to the next clear and next set bit, on the block's container as it is.
+     *
+     * @param cidrBlock the CIDR block, whose blocks are searched.
+     * @param index tells which blocks are full.
+     * @param fromOffset where in the CIDR block to start looking.
+     * @param count length of run wanted.
+     * @return offset within CIDR block where the run starts; -1 if none.
+     */
+    private long findFreeRun(CIDR cidrBlock, FreeSpaceIndex index, long fromOffset, int count)
+            throws IpStateServiceException {
         final long blockSize = blockService.getBlockSize();
+        final int firstBlockIndex = blockService.getBlockNum(cidrBlock, fromOffset) - cidrBlock.getFirstBlock();
+        long runStart = -1;
+        long runLength = 0;
+        for (int blockIndex = firstBlockIndex; blockIndex < cidrBlock.getBlockCount(); blockIndex++) {
+            final int blockNum = cidrBlock.getFirstBlock() + blockIndex;
+            if (index.getFreeCount(blockNum) == 0  ||  ! blockStore.canServe(blockNum)) {
+                runLength = 0;
+                continue;
+            }
+            final long blockBase = blockIndex * blockSize;
+            final int bitsInBlock = blockService.getBitsInBlock(cidrBlock, blockNum);
+            BitContainer container = blockStore.readContainer(blockNum);
+            int position = blockIndex == firstBlockIndex ? (int) (fromOffset - blockBase) : 0;
+            while (position < bitsInBlock) {
+                int clearBit = container.nextClearBit(position, bitsInBlock);
+                if (clearBit < 0) {
+                    runLength = 0;
+                    break;
+                }
+                if (clearBit != position  ||  runLength == 0) {
+                    runStart = blockBase + clearBit;
+                    runLength = 0;
+                }
+                int setBit = container.nextSetBit(clearBit, bitsInBlock);
+                runLength += (setBit < 0 ? bitsInBlock : setBit) - clearBit;
+                if (runLength >= count) {
+                    return runStart;
+                }
+                if (setBit < 0) {
+                    // Run reaches end of block, and may carry on into the next.
+                    break;
+                }
+                runLength = 0;
+                position = setBit;
+            }
+        }
+        return -1;
+    }
 
-        IpReport report = new IpReport();
-        report.setCidr(cidrBlock.getCidrBlockNotation());
-        Map<String,IpCheckoutState> ipStatusMap = new HashMap<>();
-        report.setIpStatus(ipStatusMap);
+    /**
+     * Acquire every IP address of the run, provided all are still free.  All blocks spanned are locked together.
+     *
+     * @return T=run acquired; F=some of it was taken in the meantime.
+     */
+    private boolean claimRun(CIDR cidrBlock, long runStart, int count) throws IpStateServiceException {
+        final long blockSize = blockService.getBlockSize();
+        final long runEnd = runStart + count;
+        final int firstBlockNum = blockService.getBlockNum(cidrBlock, runStart);
+        final int lastBlockNum = blockService.getBlockNum(cidrBlock, runEnd - 1);
+        final int[] blockNums = IntStream.rangeClosed(firstBlockNum, lastBlockNum).toArray();
+        final FreeSpaceIndex index = freeSpaceIndex;
+        final IpStateCounters counters = stateCounters;
+        return withCountsResynced(blockNums, () -> blockStore.updateBlocks(blockNums, blocksWords -> {
+            for (int i = 0; i < blockNums.length; i++) {
+                long blockBase = (blockNums[i] - cidrBlock.getFirstBlock()) * blockSize;
+                int fromBit = (int) (Math.max(runStart, blockBase) - blockBase);
+                int toBit = (int) (Math.min(runEnd, blockBase + blockSize) - blockBase);
+                if (! BitWords.isClear(blocksWords[i], fromBit, toBit)) {
+                    return false;
+                }
+            }
+            for (int i = 0; i < blockNums.length; i++) {
+                long blockBase = (blockNums[i] - cidrBlock.getFirstBlock()) * blockSize;
+                int fromBit = (int) (Math.max(runStart, blockBase) - blockBase);
+                int toBit = (int) (Math.min(runEnd, blockBase + blockSize) - blockBase);
+                BitWords.setRange(blocksWords[i], fromBit, toBit);
+                updateCounts(index, counters, blockNums[i], blocksWords[i], blockService.getBitsInBlock(cidrBlock, blockNums[i]));
+            }
+            return true;
+        }));
+    }
+
+    /** Index covering every block of every CIDR block; rebuilt once CIDR blocks have been added. */
+    private FreeSpaceIndex getFreeSpaceIndex() {
+        FreeSpaceIndex index = freeSpaceIndex;
+        if (index == null  ||  index.getBlockCount() < cidrStateService.getCidrPools().getBlockCount()) {
+            index = rebuildFreeSpaceIndex();
+        }
+        return index;
+    }
+
+    /**
+     * Count free addresses of every block.  Stores visit every block, so none is left counted as full.
+     */
+    private synchronized FreeSpaceIndex rebuildFreeSpaceIndex() {
+        final CidrPools cidrPools = cidrStateService.getCidrPools();
+        FreeSpaceIndex index = new FreeSpaceIndex(cidrPools.getBlockCount());
+        // Published before counting.  A count racing with a change may lag it; acquireNextFree corrects that.
+        freeSpaceIndex = index;
+        blockStore.forEachContainer((blockNum, container) -> {
+            CIDR cidrBlock = cidrPools.findByBlock(blockNum);
+            if (cidrBlock != null  &&  blockNum < index.getBlockCount()) {
+                int bitsInBlock = blockService.getBitsInBlock(cidrBlock, blockNum);
+                index.setFreeCount(blockNum, bitsInBlock - container.cardinality(bitsInBlock));
+            }
+        });
+        return index;
+    }
+
+    /**
+     * Keep the index and counters in step with a block just changed.  Either may not exist yet, or predate the
+     * block.
+     */
+    private void updateCounts(FreeSpaceIndex index, IpStateCounters counters, int blockNum, long[] words, int bitsInBlock) {
+        if (index != null  &&  blockNum < index.getBlockCount()) {
+            index.setFreeCount(blockNum, words, bitsInBlock);
+        }
+        if (counters != null  &&  blockNum < counters.getBlockCount()) {
+            counters.setAcquiredCounts(blockNum, words, bitsInBlock);
+        }
+    }
 
-        // Going through all blocks found.
-        allCidrBlocks.forEach(bitBlock -> {
-            // Must decode this block, and iterate through all its IP addresses.
-            int blockNumber = bitBlock.getId();
-            Long startingAddressInBlock = startingAddressOfCidr + (blockNumber * blockSize);
-            long bitsInBlock = blockSize;
-            if (startingAddressInBlock + blockSize > addressSpanOfCidr) {
-                bitsInBlock = addressSpanOfCidr % blockSize;
+    /**
+     * Make a change whose update sets the blocks' counts from the words as changed, before the store keeps them.
+     * Should the store then fail to keep them, the counts are put back as the store holds the blocks.
+     *
+     * @param blockNums blocks the change may have counted.
+     * @param change the store call.
+     * @return as returned by the change.
+     * @throws IpStateServiceException as thrown by the change.
+     */
+    private <T> T withCountsResynced(int[] blockNums, CountedChange<T> change) throws IpStateServiceException {
+        try {
+            return change.run();
+        } catch (BlockLeasedElsewhereException blee) {
+            // Refused before any update was applied.
+            throw blee;
+        } catch (IpStateServiceException | RuntimeException ex) {
+            resyncCounts(blockNums);
+            throw ex;
+        }
+    }
+
+    /**
+     * Count each block afresh, as the store holds it.  Read as a change that changes nothing, under the block's
+     * lock, so that counts set since by a change that was kept are not overwritten by older ones.  Failing that
+     * too, the counts are left for the block's next change to set right.
+     */
+    private void resyncCounts(int[] blockNums) {
+        final CidrPools cidrPools = cidrStateService.getCidrPools();
+        for (int blockNum : blockNums) {
+            final CIDR cidrBlock = cidrPools.findByBlock(blockNum);
+            if (cidrBlock == null) {
+                continue;
+            }
+            final int bitsInBlock = blockService.getBitsInBlock(cidrBlock, blockNum);
+            try {
+                blockStore.updateBlock(blockNum, words -> {
+                    updateCounts(freeSpaceIndex, stateCounters, blockNum, words, bitsInBlock);
+                    return null;
+                });
+            } catch (IpStateServiceException | RuntimeException ex) {
+                logger.warn("Counts of block {} may be off until it is next changed.", blockNum, ex);
             }
+        }
+    }
+
+    /** As updateCounts, for one bit changed by a store not reading its block. */
+    private void adjustCounts(FreeSpaceIndex index, IpStateCounters counters, int blockNum, int blockOffset, boolean acquired) {
+        if (index != null  &&  blockNum < index.getBlockCount()) {
+            index.addFreeCount(blockNum, acquired ? -1 : 1);
+        }
+        if (counters != null  &&  blockNum < counters.getBlockCount()) {
+            counters.addAcquired(blockNum, blockOffset, acquired);
+        }
+    }
 
-            BitSet bitSet = BitSet.valueOf(base64.decode(bitBlock.getEncodedBits()));
-            Long endingAddressInBlock = startingAddressInBlock + bitsInBlock;
+    /** Counters covering every block of every CIDR block; rebuilt once CIDR blocks have been added. */
+    private IpStateCounters getStateCounters() {
+        IpStateCounters counters = stateCounters;
+        if (counters == null  ||  counters.getBlockCount() < cidrStateService.getCidrPools().getBlockCount()) {
+            counters = rebuildStateCounters();
+        }
+        return counters;
+    }
 
-            int blockOffset = 0;
-            for (long l = startingAddressInBlock; l <= endingAddressInBlock; l++) {
-                ipStatusMap.put( conversionService.getLongAsIp(l), checkoutState( bitSet.get( blockOffset ) ) );
-                blockOffset ++;
+    /**
+     * Count acquired addresses of every block, from the containers as held, a word at a time.  Published before
+     * counting, as for the free space index: a count racing with a change to its block is set right by the next
+     * change to that block.
+     */
+    private synchronized IpStateCounters rebuildStateCounters() {
+        final CidrPools cidrPools = cidrStateService.getCidrPools();
+        IpStateCounters counters = new IpStateCounters(cidrPools, blockService.getBlockSize(), statsPrefixLength);
+        stateCounters = counters;
+        countStates(cidrPools, counters);
+        logger.info("Counted {} of {} IP addresses acquired.", counters.getTotalAcquired(), counters.getTotalManaged());
+        return counters;
+    }
+
+    /** Counters of every block as stored now, kept by no one: for a store other applications change too. */
+    private IpStateCounters countStates() {
+        final CidrPools cidrPools = cidrStateService.getCidrPools();
+        IpStateCounters counters = new IpStateCounters(cidrPools, blockService.getBlockSize(), statsPrefixLength);
+        countStates(cidrPools, counters);
+        return counters;
+    }
+
+    private void countStates(CidrPools cidrPools, IpStateCounters counters) {
+        blockStore.forEachContainer((blockNum, container) -> {
+            CIDR cidrBlock = cidrPools.findByBlock(blockNum);
+            if (cidrBlock != null  &&  blockNum < counters.getBlockCount()) {
+                counters.setAcquiredCounts(blockNum, container, blockService.getBitsInBlock(cidrBlock, blockNum));
+            }
+        });
+    }
+
+    /**
+     * Logic of extracting all IP addresses from all blocks, read in batches as any other visit is.
+     */
+    private IpReport buildReport(IpStateLayout layout) throws IpStateServiceException {
+        final CidrPools cidrPools = layout.getCidrPools();
+
+        IpReport report = new IpReport();
+        report.setCidr(cidrPools.getCidrBlocks().stream().map(CIDR::getCidrBlockNotation).collect(Collectors.joining(",")));
+        Map<String,IpCheckoutState> ipStatusMap = new HashMap<>();
+        report.setIpStatus(ipStatusMap);
+
+        // Going through all blocks found, and all IP addresses of each.
+        final Ipv4Formatter formatter = new Ipv4Formatter();
+        visitIpStates(layout, (cidrBlock, firstAddress, container, bitsInBlock) -> {
+            for (int blockOffset = 0; blockOffset < bitsInBlock; blockOffset++) {
+                ipStatusMap.put( formatter.toString(firstAddress + blockOffset), checkoutState( container.get( blockOffset ) ) );
             }
         });
 
         return report;
     }
 
-    /** Only managed, valid IP addresses can have states modified. */
-    private void checkInputValidity(String ipAddress) throws IpStateServiceException {
+    /** Unsigned integer form of a valid IP address, which need not be managed. */
+    private long toAddress(String ipAddress) throws IpStateServiceException {
         try {
-            if (! conversionService.isIpInCidrRange(ipAddress, this.cidrStateService.getCidrBlock().getCidrBlockNotation())) {
-                throw new IpStateServiceException(new IllegalArgumentException("Cannot change state of IP address not managed by this application."));
-            }
+            return conversionService.getIpAsLong(ipAddress);
         } catch (InvalidFormatException ife) {
             throw new IpStateServiceException(ife);
         }
     }
 
+    /** Only managed, valid IP addresses can have states modified. */
+    private CIDR findCidrBlock(int ipAddr) throws IpStateServiceException {
+        CIDR cidrBlock = cidrStateService.getCidrPools().findByAddress(Integer.toUnsignedLong(ipAddr));
+        if (cidrBlock == null) {
+            // Perhaps added by another application sharing the database.
+            cidrBlock = cidrStateService.refreshAfterMiss().findByAddress(Integer.toUnsignedLong(ipAddr));
+        }
+        if (cidrBlock == null) {
+            throw new IpStateServiceException(new IllegalArgumentException("Cannot change state of IP address not managed by this application."));
+        }
+        return cidrBlock;
+    }
+
+    /**
+     * Run the operation under the layout read lock, so that block numbers it works out stay good throughout.
+     */
+    private <T> T withLayout(LayoutBound<T> operation) throws IpStateServiceException {
+        Lock lock = layoutLock.readLock();
+        lock.lock();
+        try {
+            return operation.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void withLayout(LayoutBoundAction action) throws IpStateServiceException {
+        withLayout(() -> {
+            action.run();
+            return null;
+        });
+    }
+
     /** Only managed, valid IP addresses can have states modified. */
     private void checkCidrState() throws IpStateServiceException {
         if (! cidrStateService.isPopulated()) {
@@ -200,22 +1000,47 @@ public class IpStateServiceImpl implements IpStateService {
         }
     }
 
-    /**
-     * Get the descriptor telling all about where this IP address falls within the blocks of the
-     * repo.
-     *
-     * @param ipAddr IP address within range.  Validate at caller.
-     * @return bean with metadata.
-     */
-    private IpBlockDescriptor getBlockDescriptor(String ipAddr) {
-        IpBlockDescriptor ipBlockDescriptor = null;
-        try {
-            ipBlockDescriptor = blockService.getBitBlockDescriptor(cidrStateService.getCidrBlock(), ipAddr);
-        } catch (InvalidFormatException ife) {
-            // Should not happen.  Should validated by caller.
-            logger.warn(ife);
+    /** Operation needing the layout to stay put. */
+    @FunctionalInterface
+    private interface LayoutBound<T> {
+        T run() throws IpStateServiceException;
+    }
+
+    /** As LayoutBound, with nothing to return. */
+    @FunctionalInterface
+    private interface LayoutBoundAction {
+        void run() throws IpStateServiceException;
+    }
+
+    /** Store call that counts what it changes.  See withCountsResynced. */
+    @FunctionalInterface
+    private interface CountedChange<T> {
+        T run() throws IpStateServiceException;
+    }
+
+    /** One block read for a visitor, with where it stands among the IP addresses. */
+    private static class VisitedBlock {
+        private final CIDR cidrBlock;
+        private final long firstAddress;
+        private final BitContainer container;
+        private final int bitsInBlock;
+
+        private VisitedBlock(CIDR cidrBlock, long firstAddress, BitContainer container, int bitsInBlock) {
+            this.cidrBlock = cidrBlock;
+            this.firstAddress = firstAddress;
+            this.container = container;
+            this.bitsInBlock = bitsInBlock;
         }
-        return ipBlockDescriptor;
     }
 
+    /** One change bound for a block: where in the block, and where to record how it went. */
+    private static class BlockChange {
+        private final IpBatchResult result;
+        private final int blockOffset;
+
+        private BlockChange(IpBatchResult result, int blockOffset) {
+            this.result = result;
+            this.blockOffset = blockOffset;
+        }
+    }
 }
@@ -30,6 +30,15 @@ public interface Ipv4ConversionService {
      */
     Integer getIpAsInt(String ipAddress) throws InvalidFormatException;
 
+    /**
+     * Returns unsigned integer form of the IPv4 address, in one pass over its characters, without allocating.
+     *
+     * @param ipAddress must be valid IP address.
+     * @return unsigned integer version, in a long.
+     * @throws InvalidFormatException if not a valid IP address.
+     */
+    long getIpAsLong(CharSequence ipAddress) throws InvalidFormatException;
+
     /**
      * Converts an integer-version of the IP address back into a string-wise tuple.
      *
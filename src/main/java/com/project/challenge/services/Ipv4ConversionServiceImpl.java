@@ -1,15 +1,9 @@
 package com.project.challenge.services;
 
-import com.google.common.net.InetAddresses;
 import com.project.challenge.model.CIDR;
-import org.apache.commons.net.util.SubnetUtils;
-import org.apache.commons.validator.routines.InetAddressValidator;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.net.Inet4Address;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * IP addresses are often handed around as period-jointed strings.  However, that is simply a human-readable
@@ -18,18 +12,16 @@ import java.util.regex.Pattern;
  * This service is to support any conversions between convenient forms.
  *
  * Unless configured in app props, not using inclusive host count.
+ *
+ * Parsing and range checks are done by Ipv4Parser, in one pass over the characters, with no allocation.
  */
 @Service
 public class Ipv4ConversionServiceImpl implements Ipv4ConversionService {
-    // Borrowed from Subnet Utils.
-    private static final Pattern CIDR_PATTERN = Pattern.compile("(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})/(\\d{1,3})");
 
     public static final String INVALID_PI_FMT = "Invalid IP: %s";
     public static final String INVALID_CIDR_FMT = "Invalid CIDR block: %s";
     public static final String IP_ADDRESS_FORMAT = "%03d.%03d.%03d.%03d";
 
-    private InetAddressValidator validator = new InetAddressValidator();
-
     // By default, excluding .0 and .255 from IP ranges in CIDR blocks.
     private boolean inclusiveHostCount = false;
 
@@ -45,7 +37,7 @@ public class Ipv4ConversionServiceImpl implements Ipv4ConversionService {
      * @return true if so; false otherwise.
      */
     public boolean isValidIpAddress(String ipAddress) {
-        return ipAddress != null  &&  validator.isValid(ipAddress);
+        return Ipv4Parser.parseAddress(ipAddress) != Ipv4Parser.INVALID;
     }
 
     /**
@@ -57,11 +49,23 @@ public class Ipv4ConversionServiceImpl implements Ipv4ConversionService {
      */
     @Override
     public Integer getIpAsInt(String ipAddress) throws InvalidFormatException {
-        if (isValidIpAddress(ipAddress)) {
-            return InetAddresses.coerceToInteger(InetAddresses.forString(ipAddress));
-        } else {
-            throw new InvalidFormatException(INVALID_PI_FMT, ipAddress);
+        return (int) getIpAsLong(ipAddress);
+    }
+
+    /**
+     * Returns unsigned integer form of the IPv4 address, without allocating.
+     *
+     * @param ipAddress must be valid IP address.
+     * @return unsigned integer version, in a long.
+     * @throws InvalidFormatException if not a valid IP address.
+     */
+    @Override
+    public long getIpAsLong(CharSequence ipAddress) throws InvalidFormatException {
+        long address = Ipv4Parser.parseAddress(ipAddress);
+        if (address == Ipv4Parser.INVALID) {
+            throw new InvalidFormatException(INVALID_PI_FMT, String.valueOf(ipAddress));
         }
+        return address;
     }
 
     /**
@@ -72,9 +76,7 @@ public class Ipv4ConversionServiceImpl implements Ipv4ConversionService {
      */
     @Override
     public String getLongAsIp(Long intAddress) {
-        Integer signedIntAddress = (int)(long)intAddress;
-        Inet4Address address = InetAddresses.fromInteger(signedIntAddress);
-        return InetAddresses.toAddrString(address);
+        return Ipv4Formatter.format(intAddress);
     }
 
     /**
@@ -86,8 +88,7 @@ public class Ipv4ConversionServiceImpl implements Ipv4ConversionService {
      */
     @Override
     public boolean isValidCidr(String cidr) {
-        Matcher matcher = CIDR_PATTERN.matcher(cidr);
-        return matcher.matches();
+        return Ipv4Parser.parseCidr(cidr) != Ipv4Parser.INVALID;
     }
 
     /**
@@ -101,17 +102,9 @@ public class Ipv4ConversionServiceImpl implements Ipv4ConversionService {
      */
     @Override
     public boolean isIpInCidrRange(String ipAddress, String cidr) throws InvalidFormatException {
-        if (! isValidCidr(cidr)) {
-            throw new InvalidFormatException(INVALID_CIDR_FMT, cidr);
-        }
-        if (! isValidIpAddress(ipAddress)) {
-            throw new InvalidFormatException(INVALID_PI_FMT, ipAddress);
-        }
-        final SubnetUtils subnetUtils = new SubnetUtils(cidr);
-        subnetUtils.setInclusiveHostCount(inclusiveHostCount);
-
-        final SubnetUtils.SubnetInfo subnetInfo = subnetUtils.getInfo();
-        return subnetInfo.isInRange(ipAddress);
+        long parsedCidr = parseCidr(cidr);
+        long address = getIpAsLong(ipAddress);
+        return address >= getLowAddress(parsedCidr)  &&  address <= getHighAddress(parsedCidr);
     }
 
     /**
@@ -123,19 +116,45 @@ public class Ipv4ConversionServiceImpl implements Ipv4ConversionService {
      */
     @Override
     public CIDR toCidr(String cidrStr) throws InvalidFormatException {
-        if (! isValidCidr(cidrStr)) {
-            throw new InvalidFormatException(INVALID_CIDR_FMT, cidrStr);
-        }
-        final SubnetUtils subnetUtils = new SubnetUtils(cidrStr);
-        subnetUtils.setInclusiveHostCount(inclusiveHostCount);
-        final SubnetUtils.SubnetInfo subnetInfo = subnetUtils.getInfo();
-        Integer lowAddrInt = getIpAsInt(subnetInfo.getLowAddress());
-        Integer highAddrInt = getIpAsInt(subnetInfo.getHighAddress());
+        long parsedCidr = parseCidr(cidrStr);
         return new CIDR(
                 cidrStr,
-                Integer.toUnsignedLong(lowAddrInt),
-                Integer.toUnsignedLong(highAddrInt),
+                getLowAddress(parsedCidr),
+                getHighAddress(parsedCidr),
                 inclusiveHostCount);
     }
 
+    private long parseCidr(String cidr) throws InvalidFormatException {
+        long parsedCidr = Ipv4Parser.parseCidr(cidr);
+        if (parsedCidr == Ipv4Parser.INVALID) {
+            throw new InvalidFormatException(INVALID_CIDR_FMT, cidr);
+        }
+        return parsedCidr;
+    }
+
+    /**
+     * First usable address.  As SubnetUtils has it: unless inclusive, network and broadcast addresses are not
+     * usable, and blocks too small to have any other address (/31, /32) yield zero.
+     */
+    private long getLowAddress(long parsedCidr) {
+        long mask = Ipv4Parser.networkMask(Ipv4Parser.cidrPrefixLength(parsedCidr));
+        long network = Ipv4Parser.cidrAddress(parsedCidr) & mask;
+        long broadcast = network | (~mask & 0xffffffffL);
+        if (inclusiveHostCount) {
+            return network;
+        }
+        return broadcast - network > 1 ? network + 1 : 0;
+    }
+
+    /** Last usable address.  See getLowAddress. */
+    private long getHighAddress(long parsedCidr) {
+        long mask = Ipv4Parser.networkMask(Ipv4Parser.cidrPrefixLength(parsedCidr));
+        long network = Ipv4Parser.cidrAddress(parsedCidr) & mask;
+        long broadcast = network | (~mask & 0xffffffffL);
+        if (inclusiveHostCount) {
+            return broadcast;
+        }
+        return broadcast - network > 1 ? broadcast - 1 : 0;
+    }
+
 }
@@ -0,0 +1,105 @@
+package com.project.challenge.services;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Formatting of IPv4 addresses as dotted quads, from a table of the text of every octet.  An instance keeps the
+ * text of the last address it formatted in a reusable buffer; when asked for the next address in sequence, as
+ * reports do, it rewrites only the last octet.
+ *
+ * Instances are not thread-safe: use one per report.
+ */
+public final class Ipv4Formatter {
+    /** Longest possible text, as for 255.255.255.255. */
+    public static final int MAX_LENGTH = 15;
+
+    private static final int OCTET_MASK = 0xff;
+    private static final char[][] OCTETS = new char[OCTET_MASK + 1][];
+    static {
+        for (int octet = 0; octet <= OCTET_MASK; octet++) {
+            OCTETS[octet] = Integer.toString(octet).toCharArray();
+        }
+    }
+
+    private final char[] buffer = new char[MAX_LENGTH];
+    private int length;
+    // Where the last octet's text starts, and the address formatted; -1 for none yet.
+    private int lastOctetStart;
+    private long address = -1;
+
+    /**
+     * Format an address once.
+     *
+     * @param address unsigned integer form of IP address.
+     * @return formatted like NNN.NNN.NNN.NNN
+     */
+    public static String format(long address) {
+        char[] text = new char[MAX_LENGTH];
+        int length = formatInto(text, address);
+        return new String(text, 0, length);
+    }
+
+    /**
+     * Make the address' text the content of the buffer.  If it follows the last one formatted, within the same
+     * last-octet range, only the last octet is rewritten.
+     *
+     * @param address unsigned integer form of IP address.
+     * @return length of the text.
+     */
+    public int setAddress(long address) {
+        if (address == this.address + 1  &&  (address & OCTET_MASK) != 0) {
+            char[] lastOctet = OCTETS[(int) (address & OCTET_MASK)];
+            System.arraycopy(lastOctet, 0, buffer, lastOctetStart, lastOctet.length);
+            length = lastOctetStart + lastOctet.length;
+        } else {
+            length = formatInto(buffer, address);
+            lastOctetStart = length - OCTETS[(int) (address & OCTET_MASK)].length;
+        }
+        this.address = address;
+        return length;
+    }
+
+    /**
+     * Format the address straight to the writer, by way of the buffer.
+     *
+     * @param out where to write.
+     * @param address unsigned integer form of IP address.
+     */
+    public void write(Writer out, long address) throws IOException {
+        setAddress(address);
+        out.write(buffer, 0, length);
+    }
+
+    /** The buffer, holding the text of the last address from 0 to getLength(). */
+    public char[] getBuffer() {
+        return buffer;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @param address unsigned integer form of IP address.
+     * @return formatted like NNN.NNN.NNN.NNN, by way of the buffer.
+     */
+    public String toString(long address) {
+        setAddress(address);
+        return new String(buffer, 0, length);
+    }
+
+    /** Write all four octets, most significant first.  Returns the length written. */
+    private static int formatInto(char[] text, long address) {
+        int length = 0;
+        for (int shift = 24; shift >= 0; shift -= Byte.SIZE) {
+            char[] octet = OCTETS[(int) ((address >>> shift) & OCTET_MASK)];
+            System.arraycopy(octet, 0, text, length, octet.length);
+            length += octet.length;
+            if (shift > 0) {
+                text[length++] = '.';
+            }
+        }
+        return length;
+    }
+}
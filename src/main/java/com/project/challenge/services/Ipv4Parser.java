@@ -0,0 +1,123 @@
+package com.project.challenge.services;
+
+/**
+ * Single-pass parsing of dotted-quad IPv4 addresses and CIDR blocks, straight from the characters.  No regular
+ * expressions, and nothing allocated: results come back as primitives, with INVALID standing for bad input.
+ */
+public final class Ipv4Parser {
+    /** Returned for anything not in the expected format. */
+    public static final long INVALID = -1L;
+
+    private static final int OCTET_COUNT = 4;
+    private static final int MAX_OCTET_DIGITS = 3;
+    private static final int MAX_OCTET = 255;
+    private static final int MAX_PREFIX_DIGITS = 3;
+    private static final int MAX_PREFIX_LENGTH = 32;
+    private static final long ADDRESS_MASK = 0xffffffffL;
+
+    private Ipv4Parser() {
+    }
+
+    /**
+     * Parse an IP address, like 128.5.3.22.  Octets are decimal, up to 255, and may not have leading zeros (no
+     * clear standard tells whether those are decimal or octal).
+     *
+     * @param text to parse, wholly.
+     * @return unsigned integer form of the address; INVALID if not a valid address.
+     */
+    public static long parseAddress(CharSequence text) {
+        return text == null ? INVALID : parseAddress(text, 0, text.length(), false);
+    }
+
+    /**
+     * Parse a CIDR block, like 128.5.3.0/24.  As for addresses, except that octets may have leading zeros.
+     *
+     * @param text to parse, wholly.
+     * @return address and prefix length, packed; get at them with cidrAddress and cidrPrefixLength.  INVALID if
+     * not a valid CIDR block.
+     */
+    public static long parseCidr(CharSequence text) {
+        if (text == null) {
+            return INVALID;
+        }
+        int length = text.length();
+        int slash = length - 1;
+        while (slash >= 0  &&  text.charAt(slash) != '/') {
+            slash--;
+        }
+        if (slash < 0) {
+            return INVALID;
+        }
+        long address = parseAddress(text, 0, slash, true);
+        int prefixDigits = length - slash - 1;
+        if (address == INVALID  ||  prefixDigits < 1  ||  prefixDigits > MAX_PREFIX_DIGITS) {
+            return INVALID;
+        }
+        int prefixLength = 0;
+        for (int i = slash + 1; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < '0'  ||  c > '9') {
+                return INVALID;
+            }
+            prefixLength = prefixLength * 10 + (c - '0');
+        }
+        if (prefixLength > MAX_PREFIX_LENGTH) {
+            return INVALID;
+        }
+        return ((long) prefixLength << Integer.SIZE) | address;
+    }
+
+    /**
+     * @param parsedCidr as returned by parseCidr.
+     * @return unsigned integer form of the address given in the CIDR block.
+     */
+    public static long cidrAddress(long parsedCidr) {
+        return parsedCidr & ADDRESS_MASK;
+    }
+
+    /**
+     * @param parsedCidr as returned by parseCidr.
+     * @return length of the CIDR block's prefix, 0 to 32.
+     */
+    public static int cidrPrefixLength(long parsedCidr) {
+        return (int) (parsedCidr >>> Integer.SIZE);
+    }
+
+    /**
+     * @param prefixLength 0 to 32.
+     * @return mask with that many leading bits set, as an unsigned integer.
+     */
+    public static long networkMask(int prefixLength) {
+        return prefixLength == 0 ? 0 : (ADDRESS_MASK << (MAX_PREFIX_LENGTH - prefixLength)) & ADDRESS_MASK;
+    }
+
+    /** Parse exactly the characters from..to as four octets. */
+    private static long parseAddress(CharSequence text, int from, int to, boolean allowLeadingZeros) {
+        long address = 0;
+        int i = from;
+        for (int octetIndex = 0; ; octetIndex++) {
+            int octetStart = i;
+            int octet = 0;
+            while (i < to  &&  i - octetStart < MAX_OCTET_DIGITS) {
+                char c = text.charAt(i);
+                if (c < '0'  ||  c > '9') {
+                    break;
+                }
+                octet = octet * 10 + (c - '0');
+                i++;
+            }
+            int digits = i - octetStart;
+            if (digits == 0  ||  octet > MAX_OCTET  ||  (! allowLeadingZeros  &&  digits > 1  &&  text.charAt(octetStart) == '0')) {
+                return INVALID;
+            }
+            address = (address << Byte.SIZE) | octet;
+            if (octetIndex == OCTET_COUNT - 1) {
+                return i == to ? address : INVALID;
+            }
+            if (i >= to  ||  text.charAt(i) != '.') {
+                return INVALID;
+            }
+            i++;
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package com.project.challenge.services;
+
+import com.project.challenge.model.JournalSync;
+import com.project.challenge.repositories.BlockRepository;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Block store holding the whole pool in memory, as the memory store does, made durable by a journal on local disk
+ * (see BlockJournal) instead of the block table.  Every change appends a record per bit changed, under the block's
+ * lock, before its new container is put in place; the change is reported done once the journal says it is durable.
+ * Appends are sequential, and many changes share each force to disk.
+ *
+ * A snapshot of every block is written on a fixed interval, or sooner once enough records have built up since the
+ * last.  Taking one holds every lock only long enough to note each block's container, which never changes, and to
+ * start a new journal segment; the blocks are written after.
+ *
+ * At startup, the journal recovers the blocks.  If it is new, they are copied in from the block table once, and
+ * snapshotted, so that switching to this store keeps all states.  Only suitable where this application is the sole
+ * writer, and the block table is no longer written.
+ */
+@Service
+@ConditionalOnProperty(name = "ipstate.store", havingValue = "journal")
+public class JournalBitBlockStore implements BitBlockStore {
+    private CidrStateService cidrStateService;
+    private IpBlockService blockService;
+    private BlockRepository blockRepository;
+    private BlockLockStripes lockStripes;
+
+    private String directory = "ipstate-journal";
+    private JournalSync sync = JournalSync.GROUP;
+    private long syncIntervalMs = 100;
+    private long snapshotIntervalMs = 60_000;
+    private long snapshotRecords = 1_000_000;
+
+    private BlockJournal journal;
+    // Null until loaded.  Replacing a block's container is guarded by its lock stripe.
+    private volatile AtomicReferenceArray<BitContainer> blocks;
+
+    private ScheduledExecutorService snapshotter;
+    private final AtomicBoolean snapshotRequested = new AtomicBoolean();
+
+    private static Logger logger = LogManager.getLogger(JournalBitBlockStore.class);
+
+    /**
+     * Construct with all injected services.
+     *
+     * @param cidrStateService tells how many blocks there are.
+     * @param blockService for block sizing and decoding.
+     * @param blockRepository for copying in blocks, where the journal is new.
+     * @param lockStripes serializes changes to each block.
+     */
+    @Autowired
+    public JournalBitBlockStore(
+            CidrStateService cidrStateService,
+            IpBlockService blockService,
+            BlockRepository blockRepository,
+            BlockLockStripes lockStripes
+    ) {
+        this.cidrStateService = cidrStateService;
+        this.blockService = blockService;
+        this.blockRepository = blockRepository;
+        this.lockStripes = lockStripes;
+    }
+
+    @Value("${ipstate.journal.dir:ipstate-journal}")
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    @Value("${ipstate.journal.sync:group}")
+    public void setSync(String sync) {
+        this.sync = JournalSync.valueOf(sync.trim().toUpperCase());
+    }
+
+    @Value("${ipstate.journal.sync-interval-ms:100}")
+    public void setSyncIntervalMs(long syncIntervalMs) {
+        this.syncIntervalMs = syncIntervalMs;
+    }
+
+    @Value("${ipstate.journal.snapshot-interval-ms:60000}")
+    public void setSnapshotIntervalMs(long snapshotIntervalMs) {
+        this.snapshotIntervalMs = snapshotIntervalMs;
+    }
+
+    @Value("${ipstate.journal.snapshot-records:1000000}")
+    public void setSnapshotRecords(long snapshotRecords) {
+        this.snapshotRecords = snapshotRecords;
+    }
+
+    @PostConstruct
+    public void start() {
+        journal = new BlockJournal(Paths.get(directory), sync, syncIntervalMs);
+        snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "block-snapshotter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotter.scheduleWithFixedDelay(this::snapshotQuietly, snapshotIntervalMs, snapshotIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Only while the journal is new: once written, it recovers blocks of the size they were journalled at.
+     */
+    @Override
+    public boolean canReblockAtStartup() {
+        try {
+            return ! journal.exists();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadAtStartup() {
+        ensureLoaded();
+    }
+
+    /**
+     * Stop snapshotting, and close the journal, forcing whatever is buffered.  No snapshot is taken: the journal
+     * alone recovers every change.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException, IOException {
+        snapshotter.shutdown();
+        snapshotter.awaitTermination(snapshotIntervalMs, TimeUnit.MILLISECONDS);
+        journal.close();
+    }
+
+    @Override
+    public <T> T updateBlock(int blockNum, BlockUpdate<T> update) throws IpStateServiceException {
+        getLoadedBlocks(blockNum);
+        long version;
+        T result;
+        Lock lock = lockStripes.lockFor(blockNum);
+        lock.lock();
+        try {
+            // Read under the lock: the array may have grown (see growBlocks) since it was checked.
+            AtomicReferenceArray<BitContainer> loadedBlocks = blocks;
+            long[] words = loadedBlocks.get(blockNum).toWords(blockService.getWordsPerBlock());
+            long[] original = words.clone();
+            result = update.apply(words);
+            version = replaceIfChanged(loadedBlocks, blockNum, original, words);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(version);
+        return result;
+    }
+
+    /**
+     * All blocks' records are appended in one go, under the blocks' locks, and waited on together.  Should the
+     * append fail, no block is replaced, and none of the records is written.
+     */
+    @Override
+    public <T> T updateBlocks(int[] blockNums, BlocksUpdate<T> update) throws IpStateServiceException {
+        for (int blockNum : blockNums) {
+            getLoadedBlocks(blockNum);
+        }
+        long version = 0;
+        T result;
+        Lock[] locks = lockStripes.locksFor(blockNums);
+        BlockLockStripes.lockAll(locks);
+        try {
+            AtomicReferenceArray<BitContainer> loadedBlocks = blocks;
+            long[][] blocksWords = new long[blockNums.length][];
+            long[][] originals = new long[blockNums.length][];
+            for (int i = 0; i < blockNums.length; i++) {
+                blocksWords[i] = loadedBlocks.get(blockNums[i]).toWords(blockService.getWordsPerBlock());
+                originals[i] = blocksWords[i].clone();
+            }
+            result = update.apply(blocksWords);
+            try {
+                version = journal.appendChanges(blockNums, originals, blocksWords);
+            } catch (IOException ioe) {
+                throw new IpStateServiceException(ioe);
+            }
+            for (int i = 0; i < blockNums.length; i++) {
+                if (! Arrays.equals(originals[i], blocksWords[i])) {
+                    loadedBlocks.set(blockNums[i], blockService.toContainer(blocksWords[i]));
+                }
+            }
+            snapshotIfDue(version);
+        } finally {
+            BlockLockStripes.unlockAll(locks);
+        }
+        awaitDurable(version);
+        return result;
+    }
+
+    @Override
+    public long[] readBlock(int blockNum) throws IpStateServiceException {
+        return readContainer(blockNum).toWords(blockService.getWordsPerBlock());
+    }
+
+    @Override
+    public void forEachBlock(BlockVisitor visitor) {
+        forEachContainer((blockNum, container) -> visitor.visit(blockNum, container.toWords(blockService.getWordsPerBlock())));
+    }
+
+    @Override
+    public BitContainer readContainer(int blockNum) throws IpStateServiceException {
+        return getLoadedBlocks(blockNum).get(blockNum);
+    }
+
+    @Override
+    public void forEachContainer(ContainerVisitor visitor) {
+        AtomicReferenceArray<BitContainer> loadedBlocks = ensureLoaded();
+        if (loadedBlocks == null) {
+            return;
+        }
+        for (int blockNum = 0; blockNum < loadedBlocks.length(); blockNum++) {
+            visitor.visit(blockNum, loadedBlocks.get(blockNum));
+        }
+    }
+
+    /**
+     * Note every block's container, and start a new journal segment, all under every lock; then write the
+     * containers noted as the snapshot, and let the journal drop the segments it covers.
+     */
+    public void snapshot() throws IOException {
+        AtomicReferenceArray<BitContainer> loadedBlocks = ensureLoaded();
+        if (loadedBlocks == null) {
+            return;
+        }
+        final BitContainer[] containers;
+        final long version;
+        Lock[] locks = lockAllStripes();
+        try {
+            loadedBlocks = blocks;
+            containers = new BitContainer[loadedBlocks.length()];
+            for (int blockNum = 0; blockNum < containers.length; blockNum++) {
+                containers[blockNum] = loadedBlocks.get(blockNum);
+            }
+            version = journal.rotate();
+        } finally {
+            BlockLockStripes.unlockAll(locks);
+        }
+        final int wordsPerBlock = blockService.getWordsPerBlock();
+        journal.writeSnapshot(version, containers.length, wordsPerBlock, blockNum -> containers[blockNum].toWords(wordsPerBlock));
+    }
+
+    private void snapshotQuietly() {
+        snapshotRequested.set(false);
+        try {
+            snapshot();
+        } catch (IOException | RuntimeException ex) {
+            logger.warn("Failed to write block snapshot.  Will retry.", ex);
+        }
+    }
+
+    /**
+     * Journal the change, then keep the changed words in a new container.  Call under the block's lock.
+     *
+     * @return version to wait on; 0 if nothing changed.
+     */
+    private long replaceIfChanged(AtomicReferenceArray<BitContainer> loadedBlocks, int blockNum, long[] original, long[] words)
+            throws IpStateServiceException {
+        if (Arrays.equals(original, words)) {
+            return 0;
+        }
+        long version;
+        try {
+            version = journal.appendChanges(blockNum, original, words);
+        } catch (IOException ioe) {
+            throw new IpStateServiceException(ioe);
+        }
+        loadedBlocks.set(blockNum, blockService.toContainer(words));
+        snapshotIfDue(version);
+        return version;
+    }
+
+    /** Ask for a snapshot once enough records have been appended since the last. */
+    private void snapshotIfDue(long version) {
+        if (version - journal.getSnapshotVersion() >= snapshotRecords
+                &&  ! snapshotter.isShutdown()
+                &&  snapshotRequested.compareAndSet(false, true)) {
+            snapshotter.execute(this::snapshotQuietly);
+        }
+    }
+
+    private void awaitDurable(long version) throws IpStateServiceException {
+        try {
+            journal.awaitDurable(version);
+        } catch (IOException ioe) {
+            throw new IpStateServiceException(ioe);
+        }
+    }
+
+    private AtomicReferenceArray<BitContainer> getLoadedBlocks(int blockNum) throws IpStateServiceException {
+        AtomicReferenceArray<BitContainer> loadedBlocks = ensureLoaded();
+        if (loadedBlocks == null  ||  blockNum < 0  ||  blockNum >= loadedBlocks.length()) {
+            throw new IpStateServiceException(new NullPointerException("No block found for block number " + blockNum));
+        }
+        return loadedBlocks;
+    }
+
+    /**
+     * Recover all blocks from the journal, once a CIDR block exists to size them by.  Grows the blocks as CIDR
+     * blocks are added.
+     *
+     * @return the loaded blocks; null if there is no CIDR block yet.
+     */
+    private AtomicReferenceArray<BitContainer> ensureLoaded() {
+        AtomicReferenceArray<BitContainer> loadedBlocks = blocks;
+        int blockCount = cidrStateService.getCidrPools().getBlockCount();
+        if (loadedBlocks != null  &&  loadedBlocks.length() >= blockCount) {
+            return loadedBlocks;
+        }
+        synchronized (this) {
+            if (blocks == null  &&  cidrStateService.isPopulated()) {
+                try {
+                    blocks = loadBlocks(blockCount);
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            } else if (blocks != null  &&  blocks.length() < blockCount) {
+                growBlocks(blockCount);
+            }
+            return blocks;
+        }
+    }
+
+    /**
+     * Make room for blocks of a newly added CIDR block.  New blocks start empty.  Every lock is held while
+     * copying, so that no change lands in the old array.
+     */
+    private void growBlocks(int blockCount) {
+        Lock[] locks = lockAllStripes();
+        try {
+            AtomicReferenceArray<BitContainer> grown = new AtomicReferenceArray<>(blockCount);
+            for (int blockNum = 0; blockNum < blockCount; blockNum++) {
+                grown.set(blockNum, blockNum < blocks.length()
+                        ? blocks.get(blockNum)
+                        : blockService.toContainer(new long[blockService.getWordsPerBlock()]));
+            }
+            blocks = grown;
+            logger.info("Grew to {} blocks in memory.", blockCount);
+        } finally {
+            BlockLockStripes.unlockAll(locks);
+        }
+    }
+
+    /**
+     * Recover from the journal; or, where it is new, copy in the block table, and snapshot that.
+     */
+    private AtomicReferenceArray<BitContainer> loadBlocks(int blockCount) throws IOException {
+        final int wordsPerBlock = blockService.getWordsPerBlock();
+        final Map<Integer, long[]> recovered = new HashMap<>();
+        boolean found = journal.open(new BlockJournal.RecoveryVisitor() {
+            @Override
+            public void snapshotBlock(int blockNum, long[] words) {
+                if (words.length != wordsPerBlock) {
+                    // Bit records give offsets within a block: at another block size, they would mark the wrong bits.
+                    throw new IllegalStateException("Journal holds blocks of " + words.length + " words, not " + wordsPerBlock);
+                }
+                recovered.put(blockNum, words);
+            }
+
+            @Override
+            public void bitChanged(int blockNum, int blockOffset, boolean value) {
+                BitWords.set(recovered.computeIfAbsent(blockNum, n -> new long[wordsPerBlock]), blockOffset, value);
+            }
+        });
+        if (! found) {
+            blockRepository.findAll().forEach(bitBlock -> recovered.put(bitBlock.getId(), blockService.getBlockWords(bitBlock)));
+            logger.info("Journal is new: copied in {} blocks from the block table.", recovered.size());
+        }
+
+        // Blocks recovered beyond the CIDR blocks known are kept, in case those CIDR blocks come back.
+        int size = Math.max(blockCount, recovered.keySet().stream().mapToInt(blockNum -> blockNum + 1).max().orElse(0));
+        AtomicReferenceArray<BitContainer> loaded = new AtomicReferenceArray<>(size);
+        for (int blockNum = 0; blockNum < size; blockNum++) {
+            long[] words = recovered.get(blockNum);
+            loaded.set(blockNum, blockService.toContainer(words != null ? words : new long[wordsPerBlock]));
+        }
+        if (! found) {
+            journal.writeSnapshot(journal.rotate(), size, wordsPerBlock, blockNum -> loaded.get(blockNum).toWords(wordsPerBlock));
+        }
+        logger.info("Loaded {} blocks into memory from the journal.", size);
+        return loaded;
+    }
+
+    private Lock[] lockAllStripes() {
+        int[] allStripes = new int[lockStripes.getStripeCount()];
+        for (int i = 0; i < allStripes.length; i++) {
+            allStripes[i] = i;
+        }
+        Lock[] locks = lockStripes.locksFor(allStripes);
+        BlockLockStripes.lockAll(locks);
+        return locks;
+    }
+}
@@ -0,0 +1,433 @@
+package com.project.challenge.services;
+
+import com.project.challenge.entities.CidrBitBlock;
+import com.project.challenge.model.BlockLease;
+import com.project.challenge.repositories.BlockRepository;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+
+/**
+ * Block store for several instances sharing one database, each owning ranges of blocks by lease (see
+ * BlockLeaseService).  An instance changes only blocks of ranges it holds, and holds those in memory, as the memory
+ * store does: updates never read the repository, and changed blocks are written behind.  Instances therefore never
+ * contend on a block, and each serves its own ranges at memory speed.
+ *
+ * A range is claimed, and its blocks loaded, the first time this instance needs one of them.  Updates to blocks of
+ * a range held by another instance throw BlockLeasedElsewhereException, naming the holder; searches for free
+ * addresses pass over them (see canServe).  Blocks not held are read from the repository, so reports show other
+ * instances' changes once written behind.
+ *
+ * A heartbeat writes dirty blocks, then renews the leases held.  Stopping writes the last of them, then releases
+ * every lease, so that others may take over at once.  A lease lost while its blocks were dirty loses those
+ * changes: the renewal interval must be well within the lease duration.  Writes are fenced by the leases
+ * themselves, locked in the same transaction, so that an instance that stalled past its lease never writes over
+ * blocks another has since loaded.
+ */
+@Service
+@ConditionalOnProperty(name = "ipstate.store", havingValue = "leased")
+public class LeasedBitBlockStore implements BitBlockStore {
+    private CidrStateService cidrStateService;
+    private IpBlockService blockService;
+    private BlockRepository blockRepository;
+    private TransactionTemplate transactionTemplate;
+    private BlockLockStripes lockStripes;
+    private BlockLeaseService leaseService;
+    // Reads blocks of ranges not held.
+    private RepositoryBitBlockStore repositoryReader;
+    private BitContainer emptyContainer;
+
+    private long renewIntervalMs = 2000;
+    private int dirtyThreshold = 256;
+
+    // Blocks of ranges held and loaded.  Absent ones are all free.  Replaced under the block's lock stripe.
+    private final Map<Integer, BitContainer> blocks = new ConcurrentHashMap<>();
+    private final Set<Integer> loadedRanges = ConcurrentHashMap.newKeySet();
+    // Guarded by dirtyBlocks.
+    private final BitSet dirtyBlocks = new BitSet();
+    private int dirtyCount;
+
+    private ScheduledExecutorService heartbeat;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private static Logger logger = LogManager.getLogger(LeasedBitBlockStore.class);
+
+    /**
+     * Construct with all injected services.
+     *
+     * @param cidrStateService tells how many blocks there are.
+     * @param blockService for block sizing and encoding.
+     * @param blockRepository for loading and flushing.
+     * @param transactionManager each flush is one transaction.
+     * @param lockStripes serializes changes to each block.
+     * @param leaseService tells which blocks this instance may change.
+     */
+    @Autowired
+    public LeasedBitBlockStore(
+            CidrStateService cidrStateService,
+            IpBlockService blockService,
+            BlockRepository blockRepository,
+            PlatformTransactionManager transactionManager,
+            BlockLockStripes lockStripes,
+            BlockLeaseService leaseService
+    ) {
+        this.cidrStateService = cidrStateService;
+        this.blockService = blockService;
+        this.blockRepository = blockRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.lockStripes = lockStripes;
+        this.leaseService = leaseService;
+        this.repositoryReader = new RepositoryBitBlockStore(blockService, blockRepository, lockStripes, cidrStateService);
+        this.emptyContainer = blockService.toContainer(new long[blockService.getWordsPerBlock()]);
+    }
+
+    @Value("${ipstate.lease.renew-interval-ms:2000}")
+    public void setRenewIntervalMs(long renewIntervalMs) {
+        this.renewIntervalMs = renewIntervalMs;
+    }
+
+    @Value("${ipstate.writebehind.dirty-threshold:256}")
+    public void setDirtyThreshold(int dirtyThreshold) {
+        this.dirtyThreshold = dirtyThreshold;
+    }
+
+    @Value("${ipstate.scan.page-size:256}")
+    public void setScanPageSize(int scanPageSize) {
+        repositoryReader.setScanPageSize(scanPageSize);
+    }
+
+    @PostConstruct
+    public void start() {
+        leaseService.addLeaseListener(this::dropRange);
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "block-lease-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleWithFixedDelay(this::beat, renewIntervalMs, renewIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the heartbeat, push whatever is still dirty, and give up every lease.  If the push fails, leases are
+     * left to lapse instead.  Done as the context closes, before any of the repositories needed are destroyed.
+     */
+    @EventListener(ContextClosedEvent.class)
+    public void stop() throws InterruptedException {
+        heartbeat.shutdown();
+        heartbeat.awaitTermination(renewIntervalMs, TimeUnit.MILLISECONDS);
+        flush();
+        for (int rangeId : leaseService.getHeldRanges()) {
+            dropRange(rangeId);
+            leaseService.release(rangeId);
+        }
+    }
+
+    @Override
+    public <T> T updateBlock(int blockNum, BlockUpdate<T> update) throws IpStateServiceException {
+        checkServed(blockNum);
+        Lock lock = lockStripes.lockFor(blockNum);
+        lock.lock();
+        try {
+            // Checked again under the lock: the lease may have been lost since.
+            checkStillServed(blockNum);
+            long[] words = getContainer(blockNum).toWords(blockService.getWordsPerBlock());
+            long[] original = words.clone();
+            T result = update.apply(words);
+            replaceIfChanged(blockNum, original, words);
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <T> T updateBlocks(int[] blockNums, BlocksUpdate<T> update) throws IpStateServiceException {
+        for (int blockNum : blockNums) {
+            checkServed(blockNum);
+        }
+        Lock[] locks = lockStripes.locksFor(blockNums);
+        BlockLockStripes.lockAll(locks);
+        try {
+            long[][] blocksWords = new long[blockNums.length][];
+            long[][] originals = new long[blockNums.length][];
+            for (int i = 0; i < blockNums.length; i++) {
+                checkStillServed(blockNums[i]);
+                blocksWords[i] = getContainer(blockNums[i]).toWords(blockService.getWordsPerBlock());
+                originals[i] = blocksWords[i].clone();
+            }
+            T result = update.apply(blocksWords);
+            for (int i = 0; i < blockNums.length; i++) {
+                replaceIfChanged(blockNums[i], originals[i], blocksWords[i]);
+            }
+            return result;
+        } finally {
+            BlockLockStripes.unlockAll(locks);
+        }
+    }
+
+    /**
+     * Claims the block's range, and loads its blocks, if nobody else holds it.
+     */
+    @Override
+    public boolean canServe(int blockNum) {
+        int rangeId = leaseService.getRangeId(blockNum);
+        if (isServedHere(rangeId)) {
+            return true;
+        }
+        synchronized (this) {
+            if (! leaseService.claim(rangeId)) {
+                return false;
+            }
+            if (! loadedRanges.contains(rangeId)) {
+                loadRange(rangeId);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Other instances change the ranges they hold.
+     */
+    @Override
+    public boolean isShared() {
+        return true;
+    }
+
+    @Override
+    public long[] readBlock(int blockNum) throws IpStateServiceException {
+        return readContainer(blockNum).toWords(blockService.getWordsPerBlock());
+    }
+
+    @Override
+    public BitContainer readContainer(int blockNum) throws IpStateServiceException {
+        checkBlockNum(blockNum);
+        if (isServedHere(leaseService.getRangeId(blockNum))) {
+            return getContainer(blockNum);
+        }
+        return repositoryReader.readContainer(blockNum);
+    }
+
+    @Override
+    public void forEachBlock(BlockVisitor visitor) {
+        forEachContainer((blockNum, container) -> visitor.visit(blockNum, container.toWords(blockService.getWordsPerBlock())));
+    }
+
+    /**
+     * Every block is read from the repository, and those held here are visited as held in memory instead.
+     */
+    @Override
+    public void forEachContainer(ContainerVisitor visitor) {
+        repositoryReader.forEachBlock((blockNum, words) -> visitor.visit(
+                blockNum,
+                isServedHere(leaseService.getRangeId(blockNum)) ? getContainer(blockNum) : BitContainers.dense(words)
+        ));
+    }
+
+    /**
+     * As for every block: read from the repository, those held here visited as held.
+     */
+    @Override
+    public void forEachContainer(int fromBlock, int toBlock, ContainerVisitor visitor) {
+        repositoryReader.forEachContainer(fromBlock, toBlock, (blockNum, container) -> visitor.visit(
+                blockNum,
+                isServedHere(leaseService.getRangeId(blockNum)) ? getContainer(blockNum) : container
+        ));
+    }
+
+    /**
+     * Write all dirty blocks of ranges still held to the repository, in a single transaction.  Blocks failing to
+     * write are left dirty, for the next attempt.  So are those of ranges the database no longer counts held: if the
+     * lease is renewed, they are written next time; if it was taken over, they are dropped with the range.
+     */
+    public void flush() {
+        final BitSet toFlush;
+        synchronized (dirtyBlocks) {
+            toFlush = (BitSet) dirtyBlocks.clone();
+            dirtyBlocks.clear();
+            dirtyCount = 0;
+        }
+        // Copy after clearing: a change racing with this is either in the copy, or marked dirty again.
+        final Map<Integer, long[]> pending = new TreeMap<>();
+        for (int blockNum = toFlush.nextSetBit(0); blockNum >= 0; blockNum = toFlush.nextSetBit(blockNum + 1)) {
+            if (isServedHere(leaseService.getRangeId(blockNum))) {
+                pending.put(blockNum, getContainer(blockNum).toWords(blockService.getWordsPerBlock()));
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        final Set<Integer> unheld = new TreeSet<>();
+        try {
+            transactionTemplate.execute(status -> {
+                // Ranges locked here cannot be taken over, nor their blocks loaded elsewhere, until this commits.
+                Set<Integer> held = leaseService.lockHeld(
+                        pending.keySet().stream().map(leaseService::getRangeId).collect(Collectors.toCollection(TreeSet::new))
+                );
+                pending.keySet().stream().filter(blockNum -> ! held.contains(leaseService.getRangeId(blockNum))).forEach(unheld::add);
+                pending.keySet().removeAll(unheld);
+                Map<Integer, CidrBitBlock> existing = new HashMap<>();
+                blockRepository.findAllById(pending.keySet()).forEach(bitBlock -> existing.put(bitBlock.getId(), bitBlock));
+                List<CidrBitBlock> toSave = new ArrayList<>(pending.size());
+                pending.forEach((blockNum, words) -> {
+                    CidrBitBlock bitBlock = existing.get(blockNum);
+                    if (bitBlock == null) {
+                        bitBlock = new CidrBitBlock();
+                        bitBlock.setId(blockNum);
+                    }
+                    blockService.setBlockWords(bitBlock, words);
+                    toSave.add(bitBlock);
+                });
+                return blockRepository.saveAll(toSave);
+            });
+            logger.debug("Flushed {} dirty blocks.", pending.size());
+        } catch (RuntimeException ex) {
+            pending.keySet().forEach(this::markDirty);
+            throw ex;
+        } finally {
+            // Not written sooner for it: only renewing the lease can help.
+            unheld.forEach(this::setDirty);
+        }
+        if (! unheld.isEmpty()) {
+            logger.warn("Left {} dirty blocks unwritten: their leases are no longer held.", unheld.size());
+        }
+    }
+
+    /** Flush, then renew leases.  Leases are renewed even if the flush failed: no other instance can be waiting on it. */
+    private void beat() {
+        flushQuietly();
+        try {
+            leaseService.renewAll();
+        } catch (RuntimeException ex) {
+            logger.warn("Failed to renew block leases.  Will retry.", ex);
+        }
+    }
+
+    private void flushQuietly() {
+        flushRequested.set(false);
+        try {
+            flush();
+        } catch (RuntimeException ex) {
+            logger.warn("Failed to flush dirty blocks.  Will retry.", ex);
+        }
+    }
+
+    private void markDirty(int blockNum) {
+        if (setDirty(blockNum)  &&  ! heartbeat.isShutdown()  &&  flushRequested.compareAndSet(false, true)) {
+            heartbeat.execute(this::flushQuietly);
+        }
+    }
+
+    /** Mark the block to be written behind.  Returns whether enough are marked to write them now. */
+    private boolean setDirty(int blockNum) {
+        synchronized (dirtyBlocks) {
+            if (! dirtyBlocks.get(blockNum)) {
+                dirtyBlocks.set(blockNum);
+                dirtyCount++;
+            }
+            return dirtyCount >= dirtyThreshold;
+        }
+    }
+
+    /** Keep the changed words in a new container, and have them written behind.  Call under the block's lock. */
+    private void replaceIfChanged(int blockNum, long[] original, long[] words) {
+        if (! Arrays.equals(original, words)) {
+            blocks.put(blockNum, blockService.toContainer(words));
+            markDirty(blockNum);
+        }
+    }
+
+    private BitContainer getContainer(int blockNum) {
+        return blocks.getOrDefault(blockNum, emptyContainer);
+    }
+
+    private boolean isServedHere(int rangeId) {
+        return loadedRanges.contains(rangeId)  &&  leaseService.isHeld(rangeId);
+    }
+
+    /** The block exists, and its range is held here, claimed now if need be. */
+    private void checkServed(int blockNum) throws IpStateServiceException {
+        checkBlockNum(blockNum);
+        if (! canServe(blockNum)) {
+            throw leasedElsewhere(blockNum);
+        }
+    }
+
+    private void checkStillServed(int blockNum) throws IpStateServiceException {
+        if (! isServedHere(leaseService.getRangeId(blockNum))) {
+            throw leasedElsewhere(blockNum);
+        }
+    }
+
+    private BlockLeasedElsewhereException leasedElsewhere(int blockNum) {
+        BlockLease holder = leaseService.findHolder(leaseService.getRangeId(blockNum));
+        return new BlockLeasedElsewhereException(blockNum, holder == null ? null : holder.getOwnerUrl());
+    }
+
+    /** Blocks outside every CIDR block's range are not merely missing: they cannot exist. */
+    private void checkBlockNum(int blockNum) throws IpStateServiceException {
+        if (blockNum < 0  ||  blockNum >= cidrStateService.getCidrPools().getBlockCount()) {
+            throw new IpStateServiceException(new NullPointerException("No block found for block number " + blockNum));
+        }
+    }
+
+    /** Pull the range's blocks from the repository, as its previous holder last wrote them. */
+    private void loadRange(int rangeId) {
+        int firstBlock = rangeId * leaseService.getRangeBlocks();
+        int toBlock = Math.min(firstBlock + leaseService.getRangeBlocks(), cidrStateService.getCidrPools().getBlockCount());
+        List<Integer> ids = new ArrayList<>();
+        for (int blockNum = firstBlock; blockNum < toBlock; blockNum++) {
+            ids.add(blockNum);
+        }
+        int found = 0;
+        for (CidrBitBlock bitBlock : blockRepository.findAllById(ids)) {
+            blocks.put(bitBlock.getId(), blockService.toContainer(blockService.getBlockWords(bitBlock)));
+            found++;
+        }
+        loadedRanges.add(rangeId);
+        logger.info("Loaded block range {}: {} of its {} blocks present.", rangeId, found, ids.size());
+    }
+
+    /** Forget the range's blocks, and any changes to them not yet written. */
+    private void dropRange(int rangeId) {
+        loadedRanges.remove(rangeId);
+        int firstBlock = rangeId * leaseService.getRangeBlocks();
+        int unwritten = 0;
+        for (int blockNum = firstBlock; blockNum < firstBlock + leaseService.getRangeBlocks(); blockNum++) {
+            Lock lock = lockStripes.lockFor(blockNum);
+            lock.lock();
+            try {
+                blocks.remove(blockNum);
+                synchronized (dirtyBlocks) {
+                    if (dirtyBlocks.get(blockNum)) {
+                        dirtyBlocks.clear(blockNum);
+                        dirtyCount--;
+                        unwritten++;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (unwritten > 0) {
+            logger.error("Dropped block range {} with {} blocks' changes unwritten.", rangeId, unwritten);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package com.project.challenge.services;
+
+import com.project.challenge.repositories.BlockRepository;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Block store keeping every block in one file, mapped into memory.  Blocks lie end to end after a short header, at
+ * the same size as in memory, so that a block's words are read and written in place: startup maps the file rather
+ * than decoding any block, and the pages held in memory are left to the OS.  Pools may be larger than the heap.
+ *
+ * The file is mapped in regions of REGION_BLOCKS blocks, each mapping under the 2GB a buffer may address; regions
+ * are added, and the file extended, as CIDR blocks are added.  Changes are made under the block's lock stripe, and
+ * reads take the same lock, so that a block is never seen half changed.  Dirty pages reach the disk as the OS
+ * writes them, and are forced every ipstate.mapped.force-interval-ms, and at shutdown.
+ *
+ * If the file is new, blocks are copied in from the block table once.  Only suitable where this application is the
+ * sole writer, and the block table is no longer written.
+ */
+@Service
+@ConditionalOnProperty(name = "ipstate.store", havingValue = "mapped")
+public class MappedBitBlockStore implements BitBlockStore {
+    public static final int REGION_BLOCKS = 1 << 16;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int FILE_MAGIC = 0x4950424D;
+    private static final int FILE_FORMAT = 1;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int FORMAT_OFFSET = 4;
+    private static final int WORDS_PER_BLOCK_OFFSET = 8;
+    private static final int INITIALIZED_OFFSET = 12;
+
+    private CidrStateService cidrStateService;
+    private IpBlockService blockService;
+    private BlockRepository blockRepository;
+    private BlockLockStripes lockStripes;
+
+    private String file = "ipstate-pool.bitmap";
+    private long forceIntervalMs = 1000;
+
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    // Null until loaded.  Only ever grows, replaced as a whole.
+    private volatile MappedByteBuffer[] regions;
+    private int blockBytes;
+
+    private ScheduledExecutorService forcer;
+
+    private static Logger logger = LogManager.getLogger(MappedBitBlockStore.class);
+
+    /**
+     * Construct with all injected services.
+     *
+     * @param cidrStateService tells how many blocks there are.
+     * @param blockService for block sizing and decoding.
+     * @param blockRepository for copying in blocks, where the file is new.
+     * @param lockStripes serializes changes to each block.
+     */
+    @Autowired
+    public MappedBitBlockStore(
+            CidrStateService cidrStateService,
+            IpBlockService blockService,
+            BlockRepository blockRepository,
+            BlockLockStripes lockStripes
+    ) {
+        this.cidrStateService = cidrStateService;
+        this.blockService = blockService;
+        this.blockRepository = blockRepository;
+        this.lockStripes = lockStripes;
+    }
+
+    @Value("${ipstate.mapped.file:ipstate-pool.bitmap}")
+    public void setFile(String file) {
+        this.file = file;
+    }
+
+    @Value("${ipstate.mapped.force-interval-ms:1000}")
+    public void setForceIntervalMs(long forceIntervalMs) {
+        this.forceIntervalMs = forceIntervalMs;
+    }
+
+    @PostConstruct
+    public void start() {
+        blockBytes = blockService.getWordsPerBlock() * Long.BYTES;
+        forcer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "block-file-forcer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        forcer.scheduleWithFixedDelay(this::force, forceIntervalMs, forceIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Only while there is no file: once made, its header fixes the size of the blocks in it.
+     */
+    @Override
+    public boolean canReblockAtStartup() {
+        return ! Files.exists(Paths.get(file));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadAtStartup() {
+        ensureMapped();
+    }
+
+    /**
+     * Stop the periodic force, force once more, and close the file.  Mappings stay valid until collected.
+     */
+    @PreDestroy
+    public synchronized void stop() throws InterruptedException, IOException {
+        forcer.shutdown();
+        forcer.awaitTermination(forceIntervalMs, TimeUnit.MILLISECONDS);
+        if (channel != null) {
+            force();
+            channel.close();
+        }
+    }
+
+    /**
+     * Force every region's dirty pages to disk.
+     */
+    public void force() {
+        MappedByteBuffer[] mapped = regions;
+        if (mapped != null) {
+            for (MappedByteBuffer region : mapped) {
+                region.force();
+            }
+        }
+    }
+
+    @Override
+    public <T> T updateBlock(int blockNum, BlockUpdate<T> update) throws IpStateServiceException {
+        MappedByteBuffer region = regionFor(blockNum);
+        Lock lock = lockStripes.lockFor(blockNum);
+        lock.lock();
+        try {
+            long[] words = readWords(region, blockNum);
+            long[] original = words.clone();
+            T result = update.apply(words);
+            writeChangedWords(region, blockNum, original, words);
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <T> T updateBlocks(int[] blockNums, BlocksUpdate<T> update) throws IpStateServiceException {
+        MappedByteBuffer[] blockRegions = new MappedByteBuffer[blockNums.length];
+        for (int i = 0; i < blockNums.length; i++) {
+            blockRegions[i] = regionFor(blockNums[i]);
+        }
+        Lock[] locks = lockStripes.locksFor(blockNums);
+        BlockLockStripes.lockAll(locks);
+        try {
+            long[][] blocksWords = new long[blockNums.length][];
+            long[][] originals = new long[blockNums.length][];
+            for (int i = 0; i < blockNums.length; i++) {
+                blocksWords[i] = readWords(blockRegions[i], blockNums[i]);
+                originals[i] = blocksWords[i].clone();
+            }
+            T result = update.apply(blocksWords);
+            for (int i = 0; i < blockNums.length; i++) {
+                writeChangedWords(blockRegions[i], blockNums[i], originals[i], blocksWords[i]);
+            }
+            return result;
+        } finally {
+            BlockLockStripes.unlockAll(locks);
+        }
+    }
+
+    /**
+     * Change the one word holding the bit, in place, without copying out the block.
+     */
+    @Override
+    public boolean setBit(int blockNum, int blockOffset, boolean value, BitChangeListener listener)
+            throws IpStateServiceException {
+        MappedByteBuffer region = regionFor(blockNum);
+        int position = positionOf(blockNum) + (blockOffset >>> 6) * Long.BYTES;
+        long mask = 1L << (blockOffset & 63);
+        Lock lock = lockStripes.lockFor(blockNum);
+        lock.lock();
+        try {
+            long word = region.getLong(position);
+            if (((word & mask) != 0) == value) {
+                return false;
+            }
+            region.putLong(position, value ? word | mask : word & ~mask);
+        } finally {
+            lock.unlock();
+        }
+        listener.bitChanged(blockNum, blockOffset, value);
+        return true;
+    }
+
+    @Override
+    public long[] readBlock(int blockNum) throws IpStateServiceException {
+        MappedByteBuffer region = regionFor(blockNum);
+        Lock lock = lockStripes.lockFor(blockNum);
+        lock.lock();
+        try {
+            return readWords(region, blockNum);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public BitContainer readContainer(int blockNum) throws IpStateServiceException {
+        return blockService.toContainer(readBlock(blockNum));
+    }
+
+    @Override
+    public void forEachBlock(BlockVisitor visitor) {
+        MappedByteBuffer[] mapped = ensureMapped();
+        if (mapped == null) {
+            return;
+        }
+        int blockCount = cidrStateService.getCidrPools().getBlockCount();
+        for (int blockNum = 0; blockNum < blockCount; blockNum++) {
+            Lock lock = lockStripes.lockFor(blockNum);
+            long[] words;
+            lock.lock();
+            try {
+                words = readWords(mapped[blockNum / REGION_BLOCKS], blockNum);
+            } finally {
+                lock.unlock();
+            }
+            visitor.visit(blockNum, words);
+        }
+    }
+
+    @Override
+    public void forEachContainer(ContainerVisitor visitor) {
+        forEachBlock((blockNum, words) -> visitor.visit(blockNum, blockService.toContainer(words)));
+    }
+
+    private MappedByteBuffer regionFor(int blockNum) throws IpStateServiceException {
+        MappedByteBuffer[] mapped = ensureMapped();
+        if (mapped == null  ||  blockNum < 0  ||  blockNum >= cidrStateService.getCidrPools().getBlockCount()) {
+            throw new IpStateServiceException(new NullPointerException("No block found for block number " + blockNum));
+        }
+        return mapped[blockNum / REGION_BLOCKS];
+    }
+
+    private long[] readWords(MappedByteBuffer region, int blockNum) {
+        int position = positionOf(blockNum);
+        long[] words = new long[blockBytes / Long.BYTES];
+        for (int wordIndex = 0; wordIndex < words.length; wordIndex++) {
+            words[wordIndex] = region.getLong(position + wordIndex * Long.BYTES);
+        }
+        return words;
+    }
+
+    /** Write back only the words changed, so that untouched pages stay clean. */
+    private void writeChangedWords(MappedByteBuffer region, int blockNum, long[] original, long[] words) {
+        int position = positionOf(blockNum);
+        for (int wordIndex = 0; wordIndex < words.length; wordIndex++) {
+            if (original[wordIndex] != words[wordIndex]) {
+                region.putLong(position + wordIndex * Long.BYTES, words[wordIndex]);
+            }
+        }
+    }
+
+    /** Position of the block within its region. */
+    private int positionOf(int blockNum) {
+        return (blockNum % REGION_BLOCKS) * blockBytes;
+    }
+
+    /**
+     * Open and map the file, once a CIDR block exists to size it by.  Maps more regions as CIDR blocks are added.
+     *
+     * @return the mapped regions; null if there is no CIDR block yet.
+     */
+    private MappedByteBuffer[] ensureMapped() {
+        MappedByteBuffer[] mapped = regions;
+        int blockCount = cidrStateService.getCidrPools().getBlockCount();
+        int regionCount = (blockCount + REGION_BLOCKS - 1) / REGION_BLOCKS;
+        if (mapped != null  &&  mapped.length >= regionCount) {
+            return mapped;
+        }
+        synchronized (this) {
+            try {
+                if (regions == null  &&  cidrStateService.isPopulated()) {
+                    openFile();
+                    regions = mapRegions(new MappedByteBuffer[0], regionCount);
+                    if (header.getInt(INITIALIZED_OFFSET) == 0) {
+                        copyInBlocks(regions);
+                    }
+                    logger.info("Mapped {} blocks from {}.", blockCount, file);
+                } else if (regions != null  &&  regions.length < regionCount) {
+                    regions = mapRegions(regions, regionCount);
+                    logger.info("Grew to {} mapped blocks.", blockCount);
+                }
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+            return regions;
+        }
+    }
+
+    /**
+     * Open the file, writing its header if new, or checking it was written for blocks of this size.
+     */
+    private void openFile() throws IOException {
+        Path path = Paths.get(file).toAbsolutePath();
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        if (header.getInt(MAGIC_OFFSET) == 0) {
+            header.putInt(MAGIC_OFFSET, FILE_MAGIC);
+            header.putInt(FORMAT_OFFSET, FILE_FORMAT);
+            header.putInt(WORDS_PER_BLOCK_OFFSET, blockService.getWordsPerBlock());
+            header.force();
+        } else if (header.getInt(MAGIC_OFFSET) != FILE_MAGIC  ||  header.getInt(FORMAT_OFFSET) != FILE_FORMAT) {
+            throw new IOException("Not a block file: " + path);
+        } else if (header.getInt(WORDS_PER_BLOCK_OFFSET) != blockService.getWordsPerBlock()) {
+            throw new IOException("Block file " + path + " holds blocks of " + header.getInt(WORDS_PER_BLOCK_OFFSET)
+                    + " words, not " + blockService.getWordsPerBlock());
+        }
+    }
+
+    /**
+     * Map regions after those already mapped.  Mapping past the end of the file extends it, with zeros: free.
+     */
+    private MappedByteBuffer[] mapRegions(MappedByteBuffer[] mapped, int regionCount) throws IOException {
+        MappedByteBuffer[] grown = Arrays.copyOf(mapped, regionCount);
+        long regionBytes = (long) REGION_BLOCKS * blockBytes;
+        for (int region = mapped.length; region < regionCount; region++) {
+            grown[region] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + region * regionBytes, regionBytes);
+        }
+        return grown;
+    }
+
+    /**
+     * Copy every stored block into the new file, and mark it as filled only once they are all forced to disk.
+     */
+    private void copyInBlocks(MappedByteBuffer[] mapped) {
+        int[] copied = new int[1];
+        int blockCount = mapped.length * REGION_BLOCKS;
+        blockRepository.findAll().forEach(bitBlock -> {
+            if (bitBlock.getId() < blockCount) {
+                long[] words = blockService.getBlockWords(bitBlock);
+                writeChangedWords(mapped[bitBlock.getId() / REGION_BLOCKS], bitBlock.getId(), new long[words.length], words);
+                copied[0]++;
+            }
+        });
+        for (MappedByteBuffer region : mapped) {
+            region.force();
+        }
+        header.putInt(INITIALIZED_OFFSET, 1);
+        header.force();
+        logger.info("Block file is new: copied in {} blocks from the block table.", copied[0]);
+    }
+}
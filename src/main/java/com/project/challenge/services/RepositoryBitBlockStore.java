@@ -0,0 +1,262 @@
+package com.project.challenge.services;
+
+import com.project.challenge.entities.CidrBitBlock;
+import com.project.challenge.repositories.BlockRepository;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Write-through block store.  Every update reads its block from the repository, and saves it straight back.
+ * The database is the only holder of state, so this is the default.
+ *
+ * Within this application, updates to a block are serialized by its lock stripe.  Across applications sharing
+ * the database, the block's version catches a save based on a stale read; the update is then retried against
+ * a fresh read, a bounded number of times.
+ *
+ * Blocks need not exist in the repository: a missing one is all free, and is inserted by its first change.  If
+ * another application inserted it first, that insert fails as a duplicate, and the update is retried likewise.
+ *
+ * Whether other applications do share the database is configured (ipstate.repository.shared): the default
+ * database is in memory, so by default this application is the only writer.
+ */
+@Service
+@ConditionalOnProperty(name = "ipstate.store", havingValue = "repository", matchIfMissing = true)
+public class RepositoryBitBlockStore implements BitBlockStore {
+    private IpBlockService blockService;
+    private BlockRepository blockRepository;
+    private BlockLockStripes lockStripes;
+    private CidrStateService cidrStateService;
+
+    private int maxRetries = 5;
+    private int scanPageSize = 256;
+    private boolean shared = false;
+
+    private static Logger logger = LogManager.getLogger(RepositoryBitBlockStore.class);
+
+    /**
+     * Construct with all injected services.
+     *
+     * @param blockService for block sizing and encoding.
+     * @param blockRepository for serializing.
+     * @param lockStripes serializes updates to each block.
+     * @param cidrStateService tells how many blocks there are, present or not.
+     */
+    @Autowired
+    public RepositoryBitBlockStore(
+            IpBlockService blockService,
+            BlockRepository blockRepository,
+            BlockLockStripes lockStripes,
+            CidrStateService cidrStateService
+    ) {
+        this.blockService = blockService;
+        this.blockRepository = blockRepository;
+        this.lockStripes = lockStripes;
+        this.cidrStateService = cidrStateService;
+    }
+
+    @Value("${ipstate.optimistic.max-retries:5}")
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    @Value("${ipstate.scan.page-size:256}")
+    public void setScanPageSize(int scanPageSize) {
+        this.scanPageSize = scanPageSize;
+    }
+
+    /**
+     * Declare whether other applications change blocks in the same database.
+     *
+     * @param shared T=they do.
+     */
+    @Value("${ipstate.repository.shared:false}")
+    public void setShared(boolean shared) {
+        this.shared = shared;
+    }
+
+    @Override
+    public <T> T updateBlock(int blockNum, BlockUpdate<T> update) throws IpStateServiceException {
+        Lock lock = lockStripes.lockFor(blockNum);
+        lock.lock();
+        try {
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    return attemptUpdate(blockNum, update);
+                } catch (OptimisticLockingFailureException | DataIntegrityViolationException conflict) {
+                    if (attempt >= maxRetries) {
+                        throw new IpStateServiceException(conflict);
+                    }
+                    logger.debug("Block {} changed by another writer.  Retrying.", blockNum);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * All blocks are read in one query, and the changed ones saved in one transaction.  If any save finds its
+     * block stale, the transaction rolls back, and the whole change is retried.
+     */
+    @Override
+    public <T> T updateBlocks(int[] blockNums, BlocksUpdate<T> update) throws IpStateServiceException {
+        Lock[] locks = lockStripes.locksFor(blockNums);
+        BlockLockStripes.lockAll(locks);
+        try {
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    return attemptUpdateBlocks(blockNums, update);
+                } catch (OptimisticLockingFailureException | DataIntegrityViolationException conflict) {
+                    if (attempt >= maxRetries) {
+                        throw new IpStateServiceException(conflict);
+                    }
+                    logger.debug("Blocks {} changed by another writer.  Retrying.", Arrays.toString(blockNums));
+                }
+            }
+        } finally {
+            BlockLockStripes.unlockAll(locks);
+        }
+    }
+
+    @Override
+    public boolean isWriteThrough() {
+        return true;
+    }
+
+    @Override
+    public boolean isShared() {
+        return shared;
+    }
+
+    @Override
+    public long[] readBlock(int blockNum) throws IpStateServiceException {
+        checkBlockNum(blockNum);
+        Optional<CidrBitBlock> bitBlockOptional = blockRepository.findById(blockNum);
+        if (! bitBlockOptional.isPresent()) {
+            return new long[blockService.getWordsPerBlock()];
+        }
+        return blockService.getBlockWords(bitBlockOptional.get());
+    }
+
+    /**
+     * Blocks are read a page at a time, each page starting after the last block of the one before, so that only
+     * one page is ever held.  Blocks missing between those found are visited as all free.
+     */
+    @Override
+    public void forEachBlock(BlockVisitor visitor) {
+        final int blockCount = cidrStateService.getCidrPools().getBlockCount();
+        int nextBlockNum = 0;
+        PageRequest firstPage = PageRequest.of(0, scanPageSize);
+        List<CidrBitBlock> page = blockRepository.findByIdGreaterThanOrderByIdAsc(-1, firstPage);
+        while (! page.isEmpty()) {
+            for (CidrBitBlock bitBlock : page) {
+                nextBlockNum = visitMissingBlocks(visitor, nextBlockNum, Math.min(bitBlock.getId(), blockCount));
+                visitor.visit(bitBlock.getId(), blockService.getBlockWords(bitBlock));
+                nextBlockNum = Math.max(nextBlockNum, bitBlock.getId() + 1);
+            }
+            if (page.size() < scanPageSize) {
+                break;
+            }
+            page = blockRepository.findByIdGreaterThanOrderByIdAsc(page.get(page.size() - 1).getId(), firstPage);
+        }
+        visitMissingBlocks(visitor, nextBlockNum, blockCount);
+    }
+
+    /**
+     * The range is read in one query, of as many blocks as it holds.
+     */
+    @Override
+    public void forEachContainer(int fromBlock, int toBlock, ContainerVisitor visitor) {
+        BlockVisitor blockVisitor = (blockNum, words) -> visitor.visit(blockNum, BitContainers.dense(words));
+        int nextBlockNum = fromBlock;
+        for (CidrBitBlock bitBlock : blockRepository.findByIdGreaterThanOrderByIdAsc(fromBlock - 1, PageRequest.of(0, toBlock - fromBlock))) {
+            if (bitBlock.getId() >= toBlock) {
+                break;
+            }
+            nextBlockNum = visitMissingBlocks(blockVisitor, nextBlockNum, bitBlock.getId());
+            blockVisitor.visit(bitBlock.getId(), blockService.getBlockWords(bitBlock));
+            nextBlockNum = bitBlock.getId() + 1;
+        }
+        visitMissingBlocks(blockVisitor, nextBlockNum, toBlock);
+    }
+
+    /** Visit blocks from..to (exclusive) as all free.  Returns where that leaves off. */
+    private int visitMissingBlocks(BlockVisitor visitor, int fromBlockNum, int toBlockNum) {
+        for (int blockNum = fromBlockNum; blockNum < toBlockNum; blockNum++) {
+            visitor.visit(blockNum, new long[blockService.getWordsPerBlock()]);
+        }
+        return Math.max(fromBlockNum, toBlockNum);
+    }
+
+    /** Blocks outside every CIDR block's range are not merely missing: they cannot exist. */
+    private void checkBlockNum(int blockNum) throws IpStateServiceException {
+        if (blockNum < 0  ||  blockNum >= cidrStateService.getCidrPools().getBlockCount()) {
+            throw new IpStateServiceException(new NullPointerException("No block found for block number " + blockNum));
+        }
+    }
+
+    /** A block missing from the repository, to be inserted if changed. */
+    private CidrBitBlock newBlock(int blockNum) {
+        CidrBitBlock bitBlock = new CidrBitBlock();
+        bitBlock.setId(blockNum);
+        return bitBlock;
+    }
+
+    /** One read-modify-write of the block.  Saves only if the update changed something. */
+    private <T> T attemptUpdate(int blockNum, BlockUpdate<T> update) throws IpStateServiceException {
+        checkBlockNum(blockNum);
+        CidrBitBlock bitBlock = blockRepository.findById(blockNum).orElseGet(() -> newBlock(blockNum));
+        long[] words = blockService.getBlockWords(bitBlock);
+        long[] original = words.clone();
+
+        T result = update.apply(words);
+        if (! Arrays.equals(original, words)) {
+            blockService.setBlockWords(bitBlock, words);
+            blockRepository.save(bitBlock);
+        }
+        return result;
+    }
+
+    /** One read-modify-write of all the blocks.  Saves only those the update changed. */
+    private <T> T attemptUpdateBlocks(int[] blockNums, BlocksUpdate<T> update) throws IpStateServiceException {
+        Map<Integer, CidrBitBlock> found = new HashMap<>();
+        List<Integer> ids = new ArrayList<>(blockNums.length);
+        for (int blockNum : blockNums) {
+            ids.add(blockNum);
+        }
+        blockRepository.findAllById(ids).forEach(bitBlock -> found.put(bitBlock.getId(), bitBlock));
+
+        CidrBitBlock[] bitBlocks = new CidrBitBlock[blockNums.length];
+        long[][] blocksWords = new long[blockNums.length][];
+        long[][] originals = new long[blockNums.length][];
+        for (int i = 0; i < blockNums.length; i++) {
+            checkBlockNum(blockNums[i]);
+            bitBlocks[i] = found.containsKey(blockNums[i]) ? found.get(blockNums[i]) : newBlock(blockNums[i]);
+            blocksWords[i] = blockService.getBlockWords(bitBlocks[i]);
+            originals[i] = blocksWords[i].clone();
+        }
+
+        T result = update.apply(blocksWords);
+        List<CidrBitBlock> changed = new ArrayList<>();
+        for (int i = 0; i < blockNums.length; i++) {
+            if (! Arrays.equals(originals[i], blocksWords[i])) {
+                blockService.setBlockWords(bitBlocks[i], blocksWords[i]);
+                changed.add(bitBlocks[i]);
+            }
+        }
+        if (! changed.isEmpty()) {
+            blockRepository.saveAll(changed);
+        }
+        return result;
+    }
+}
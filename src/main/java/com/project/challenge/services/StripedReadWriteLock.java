@@ -0,0 +1,55 @@
+package com.project.challenge.services;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read-write lock for a write side taken seldom, with its read side spread over stripes by thread.  Readers on
+ * different threads mostly take different locks, so do not contend on one; the writer takes every stripe, in
+ * order.  Read locks are reentrant, and must be released on the thread that took them.
+ */
+public class StripedReadWriteLock {
+    private final ReentrantReadWriteLock[] stripes;
+    private final int stripeMask;
+
+    /**
+     * Construct with the number of stripes.  Rounded up to a power of two.
+     *
+     * @param stripeCount how many stripes.
+     */
+    public StripedReadWriteLock(int stripeCount) {
+        int roundedCount = stripeCount <= 1 ? 1 : Integer.highestOneBit(stripeCount - 1) << 1;
+        stripes = new ReentrantReadWriteLock[roundedCount];
+        for (int i = 0; i < roundedCount; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+        stripeMask = roundedCount - 1;
+    }
+
+    /**
+     * Find the read lock for the calling thread.
+     *
+     * @return its read lock.
+     */
+    public Lock readLock() {
+        return stripes[(int) Thread.currentThread().getId() & stripeMask].readLock();
+    }
+
+    /**
+     * Take the write lock of every stripe: wait for every reader to finish, and hold off new ones.
+     */
+    public void lockWrite() {
+        for (ReentrantReadWriteLock stripe : stripes) {
+            stripe.writeLock().lock();
+        }
+    }
+
+    /**
+     * Release every stripe, in reverse order.
+     */
+    public void unlockWrite() {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            stripes[i].writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package com.project.challenge.services;
+
+import com.project.challenge.entities.CidrBitBlock;
+import com.project.challenge.repositories.BlockRepository;
+import com.project.challenge.repositories.BlockWordRepository;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Block store keeping each block as rows of 64-bit words (see BlockWordRepository), for applications sharing one
+ * database.  Setting or clearing a single bit is one conditional update, with no read and no lock, in this
+ * application or the database: whichever writer's update lands first wins, and the others are told the bit
+ * already had that value.
+ *
+ * Other updates read the block's words, and write back only the words they changed, each one on condition that
+ * it still holds what was read; all of an update's writes are one transaction.  If any word changed meanwhile,
+ * the transaction rolls back, and the update is retried against a fresh read, a bounded number of times.
+ * Updates are checked word by word, not as whole blocks: one deciding on bits of a word it does not change may
+ * act on a stale read of that word.  None of this application's updates do, other than for counting.
+ *
+ * Missing rows are words of all zeros.  At first use, if there are no rows at all, blocks are copied in from
+ * the block table.
+ */
+@Service
+@ConditionalOnProperty(name = "ipstate.store", havingValue = "words")
+public class WordRowBitBlockStore implements BitBlockStore {
+    private static final int ADDRESS_BITS_PER_WORD = 6;
+
+    private IpBlockService blockService;
+    private BlockWordRepository wordRepository;
+    private BlockRepository blockRepository;
+    private BlockLockStripes lockStripes;
+    private CidrStateService cidrStateService;
+    private TransactionTemplate transactionTemplate;
+
+    private int maxRetries = 5;
+    private int scanPageSize = 256;
+    private int insertBatchSize = 1000;
+    private volatile boolean imported;
+
+    private static Logger logger = LogManager.getLogger(WordRowBitBlockStore.class);
+
+    /**
+     * Construct with all injected services.
+     *
+     * @param blockService for block sizing and decoding.
+     * @param wordRepository for serializing.
+     * @param blockRepository for copying in blocks at first use.
+     * @param lockStripes serializes this application's updates to each block, sparing it needless retries.
+     * @param cidrStateService tells how many blocks there are, present or not.
+     * @param transactionManager each update's writes are one transaction.
+     */
+    @Autowired
+    public WordRowBitBlockStore(
+            IpBlockService blockService,
+            BlockWordRepository wordRepository,
+            BlockRepository blockRepository,
+            BlockLockStripes lockStripes,
+            CidrStateService cidrStateService,
+            PlatformTransactionManager transactionManager
+    ) {
+        this.blockService = blockService;
+        this.wordRepository = wordRepository;
+        this.blockRepository = blockRepository;
+        this.lockStripes = lockStripes;
+        this.cidrStateService = cidrStateService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @Value("${ipstate.optimistic.max-retries:5}")
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    @Value("${ipstate.scan.page-size:256}")
+    public void setScanPageSize(int scanPageSize) {
+        this.scanPageSize = scanPageSize;
+    }
+
+    @Value("${ipstate.block-creation.batch-size:1000}")
+    public void setInsertBatchSize(int insertBatchSize) {
+        this.insertBatchSize = insertBatchSize;
+    }
+
+    /**
+     * One conditional update.  Setting a bit of a word with no row inserts the row; if another writer inserted it
+     * first, the update is made once more, against that row.
+     */
+    @Override
+    public boolean setBit(int blockNum, int blockOffset, boolean value, BitChangeListener listener)
+            throws IpStateServiceException {
+        checkBlockNum(blockNum);
+        final int wordIndex = blockOffset >>> ADDRESS_BITS_PER_WORD;
+        final long mask = 1L << blockOffset;
+        boolean changed;
+        if (! value) {
+            changed = wordRepository.clearBits(blockNum, wordIndex, mask);
+        } else if (wordRepository.setBits(blockNum, wordIndex, mask)) {
+            changed = true;
+        } else {
+            try {
+                wordRepository.insert(blockNum, wordIndex, mask);
+                changed = true;
+            } catch (DuplicateKeyException dke) {
+                changed = wordRepository.setBits(blockNum, wordIndex, mask);
+            }
+        }
+        if (changed) {
+            listener.bitChanged(blockNum, blockOffset, value);
+        }
+        return changed;
+    }
+
+    /**
+     * Built for applications sharing the database.
+     */
+    @Override
+    public boolean isShared() {
+        return true;
+    }
+
+    @Override
+    public <T> T updateBlock(int blockNum, BlockUpdate<T> update) throws IpStateServiceException {
+        return updateBlocks(new int[] { blockNum }, blocksWords -> update.apply(blocksWords[0]));
+    }
+
+    @Override
+    public <T> T updateBlocks(int[] blockNums, BlocksUpdate<T> update) throws IpStateServiceException {
+        for (int blockNum : blockNums) {
+            checkBlockNum(blockNum);
+        }
+        Lock[] locks = lockStripes.locksFor(blockNums);
+        BlockLockStripes.lockAll(locks);
+        try {
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    return attemptUpdateBlocks(blockNums, update);
+                } catch (ConcurrencyFailureException | DataIntegrityViolationException conflict) {
+                    if (attempt >= maxRetries) {
+                        throw new IpStateServiceException(conflict);
+                    }
+                    logger.debug("Blocks {} changed by another writer.  Retrying.", Arrays.toString(blockNums));
+                }
+            }
+        } finally {
+            BlockLockStripes.unlockAll(locks);
+        }
+    }
+
+    @Override
+    public long[] readBlock(int blockNum) throws IpStateServiceException {
+        checkBlockNum(blockNum);
+        long[] words = new long[blockService.getWordsPerBlock()];
+        wordRepository.findBlock(blockNum, (blockId, wordIndex, bits) -> words[wordIndex] = bits);
+        return words;
+    }
+
+    /**
+     * The range's rows are read in one query.
+     */
+    @Override
+    public void forEachContainer(int fromBlock, int toBlock, ContainerVisitor visitor) {
+        ensureImported();
+        final long[][] blocks = new long[toBlock - fromBlock][blockService.getWordsPerBlock()];
+        wordRepository.findBlocks(fromBlock, toBlock, (blockId, wordIndex, bits) -> blocks[blockId - fromBlock][wordIndex] = bits);
+        for (int i = 0; i < blocks.length; i++) {
+            visitor.visit(fromBlock + i, BitContainers.dense(blocks[i]));
+        }
+    }
+
+    /**
+     * Rows are streamed in order, and gathered into one block at a time.  Blocks with no rows are visited as all
+     * free.
+     */
+    @Override
+    public void forEachBlock(BlockVisitor visitor) {
+        ensureImported();
+        final int blockCount = cidrStateService.getCidrPools().getBlockCount();
+        final int wordsPerBlock = blockService.getWordsPerBlock();
+        // Block being gathered, and the next block number to visit.
+        final int[] position = { -1, 0 };
+        final long[][] words = { null };
+        wordRepository.findAll((blockId, wordIndex, bits) -> {
+            if (blockId != position[0]) {
+                if (words[0] != null) {
+                    visitor.visit(position[0], words[0]);
+                }
+                position[1] = visitMissingBlocks(visitor, position[1], Math.min(blockId, blockCount));
+                position[0] = blockId;
+                position[1] = Math.max(position[1], blockId + 1);
+                words[0] = new long[wordsPerBlock];
+            }
+            words[0][wordIndex] = bits;
+        });
+        if (words[0] != null) {
+            visitor.visit(position[0], words[0]);
+        }
+        visitMissingBlocks(visitor, position[1], blockCount);
+    }
+
+    /** Visit blocks from..to (exclusive) as all free.  Returns where that leaves off. */
+    private int visitMissingBlocks(BlockVisitor visitor, int fromBlockNum, int toBlockNum) {
+        for (int blockNum = fromBlockNum; blockNum < toBlockNum; blockNum++) {
+            visitor.visit(blockNum, new long[blockService.getWordsPerBlock()]);
+        }
+        return Math.max(fromBlockNum, toBlockNum);
+    }
+
+    /**
+     * One read-modify-write of all the blocks.  Reads are not in the transaction: each word written is checked
+     * against its read instead.
+     */
+    private <T> T attemptUpdateBlocks(int[] blockNums, BlocksUpdate<T> update) throws IpStateServiceException {
+        final int wordsPerBlock = blockService.getWordsPerBlock();
+        long[][] blocksWords = new long[blockNums.length][];
+        long[][] originals = new long[blockNums.length][];
+        boolean[][] present = new boolean[blockNums.length][];
+        for (int i = 0; i < blockNums.length; i++) {
+            final long[] words = new long[wordsPerBlock];
+            final boolean[] rows = new boolean[wordsPerBlock];
+            wordRepository.findBlock(blockNums[i], (blockId, wordIndex, bits) -> {
+                words[wordIndex] = bits;
+                rows[wordIndex] = true;
+            });
+            blocksWords[i] = words;
+            originals[i] = words.clone();
+            present[i] = rows;
+        }
+
+        T result = update.apply(blocksWords);
+        if (! Arrays.deepEquals(originals, blocksWords)) {
+            transactionTemplate.execute(status -> {
+                for (int i = 0; i < blockNums.length; i++) {
+                    writeChangedWords(blockNums[i], originals[i], blocksWords[i], present[i]);
+                }
+                return null;
+            });
+        }
+        return result;
+    }
+
+    /** Write the words changed, each on condition of its read.  Throws to roll back if any changed meanwhile. */
+    private void writeChangedWords(int blockNum, long[] original, long[] words, boolean[] present) {
+        for (int wordIndex = 0; wordIndex < words.length; wordIndex++) {
+            if (words[wordIndex] == original[wordIndex]) {
+                continue;
+            }
+            if (! present[wordIndex]) {
+                // Inserted by another writer meanwhile: DuplicateKeyException.
+                wordRepository.insert(blockNum, wordIndex, words[wordIndex]);
+            } else if (! wordRepository.compareAndSet(blockNum, wordIndex, original[wordIndex], words[wordIndex])) {
+                throw new ConcurrencyFailureException("Word " + wordIndex + " of block " + blockNum + " changed by another writer");
+            }
+        }
+    }
+
+    /** Blocks outside every CIDR block's range are not merely missing: they cannot exist. */
+    private void checkBlockNum(int blockNum) throws IpStateServiceException {
+        ensureImported();
+        if (blockNum < 0  ||  blockNum >= cidrStateService.getCidrPools().getBlockCount()) {
+            throw new IpStateServiceException(new NullPointerException("No block found for block number " + blockNum));
+        }
+    }
+
+    /**
+     * Where no word has a row yet, copy in the words set in the block table, so that switching to this store
+     * keeps all states.
+     */
+    private void ensureImported() {
+        if (imported) {
+            return;
+        }
+        synchronized (this) {
+            if (! imported) {
+                if (wordRepository.isEmpty()) {
+                    importBlocks();
+                }
+                imported = true;
+            }
+        }
+    }
+
+    private void importBlocks() {
+        PageRequest firstPage = PageRequest.of(0, scanPageSize);
+        List<long[]> words = new ArrayList<>();
+        int blockCount = 0;
+        List<CidrBitBlock> page = blockRepository.findByIdGreaterThanOrderByIdAsc(-1, firstPage);
+        while (! page.isEmpty()) {
+            for (CidrBitBlock bitBlock : page) {
+                long[] blockWords = blockService.getBlockWords(bitBlock);
+                for (int wordIndex = 0; wordIndex < blockWords.length; wordIndex++) {
+                    if (blockWords[wordIndex] != 0) {
+                        words.add(new long[] { bitBlock.getId(), wordIndex, blockWords[wordIndex] });
+                    }
+                }
+                blockCount++;
+            }
+            if (page.size() < scanPageSize) {
+                break;
+            }
+            page = blockRepository.findByIdGreaterThanOrderByIdAsc(page.get(page.size() - 1).getId(), firstPage);
+        }
+        wordRepository.insertAll(words, insertBatchSize);
+        logger.info("Copied {} words in use, from {} blocks, into word rows.", words.size(), blockCount);
+    }
+}
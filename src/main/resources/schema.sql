@@ -2,10 +2,42 @@ DROP TABLE IF EXISTS CIDR_BIT_BLOCK;
 
 CREATE TABLE CIDR_BIT_BLOCK (
   ID INT PRIMARY KEY,
-  ENCODED_BITS VARCHAR
+  ENCODED_BITS VARCHAR,
+  RAW_BITS VARBINARY,
+  VERSION BIGINT DEFAULT 0 NOT NULL
 );
 
 DROP TABLE IF EXISTS CIDR_DEF;
 CREATE TABLE CIDR_DEF (
-  CIDR VARCHAR PRIMARY KEY
-);
\ No newline at end of file
+  CIDR VARCHAR PRIMARY KEY,
+  FIRST_BLOCK INT DEFAULT 0 NOT NULL,
+  BLOCK_SIZE INT DEFAULT 1024 NOT NULL
+);
+
+-- One row, locked (by updating it) by whoever lays out pools' blocks: adding a pool, or re-blocking.  Instances
+-- sharing the database take turns, each seeing the pools the last one recorded.
+DROP TABLE IF EXISTS CIDR_LAYOUT;
+CREATE TABLE CIDR_LAYOUT (
+  ID INT PRIMARY KEY,
+  VERSION BIGINT DEFAULT 0 NOT NULL
+);
+INSERT INTO CIDR_LAYOUT (ID) VALUES (0);
+
+-- Blocks as one row per 64-bit word, for the "words" block store.  Missing rows are all free.
+DROP TABLE IF EXISTS CIDR_BIT_WORD;
+CREATE TABLE CIDR_BIT_WORD (
+  BLOCK_ID INT NOT NULL,
+  WORD_INDEX INT NOT NULL,
+  BITS BIGINT DEFAULT 0 NOT NULL,
+  PRIMARY KEY (BLOCK_ID, WORD_INDEX)
+);
+
+-- Leases on ranges of blocks, for the "leased" block store.  Each range is served by its owner until EXPIRES_AT
+-- (epoch milliseconds), unless renewed.  No row: no owner.
+DROP TABLE IF EXISTS BLOCK_LEASE;
+CREATE TABLE BLOCK_LEASE (
+  RANGE_ID INT PRIMARY KEY,
+  OWNER VARCHAR NOT NULL,
+  OWNER_URL VARCHAR,
+  EXPIRES_AT BIGINT NOT NULL
+);
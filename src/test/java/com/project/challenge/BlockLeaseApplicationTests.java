@@ -0,0 +1,119 @@
+package com.project.challenge;
+
+import com.project.challenge.model.IpBatchOutcome;
+import com.project.challenge.model.IpBatchResult;
+import com.project.challenge.repositories.BlockLeaseRepository;
+import com.project.challenge.services.BlockLeasedElsewhereException;
+import com.project.challenge.services.IpStateService;
+import com.project.challenge.services.IpStateServiceException;
+import org.junit.Assert;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Two instances of the application, sharing one embedded database, each serving the block ranges it leases.
+ * Ranges are 64 blocks: 10.N.x.x is range N of the seeded 10.0.0.0/8.
+ */
+public class BlockLeaseApplicationTests {
+    private ConfigurableApplicationContext nodeA;
+    private ConfigurableApplicationContext nodeB;
+
+    @BeforeEach
+    public void startNodes() {
+        nodeA = startNode("node-a", "spring.datasource.initialization-mode=embedded");
+        // Sharing the first node's tables, as created and seeded.
+        nodeB = startNode("node-b", "spring.datasource.initialization-mode=never");
+    }
+
+    @AfterEach
+    public void stopNodes() {
+        if (nodeA.isActive()) {
+            nodeA.close();
+        }
+        nodeB.close();
+    }
+
+    @Test
+    public void testRangesServedByTheirHolders() throws Exception {
+        IpStateService serviceA = nodeA.getBean(IpStateService.class);
+        IpStateService serviceB = nodeB.getBean(IpStateService.class);
+
+        serviceA.setIpStateAcquired("10.0.0.5");
+        assertLeasedTo("http://node-a", serviceB, "10.0.0.6");
+        serviceB.setIpStateAcquired("10.1.0.5");
+        assertLeasedTo("http://node-b", serviceA, "10.1.0.6");
+
+        // Each takes the next free address from its own ranges.
+        Assert.assertEquals("Unexpected next IP", "10.0.0.1", serviceA.acquireNextIp());
+        Assert.assertEquals("Unexpected next IP", "10.1.0.1", serviceB.acquireNextIp());
+
+        List<IpBatchResult> results = serviceA.setIpStatesAcquired(Arrays.asList("10.0.0.7", "10.1.0.7"), false);
+        Assert.assertEquals("Unexpected outcome", IpBatchOutcome.ACQUIRED, results.get(0).getOutcome());
+        Assert.assertEquals("Unexpected outcome", IpBatchOutcome.LEASED_ELSEWHERE, results.get(1).getOutcome());
+    }
+
+    @Test
+    public void testStoppedNodesRangesTakenOver() throws Exception {
+        IpStateService serviceA = nodeA.getBean(IpStateService.class);
+        IpStateService serviceB = nodeB.getBean(IpStateService.class);
+        serviceA.setIpStateAcquired("10.0.0.5");
+        serviceA.setIpStateAcquired("10.0.0.1");
+
+        // Stopping writes its blocks, and releases its leases.
+        nodeA.close();
+        try {
+            serviceB.setIpStateAcquired("10.0.0.5");
+            Assert.fail("Acquired IP address the stopped node held.");
+        } catch (BlockLeasedElsewhereException unexpected) {
+            Assert.fail("Range not released.");
+        } catch (IpStateServiceException expected) {
+            // Expected outcome.
+        }
+        serviceB.setIpStateAcquired("10.0.0.6");
+        Assert.assertEquals("Unexpected next IP", "10.0.0.2", serviceB.acquireNextIp());
+    }
+
+    @Test
+    public void testExpiredLeasesTakenOver() throws Exception {
+        IpStateService serviceB = nodeB.getBean(IpStateService.class);
+        BlockLeaseRepository leaseRepository = nodeB.getBean(BlockLeaseRepository.class);
+        Assert.assertTrue("Lease not claimed", leaseRepository.claim(2, "node-c", "http://node-c", -1));
+        Assert.assertTrue("Lease not claimed", leaseRepository.claim(3, "node-c", "http://node-c", 60_000));
+        Assert.assertFalse("Lease claimed twice", leaseRepository.claim(3, "node-d", "http://node-d", 60_000));
+
+        serviceB.setIpStateAcquired("10.2.0.5");
+        Assert.assertEquals("Expired lease not taken over", "node-b", leaseRepository.find(2).getOwner());
+        assertLeasedTo("http://node-c", serviceB, "10.3.0.5");
+    }
+
+    private void assertLeasedTo(String ownerUrl, IpStateService service, String ipAddr) throws IpStateServiceException {
+        try {
+            service.setIpStateAcquired(ipAddr);
+            Assert.fail("Acquired IP address of block leased elsewhere: " + ipAddr);
+        } catch (BlockLeasedElsewhereException expected) {
+            Assert.assertEquals("Unexpected holder", ownerUrl, expected.getOwnerUrl());
+        }
+    }
+
+    private ConfigurableApplicationContext startNode(String instanceId, String initialization) {
+        // As arguments, which take precedence over application.properties.
+        return new SpringApplicationBuilder(ChallengeApplication.class)
+                .web(WebApplicationType.NONE)
+                .run(
+                        "--spring.datasource.url=jdbc:h2:mem:leases;DB_CLOSE_DELAY=-1",
+                        "--" + initialization,
+                        "--ipstate.store=leased",
+                        "--ipstate.lease.instance-id=" + instanceId,
+                        "--ipstate.lease.instance-url=http://" + instanceId,
+                        "--ipstate.lease.renew-interval-ms=200",
+                        "--ipstate.lease.duration-ms=5000"
+                );
+    }
+}
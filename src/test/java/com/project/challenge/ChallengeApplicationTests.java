@@ -1,13 +1,52 @@
 package com.project.challenge;
 
+import com.project.challenge.entities.CidrBitBlock;
+import com.project.challenge.repositories.BlockRepository;
+import com.project.challenge.services.IpBlockService;
+import org.junit.Assert;
 import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
 @SpringBootTest
 class ChallengeApplicationTests {
 
+	@Autowired
+	private BlockRepository blockRepository;
+
+	@Autowired
+	private IpBlockService blockService;
+
 	@Test
 	void contextLoads() {
 	}
 
+	@Test
+	void seededBlocksMigratedToBinary() {
+		CidrBitBlock bitBlock = blockRepository.findById(0).get();
+		Assert.assertNull("Base64 form left behind", bitBlock.getEncodedBits());
+		Assert.assertNotNull("Raw form not written", bitBlock.getRawBits());
+		Assert.assertEquals("Seeded bits lost", 1L << 56, blockService.getBlockWords(bitBlock)[0]);
+	}
+
+	@Test
+	void blocksInsertedInBatches() {
+		// Well beyond the seeded CIDR block's blocks.
+		final int firstBlock = 1_000_000;
+		List<Integer> ids = IntStream.range(firstBlock, firstBlock + 2500).boxed().collect(Collectors.toList());
+		blockRepository.insertBlocks(firstBlock, ids.size(), null, blockService.packBlock(new long[] { 5L }), 1000);
+		try {
+			List<CidrBitBlock> inserted = blockRepository.findAllById(ids);
+			Assert.assertEquals("Blocks missing", ids.size(), inserted.size());
+			Assert.assertEquals("Unexpected content", 5L, blockService.getBlockWords(inserted.get(0))[0]);
+			Assert.assertEquals("Unexpected version", Long.valueOf(0), inserted.get(0).getVersion());
+		} finally {
+			blockRepository.deleteInBatch(blockRepository.findAllById(ids));
+		}
+	}
+
 }
@@ -0,0 +1,83 @@
+package com.project.challenge.controllers;
+
+import com.project.challenge.model.CIDR;
+import com.project.challenge.model.IpReportFormat;
+import com.project.challenge.services.BitContainers;
+import com.project.challenge.services.BitWords;
+import com.project.challenge.services.Ipv4ConversionService;
+import com.project.challenge.services.Ipv4ConversionServiceImpl;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringWriter;
+
+/**
+ * Shaking down report output formats.
+ */
+public class IpReportWriterTest {
+    private Ipv4ConversionService conversionService = new Ipv4ConversionServiceImpl();
+
+    @Test
+    public void rangesMergeAcrossBlocks() throws Exception {
+        CIDR cidrBlock = conversionService.toCidr("10.0.0.0/21");
+        long firstAddress = cidrBlock.getStartingAddrLong();
+        long[] firstBlock = new long[16];
+        BitWords.setRange(firstBlock, 1000, 1024);
+        long[] secondBlock = new long[16];
+        BitWords.setRange(secondBlock, 0, 10);
+
+        StringWriter out = new StringWriter();
+        IpReportWriter writer = new IpReportWriter(out, IpReportFormat.RANGES);
+        writer.writeStart(cidrBlock.getCidrBlockNotation());
+        writer.visitBlock(cidrBlock, firstAddress, BitContainers.compact(firstBlock), 1024);
+        writer.visitBlock(cidrBlock, firstAddress + 1024, BitContainers.compact(secondBlock), 1022);
+        writer.writeEnd();
+
+        Assert.assertEquals(
+                "Unexpected ranges",
+                "10.0.0.1-10.0.3.232 FREE\n" +
+                "10.0.3.233-10.0.4.10 ACQUIRED\n" +
+                "10.0.4.11-10.0.7.254 FREE\n",
+                out.toString()
+        );
+    }
+
+    @Test
+    public void ndjsonLinePerAddress() throws Exception {
+        CIDR cidrBlock = conversionService.toCidr("10.0.0.0/30");
+        long[] block = new long[16];
+        BitWords.set(block, 1, true);
+
+        StringWriter out = new StringWriter();
+        IpReportWriter writer = new IpReportWriter(out, IpReportFormat.NDJSON);
+        writer.writeStart(cidrBlock.getCidrBlockNotation());
+        writer.visitBlock(cidrBlock, cidrBlock.getStartingAddrLong(), BitContainers.compact(block), 2);
+        writer.writeEnd();
+
+        Assert.assertEquals(
+                "Unexpected lines",
+                "{\"ip\":\"10.0.0.1\",\"state\":\"FREE\"}\n{\"ip\":\"10.0.0.2\",\"state\":\"ACQUIRED\"}\n",
+                out.toString()
+        );
+    }
+
+    @Test
+    public void tsvAcrossOctetRollover() throws Exception {
+        CIDR cidrBlock = conversionService.toCidr("10.0.0.0/23");
+        long[] block = new long[16];
+        BitWords.set(block, 254, true);
+
+        StringWriter out = new StringWriter();
+        IpReportWriter writer = new IpReportWriter(out, IpReportFormat.TSV);
+        writer.writeStart(cidrBlock.getCidrBlockNotation());
+        writer.visitBlock(cidrBlock, cidrBlock.getStartingAddrLong(), BitContainers.compact(block), 510);
+        writer.writeEnd();
+
+        String[] lines = out.toString().split("\n");
+        Assert.assertEquals("Unexpected line count", 511, lines.length);
+        Assert.assertEquals("Unexpected first line", "10.0.0.1\tFREE", lines[1]);
+        Assert.assertEquals("Unexpected line before rollover", "10.0.0.255\tACQUIRED", lines[255]);
+        Assert.assertEquals("Unexpected line after rollover", "10.0.1.0\tFREE", lines[256]);
+        Assert.assertEquals("Unexpected last line", "10.0.1.254\tFREE", lines[510]);
+    }
+}
@@ -0,0 +1,62 @@
+package com.project.challenge.controllers;
+
+import com.project.challenge.model.CIDR;
+import com.project.challenge.services.BitContainers;
+import com.project.challenge.services.BitWords;
+import com.project.challenge.services.CidrPools;
+import com.project.challenge.services.Ipv4ConversionService;
+import com.project.challenge.services.Ipv4ConversionServiceImpl;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Shaking down the binary export layout.
+ */
+public class IpStateExportWriterTest {
+    private static final int WORDS_PER_BLOCK = 16;
+
+    private Ipv4ConversionService conversionService = new Ipv4ConversionServiceImpl();
+
+    @Test
+    public void headersAndBlocksPerCidrBlock() throws Exception {
+        CIDR first = conversionService.toCidr("10.0.0.0/21");
+        CIDR second = conversionService.toCidr("192.168.1.0/24");
+        CidrPools cidrPools = CidrPools.EMPTY.with(first, 2).with(second, 1);
+        List<CIDR> cidrBlocks = Arrays.asList(first, second);
+
+        long[] words = new long[WORDS_PER_BLOCK];
+        BitWords.set(words, 5, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IpStateExportWriter writer = new IpStateExportWriter(out, cidrBlocks, 1024, WORDS_PER_BLOCK);
+        // Only the second block of the first CIDR block is in the store.
+        writer.visitBlock(first, first.getStartingAddrLong() + 1024, BitContainers.compact(words), 1022);
+        writer.writeEnd();
+
+        byte[] export = out.toByteArray();
+        Assert.assertEquals("Unexpected length", IpStateExportWriter.getExportLength(cidrBlocks, WORDS_PER_BLOCK), export.length);
+        Assert.assertEquals("Unexpected block count", 3, cidrPools.getBlockCount());
+
+        ByteBuffer buffer = ByteBuffer.wrap(export).order(ByteOrder.LITTLE_ENDIAN);
+        Assert.assertEquals("10.0.0.1", conversionService.getLongAsIp(Integer.toUnsignedLong(buffer.getInt())));
+        Assert.assertEquals("10.0.7.254", conversionService.getLongAsIp(Integer.toUnsignedLong(buffer.getInt())));
+        Assert.assertEquals(1024, buffer.getInt());
+        Assert.assertEquals(2, buffer.getInt());
+        for (int i = 0; i < WORDS_PER_BLOCK; i++) {
+            Assert.assertEquals("Absent block not free", 0L, buffer.getLong());
+        }
+        Assert.assertEquals("Unexpected first word", 1L << 5, buffer.getLong());
+        buffer.position(buffer.position() + (WORDS_PER_BLOCK - 1) * Long.BYTES);
+
+        Assert.assertEquals("192.168.1.1", conversionService.getLongAsIp(Integer.toUnsignedLong(buffer.getInt())));
+        Assert.assertEquals("192.168.1.254", conversionService.getLongAsIp(Integer.toUnsignedLong(buffer.getInt())));
+        Assert.assertEquals(1024, buffer.getInt());
+        Assert.assertEquals(1, buffer.getInt());
+        Assert.assertEquals("Unexpected trailing bytes", WORDS_PER_BLOCK * Long.BYTES, buffer.remaining());
+    }
+}
@@ -0,0 +1,98 @@
+package com.project.challenge.services;
+
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+/**
+ * Checks that every form of container answers as the words it was built from would.
+ */
+public class BitContainersTest {
+    private static final int WORDS_PER_BLOCK = 16;
+    private static final int BITS_PER_BLOCK = WORDS_PER_BLOCK * BitWords.BITS_PER_WORD;
+
+    @Test
+    public void sparseBlockHeldAsArray() {
+        long[] words = new long[WORDS_PER_BLOCK];
+        BitWords.set(words, 3, true);
+        BitWords.set(words, 4, true);
+        BitWords.set(words, 700, true);
+
+        BitContainer container = BitContainers.compact(words.clone());
+        Assert.assertTrue("Expected array form", container instanceof BitContainers.ArrayContainer);
+        assertMatches(words, container);
+    }
+
+    @Test
+    public void fullBlockHeldAsRun() {
+        long[] words = new long[WORDS_PER_BLOCK];
+        BitWords.setRange(words, 0, BITS_PER_BLOCK);
+        BitWords.set(words, 512, false);
+
+        BitContainer container = BitContainers.compact(words.clone());
+        Assert.assertTrue("Expected run form", container instanceof BitContainers.RunContainer);
+        Assert.assertEquals("Expected two runs", 8, container.getSizeInBytes());
+        assertMatches(words, container);
+    }
+
+    @Test
+    public void randomBlockHeldAsBitmap() {
+        long[] words = new long[WORDS_PER_BLOCK];
+        Random random = new Random(42);
+        for (int i = 0; i < words.length; i++) {
+            words[i] = random.nextLong();
+        }
+
+        BitContainer container = BitContainers.compact(words.clone());
+        Assert.assertTrue("Expected bitmap form", container instanceof BitContainers.BitmapContainer);
+        assertMatches(words, container);
+    }
+
+    @Test
+    public void everyFormMatchesWords() {
+        Random random = new Random(7);
+        for (int trial = 0; trial < 200; trial++) {
+            long[] words = new long[WORDS_PER_BLOCK];
+            int runs = random.nextInt(20);
+            for (int run = 0; run < runs; run++) {
+                int from = random.nextInt(BITS_PER_BLOCK);
+                BitWords.setRange(words, from, Math.min(BITS_PER_BLOCK, from + random.nextInt(100)));
+            }
+            assertMatches(words, BitContainers.compact(words.clone()));
+            assertMatches(words, BitContainers.ArrayContainer.of(words.clone(), BitWords.cardinality(words, BITS_PER_BLOCK)));
+            assertMatches(words, BitContainers.RunContainer.of(words.clone(), countRuns(words)));
+        }
+    }
+
+    private void assertMatches(long[] words, BitContainer container) {
+        Assert.assertArrayEquals("Words differ", words, container.toWords(WORDS_PER_BLOCK));
+        for (int limit : new int[] { 0, 1, 63, 64, 65, 700, 1021, BITS_PER_BLOCK }) {
+            Assert.assertEquals("Cardinality differs at " + limit, BitWords.cardinality(words, limit), container.cardinality(limit));
+        }
+        for (int bitIndex = 0; bitIndex < BITS_PER_BLOCK; bitIndex++) {
+            Assert.assertEquals("Bit differs at " + bitIndex, BitWords.get(words, bitIndex), container.get(bitIndex));
+            Assert.assertEquals(
+                    "Next set bit differs from " + bitIndex,
+                    BitWords.nextSetBit(words, bitIndex, 1021), container.nextSetBit(bitIndex, 1021)
+            );
+            Assert.assertEquals(
+                    "Next clear bit differs from " + bitIndex,
+                    BitWords.nextClearBit(words, bitIndex, 1021), container.nextClearBit(bitIndex, 1021)
+            );
+        }
+    }
+
+    private int countRuns(long[] words) {
+        int runs = 0;
+        boolean previous = false;
+        for (int bitIndex = 0; bitIndex < BITS_PER_BLOCK; bitIndex++) {
+            boolean current = BitWords.get(words, bitIndex);
+            if (current  &&  ! previous) {
+                runs++;
+            }
+            previous = current;
+        }
+        return runs;
+    }
+}
@@ -0,0 +1,264 @@
+package com.project.challenge.services;
+
+import com.project.challenge.entities.CidrBitBlock;
+import com.project.challenge.entities.CidrDef;
+import com.project.challenge.repositories.BlockRepository;
+import com.project.challenge.repositories.BlockRepositoryImpl;
+import com.project.challenge.repositories.BlockWordRepository;
+import com.project.challenge.repositories.CidrDefRepository;
+import org.junit.Assert;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.data.domain.Pageable;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Shaking down re-blocking, against embedded H2.  Spring Data's part of the block repository is stood in for by
+ * plain queries; its JDBC part is the real one.
+ */
+public class BlockReblockingTest {
+    private static final RowMapper<CidrBitBlock> BLOCK_MAPPER = (resultSet, rowNum) -> {
+        CidrBitBlock bitBlock = new CidrBitBlock();
+        bitBlock.setId(resultSet.getInt("ID"));
+        bitBlock.setEncodedBits(resultSet.getString("ENCODED_BITS"));
+        bitBlock.setRawBits(resultSet.getBytes("RAW_BITS"));
+        return bitBlock;
+    };
+
+    private IpBlockServiceImpl blockService = new IpBlockServiceImpl(new Ipv4ConversionServiceImpl());
+    private EmbeddedDatabase database;
+    private JdbcTemplate jdbcTemplate;
+    private List<CidrDef> cidrDefs;
+    private BlockReblocking blockReblocking;
+
+    @BeforeEach
+    public void setup() {
+        database = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .generateUniqueName(true)
+                .addScript("schema.sql")
+                .build();
+        jdbcTemplate = new JdbcTemplate(database);
+        BlockRepositoryImpl repositoryImpl = new BlockRepositoryImpl(jdbcTemplate);
+
+        BlockRepository blockRepository = Mockito.mock(BlockRepository.class);
+        Mockito.when(blockRepository.findBlockVersions()).thenAnswer(invocation -> repositoryImpl.findBlockVersions());
+        Mockito.when(blockRepository.promoteShadowBlocks()).thenAnswer(invocation -> repositoryImpl.promoteShadowBlocks());
+        Mockito.doAnswer(invocation -> {
+            repositoryImpl.deleteShadowBlocks();
+            return null;
+        }).when(blockRepository).deleteShadowBlocks();
+        Mockito.doAnswer(invocation -> {
+            repositoryImpl.replaceShadowBlocks(invocation.getArgument(0), invocation.getArgument(1), invocation.getArgument(2));
+            return null;
+        }).when(blockRepository).replaceShadowBlocks(Mockito.any(), Mockito.any(), Mockito.anyInt());
+        Mockito.when(blockRepository.findByIdGreaterThanOrderByIdAsc(Mockito.anyInt(), Mockito.any(Pageable.class)))
+                .thenAnswer(invocation -> jdbcTemplate.query(
+                        "SELECT * FROM CIDR_BIT_BLOCK WHERE ID > ? ORDER BY ID LIMIT ?",
+                        BLOCK_MAPPER,
+                        invocation.<Integer>getArgument(0),
+                        invocation.<Pageable>getArgument(1).getPageSize()
+                ));
+        Mockito.when(blockRepository.findAllById(Mockito.any())).thenAnswer(invocation -> {
+            List<CidrBitBlock> found = new ArrayList<>();
+            for (Integer blockNum : invocation.<Iterable<Integer>>getArgument(0)) {
+                found.addAll(jdbcTemplate.query("SELECT * FROM CIDR_BIT_BLOCK WHERE ID = ?", BLOCK_MAPPER, blockNum));
+            }
+            return found;
+        });
+
+        cidrDefs = new ArrayList<>();
+        CidrDefRepository cidrDefRepository = Mockito.mock(CidrDefRepository.class);
+        Mockito.when(cidrDefRepository.findAll()).thenAnswer(invocation -> new ArrayList<>(cidrDefs));
+        Mockito.when(cidrDefRepository.saveAll(Mockito.any())).thenAnswer(invocation -> invocation.getArgument(0));
+        Mockito.when(cidrDefRepository.count()).thenAnswer(invocation -> (long) cidrDefs.size());
+
+        blockReblocking = new BlockReblocking(
+                blockService,
+                new Ipv4ConversionServiceImpl(),
+                blockRepository,
+                new BlockWordRepository(jdbcTemplate),
+                cidrDefRepository,
+                new DataSourceTransactionManager(database)
+        );
+        blockReblocking.setBatchSize(4);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        database.shutdown();
+    }
+
+    @Test
+    public void testSmallerBlocksKeepBits() throws Exception {
+        // One block of 1024 bits, then two.
+        CidrDef first = cidrDef("10.0.0.0/22", 0, 1024);
+        CidrDef second = cidrDef("10.1.0.0/21", 1, 1024);
+        storeBits(0, 1024, 56, 700);
+        storeBits(2, 1024, 476);
+
+        List<CidrDef> reblocked = blockReblocking.reblock(Arrays.asList(second, first), 256);
+        Assert.assertEquals("Unexpected pools", 2, reblocked.size());
+        Assert.assertEquals("First pool moved", 0, first.getFirstBlock().intValue());
+        Assert.assertEquals("Second pool not moved past the first", 4, second.getFirstBlock().intValue());
+        Assert.assertEquals("Block size not recorded", 256, second.getBlockSize().intValue());
+
+        Assert.assertEquals("Empty blocks written, or old ones kept", 3, countRows());
+        assertBits(0, 256, 56);
+        assertBits(2, 256, 188);
+        assertBits(9, 256, 220);
+    }
+
+    @Test
+    public void testLargerBlocksKeepBits() throws Exception {
+        CidrDef cidrDef = cidrDef("10.0.0.0/21", 0, 256);
+        storeBits(1, 256, 3);
+        storeBits(6, 256, 255);
+        storeBits(7, 256);
+
+        blockReblocking.reblock(cidrDefs, 4096);
+        Assert.assertEquals("Block size not recorded", 4096, cidrDef.getBlockSize().intValue());
+        Assert.assertEquals("Unexpected stored blocks", 1, countRows());
+        assertBits(0, 4096, 259, 1791);
+    }
+
+    @Test
+    public void testWordRowsFollowNewLayout() throws Exception {
+        // Blocks of 16 words, then of 4.
+        cidrDef("10.0.0.0/22", 0, 1024);
+        cidrDef("10.1.0.0/21", 1, 1024);
+        cidrDef("10.2.0.0/24", 3, 1024);
+        storeWord(0, 5, 0x11L);
+        storeWord(2, 3, 0x22L);
+        storeWord(3, 2, 0x33L);
+        // Past the end of the last pool, at the new size.
+        storeWord(3, 10, 0L);
+
+        blockReblocking.reblock(cidrDefs, 256);
+        Assert.assertEquals("Unexpected word rows", 3, countWordRows());
+        assertWord(1, 1, 0x11L);
+        assertWord(4 + 19 / 4, 19 % 4, 0x22L);
+        assertWord(12, 2, 0x33L);
+    }
+
+    @Test
+    public void testCatchUpFollowsChanges() throws Exception {
+        cidrDef("10.0.0.0/21", 0, 1024);
+        storeBits(0, 1024, 56);
+
+        BlockReblocking.Plan plan = blockReblocking.plan(256);
+        blockReblocking.copy(plan);
+
+        // Changed, and added, while copying.
+        CidrBitBlock changed = new CidrBitBlock();
+        blockService.setBlockWords(changed, words(1024, 57));
+        jdbcTemplate.update(
+                "UPDATE CIDR_BIT_BLOCK SET ENCODED_BITS = ?, VERSION = VERSION + 1 WHERE ID = 0", changed.getEncodedBits()
+        );
+        storeBits(1, 1024, 1000);
+
+        Assert.assertEquals("Changes not found", 2, blockReblocking.catchUp(plan));
+        Assert.assertEquals("Changes found twice", 0, blockReblocking.catchUp(plan));
+        blockReblocking.promote(plan);
+
+        assertBits(0, 256, 57);
+        assertBits(7, 256, 232);
+        Assert.assertEquals("Unexpected stored blocks", 2, countRows());
+    }
+
+    @Test
+    public void testPoolAddedWhileCopyingRefused() throws Exception {
+        cidrDef("10.0.0.0/22", 0, 1024);
+        storeBits(0, 1024, 56);
+
+        BlockReblocking.Plan plan = blockReblocking.plan(256);
+        blockReblocking.copy(plan);
+        // Its blocks would be laid over by the new layout.
+        cidrDef("10.1.0.0/22", 1, 1024);
+        try {
+            blockReblocking.promote(plan);
+            Assert.fail("Promoted over a pool not planned for");
+        } catch (IllegalStateException expected) {
+            // Expected.
+        }
+        blockReblocking.abandon();
+        assertBits(0, 1024, 56);
+    }
+
+    @Test
+    public void testAbandonLeavesBlocks() throws Exception {
+        cidrDef("10.0.0.0/22", 0, 1024);
+        storeBits(0, 1024, 56);
+
+        BlockReblocking.Plan plan = blockReblocking.plan(256);
+        blockReblocking.copy(plan);
+        blockReblocking.abandon();
+
+        Assert.assertEquals("Shadow blocks left behind", 1, countRows());
+        assertBits(0, 1024, 56);
+    }
+
+    private CidrDef cidrDef(String cidr, int firstBlock, int blockSize) {
+        CidrDef cidrDef = new CidrDef();
+        cidrDef.setCidr(cidr);
+        cidrDef.setFirstBlock(firstBlock);
+        cidrDef.setBlockSize(blockSize);
+        cidrDefs.add(cidrDef);
+        return cidrDef;
+    }
+
+    private void storeBits(int blockNum, int blockSize, int... offsets) {
+        CidrBitBlock bitBlock = new CidrBitBlock();
+        blockService.setBlockWords(bitBlock, words(blockSize, offsets));
+        jdbcTemplate.update(
+                "INSERT INTO CIDR_BIT_BLOCK (ID, ENCODED_BITS, RAW_BITS) VALUES (?, ?, ?)",
+                blockNum, bitBlock.getEncodedBits(), bitBlock.getRawBits()
+        );
+    }
+
+    private void assertBits(int blockNum, int blockSize, int... offsets) {
+        List<CidrBitBlock> found = jdbcTemplate.query("SELECT * FROM CIDR_BIT_BLOCK WHERE ID = ?", BLOCK_MAPPER, blockNum);
+        Assert.assertEquals("Block not stored: " + blockNum, 1, found.size());
+        long[] words = blockService.getBlockWords(found.get(0), BitWords.wordCount(blockSize));
+        Assert.assertArrayEquals("Unexpected bits in block " + blockNum, words(blockSize, offsets), words);
+    }
+
+    private void storeWord(int blockNum, int wordIndex, long bits) {
+        jdbcTemplate.update("INSERT INTO CIDR_BIT_WORD (BLOCK_ID, WORD_INDEX, BITS) VALUES (?, ?, ?)", blockNum, wordIndex, bits);
+    }
+
+    private void assertWord(int blockNum, int wordIndex, long bits) {
+        List<Long> found = jdbcTemplate.queryForList(
+                "SELECT BITS FROM CIDR_BIT_WORD WHERE BLOCK_ID = ? AND WORD_INDEX = ?", Long.class, blockNum, wordIndex
+        );
+        Assert.assertEquals("Unexpected word " + wordIndex + " of block " + blockNum, Collections.singletonList(bits), found);
+    }
+
+    private int countWordRows() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM CIDR_BIT_WORD", Integer.class);
+    }
+
+    private int countRows() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM CIDR_BIT_BLOCK", Integer.class);
+    }
+
+    private static long[] words(int blockSize, int... offsets) {
+        long[] words = new long[BitWords.wordCount(blockSize)];
+        for (int offset : offsets) {
+            BitWords.set(words, offset, true);
+        }
+        return words;
+    }
+}
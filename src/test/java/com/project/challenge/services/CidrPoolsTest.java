@@ -0,0 +1,77 @@
+package com.project.challenge.services;
+
+import com.project.challenge.model.CIDR;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Shaking down lookups over many CIDR blocks.
+ */
+public class CidrPoolsTest {
+    private Ipv4ConversionService conversionService = new Ipv4ConversionServiceImpl();
+    private IpBlockService blockService = new IpBlockServiceImpl(conversionService);
+
+    @Test
+    public void findsPoolOfEveryAddress() throws Exception {
+        CidrPools cidrPools = CidrPools.EMPTY;
+        // Added out of address order, to be sure lookups do not rely on it.
+        for (int i = 999; i >= 0; i--) {
+            CIDR cidrBlock = conversionService.toCidr(String.format("10.%d.%d.0/24", i / 256, i % 256));
+            cidrPools = cidrPools.with(cidrBlock, blockService.getBlockCount(cidrBlock));
+        }
+        Assert.assertEquals("Unexpected block count", 1000, cidrPools.getBlockCount());
+
+        for (int i = 0; i < 1000; i++) {
+            String prefix = String.format("10.%d.%d.", i / 256, i % 256);
+            CIDR found = cidrPools.findByAddress(address(prefix + "1"));
+            Assert.assertNotNull("No pool for " + prefix, found);
+            Assert.assertEquals("Wrong pool", prefix + "0/24", found.getCidrBlockNotation());
+            Assert.assertSame("Wrong pool for block", found, cidrPools.findByBlock(found.getFirstBlock()));
+            Assert.assertSame("Wrong pool for last address", found, cidrPools.findByAddress(address(prefix + "254")));
+            // Network and broadcast addresses are not managed.
+            Assert.assertNull("Pool found for network address", cidrPools.findByAddress(address(prefix + "0")));
+            Assert.assertNull("Pool found for broadcast address", cidrPools.findByAddress(address(prefix + "255")));
+        }
+        Assert.assertNull("Pool found beyond all pools", cidrPools.findByAddress(address("11.0.0.1")));
+        Assert.assertNull("Pool found before all pools", cidrPools.findByAddress(address("9.255.255.254")));
+        Assert.assertNull("Pool found beyond all blocks", cidrPools.findByBlock(1000));
+    }
+
+    @Test
+    public void overlappingPoolRefused() throws Exception {
+        CIDR cidrBlock = conversionService.toCidr("10.0.4.0/22");
+        CidrPools cidrPools = CidrPools.EMPTY.with(cidrBlock, blockService.getBlockCount(cidrBlock));
+        for (String overlapping : new String[] { "10.0.0.0/16", "10.0.5.0/24", "10.0.4.0/22" }) {
+            try {
+                cidrPools.with(conversionService.toCidr(overlapping), 1);
+                Assert.fail("Overlapping pool added: " + overlapping);
+            } catch (CidrExistsException expected) {
+                // Expected outcome.
+            }
+        }
+        CIDR adjacent = conversionService.toCidr("10.0.8.0/24");
+        cidrPools = cidrPools.with(adjacent, blockService.getBlockCount(adjacent));
+        Assert.assertEquals("Unexpected first block", 1, adjacent.getFirstBlock());
+        Assert.assertSame("Unexpected pool", adjacent, cidrPools.findByNotation("10.0.8.0/24"));
+    }
+
+    @Test
+    public void findsPoolByAnyNotationOfItsBlock() throws Exception {
+        CIDR cidrBlock = conversionService.toCidr("10.0.0.0/24");
+        CIDR other = conversionService.toCidr("10.1.0.0/16");
+        CidrPools cidrPools = CidrPools.EMPTY.with(cidrBlock, blockService.getBlockCount(cidrBlock))
+                .with(other, blockService.getBlockCount(other));
+
+        for (String notation : new String[] { "10.0.0.0/24", "10.0.0.1/24", "10.0.0.255/24", " 10.0.0.0/24 ", "010.000.000.000/24" }) {
+            Assert.assertSame("Pool not found by " + notation, cidrBlock, cidrPools.findByNotation(notation));
+        }
+        Assert.assertSame("Pool not found by host address", other, cidrPools.findByNotation("10.1.2.3/16"));
+        for (String notation : new String[] { "10.0.0.0/25", "10.0.0.0/23", "10.0.1.0/24", "10.0.0.0", "nonsense", "", null }) {
+            Assert.assertNull("Pool found by " + notation, cidrPools.findByNotation(notation));
+        }
+    }
+
+    private long address(String ipAddr) throws InvalidFormatException {
+        return conversionService.getIpAsLong(ipAddr);
+    }
+}
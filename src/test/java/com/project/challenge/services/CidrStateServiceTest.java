@@ -0,0 +1,233 @@
+package com.project.challenge.services;
+
+import com.project.challenge.entities.CidrDef;
+import com.project.challenge.repositories.BlockRepository;
+import com.project.challenge.repositories.CidrDefRepository;
+import org.junit.Assert;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Shaking down the caching of CIDR blocks: the database is asked only when nothing current is held.
+ */
+public class CidrStateServiceTest {
+    private CidrDefRepository cidrDefRepository;
+    private BlockRepository blockRepository;
+    private BlockReblocking blockReblocking;
+    private BitBlockStore blockStore;
+    private CidrStateServiceImpl service;
+    private List<CidrDef> storedDefs;
+
+    @BeforeEach
+    public void setup() {
+        storedDefs = new ArrayList<>();
+        cidrDefRepository = Mockito.mock(CidrDefRepository.class);
+        Mockito.when(cidrDefRepository.findAll()).thenAnswer(invocation -> new ArrayList<>(storedDefs));
+        Mockito.when(cidrDefRepository.save(Mockito.any(CidrDef.class))).thenAnswer(invocation -> {
+            storedDefs.add(invocation.getArgument(0));
+            return invocation.getArgument(0);
+        });
+        blockRepository = Mockito.mock(BlockRepository.class);
+        blockReblocking = Mockito.mock(BlockReblocking.class);
+        blockStore = Mockito.mock(BitBlockStore.class);
+        Mockito.when(blockStore.canReblockAtStartup()).thenReturn(true);
+        Ipv4ConversionService conversionService = new Ipv4ConversionServiceImpl();
+        service = new CidrStateServiceImpl(
+                conversionService, new IpBlockServiceImpl(conversionService), blockRepository, cidrDefRepository, blockReblocking,
+                Mockito.mock(PlatformTransactionManager.class), blockStoreProvider(blockStore)
+        );
+    }
+
+    @Test
+    public void testEmptyRememberedForAWhile() throws Exception {
+        service.setEmptyRetentionMs(60_000);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertFalse("Populated from nothing", service.isPopulated());
+        }
+        Mockito.verify(cidrDefRepository, Mockito.times(1)).findAll();
+
+        // Added elsewhere: not seen until asked for.
+        storedDefs.add(cidrDef("10.0.0.0/8", 0));
+        Assert.assertFalse("Empty not remembered", service.isPopulated());
+        Assert.assertEquals("Refresh missed CIDR block", 1, service.refresh().getCidrBlocks().size());
+        Assert.assertTrue("Refreshed CIDR block not kept", service.isPopulated());
+        Mockito.verify(cidrDefRepository, Mockito.times(2)).findAll();
+    }
+
+    @Test
+    public void testEmptyForgottenInTime() throws Exception {
+        service.setEmptyRetentionMs(0);
+        Assert.assertFalse("Populated from nothing", service.isPopulated());
+        storedDefs.add(cidrDef("10.0.0.0/8", 0));
+        Thread.sleep(1);
+        Assert.assertTrue("Stale empty kept", service.isPopulated());
+        Mockito.verify(cidrDefRepository, Mockito.times(2)).findAll();
+    }
+
+    @Test
+    public void testAddedCidrBlockNeedsNoLoad() throws Exception {
+        service.addCidrBlock("10.0.0.0/8");
+        service.addCidrBlock("192.168.0.0/16");
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals("Unexpected CIDR blocks", 2, service.getCidrPools().getCidrBlocks().size());
+        }
+        // Each add reads the pools as recorded, under the layout lock; nothing else does.
+        Mockito.verify(cidrDefRepository, Mockito.times(2)).lockLayout();
+        Mockito.verify(cidrDefRepository, Mockito.times(2)).findAll();
+        Mockito.verify(cidrDefRepository, Mockito.times(2)).save(Mockito.any(CidrDef.class));
+        // Sparse by default.
+        Mockito.verifyZeroInteractions(blockRepository);
+    }
+
+    @Test
+    public void testAddGoesByRecordedPools() throws Exception {
+        Assert.assertFalse("Populated from nothing", service.isPopulated());
+        // Added elsewhere, since loaded.
+        storedDefs.add(cidrDef("10.0.0.0/8", 0));
+
+        try {
+            service.addCidrBlock("10.1.0.0/16");
+            Assert.fail("Added over a recorded CIDR block");
+        } catch (CidrExistsException expected) {
+            // Expected.
+        }
+        Mockito.verify(cidrDefRepository, Mockito.never()).save(Mockito.any(CidrDef.class));
+
+        service.addCidrBlock("192.168.0.0/16");
+        Mockito.verify(cidrDefRepository).save(Mockito.argThat(cidrDef -> cidrDef.getFirstBlock() == 16384));
+        Assert.assertEquals("Recorded CIDR block not held", 2, service.getCidrPools().getCidrBlocks().size());
+    }
+
+    @Test
+    public void testMissRefreshesNoMoreThanAllowed() throws Exception {
+        storedDefs.add(cidrDef("10.0.0.0/8", 0));
+        service.setMissRefreshMs(60_000);
+        Assert.assertTrue("Not populated", service.isPopulated());
+        storedDefs.add(cidrDef("192.168.0.0/16", 16384));
+        for (int i = 0; i < 100; i++) {
+            Assert.assertNull("Refreshed too soon", service.refreshAfterMiss().findByNotation("192.168.0.0/16"));
+        }
+        Mockito.verify(cidrDefRepository, Mockito.times(1)).findAll();
+
+        service.setMissRefreshMs(0);
+        Assert.assertNotNull("Miss did not refresh", service.refreshAfterMiss().findByNotation("192.168.0.0/16"));
+        Mockito.verify(cidrDefRepository, Mockito.times(2)).findAll();
+    }
+
+    @Test
+    public void testPoolsStoredAtOtherSizeReblockedAtStartup() throws Exception {
+        service.setEmptyRetentionMs(60_000);
+        storedDefs.add(cidrDef("10.0.0.0/8", 0));
+        CidrDef storedSmaller = cidrDef("192.168.0.0/16", 16384);
+        storedSmaller.setBlockSize(256);
+        storedDefs.add(storedSmaller);
+        Mockito.when(blockReblocking.reblock(Mockito.anyCollection(), Mockito.eq(1024)))
+                .thenAnswer(invocation -> {
+                    storedDefs.clear();
+                    storedDefs.addAll(Arrays.asList(cidrDef("10.0.0.0/8", 0), cidrDef("192.168.0.0/16", 16384)));
+                    return new ArrayList<>(storedDefs);
+                });
+
+        // Not loaded by the old layout, nor re-blocked on first use.
+        Assert.assertFalse("Loaded before re-blocking", service.isPopulated());
+        try {
+            service.addCidrBlock("172.16.0.0/16");
+            Assert.fail("Added by the old layout");
+        } catch (IllegalStateException expected) {
+            // Expected.
+        }
+        Mockito.verifyZeroInteractions(blockReblocking);
+
+        service.reblockAtStartup();
+        Mockito.verify(blockReblocking, Mockito.times(1)).reblock(Mockito.anyCollection(), Mockito.eq(1024));
+        Assert.assertEquals("Unexpected block count", 16384 + 64, service.getCidrPools().getBlockCount());
+
+        // Recorded at the configured size: left as they are.
+        service.reblockAtStartup();
+        Mockito.verify(blockReblocking, Mockito.times(1)).reblock(Mockito.anyCollection(), Mockito.anyInt());
+    }
+
+    @Test
+    public void testReblockFailureFailsStartup() throws Exception {
+        CidrDef storedSmaller = cidrDef("192.168.0.0/16", 0);
+        storedSmaller.setBlockSize(256);
+        storedDefs.add(storedSmaller);
+        Mockito.when(blockReblocking.reblock(Mockito.anyCollection(), Mockito.anyInt()))
+                .thenThrow(new IllegalStateException("Disk full"));
+        try {
+            service.reblockAtStartup();
+            Assert.fail("Re-blocking failure swallowed");
+        } catch (IllegalStateException expected) {
+            Assert.assertEquals("Unexpected failure", "Disk full", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void testSharedStoreReblockedOnlyWithPeersStopped() throws Exception {
+        CidrDef storedSmaller = cidrDef("192.168.0.0/16", 0);
+        storedSmaller.setBlockSize(256);
+        storedDefs.add(storedSmaller);
+        Mockito.when(blockStore.isShared()).thenReturn(true);
+        try {
+            service.reblockAtStartup();
+            Assert.fail("Re-blocked under other applications");
+        } catch (IllegalStateException expected) {
+            // Expected.
+        }
+        Mockito.verifyZeroInteractions(blockReblocking);
+
+        service.setPeersStopped(true);
+        service.reblockAtStartup();
+        Mockito.verify(blockReblocking, Mockito.times(1)).reblock(Mockito.anyCollection(), Mockito.eq(1024));
+    }
+
+    @Test
+    public void testLoadFailureKeepsPoolsHeld() throws Exception {
+        storedDefs.add(cidrDef("10.0.0.0/8", 0));
+        Assert.assertTrue("Not populated", service.isPopulated());
+        Mockito.when(cidrDefRepository.findAll()).thenThrow(new IllegalStateException("Connection refused"));
+        Assert.assertEquals("Pools held lost on failing to load", 1, service.refresh().getCidrBlocks().size());
+    }
+
+    /**
+     * As Spring gives the block store, once it is built.
+     */
+    @SuppressWarnings("unchecked")
+    static ObjectProvider<BitBlockStore> blockStoreProvider(BitBlockStore blockStore) {
+        ObjectProvider<BitBlockStore> blockStoreProvider = Mockito.mock(ObjectProvider.class);
+        Mockito.when(blockStoreProvider.getObject()).thenReturn(blockStore);
+        return blockStoreProvider;
+    }
+
+    /**
+     * Pools recorded one after another, at the block size given.
+     */
+    static CidrDefRepository recordedPools(int blockSize, int blocksEach, String... cidrs) {
+        List<CidrDef> cidrDefs = new ArrayList<>();
+        for (String cidr : cidrs) {
+            CidrDef cidrDef = new CidrDef();
+            cidrDef.setCidr(cidr);
+            cidrDef.setFirstBlock(cidrDefs.size() * blocksEach);
+            cidrDef.setBlockSize(blockSize);
+            cidrDefs.add(cidrDef);
+        }
+        CidrDefRepository cidrDefRepository = Mockito.mock(CidrDefRepository.class);
+        Mockito.when(cidrDefRepository.findAll()).thenAnswer(invocation -> new ArrayList<>(cidrDefs));
+        return cidrDefRepository;
+    }
+
+    private CidrDef cidrDef(String cidr, int firstBlock) {
+        CidrDef cidrDef = new CidrDef();
+        cidrDef.setCidr(cidr);
+        cidrDef.setFirstBlock(firstBlock);
+        cidrDef.setBlockSize(1024);
+        return cidrDef;
+    }
+}
@@ -0,0 +1,132 @@
+package com.project.challenge.services;
+
+import com.project.challenge.entities.CidrBitBlock;
+import com.project.challenge.model.CIDR;
+import com.project.challenge.repositories.BlockRepository;
+import org.junit.Assert;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shaking down the write-behind block store.
+ */
+public class InMemoryBitBlockStoreTest {
+    private static final String CIDR_FOR_TEST = "10.0.0.0/22";
+
+    private IpBlockService blockService = new IpBlockServiceImpl(new Ipv4ConversionServiceImpl());
+    private BlockRepository blockRepository;
+    private InMemoryBitBlockStore store;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        CidrStateService cidrStateService = Mockito.mock(CidrStateService.class);
+        Mockito.when(cidrStateService.isPopulated()).thenReturn(true);
+        CIDR cidrBlock = new Ipv4ConversionServiceImpl().toCidr(CIDR_FOR_TEST);
+        Mockito.when(cidrStateService.getCidrPools()).thenReturn(CidrPools.EMPTY.with(cidrBlock, blockService.getBlockCount(cidrBlock)));
+
+        CidrBitBlock storedBlock = new CidrBitBlock();
+        storedBlock.setId(0);
+        storedBlock.setEncodedBits("AAAAAAAAAAE=");
+        blockRepository = Mockito.mock(BlockRepository.class);
+        Mockito.when(blockRepository.findAll()).thenReturn(Collections.singletonList(storedBlock));
+
+        store = new InMemoryBitBlockStore(
+                cidrStateService,
+                blockService,
+                blockRepository,
+                Mockito.mock(PlatformTransactionManager.class),
+                new BlockLockStripes(16)
+        );
+        store.setFlushIntervalMs(60_000);
+        store.start();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        store.stop();
+    }
+
+    @Test
+    public void testLoadFillsMissingBlocks() {
+        List<Integer> visited = new ArrayList<>();
+        store.forEachBlock((blockNum, words) -> {
+            visited.add(blockNum);
+            Assert.assertEquals("Unexpected block length", blockService.getWordsPerBlock(), words.length);
+            Assert.assertEquals("Unexpected stored bit", blockNum == 0, BitWords.get(words, 56));
+        });
+        Assert.assertEquals("Unexpected block count", 1, visited.size());
+    }
+
+    @Test
+    public void testUpdatesServedFromMemoryAndFlushedOnce() throws Exception {
+        store.updateBlock(0, words -> { BitWords.set(words, 3, true); return null; });
+        store.updateBlock(0, words -> { BitWords.set(words, 4, true); return null; });
+        Mockito.verify(blockRepository, Mockito.never()).findById(Mockito.anyInt());
+        Mockito.verify(blockRepository, Mockito.never()).saveAll(Mockito.any());
+
+        store.flush();
+        store.flush();
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<CidrBitBlock>> saved = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(blockRepository, Mockito.times(1)).saveAll(saved.capture());
+        Assert.assertEquals("Unexpected flushed block count", 1, saved.getValue().size());
+        long[] flushedWords = blockService.decodeBlock(saved.getValue().get(0).getEncodedBits());
+        Assert.assertTrue("Flushed bits lost", BitWords.get(flushedWords, 3) && BitWords.get(flushedWords, 4));
+        Assert.assertTrue("Loaded bit lost", BitWords.get(flushedWords, 56));
+    }
+
+    @Test
+    public void testConcurrentAcquiresNeverDoubleAllocate() throws Exception {
+        final int bitsToClaim = 512;
+        final int threadCount = 8;
+        AtomicInteger successes = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            executor.execute(() -> {
+                for (int bit = 0; bit < bitsToClaim; bit++) {
+                    final int claimed = bit;
+                    try {
+                        store.updateBlock(0, words -> {
+                            if (BitWords.get(words, claimed)) {
+                                throw new IpStateServiceException(new IllegalArgumentException("Already acquired"));
+                            }
+                            BitWords.set(words, claimed, true);
+                            return null;
+                        });
+                        successes.incrementAndGet();
+                    } catch (IpStateServiceException expected) {
+                        // Another thread got there first.
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        Assert.assertTrue("Threads did not finish", executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        // Bit 56 was already set by the stored block.
+        Assert.assertEquals("Double allocation (or lost update) detected", bitsToClaim - 1, successes.get());
+    }
+
+    @Test
+    public void testUpdateBeyondLastBlockFails() {
+        try {
+            store.updateBlock(5, words -> null);
+            Assert.fail("Update beyond last block succeeded.");
+        } catch (IpStateServiceException expected) {
+            // Expected outcome.
+        }
+    }
+}
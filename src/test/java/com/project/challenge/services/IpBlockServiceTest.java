@@ -1,5 +1,6 @@
 package com.project.challenge.services;
 
+import com.project.challenge.entities.CidrBitBlock;
 import com.project.challenge.model.CIDR;
 import com.project.challenge.model.IpBlockDescriptor;
 import org.apache.logging.log4j.LogManager;
@@ -100,6 +101,58 @@ public class IpBlockServiceTest {
         Assert.assertEquals("Unexpected blocknum", 63, beyondDescriptor.getBlockNum());
     }
 
+    @Test
+    public void primitiveRangeCheckAndBlockMath() throws Exception {
+        IpBlockService blockService = getBlockService();
+        Assert.assertTrue("First address not contained", largeCidr.contains((int) conversionService.getIpAsLong("72.10.0.1")));
+        Assert.assertTrue("Last address not contained", largeCidr.contains((int) conversionService.getIpAsLong("72.10.255.254")));
+        Assert.assertFalse("Network address contained", largeCidr.contains((int) conversionService.getIpAsLong("72.10.0.0")));
+        Assert.assertFalse("Broadcast address contained", largeCidr.contains((int) conversionService.getIpAsLong("72.10.255.255")));
+        Assert.assertFalse("Far address contained", largeCidr.contains((int) conversionService.getIpAsLong("200.10.0.1")));
+
+        for (String ipAddr : new String[] { "72.10.0.1", "72.10.4.0", "72.10.4.1", "72.10.200.17", "72.10.255.254" }) {
+            IpBlockDescriptor descriptor = blockService.getBitBlockDescriptor(largeCidr, ipAddr);
+            long offset = largeCidr.offsetOf((int) conversionService.getIpAsLong(ipAddr));
+            Assert.assertEquals("Unexpected block of " + ipAddr, offset / 1024, blockService.getBlockNum(largeCidr, offset));
+            Assert.assertEquals("Unexpected offset of " + ipAddr, offset % 1024, blockService.getBlockOffset(offset));
+            Assert.assertEquals("Descriptor disagrees for " + ipAddr, descriptor.getBlockNum(), blockService.getBlockNum(largeCidr, offset));
+        }
+    }
+
+    @Test
+    public void binaryFormatRoundTrip() throws Exception {
+        IpBlockServiceImpl blockService = new IpBlockServiceImpl(conversionService);
+        blockService.setBlockFormat("binary");
+        long[] words = new long[blockService.getWordsPerBlock()];
+        words[0] = 1L << 56;
+        words[words.length - 1] = Long.MIN_VALUE;
+
+        CidrBitBlock bitBlock = new CidrBitBlock();
+        bitBlock.setEncodedBits("AAAAAAAAAAE=");
+        blockService.setBlockWords(bitBlock, words);
+
+        Assert.assertNull("Base64 form left behind", bitBlock.getEncodedBits());
+        Assert.assertEquals("Unexpected raw size", words.length * Long.BYTES, bitBlock.getRawBits().length);
+        Assert.assertArrayEquals("Words changed by round trip", words, blockService.getBlockWords(bitBlock));
+    }
+
+    @Test
+    public void base64BlocksReadableInBinaryFormat() throws Exception {
+        IpBlockServiceImpl blockService = new IpBlockServiceImpl(conversionService);
+        blockService.setBlockFormat("binary");
+        CidrBitBlock bitBlock = new CidrBitBlock();
+        bitBlock.setEncodedBits("AAAAAAAAAAE=");
+
+        long[] words = blockService.getBlockWords(bitBlock);
+        Assert.assertEquals("Unexpected word count", blockService.getWordsPerBlock(), words.length);
+        Assert.assertEquals("Unexpected bits decoded", 1L << 56, words[0]);
+        Assert.assertArrayEquals(
+                "Raw and base64 forms disagree",
+                blockService.unpackBlock(blockService.packBlock(words)),
+                blockService.decodeBlock(blockService.encodeBlock(words))
+        );
+    }
+
     private IpBlockService getBlockService() throws InvalidFormatException {
         Ipv4ConversionService ics = new Ipv4ConversionServiceImpl();
         IpBlockService service = new IpBlockServiceImpl(ics);
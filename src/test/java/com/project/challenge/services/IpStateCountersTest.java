@@ -0,0 +1,49 @@
+package com.project.challenge.services;
+
+import com.project.challenge.model.CIDR;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Shaking down the running counts behind stats.
+ */
+public class IpStateCountersTest {
+    private Ipv4ConversionService conversionService = new Ipv4ConversionServiceImpl();
+
+    @Test
+    public void poolsSharingPrefix() throws Exception {
+        // Two small pools within one /24, and one spanning blocks and several /24s.
+        CIDR first = conversionService.toCidr("192.168.1.0/26");
+        CIDR second = conversionService.toCidr("192.168.1.64/26");
+        CIDR third = conversionService.toCidr("10.0.0.0/21");
+        CidrPools cidrPools = CidrPools.EMPTY.with(first, 1).with(second, 1).with(third, 2);
+
+        IpStateCounters counters = new IpStateCounters(cidrPools, 1024, 24);
+        Assert.assertEquals("Unexpected prefix count", 9, counters.getPrefixCount());
+        Assert.assertEquals("Unexpected shared prefix", "192.168.1.0",
+                conversionService.getLongAsIp(counters.getPrefixAddr(8)));
+        Assert.assertEquals("Unexpected shared prefix size", 62 + 62, counters.getPrefixManaged(8));
+        Assert.assertEquals("Unexpected total", 62 + 62 + 2046, counters.getTotalManaged());
+
+        long[] words = new long[16];
+        BitWords.setRange(words, 0, 62);
+        counters.setAcquiredCounts(first.getFirstBlock(), words, 62);
+        counters.setAcquiredCounts(second.getFirstBlock(), BitContainers.compact(words), 62);
+        // Setting again from the same content counts nothing more.
+        counters.setAcquiredCounts(second.getFirstBlock(), words, 62);
+        Assert.assertEquals("Unexpected shared prefix acquired", 124, counters.getPrefixAcquired(8));
+
+        words = new long[16];
+        // 10.0.0.255 and 10.0.1.0: offsets 254 and 255 of the first block.
+        BitWords.setRange(words, 254, 256);
+        counters.setAcquiredCounts(third.getFirstBlock(), words, 1024);
+        Assert.assertEquals(1, counters.getPrefixAcquired(0));
+        Assert.assertEquals(1, counters.getPrefixAcquired(1));
+        Assert.assertEquals("Unexpected total acquired", 126, counters.getTotalAcquired());
+
+        words = new long[16];
+        counters.setAcquiredCounts(first.getFirstBlock(), words, 62);
+        Assert.assertEquals("Unexpected pool acquired", 0, counters.getCidrAcquired(counters.getCidrBlocks().indexOf(first)));
+        Assert.assertEquals("Unexpected total acquired", 64, counters.getTotalAcquired());
+    }
+}
@@ -0,0 +1,468 @@
+package com.project.challenge.services;
+
+import com.project.challenge.model.CIDR;
+import com.project.challenge.model.IpBatchOutcome;
+import com.project.challenge.model.IpCheckoutState;
+import com.project.challenge.model.IpBatchResult;
+import com.project.challenge.model.IpRange;
+import com.project.challenge.model.IpReport;
+import com.project.challenge.model.IpStateEntry;
+import com.project.challenge.model.IpStatePage;
+import com.project.challenge.model.IpStats;
+import com.project.challenge.model.IpUsage;
+import com.project.challenge.repositories.BlockRepository;
+import org.junit.Assert;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.domain.Pageable;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Shaking down the state service, over an in-memory block store.
+ */
+public class IpStateServiceTest {
+    // Exclusive range: 10.0.0.1 .. 10.0.7.254, spanning two blocks.
+    private static final String CIDR_FOR_TEST = "10.0.0.0/21";
+    private static final String FIRST_IP = "10.0.0.1";
+    private static final String SECOND_IP = "10.0.0.2";
+    private static final String LAST_IP = "10.0.7.254";
+
+    private InMemoryBitBlockStore store;
+    private IpStateService service;
+    private IpBlockService blockService;
+    private Ipv4ConversionService conversionService;
+    private CidrPools cidrPools;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        conversionService = new Ipv4ConversionServiceImpl();
+        blockService = new IpBlockServiceImpl(conversionService);
+        CIDR cidrBlock = conversionService.toCidr(CIDR_FOR_TEST);
+        cidrPools = CidrPools.EMPTY.with(cidrBlock, blockService.getBlockCount(cidrBlock));
+        CidrStateService cidrStateService = Mockito.mock(CidrStateService.class);
+        Mockito.when(cidrStateService.isPopulated()).thenReturn(true);
+        Mockito.when(cidrStateService.getCidrPools()).thenAnswer(invocation -> cidrPools);
+        Mockito.when(cidrStateService.refreshAfterMiss()).thenAnswer(invocation -> cidrPools);
+        BlockRepository blockRepository = Mockito.mock(BlockRepository.class);
+        Mockito.when(blockRepository.findAll()).thenReturn(Collections.emptyList());
+
+        store = new InMemoryBitBlockStore(
+                cidrStateService,
+                blockService,
+                blockRepository,
+                Mockito.mock(PlatformTransactionManager.class),
+                new BlockLockStripes(16)
+        );
+        store.setFlushIntervalMs(60_000);
+        store.start();
+        service = new IpStateServiceImpl(
+                conversionService, cidrStateService, blockService, store, Mockito.mock(BlockReblocking.class)
+        );
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        store.stop();
+    }
+
+    @Test
+    public void testAcquireTwiceFails() throws Exception {
+        service.setIpStateAcquired(FIRST_IP);
+        try {
+            service.setIpStateAcquired(FIRST_IP);
+            Assert.fail("Acquired the same IP address twice.");
+        } catch (IpStateServiceException expected) {
+            // Expected outcome.
+        }
+    }
+
+    @Test
+    public void testPrimitiveAcquireAndRelease() throws Exception {
+        int lastAddress = (int) conversionService.getIpAsLong(LAST_IP);
+        service.acquire(lastAddress);
+        try {
+            service.setIpStateAcquired(LAST_IP);
+            Assert.fail("Acquired same IP address twice.");
+        } catch (IpStateServiceException expected) {
+            // Expected outcome.
+        }
+        service.release(lastAddress);
+        service.setIpStateAcquired(LAST_IP);
+
+        for (String unmanaged : Arrays.asList("10.0.0.0", "10.0.7.255", "9.255.255.255", "255.255.255.255")) {
+            try {
+                service.acquire((int) conversionService.getIpAsLong(unmanaged));
+                Assert.fail("Acquired unmanaged IP address " + unmanaged);
+            } catch (IpStateServiceException expected) {
+                // Expected outcome.
+            }
+        }
+    }
+
+    @Test
+    public void testReleaseOfFreeIpLeavesItFree() throws Exception {
+        service.setIpStateReleased(FIRST_IP);
+        Assert.assertEquals("Released IP address not free", FIRST_IP, service.acquireNextIp());
+    }
+
+    @Test
+    public void testAcquireNextSkipsAcquired() throws Exception {
+        service.setIpStateAcquired(FIRST_IP);
+        Assert.assertEquals("Unexpected next IP", SECOND_IP, service.acquireNextIp());
+
+        service.setIpStateReleased(FIRST_IP);
+        Assert.assertEquals("Released IP not reused", FIRST_IP, service.acquireNextIp());
+    }
+
+    @Test
+    public void testAcquireNextUntilExhausted() throws Exception {
+        String lastAcquired = null;
+        for (int i = 0; i < 2046; i++) {
+            lastAcquired = service.acquireNextIp();
+        }
+        Assert.assertEquals("Unexpected final IP", LAST_IP, lastAcquired);
+        try {
+            service.acquireNextIp();
+            Assert.fail("Acquired beyond end of CIDR block.");
+        } catch (IpPoolExhaustedException expected) {
+            // Expected outcome.
+        }
+    }
+
+    @Test
+    public void testBatchAcquireReportsEachIp() throws Exception {
+        service.setIpStateAcquired(SECOND_IP);
+        List<IpBatchResult> results = service.setIpStatesAcquired(
+                Arrays.asList(FIRST_IP, SECOND_IP, LAST_IP, "10.1.0.1", "TEST"), false
+        );
+        Assert.assertEquals(IpBatchOutcome.ACQUIRED, results.get(0).getOutcome());
+        Assert.assertEquals(IpBatchOutcome.ALREADY_ACQUIRED, results.get(1).getOutcome());
+        Assert.assertEquals(IpBatchOutcome.ACQUIRED, results.get(2).getOutcome());
+        Assert.assertEquals(IpBatchOutcome.INVALID, results.get(3).getOutcome());
+        Assert.assertEquals(IpBatchOutcome.INVALID, results.get(4).getOutcome());
+        Assert.assertEquals("Unexpected next IP", "10.0.0.3", service.acquireNextIp());
+    }
+
+    @Test
+    public void testAllOrNothingBatchChangesNothingOnConflict() throws Exception {
+        service.setIpStateAcquired(LAST_IP);
+        List<IpBatchResult> results = service.setIpStatesAcquired(Arrays.asList(FIRST_IP, SECOND_IP, LAST_IP), true);
+        Assert.assertEquals(IpBatchOutcome.NOT_APPLIED, results.get(0).getOutcome());
+        Assert.assertEquals(IpBatchOutcome.NOT_APPLIED, results.get(1).getOutcome());
+        Assert.assertEquals(IpBatchOutcome.ALREADY_ACQUIRED, results.get(2).getOutcome());
+        Assert.assertEquals("Batch partially applied", FIRST_IP, service.acquireNextIp());
+
+        results = service.setIpStatesReleased(Arrays.asList(FIRST_IP, LAST_IP), true);
+        Assert.assertTrue(
+                "Release batch not applied",
+                results.stream().allMatch(result -> result.getOutcome() == IpBatchOutcome.RELEASED)
+        );
+        Assert.assertEquals("Released IP not reused", FIRST_IP, service.acquireNextIp());
+    }
+
+    @Test
+    public void testRangeCrossesBlockBoundary() throws Exception {
+        // 10.0.3.251 is offset 1018 of block zero; a run of ten ends in block one.
+        IpRange range = service.acquireIpRange(10, "10.0.3.251");
+        Assert.assertEquals("Unexpected first IP", "10.0.3.251", range.getFirstIp());
+        Assert.assertEquals("Unexpected last IP", "10.0.4.4", range.getLastIp());
+
+        List<IpBatchResult> results = service.setIpStatesAcquired(Arrays.asList("10.0.3.251", "10.0.4.4"), false);
+        Assert.assertTrue(
+                "Run not fully acquired",
+                results.stream().allMatch(result -> result.getOutcome() == IpBatchOutcome.ALREADY_ACQUIRED)
+        );
+    }
+
+    @Test
+    public void testRangeSkipsShortRuns() throws Exception {
+        service.setIpStatesAcquired(Arrays.asList("10.0.0.4", "10.0.0.9"), false);
+        IpRange range = service.acquireIpRange(5, null);
+        Assert.assertEquals("Unexpected first IP", "10.0.0.10", range.getFirstIp());
+        Assert.assertEquals("Unexpected last IP", "10.0.0.14", range.getLastIp());
+
+        range = service.acquireIpRange(4, null);
+        Assert.assertEquals("Short run not used", "10.0.0.5", range.getFirstIp());
+    }
+
+    @Test
+    public void testRangeTooLong() throws Exception {
+        service.setIpStateAcquired("10.0.4.0");
+        try {
+            service.acquireIpRange(1200, null);
+            Assert.fail("Acquired run through an acquired IP address.");
+        } catch (IpPoolExhaustedException expected) {
+            // Expected outcome.
+        }
+    }
+
+    @Test
+    public void testAddedPoolHasItsOwnBlocks() throws Exception {
+        Assert.assertEquals("Unexpected next IP", FIRST_IP, service.acquireNextIp());
+
+        CIDR secondBlock = conversionService.toCidr("192.168.1.0/24");
+        cidrPools = cidrPools.with(secondBlock, blockService.getBlockCount(secondBlock));
+        Assert.assertEquals("Unexpected first block", 2, secondBlock.getFirstBlock());
+
+        service.setIpStateAcquired("192.168.1.1");
+        Assert.assertEquals("Unexpected next IP in pool", "192.168.1.2", service.acquireNextIp("192.168.1.0/24"));
+        Assert.assertEquals("Pool not found by host address", "192.168.1.3", service.acquireNextIp("192.168.1.7/24"));
+        Assert.assertEquals("Unexpected next IP", SECOND_IP, service.acquireNextIp());
+
+        IpRange range = service.acquireIpRange(254 - 2, null);
+        Assert.assertEquals("Run not taken from first pool", "10.0.0.3", range.getFirstIp());
+        range = service.acquireIpRange(251, "192.168.1.4");
+        Assert.assertEquals("Unexpected last IP", "192.168.1.254", range.getLastIp());
+        try {
+            service.acquireNextIp("192.168.1.0/24");
+            Assert.fail("Acquired beyond end of pool.");
+        } catch (IpPoolExhaustedException expected) {
+            // Expected outcome.
+        }
+    }
+
+    @Test
+    public void testSingleAddressPoolHasItsOwnBlock() throws Exception {
+        Ipv4ConversionServiceImpl inclusiveService = new Ipv4ConversionServiceImpl();
+        inclusiveService.setInclusiveHostCount(true);
+        CIDR singleBlock = inclusiveService.toCidr("172.16.0.9/32");
+        cidrPools = cidrPools.with(singleBlock, blockService.getBlockCount(singleBlock));
+        CIDR nextBlock = conversionService.toCidr("192.168.1.0/24");
+        cidrPools = cidrPools.with(nextBlock, blockService.getBlockCount(nextBlock));
+        Assert.assertEquals("Unexpected block count", 1, singleBlock.getBlockCount());
+        Assert.assertEquals("Next pool shares the single address's block", 3, nextBlock.getFirstBlock());
+
+        service.setIpStateAcquired("172.16.0.9");
+        Assert.assertEquals("Next pool's first IP taken", "192.168.1.1", service.acquireNextIp("192.168.1.0/24"));
+        Assert.assertEquals("Unexpected acquired count", 2, service.getIpStats(false).getOverall().getAcquired());
+        try {
+            service.acquireNextIp("172.16.0.9/32");
+            Assert.fail("Acquired beyond end of pool.");
+        } catch (IpPoolExhaustedException expected) {
+            // Expected outcome.
+        }
+    }
+
+    @Test
+    public void testReportCoversEveryManagedAddress() throws Exception {
+        service.setIpStateAcquired(LAST_IP);
+        IpReport report = service.getIpReport();
+        Assert.assertEquals("Unexpected address count", 2046, report.getIpStatus().size());
+        Assert.assertEquals(IpCheckoutState.FREE, report.getIpStatus().get(FIRST_IP));
+        Assert.assertEquals(IpCheckoutState.ACQUIRED, report.getIpStatus().get(LAST_IP));
+        Assert.assertFalse("Network address reported", report.getIpStatus().containsKey("10.0.0.0"));
+        Assert.assertFalse("Broadcast address reported", report.getIpStatus().containsKey("10.0.7.255"));
+    }
+
+    @Test
+    public void testQueryPagesThroughAcquired() throws Exception {
+        service.setIpStateAcquired(SECOND_IP);
+        service.setIpStateAcquired("10.0.3.255");
+        service.setIpStateAcquired("10.0.4.0");
+        service.setIpStateAcquired(LAST_IP);
+
+        IpStatePage page = service.queryIpStates(IpCheckoutState.ACQUIRED, null, null, null, 2);
+        Assert.assertEquals("Unexpected first page", Arrays.asList(SECOND_IP, "10.0.3.255"), ips(page.getEntries()));
+        Assert.assertEquals("Unexpected cursor", "10.0.4.0", page.getNextCursor());
+
+        page = service.queryIpStates(IpCheckoutState.ACQUIRED, null, null, page.getNextCursor(), 2);
+        Assert.assertEquals("Unexpected second page", Arrays.asList("10.0.4.0", LAST_IP), ips(page.getEntries()));
+        Assert.assertNull("Page after last", page.getNextCursor());
+
+        page = service.queryIpStates(IpCheckoutState.ACQUIRED, "10.0.0.3", "10.0.4.0", null, 10);
+        Assert.assertEquals("Unexpected range", Arrays.asList("10.0.3.255", "10.0.4.0"), ips(page.getEntries()));
+    }
+
+    @Test
+    public void testQueryFreeAndAnyState() throws Exception {
+        service.setIpStateAcquired(FIRST_IP);
+        IpStatePage page = service.queryIpStates(IpCheckoutState.FREE, null, null, null, 3);
+        Assert.assertEquals("Unexpected free", Arrays.asList(SECOND_IP, "10.0.0.3", "10.0.0.4"), ips(page.getEntries()));
+
+        page = service.queryIpStates(null, "10.0.0.0", null, null, 2);
+        Assert.assertEquals("Unexpected first entry", IpCheckoutState.ACQUIRED, page.getEntries().get(0).getState());
+        Assert.assertEquals("Unexpected entries", Arrays.asList(FIRST_IP, SECOND_IP), ips(page.getEntries()));
+
+        page = service.queryIpStates(null, "11.0.0.0", null, null, 2);
+        Assert.assertTrue("Found beyond pool", page.getEntries().isEmpty());
+        Assert.assertNull("Cursor beyond pool", page.getNextCursor());
+    }
+
+    @Test
+    public void testVersionRaisedByChangesOnly() throws Exception {
+        long version = service.getStateVersion();
+        service.getIpReport();
+        service.queryIpStates(null, null, null, null, 10);
+        Assert.assertEquals("Version raised by reads", version, service.getStateVersion());
+
+        service.setIpStateAcquired(FIRST_IP);
+        Assert.assertTrue("Version not raised by acquire", service.getStateVersion() > version);
+        version = service.getStateVersion();
+        service.acquireNextIp();
+        service.acquireIpRange(3, null);
+        Assert.assertEquals("Version not raised by each change", version + 2, service.getStateVersion());
+
+        version = service.getStateVersion();
+        service.setIpStatesAcquired(Collections.singletonList(FIRST_IP), true);
+        Assert.assertEquals("Version raised by change not made", version, service.getStateVersion());
+        service.setIpStatesReleased(Collections.singletonList(FIRST_IP), true);
+        Assert.assertEquals("Version not raised by batch", version + 1, service.getStateVersion());
+    }
+
+    @Test
+    public void testStatsFollowChanges() throws Exception {
+        service.setIpStateAcquired(FIRST_IP);
+        IpStats stats = service.getIpStats(true);
+        Assert.assertEquals("Unexpected total", 2046, stats.getOverall().getTotal());
+        Assert.assertEquals("Unexpected acquired", 1, stats.getOverall().getAcquired());
+        Assert.assertEquals("Unexpected prefix count", 8, stats.getHistogram().size());
+        Assert.assertEquals("Unexpected first prefix", "10.0.0.0/24", stats.getHistogram().get(0).getCidr());
+        Assert.assertEquals("Unexpected first prefix size", 255, stats.getHistogram().get(0).getTotal());
+
+        service.setIpStateAcquired("10.0.3.255");
+        service.setIpStateAcquired("10.0.4.0");
+        service.acquireIpRange(2, "10.0.7.253");
+        service.setIpStatesAcquired(Arrays.asList("10.0.5.1", "10.0.5.2"), false);
+        service.setIpStateReleased(FIRST_IP);
+        // Releasing a free address changes nothing.
+        service.setIpStateReleased(FIRST_IP);
+
+        stats = service.getIpStats(true);
+        Assert.assertEquals("Unexpected acquired", 6, stats.getOverall().getAcquired());
+        Assert.assertEquals("Unexpected free", 2040, stats.getOverall().getFree());
+        Assert.assertEquals("Unexpected pool acquired", 6, stats.getCidrBlocks().get(0).getAcquired());
+        long[] expected = { 0, 0, 0, 1, 1, 2, 0, 2 };
+        for (int i = 0; i < expected.length; i++) {
+            IpUsage usage = stats.getHistogram().get(i);
+            Assert.assertEquals("Unexpected count for " + usage.getCidr(), expected[i], usage.getAcquired());
+        }
+        Assert.assertNull("Histogram not asked for", service.getIpStats(false).getHistogram());
+    }
+
+    @Test
+    public void testReblockRefusedUnlessWriteThrough() throws Exception {
+        try {
+            service.reblock(1000);
+            Assert.fail("Re-blocked at a size not a power of two.");
+        } catch (IpStateServiceException expected) {
+            Assert.assertTrue("Unexpected cause", expected.getCause() instanceof IllegalArgumentException);
+        }
+        try {
+            service.reblock(256);
+            Assert.fail("Re-blocked under a store holding blocks in memory.");
+        } catch (IpStateServiceException expected) {
+            Assert.assertTrue("Unexpected cause", expected.getCause() instanceof UnsupportedOperationException);
+        }
+        Assert.assertEquals("Block size changed", 1024, blockService.getBlockSize());
+    }
+
+    @Test
+    public void testReblockRefusedWhereShared() throws Exception {
+        BitBlockStore sharedStore = Mockito.mock(BitBlockStore.class);
+        Mockito.when(sharedStore.isWriteThrough()).thenReturn(true);
+        Mockito.when(sharedStore.isShared()).thenReturn(true);
+        BlockReblocking blockReblocking = Mockito.mock(BlockReblocking.class);
+        IpStateService sharedService = new IpStateServiceImpl(
+                conversionService, Mockito.mock(CidrStateService.class), blockService, sharedStore, blockReblocking
+        );
+        try {
+            sharedService.reblock(256);
+            Assert.fail("Re-blocked under other applications.");
+        } catch (IpStateServiceException expected) {
+            Assert.assertTrue("Unexpected cause", expected.getCause() instanceof UnsupportedOperationException);
+        }
+        Mockito.verifyZeroInteractions(blockReblocking);
+    }
+
+    @Test
+    public void testFailedSaveLeavesCountsAsStored() throws Exception {
+        CidrStateService cidrStateService = Mockito.mock(CidrStateService.class);
+        Mockito.when(cidrStateService.isPopulated()).thenReturn(true);
+        Mockito.when(cidrStateService.getCidrPools()).thenAnswer(invocation -> cidrPools);
+        BlockRepository blockRepository = Mockito.mock(BlockRepository.class);
+        Mockito.when(blockRepository.findById(Mockito.anyInt())).thenReturn(Optional.empty());
+        Mockito.when(blockRepository.findByIdGreaterThanOrderByIdAsc(Mockito.anyInt(), Mockito.any(Pageable.class)))
+                .thenReturn(Collections.emptyList());
+        Mockito.when(blockRepository.save(Mockito.any())).thenThrow(new DataAccessResourceFailureException("Connection lost"));
+        IpStateServiceImpl tableService = new IpStateServiceImpl(
+                conversionService, cidrStateService, blockService,
+                new RepositoryBitBlockStore(blockService, blockRepository, new BlockLockStripes(16), cidrStateService),
+                Mockito.mock(BlockReblocking.class)
+        );
+        Assert.assertEquals("Unexpected acquired count", 0, tableService.getIpStats(false).getOverall().getAcquired());
+
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                tableService.setIpStateAcquired(FIRST_IP);
+                Assert.fail("Acquired without saving");
+            } catch (DataAccessException expected) {
+                // Expected.
+            }
+            try {
+                tableService.acquireNextIp();
+                Assert.fail("Acquired without saving");
+            } catch (DataAccessException expected) {
+                // Expected.
+            }
+        }
+        Assert.assertEquals("Counted changes never saved", 0, tableService.getIpStats(false).getOverall().getAcquired());
+
+        // Saved at last: the first address was never taken.
+        Mockito.doAnswer(invocation -> invocation.getArgument(0)).when(blockRepository).save(Mockito.any());
+        Assert.assertEquals("Unexpected next IP", FIRST_IP, tableService.acquireNextIp());
+        Assert.assertEquals("Unexpected acquired count", 1, tableService.getIpStats(false).getOverall().getAcquired());
+    }
+
+    @Test
+    public void testVisitHoldsNoLockWhileVisiting() throws Exception {
+        CidrStateService cidrStateService = Mockito.mock(CidrStateService.class);
+        Mockito.when(cidrStateService.isPopulated()).thenReturn(true);
+        Mockito.when(cidrStateService.getCidrPools()).thenAnswer(invocation -> cidrPools);
+        Mockito.when(cidrStateService.refresh()).thenAnswer(invocation -> cidrPools);
+        // No rows: every block is free.
+        BitBlockStore tableStore = new RepositoryBitBlockStore(
+                blockService, Mockito.mock(BlockRepository.class), new BlockLockStripes(64), cidrStateService
+        );
+        IpStateServiceImpl tableService = new IpStateServiceImpl(
+                conversionService, cidrStateService, blockService, tableStore, Mockito.mock(BlockReblocking.class)
+        );
+        tableService.setVisitBatchBlocks(1);
+
+        IpStateLayout layout = tableService.getLayout();
+        List<Long> visited = new ArrayList<>();
+        Assertions.assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            try {
+                tableService.visitIpStates(layout, (cidrBlock, firstAddress, container, bitsInBlock) -> {
+                    visited.add(firstAddress);
+                    // Takes the layout write lock: never had, were the visit holding the read lock.
+                    try {
+                        tableService.reblock(2048);
+                    } catch (IpStateServiceException ipse) {
+                        throw new IllegalStateException(ipse);
+                    }
+                });
+                Assert.fail("Visit carried on by a layout gone");
+            } catch (IpStateServiceException expected) {
+                // Expected.
+            }
+        });
+        Assert.assertEquals("Unexpected blocks visited", Collections.singletonList(cidrPools.getCidrBlocks().get(0).getStartingAddrLong()), visited);
+    }
+
+    private List<String> ips(List<IpStateEntry> entries) {
+        return entries.stream().map(IpStateEntry::getIp).collect(Collectors.toList());
+    }
+}
@@ -91,4 +91,34 @@ public class Ipv4ConversionServiceTest {
         Assert.assertEquals("Unexpected IP address numeric range", 253L,cidrObj.getEndingAddrLong() -  cidrObj.getStartingAddrLong());
         Assert.assertEquals("Failed to cache CIDR str", VALID_CIDR,cidrObj.getCidrBlockNotation());
     }
+
+    @Test
+    public void testSmallCidrBlocks() throws Exception {
+        // As SubnetUtils had it: too small for any address but network and broadcast.
+        CIDR cidrObj = service.toCidr("10.0.0.4/31");
+        Assert.assertEquals("Unexpected starting address", 0L, cidrObj.getStartingAddrLong());
+        Assert.assertEquals("Unexpected ending address", 0L, cidrObj.getEndingAddrLong());
+
+        Ipv4ConversionServiceImpl inclusiveService = new Ipv4ConversionServiceImpl();
+        inclusiveService.setInclusiveHostCount(true);
+        cidrObj = inclusiveService.toCidr("10.0.0.5/31");
+        Assert.assertEquals("Unexpected starting address", service.getIpAsLong("10.0.0.4"), cidrObj.getStartingAddrLong());
+        Assert.assertEquals("Unexpected ending address", service.getIpAsLong("10.0.0.5"), cidrObj.getEndingAddrLong());
+    }
+
+    @Test
+    public void testInvalidInputsRejected() {
+        try {
+            service.toCidr("10.0.0.0/33");
+            Assert.fail("Accepted prefix beyond 32");
+        } catch (InvalidFormatException expected) {
+            // Expected outcome.
+        }
+        try {
+            service.getIpAsLong("::1");
+            Assert.fail("Accepted IPv6 address");
+        } catch (InvalidFormatException expected) {
+            // Expected outcome.
+        }
+    }
 }
@@ -0,0 +1,53 @@
+package com.project.challenge.services;
+
+import com.google.common.net.InetAddresses;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringWriter;
+import java.util.Random;
+
+/**
+ * Shaking down the IPv4 formatter, against Guava.
+ */
+public class Ipv4FormatterTest {
+    @Test
+    public void testExtremes() {
+        Assert.assertEquals("Unexpected low address", "0.0.0.0", Ipv4Formatter.format(0));
+        Assert.assertEquals("Unexpected high address", "255.255.255.255", Ipv4Formatter.format(0xffffffffL));
+        Assert.assertEquals("Unexpected address", "10.0.100.9", Ipv4Formatter.format(0x0a006409L));
+    }
+
+    @Test
+    public void testAgreesWithGuava() {
+        Random random = new Random(17);
+        Ipv4Formatter formatter = new Ipv4Formatter();
+        for (int i = 0; i < 10_000; i++) {
+            int address = random.nextInt();
+            String expected = InetAddresses.toAddrString(InetAddresses.fromInteger(address));
+            Assert.assertEquals("Unexpected text", expected, Ipv4Formatter.format(Integer.toUnsignedLong(address)));
+            Assert.assertEquals("Unexpected buffered text", expected, formatter.toString(Integer.toUnsignedLong(address)));
+        }
+    }
+
+    @Test
+    public void testSequenceRewritesLastOctet() throws Exception {
+        Ipv4Formatter formatter = new Ipv4Formatter();
+        long first = 0x0a0063f0L;
+        StringWriter out = new StringWriter();
+        for (long address = first; address < first + 40; address++) {
+            formatter.write(out, address);
+            out.write('\n');
+        }
+        StringBuilder expected = new StringBuilder();
+        for (long address = first; address < first + 40; address++) {
+            expected.append(InetAddresses.toAddrString(InetAddresses.fromInteger((int) address))).append('\n');
+        }
+        Assert.assertEquals("Unexpected sequence", expected.toString(), out.toString());
+
+        // Going back, or skipping, reformats wholly.
+        Assert.assertEquals("Unexpected text going back", "10.0.99.9", formatter.toString(0x0a006309L));
+        Assert.assertEquals("Unexpected text skipping", "10.0.100.200", formatter.toString(0x0a0064c8L));
+        Assert.assertEquals("Unexpected length", "10.0.100.200".length(), formatter.getLength());
+    }
+}
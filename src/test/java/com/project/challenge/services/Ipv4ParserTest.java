@@ -0,0 +1,46 @@
+package com.project.challenge.services;
+
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Shaking down the hand-rolled parser, especially at the edges of the format.
+ */
+public class Ipv4ParserTest {
+    @Test
+    public void validAddresses() {
+        Assert.assertEquals(0L, Ipv4Parser.parseAddress("0.0.0.0"));
+        Assert.assertEquals(0xffffffffL, Ipv4Parser.parseAddress("255.255.255.255"));
+        Assert.assertEquals(0x80483501L, Ipv4Parser.parseAddress("128.72.53.1"));
+        Assert.assertEquals(0x0a000001L, Ipv4Parser.parseAddress(new StringBuilder("10.0.0.1")));
+    }
+
+    @Test
+    public void invalidAddresses() {
+        String[] invalid = {
+                null, "", "TEST", "10.0.0", "10.0.0.1.", "10.0.0.1.5", ".10.0.0.1", "10..0.1", "256.0.0.1", "10.0.0.1000",
+                "010.0.0.1", "10.0.0.01", "10.0.0.1 ", " 10.0.0.1", "10.0.0.-1", "10.0.0.1/24", "::1", "1:2:3:4:5:6:7:8"
+        };
+        for (String text : invalid) {
+            Assert.assertEquals("Accepted " + text, Ipv4Parser.INVALID, Ipv4Parser.parseAddress(text));
+        }
+    }
+
+    @Test
+    public void cidrBlocks() {
+        long parsed = Ipv4Parser.parseCidr("10.1.2.3/8");
+        Assert.assertEquals(0x0a010203L, Ipv4Parser.cidrAddress(parsed));
+        Assert.assertEquals(8, Ipv4Parser.cidrPrefixLength(parsed));
+        Assert.assertEquals(0xff000000L, Ipv4Parser.networkMask(8));
+        Assert.assertEquals(0L, Ipv4Parser.networkMask(0));
+        Assert.assertEquals(0xffffffffL, Ipv4Parser.networkMask(32));
+        Assert.assertEquals(32, Ipv4Parser.cidrPrefixLength(Ipv4Parser.parseCidr("255.255.255.255/32")));
+        // Leading zeros have always been accepted within CIDR blocks.
+        Assert.assertEquals(0x0a000000L, Ipv4Parser.cidrAddress(Ipv4Parser.parseCidr("010.0.0.0/08")));
+
+        String[] invalid = { null, "", "10.0.0.0", "10.0.0.0/", "10.0.0.0/33", "10.0.0.0/1234", "10.0.0.0/2a", "10.0.0/8", "300.0.0.0/8" };
+        for (String text : invalid) {
+            Assert.assertEquals("Accepted " + text, Ipv4Parser.INVALID, Ipv4Parser.parseCidr(text));
+        }
+    }
+}
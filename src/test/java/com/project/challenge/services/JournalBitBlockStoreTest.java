@@ -0,0 +1,205 @@
+package com.project.challenge.services;
+
+import com.project.challenge.entities.CidrBitBlock;
+import com.project.challenge.entities.CidrDef;
+import com.project.challenge.model.CIDR;
+import com.project.challenge.model.JournalSync;
+import com.project.challenge.repositories.BlockRepository;
+import com.project.challenge.repositories.CidrDefRepository;
+import org.junit.Assert;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Shaking down the journalled block store, and recovery from its journal.
+ */
+public class JournalBitBlockStoreTest {
+    private static final String CIDR_FOR_TEST = "10.0.0.0/22";
+
+    @TempDir
+    public Path journalDir;
+
+    private IpBlockService blockService = new IpBlockServiceImpl(new Ipv4ConversionServiceImpl());
+    private CidrStateService cidrStateService;
+    private BlockRepository blockRepository;
+    private JournalBitBlockStore store;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        cidrStateService = Mockito.mock(CidrStateService.class);
+        Mockito.when(cidrStateService.isPopulated()).thenReturn(true);
+        CIDR cidrBlock = new Ipv4ConversionServiceImpl().toCidr(CIDR_FOR_TEST);
+        Mockito.when(cidrStateService.getCidrPools()).thenReturn(CidrPools.EMPTY.with(cidrBlock, blockService.getBlockCount(cidrBlock)));
+
+        CidrBitBlock storedBlock = new CidrBitBlock();
+        storedBlock.setId(0);
+        storedBlock.setEncodedBits("AAAAAAAAAAE=");
+        blockRepository = Mockito.mock(BlockRepository.class);
+        Mockito.when(blockRepository.findAll()).thenReturn(Collections.singletonList(storedBlock));
+
+        store = startStore(JournalSync.GROUP);
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        store.stop();
+    }
+
+    @Test
+    public void testNewJournalCopiesInBlockTable() throws Exception {
+        Assert.assertTrue("Stored bit not copied in", BitWords.get(store.readBlock(0), 56));
+        Assert.assertTrue("No snapshot written", Files.exists(journalDir.resolve("snapshot.bin")));
+
+        // Copied in once only.
+        restartStore(JournalSync.GROUP);
+        Assert.assertTrue("Stored bit lost", BitWords.get(store.readBlock(0), 56));
+        Mockito.verify(blockRepository, Mockito.times(1)).findAll();
+    }
+
+    @Test
+    public void testChangesRecoveredFromJournal() throws Exception {
+        store.updateBlock(0, words -> { BitWords.set(words, 3, true); return null; });
+        store.updateBlock(0, words -> { BitWords.set(words, 56, false); return null; });
+        store.updateBlocks(new int[] { 0 }, blocksWords -> { BitWords.set(blocksWords[0], 4, true); return null; });
+
+        restartStore(JournalSync.GROUP);
+        long[] words = store.readBlock(0);
+        Assert.assertTrue("Set bits lost", BitWords.get(words, 3) && BitWords.get(words, 4));
+        Assert.assertFalse("Cleared bit came back", BitWords.get(words, 56));
+        Mockito.verify(blockRepository, Mockito.never()).saveAll(Mockito.any());
+    }
+
+    @Test
+    public void testSnapshotDropsCoveredSegments() throws Exception {
+        store.updateBlock(0, words -> { BitWords.set(words, 3, true); return null; });
+        store.snapshot();
+        store.updateBlock(0, words -> { BitWords.set(words, 4, true); return null; });
+        Assert.assertEquals("Unexpected segment count", 1, listSegments().size());
+
+        restartStore(JournalSync.GROUP);
+        long[] words = store.readBlock(0);
+        Assert.assertTrue("Bits lost", BitWords.get(words, 3) && BitWords.get(words, 4) && BitWords.get(words, 56));
+    }
+
+    @Test
+    public void testTornRecordCutBack() throws Exception {
+        store.updateBlock(0, words -> { BitWords.set(words, 3, true); return null; });
+        store.updateBlock(0, words -> { BitWords.set(words, 4, true); return null; });
+        store.stop();
+
+        // As though the last record was half written when the power went.
+        Path segment = listSegments().get(0);
+        long length = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(length - BlockJournal.RECORD_SIZE / 2);
+        }
+
+        store = startStore(JournalSync.GROUP);
+        long[] words = store.readBlock(0);
+        Assert.assertTrue("Whole record lost", BitWords.get(words, 3));
+        Assert.assertFalse("Torn record applied", BitWords.get(words, 4));
+        Assert.assertEquals("Torn record not cut", length - BlockJournal.RECORD_SIZE, Files.size(segment));
+
+        // Appends carry on from the record before.
+        store.updateBlock(0, words2 -> { BitWords.set(words2, 5, true); return null; });
+        restartStore(JournalSync.GROUP);
+        Assert.assertTrue("Appended bit lost", BitWords.get(store.readBlock(0), 5));
+    }
+
+    @Test
+    public void testConcurrentChangesAllRecovered() throws Exception {
+        restartStore(JournalSync.INTERVAL);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int thread = 0; thread < 8; thread++) {
+            final int firstBit = thread * 128;
+            executor.execute(() -> {
+                for (int bit = firstBit; bit < firstBit + 128; bit++) {
+                    final int blockOffset = bit;
+                    try {
+                        store.updateBlock(0, words -> { BitWords.set(words, blockOffset, true); return null; });
+                    } catch (IpStateServiceException ipse) {
+                        throw new RuntimeException(ipse);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        Assert.assertTrue("Changes did not finish", executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        restartStore(JournalSync.GROUP);
+        long[] words = store.readBlock(0);
+        for (int bit = 0; bit < 1024; bit++) {
+            Assert.assertTrue("Bit lost: " + bit, BitWords.get(words, bit));
+        }
+    }
+
+    @Test
+    public void testRestartAtOtherBlockSizeRefused() throws Exception {
+        store.updateBlock(0, words -> { BitWords.set(words, 3, true); return null; });
+        store.stop();
+
+        // Restarted with ipstate.block-size=2048, over pools recorded at 1024-bit blocks.
+        IpBlockServiceImpl resizedBlockService = new IpBlockServiceImpl(new Ipv4ConversionServiceImpl());
+        resizedBlockService.setBlockSize(2048);
+        store = new JournalBitBlockStore(cidrStateService, resizedBlockService, blockRepository, new BlockLockStripes(16));
+        store.setDirectory(journalDir.toString());
+        store.start();
+        CidrDefRepository cidrDefRepository = CidrStateServiceTest.recordedPools(1024, 1, CIDR_FOR_TEST);
+        BlockReblocking blockReblocking = Mockito.mock(BlockReblocking.class);
+        CidrStateServiceImpl restartedCidrState = new CidrStateServiceImpl(
+                new Ipv4ConversionServiceImpl(), resizedBlockService, blockRepository, cidrDefRepository, blockReblocking,
+                Mockito.mock(PlatformTransactionManager.class), CidrStateServiceTest.blockStoreProvider(store)
+        );
+        try {
+            restartedCidrState.reblockAtStartup();
+            Assert.fail("Re-blocked the table under the journal");
+        } catch (IllegalStateException expected) {
+            // Expected.
+        }
+        Mockito.verifyZeroInteractions(blockReblocking);
+        Mockito.verify(cidrDefRepository, Mockito.never()).save(Mockito.any(CidrDef.class));
+
+        // Back at the recorded size, nothing lost.
+        restartStore(JournalSync.GROUP);
+        long[] words = store.readBlock(0);
+        Assert.assertTrue("Bits lost", BitWords.get(words, 3) && BitWords.get(words, 56));
+    }
+
+    private void restartStore(JournalSync sync) throws Exception {
+        store.stop();
+        store = startStore(sync);
+    }
+
+    private JournalBitBlockStore startStore(JournalSync sync) {
+        JournalBitBlockStore started = new JournalBitBlockStore(cidrStateService, blockService, blockRepository, new BlockLockStripes(16));
+        started.setDirectory(journalDir.toString());
+        started.setSync(sync.name());
+        started.setSyncIntervalMs(10);
+        started.setSnapshotIntervalMs(60_000);
+        started.start();
+        started.loadAtStartup();
+        return started;
+    }
+
+    private List<Path> listSegments() throws Exception {
+        try (Stream<Path> files = Files.list(journalDir)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".log")).sorted().collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.project.challenge.services;
+
+import com.project.challenge.entities.CidrBitBlock;
+import com.project.challenge.model.CIDR;
+import com.project.challenge.repositories.BlockLeaseRepository;
+import com.project.challenge.repositories.BlockRepository;
+import org.junit.Assert;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import java.util.Collections;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+/**
+ * Shaking down the leased block store's write-behind, against leases in embedded H2.  Blocks themselves are
+ * written to a mock.
+ */
+public class LeasedBitBlockStoreTest {
+    private IpBlockService blockService = new IpBlockServiceImpl(new Ipv4ConversionServiceImpl());
+    private EmbeddedDatabase database;
+    private JdbcTemplate jdbcTemplate;
+    private BlockLeaseRepository leaseRepository;
+    private BlockLeaseServiceImpl leaseService;
+    private BlockRepository blockRepository;
+    private LeasedBitBlockStore store;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        database = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .generateUniqueName(true)
+                .addScript("schema.sql")
+                .build();
+        jdbcTemplate = new JdbcTemplate(database);
+        leaseRepository = new BlockLeaseRepository(jdbcTemplate);
+        leaseService = new BlockLeaseServiceImpl(leaseRepository);
+        leaseService.setInstanceId("here");
+        leaseService.setInstanceUrl("http://here");
+        leaseService.setDurationMs(60_000);
+        blockRepository = Mockito.mock(BlockRepository.class);
+
+        // Exclusive range: 10.0.0.1 .. 10.0.7.254, spanning two blocks, in one leased range.
+        CIDR cidrBlock = new Ipv4ConversionServiceImpl().toCidr("10.0.0.0/21");
+        CidrPools cidrPools = CidrPools.EMPTY.with(cidrBlock, blockService.getBlockCount(cidrBlock));
+        CidrStateService cidrStateService = Mockito.mock(CidrStateService.class);
+        Mockito.when(cidrStateService.isPopulated()).thenReturn(true);
+        Mockito.when(cidrStateService.getCidrPools()).thenReturn(cidrPools);
+
+        store = new LeasedBitBlockStore(
+                cidrStateService, blockService, blockRepository, new DataSourceTransactionManager(database),
+                new BlockLockStripes(16), leaseService
+        );
+        store.setRenewIntervalMs(60_000);
+        store.start();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        store.stop();
+        database.shutdown();
+    }
+
+    @Test
+    public void testFlushWritesBlocksOfLeasesHeld() throws Exception {
+        store.updateBlock(1, words -> { BitWords.set(words, 3, true); return null; });
+        store.flush();
+        Mockito.verify(blockRepository).saveAll(Mockito.argThat(this::isBlockOneOnly));
+    }
+
+    @Test
+    public void testFlushFencedByLeaseInDatabase() throws Exception {
+        store.updateBlock(1, words -> { BitWords.set(words, 3, true); return null; });
+        // Lapsed by the database's clock, though not yet by this instance's: as after a stall, or with clocks apart.
+        jdbcTemplate.update("UPDATE BLOCK_LEASE SET EXPIRES_AT = 0");
+
+        store.flush();
+        Mockito.verify(blockRepository, Mockito.never()).saveAll(Mockito.argThat(this::isBlockOneOnly));
+
+        // Nobody took it over: renewed, and the block kept dirty is written after all.
+        leaseService.renewAll();
+        store.flush();
+        Mockito.verify(blockRepository).saveAll(Mockito.argThat(this::isBlockOneOnly));
+    }
+
+    @Test
+    public void testFlushFencedOffRangeTakenOver() throws Exception {
+        store.updateBlock(1, words -> { BitWords.set(words, 3, true); return null; });
+        jdbcTemplate.update("UPDATE BLOCK_LEASE SET EXPIRES_AT = 0");
+        Assert.assertTrue("Lapsed lease not taken over", leaseRepository.claim(0, "there", "http://there", 60_000));
+
+        store.flush();
+        leaseService.renewAll();
+        store.flush();
+        Mockito.verify(blockRepository, Mockito.never()).saveAll(Mockito.argThat(this::isBlockOneOnly));
+        Assert.assertEquals("Lease lost", "there", leaseRepository.find(0).getOwner());
+    }
+
+    private boolean isBlockOneOnly(Iterable<CidrBitBlock> bitBlocks) {
+        return StreamSupport.stream(bitBlocks.spliterator(), false).map(CidrBitBlock::getId).collect(Collectors.toList())
+                .equals(Collections.singletonList(1));
+    }
+}
@@ -0,0 +1,170 @@
+package com.project.challenge.services;
+
+import com.project.challenge.entities.CidrBitBlock;
+import com.project.challenge.entities.CidrDef;
+import com.project.challenge.model.CIDR;
+import com.project.challenge.repositories.BlockRepository;
+import com.project.challenge.repositories.CidrDefRepository;
+import org.junit.Assert;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shaking down the memory-mapped block store.
+ */
+public class MappedBitBlockStoreTest {
+    private static final String CIDR_FOR_TEST = "10.0.0.0/22";
+
+    @TempDir
+    public Path fileDir;
+
+    private IpBlockService blockService = new IpBlockServiceImpl(new Ipv4ConversionServiceImpl());
+    private CidrStateService cidrStateService;
+    private BlockRepository blockRepository;
+    private MappedBitBlockStore store;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        cidrStateService = Mockito.mock(CidrStateService.class);
+        Mockito.when(cidrStateService.isPopulated()).thenReturn(true);
+        CIDR cidrBlock = new Ipv4ConversionServiceImpl().toCidr(CIDR_FOR_TEST);
+        Mockito.when(cidrStateService.getCidrPools()).thenReturn(CidrPools.EMPTY.with(cidrBlock, blockService.getBlockCount(cidrBlock)));
+
+        CidrBitBlock storedBlock = new CidrBitBlock();
+        storedBlock.setId(0);
+        storedBlock.setEncodedBits("AAAAAAAAAAE=");
+        blockRepository = Mockito.mock(BlockRepository.class);
+        Mockito.when(blockRepository.findAll()).thenReturn(Collections.singletonList(storedBlock));
+
+        store = startStore();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        store.stop();
+    }
+
+    @Test
+    public void testNewFileCopiesInBlockTableOnce() throws Exception {
+        List<Integer> visited = new ArrayList<>();
+        store.forEachBlock((blockNum, words) -> {
+            visited.add(blockNum);
+            Assert.assertEquals("Unexpected stored bit", blockNum == 0, BitWords.get(words, 56));
+        });
+        Assert.assertEquals("Unexpected block count", 1, visited.size());
+
+        restartStore();
+        Assert.assertTrue("Stored bit lost", BitWords.get(store.readBlock(0), 56));
+        Mockito.verify(blockRepository, Mockito.times(1)).findAll();
+    }
+
+    @Test
+    public void testChangesSurviveRestart() throws Exception {
+        store.updateBlock(0, words -> { BitWords.set(words, 3, true); return null; });
+        store.updateBlocks(new int[] { 0 }, blocksWords -> { BitWords.set(blocksWords[0], 56, false); return null; });
+        BitBlockStore.BitChangeListener listener = Mockito.mock(BitBlockStore.BitChangeListener.class);
+        Assert.assertTrue("Bit not changed", store.setBit(0, 700, true, listener));
+        Assert.assertFalse("Bit changed twice", store.setBit(0, 700, true, listener));
+        Mockito.verify(listener, Mockito.times(1)).bitChanged(0, 700, true);
+
+        restartStore();
+        long[] words = store.readBlock(0);
+        Assert.assertTrue("Set bits lost", BitWords.get(words, 3) && BitWords.get(words, 700));
+        Assert.assertFalse("Cleared bit came back", BitWords.get(words, 56));
+        Mockito.verify(blockRepository, Mockito.never()).saveAll(Mockito.any());
+    }
+
+    @Test
+    public void testMissingBlockRejected() {
+        try {
+            store.readBlock(1);
+            Assert.fail("Read block beyond the pool");
+        } catch (IpStateServiceException expected) {
+            // Expected outcome.
+        }
+    }
+
+    @Test
+    public void testConcurrentBitChanges() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        BitBlockStore.BitChangeListener listener = Mockito.mock(BitBlockStore.BitChangeListener.class);
+        for (int thread = 0; thread < 8; thread++) {
+            final int firstBit = thread * 128;
+            executor.execute(() -> {
+                for (int bit = firstBit; bit < firstBit + 128; bit++) {
+                    try {
+                        store.setBit(0, bit, true, listener);
+                    } catch (IpStateServiceException ipse) {
+                        throw new RuntimeException(ipse);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        Assert.assertTrue("Changes did not finish", executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        restartStore();
+        long[] words = store.readBlock(0);
+        for (int bit = 0; bit < 1024; bit++) {
+            Assert.assertTrue("Bit lost: " + bit, BitWords.get(words, bit));
+        }
+    }
+
+    @Test
+    public void testRestartAtOtherBlockSizeRefused() throws Exception {
+        store.updateBlock(0, words -> { BitWords.set(words, 3, true); return null; });
+        store.stop();
+
+        // Restarted with ipstate.block-size=2048, over pools recorded at 1024-bit blocks.
+        IpBlockServiceImpl resizedBlockService = new IpBlockServiceImpl(new Ipv4ConversionServiceImpl());
+        resizedBlockService.setBlockSize(2048);
+        store = new MappedBitBlockStore(cidrStateService, resizedBlockService, blockRepository, new BlockLockStripes(16));
+        store.setFile(fileDir.resolve("pool.bitmap").toString());
+        store.start();
+        CidrDefRepository cidrDefRepository = CidrStateServiceTest.recordedPools(1024, 1, CIDR_FOR_TEST);
+        BlockReblocking blockReblocking = Mockito.mock(BlockReblocking.class);
+        CidrStateServiceImpl restartedCidrState = new CidrStateServiceImpl(
+                new Ipv4ConversionServiceImpl(), resizedBlockService, blockRepository, cidrDefRepository, blockReblocking,
+                Mockito.mock(PlatformTransactionManager.class), CidrStateServiceTest.blockStoreProvider(store)
+        );
+        try {
+            restartedCidrState.reblockAtStartup();
+            Assert.fail("Re-blocked the table under the block file");
+        } catch (IllegalStateException expected) {
+            // Expected.
+        }
+        Mockito.verifyZeroInteractions(blockReblocking);
+        Mockito.verify(cidrDefRepository, Mockito.never()).save(Mockito.any(CidrDef.class));
+
+        // Back at the recorded size, nothing lost.
+        restartStore();
+        long[] words = store.readBlock(0);
+        Assert.assertTrue("Bits lost", BitWords.get(words, 3) && BitWords.get(words, 56));
+    }
+
+    private void restartStore() throws Exception {
+        store.stop();
+        store = startStore();
+    }
+
+    private MappedBitBlockStore startStore() {
+        MappedBitBlockStore started = new MappedBitBlockStore(cidrStateService, blockService, blockRepository, new BlockLockStripes(16));
+        started.setFile(fileDir.resolve("pool.bitmap").toString());
+        started.setForceIntervalMs(60_000);
+        started.start();
+        started.loadAtStartup();
+        return started;
+    }
+}
@@ -0,0 +1,160 @@
+package com.project.challenge.services;
+
+import com.project.challenge.entities.CidrBitBlock;
+import com.project.challenge.model.CIDR;
+import com.project.challenge.repositories.BlockRepository;
+import org.junit.Assert;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Pageable;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Shaking down the write-through block store's handling of concurrent writers, and of blocks not yet written.
+ */
+public class RepositoryBitBlockStoreTest {
+    private IpBlockService blockService = new IpBlockServiceImpl(new Ipv4ConversionServiceImpl());
+    private BlockRepository blockRepository;
+    private RepositoryBitBlockStore store;
+
+    @BeforeEach
+    public void setup() {
+        blockRepository = Mockito.mock(BlockRepository.class);
+        // Each read gets a fresh copy, as it would from the database.
+        Mockito.when(blockRepository.findById(0)).thenAnswer(invocation -> {
+            CidrBitBlock bitBlock = new CidrBitBlock();
+            bitBlock.setId(0);
+            bitBlock.setEncodedBits(blockService.getEmptyBlock());
+            bitBlock.setVersion(0L);
+            return Optional.of(bitBlock);
+        });
+        // Five blocks' worth of addresses.
+        CIDR cidrBlock = new CIDR("10.0.0.0/19", 0x0a000000L, 0x0a0013ffL, true);
+        cidrBlock.setBlockCount(5);
+        CidrStateService cidrStateService = Mockito.mock(CidrStateService.class);
+        Mockito.when(cidrStateService.getCidrPools()).thenReturn(CidrPools.of(Collections.singletonList(cidrBlock)));
+        store = new RepositoryBitBlockStore(blockService, blockRepository, new BlockLockStripes(16), cidrStateService);
+        store.setMaxRetries(2);
+    }
+
+    @Test
+    public void testStaleSaveIsRetried() throws Exception {
+        Mockito.when(blockRepository.save(Mockito.any(CidrBitBlock.class)))
+                .thenThrow(new ObjectOptimisticLockingFailureException(CidrBitBlock.class, 0))
+                .thenAnswer(invocation -> invocation.getArgument(0));
+
+        store.updateBlock(0, words -> { BitWords.set(words, 7, true); return null; });
+
+        Mockito.verify(blockRepository, Mockito.times(2)).findById(0);
+        Mockito.verify(blockRepository, Mockito.times(2)).save(Mockito.any(CidrBitBlock.class));
+    }
+
+    @Test
+    public void testRetriesAreBounded() {
+        Mockito.when(blockRepository.save(Mockito.any(CidrBitBlock.class)))
+                .thenThrow(new ObjectOptimisticLockingFailureException(CidrBitBlock.class, 0));
+        try {
+            store.updateBlock(0, words -> { BitWords.set(words, 7, true); return null; });
+            Assert.fail("Update succeeded despite constant conflicts.");
+        } catch (IpStateServiceException expected) {
+            Mockito.verify(blockRepository, Mockito.times(3)).save(Mockito.any(CidrBitBlock.class));
+        }
+    }
+
+    @Test
+    public void testUnchangedBlockNotSaved() throws Exception {
+        store.updateBlock(0, words -> BitWords.get(words, 7));
+        Mockito.verify(blockRepository, Mockito.never()).save(Mockito.any(CidrBitBlock.class));
+    }
+
+    @Test
+    public void testScanReadsPageAfterPage() {
+        store.setScanPageSize(2);
+        Mockito.when(blockRepository.findByIdGreaterThanOrderByIdAsc(Mockito.anyInt(), Mockito.any(Pageable.class)))
+                .thenAnswer(invocation -> {
+                    int afterId = invocation.getArgument(0);
+                    Pageable pageable = invocation.getArgument(1);
+                    List<CidrBitBlock> page = new ArrayList<>();
+                    for (int id = afterId + 1; id < 5  &&  page.size() < pageable.getPageSize(); id++) {
+                        CidrBitBlock bitBlock = new CidrBitBlock();
+                        bitBlock.setId(id);
+                        bitBlock.setEncodedBits(blockService.getEmptyBlock());
+                        page.add(bitBlock);
+                    }
+                    return page;
+                });
+
+        List<Integer> visited = new ArrayList<>();
+        store.forEachBlock((blockNum, words) -> visited.add(blockNum));
+        Assert.assertEquals("Blocks missed or out of order", Arrays.asList(0, 1, 2, 3, 4), visited);
+        Mockito.verify(blockRepository, Mockito.times(3))
+                .findByIdGreaterThanOrderByIdAsc(Mockito.anyInt(), Mockito.any(Pageable.class));
+    }
+
+    @Test
+    public void testMissingBlockIsFreeUntilChanged() throws Exception {
+        Mockito.when(blockRepository.findById(3)).thenReturn(Optional.empty());
+        Mockito.when(blockRepository.save(Mockito.any(CidrBitBlock.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        Assert.assertTrue("Missing block not free", BitWords.isClear(store.readBlock(3), 0, 1024));
+
+        store.updateBlock(3, words -> BitWords.get(words, 7));
+        Mockito.verify(blockRepository, Mockito.never()).save(Mockito.any(CidrBitBlock.class));
+
+        store.updateBlock(3, words -> { BitWords.set(words, 7, true); return null; });
+        Mockito.verify(blockRepository).save(Mockito.argThat(bitBlock ->
+                bitBlock.getId() == 3  &&  bitBlock.getVersion() == null  &&  BitWords.get(blockService.getBlockWords(bitBlock), 7)
+        ));
+
+        try {
+            store.readBlock(5);
+            Assert.fail("Read block beyond every CIDR block.");
+        } catch (IpStateServiceException expected) {
+            // Expected outcome.
+        }
+    }
+
+    @Test
+    public void testInsertRaceIsRetried() throws Exception {
+        Mockito.when(blockRepository.findById(3)).thenReturn(Optional.empty());
+        Mockito.when(blockRepository.save(Mockito.any(CidrBitBlock.class)))
+                .thenThrow(new DuplicateKeyException("Block 3 inserted elsewhere"))
+                .thenAnswer(invocation -> invocation.getArgument(0));
+
+        store.updateBlock(3, words -> { BitWords.set(words, 7, true); return null; });
+
+        Mockito.verify(blockRepository, Mockito.times(2)).save(Mockito.any(CidrBitBlock.class));
+    }
+
+    @Test
+    public void testScanVisitsMissingBlocksAsFree() {
+        Mockito.when(blockRepository.findByIdGreaterThanOrderByIdAsc(Mockito.anyInt(), Mockito.any(Pageable.class)))
+                .thenAnswer(invocation -> {
+                    int afterId = invocation.getArgument(0);
+                    List<CidrBitBlock> page = new ArrayList<>();
+                    if (afterId < 2) {
+                        CidrBitBlock bitBlock = new CidrBitBlock();
+                        bitBlock.setId(2);
+                        bitBlock.setRawBits(blockService.packBlock(new long[] { -1L }));
+                        page.add(bitBlock);
+                    }
+                    return page;
+                });
+
+        List<Integer> visited = new ArrayList<>();
+        List<Long> firstWords = new ArrayList<>();
+        store.forEachBlock((blockNum, words) -> {
+            visited.add(blockNum);
+            firstWords.add(words[0]);
+        });
+        Assert.assertEquals("Blocks missed or out of order", Arrays.asList(0, 1, 2, 3, 4), visited);
+        Assert.assertEquals("Unexpected content", Arrays.asList(0L, 0L, -1L, 0L, 0L), firstWords);
+    }
+}
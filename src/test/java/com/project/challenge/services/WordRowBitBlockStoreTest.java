@@ -0,0 +1,243 @@
+package com.project.challenge.services;
+
+import com.project.challenge.entities.CidrBitBlock;
+import com.project.challenge.model.CIDR;
+import com.project.challenge.model.IpStats;
+import com.project.challenge.repositories.BlockRepository;
+import com.project.challenge.repositories.BlockWordRepository;
+import org.junit.Assert;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.data.domain.Pageable;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shaking down the word-row block store, against embedded H2.  Two stores over one database stand in for two
+ * applications sharing it.
+ */
+public class WordRowBitBlockStoreTest {
+    private IpBlockService blockService = new IpBlockServiceImpl(new Ipv4ConversionServiceImpl());
+    private EmbeddedDatabase database;
+    private BlockWordRepository wordRepository;
+    private BlockRepository blockRepository;
+    private CidrStateService cidrStateService;
+    private CidrPools cidrPools;
+    private WordRowBitBlockStore store;
+    private WordRowBitBlockStore otherStore;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        database = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .generateUniqueName(true)
+                .addScript("schema.sql")
+                .build();
+        wordRepository = new BlockWordRepository(new JdbcTemplate(database));
+        blockRepository = Mockito.mock(BlockRepository.class);
+        Mockito.when(blockRepository.findByIdGreaterThanOrderByIdAsc(Mockito.anyInt(), Mockito.any(Pageable.class)))
+                .thenReturn(Collections.emptyList());
+
+        // Exclusive range: 10.0.0.1 .. 10.0.7.254, spanning two blocks.
+        CIDR cidrBlock = new Ipv4ConversionServiceImpl().toCidr("10.0.0.0/21");
+        cidrPools = CidrPools.EMPTY.with(cidrBlock, blockService.getBlockCount(cidrBlock));
+        cidrStateService = Mockito.mock(CidrStateService.class);
+        Mockito.when(cidrStateService.isPopulated()).thenReturn(true);
+        Mockito.when(cidrStateService.getCidrPools()).thenAnswer(invocation -> cidrPools);
+        Mockito.when(cidrStateService.refreshAfterMiss()).thenAnswer(invocation -> cidrPools);
+
+        store = newStore();
+        otherStore = newStore();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        database.shutdown();
+    }
+
+    @Test
+    public void testSetBitIsConditional() throws Exception {
+        CountingListener listener = new CountingListener();
+        Assert.assertTrue("Bit of missing word not set", store.setBit(1, 130, true, listener));
+        Assert.assertFalse("Bit set twice", otherStore.setBit(1, 130, true, listener));
+        Assert.assertTrue("Neighbouring bit not set", store.setBit(1, 131, true, listener));
+        Assert.assertTrue("Bit not cleared", otherStore.setBit(1, 130, false, listener));
+        Assert.assertFalse("Bit cleared twice", store.setBit(1, 130, false, listener));
+        Assert.assertFalse("Missing word cleared", store.setBit(0, 5, false, listener));
+        Assert.assertEquals("Unexpected changes told", 3, listener.bitsChanged.get());
+        Assert.assertEquals("Block read instead", 0, listener.blocksUpdated.get());
+
+        long[] words = store.readBlock(1);
+        Assert.assertEquals("Unexpected word", 1L << 3, words[2]);
+        Assert.assertEquals("Unexpected bits", 1, BitWords.cardinality(words, 1024));
+
+        // The highest bit of a word is the sign bit.
+        Assert.assertTrue("Sign bit not set", store.setBit(0, 63, true, listener));
+        Assert.assertFalse("Sign bit set twice", store.setBit(0, 63, true, listener));
+        Assert.assertEquals("Unexpected sign word", Long.MIN_VALUE, store.readBlock(0)[0]);
+    }
+
+    @Test
+    public void testEachBitAcquiredOnceAcrossWriters() throws Exception {
+        final int bits = 200;
+        final AtomicInteger acquired = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 8; thread++) {
+                final WordRowBitBlockStore writer = thread % 2 == 0 ? store : otherStore;
+                futures.add(executor.submit(() -> {
+                    for (int bit = 0; bit < bits; bit++) {
+                        if (writer.setBit(0, bit, true, new CountingListener())) {
+                            acquired.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals("Bits acquired more or less than once", bits, acquired.get());
+        Assert.assertEquals("Unexpected bits", bits, BitWords.cardinality(store.readBlock(0), 1024));
+    }
+
+    @Test
+    public void testStaleUpdateIsRetried() throws Exception {
+        store.setBit(0, 3, true, new CountingListener());
+        final AtomicInteger attempts = new AtomicInteger();
+        store.updateBlock(0, words -> {
+            if (attempts.incrementAndGet() == 1) {
+                // Another writer gets in between this read and its write.
+                otherStore.setBit(0, 9, true, new CountingListener());
+            }
+            BitWords.setRange(words, 4, 8);
+            return null;
+        });
+        Assert.assertEquals("Stale update not retried", 2, attempts.get());
+        long[] words = store.readBlock(0);
+        Assert.assertEquals("Unexpected word", 0x2f8L, words[0]);
+    }
+
+    @Test
+    public void testAllOrNothingAcrossBlocks() throws Exception {
+        store.updateBlocks(new int[] { 0, 1 }, blocksWords -> {
+            BitWords.setRange(blocksWords[0], 1000, 1024);
+            BitWords.setRange(blocksWords[1], 0, 10);
+            return null;
+        });
+        Assert.assertEquals("Unexpected first block", 24, BitWords.cardinality(store.readBlock(0), 1024));
+        Assert.assertEquals("Unexpected second block", 10, BitWords.cardinality(store.readBlock(1), 1024));
+
+        List<Integer> visited = new ArrayList<>();
+        List<Integer> counts = new ArrayList<>();
+        store.forEachBlock((blockNum, words) -> {
+            visited.add(blockNum);
+            counts.add(BitWords.cardinality(words, 1024));
+        });
+        Assert.assertEquals("Blocks missed", Arrays.asList(0, 1), visited);
+        Assert.assertEquals("Unexpected counts", Arrays.asList(24, 10), counts);
+
+        try {
+            store.readBlock(2);
+            Assert.fail("Read block beyond every CIDR block.");
+        } catch (IpStateServiceException expected) {
+            // Expected outcome.
+        }
+    }
+
+    @Test
+    public void testBlocksCopiedInAtFirstUse() throws Exception {
+        CidrBitBlock bitBlock = new CidrBitBlock();
+        bitBlock.setId(1);
+        bitBlock.setRawBits(blockService.packBlock(new long[] { 0, 0, 0, 5L }));
+        Mockito.when(blockRepository.findByIdGreaterThanOrderByIdAsc(Mockito.eq(-1), Mockito.any(Pageable.class)))
+                .thenReturn(Collections.singletonList(bitBlock));
+
+        WordRowBitBlockStore freshStore = newStore();
+        Assert.assertEquals("Block not copied in", 5L, freshStore.readBlock(1)[3]);
+        Assert.assertFalse("Copied twice", newStore().setBit(1, 3 * 64, true, new CountingListener()));
+    }
+
+    @Test
+    public void testServiceCountsBitsChanged() throws Exception {
+        IpStateService service = new IpStateServiceImpl(
+                new Ipv4ConversionServiceImpl(), cidrStateService, blockService, store, Mockito.mock(BlockReblocking.class)
+        );
+        service.setIpStateAcquired("10.0.0.1");
+        service.setIpStateAcquired("10.0.4.2");
+        try {
+            service.setIpStateAcquired("10.0.0.1");
+            Assert.fail("Acquired same IP address twice.");
+        } catch (IpStateServiceException expected) {
+            // Expected outcome.
+        }
+        service.setIpStateReleased("10.0.4.2");
+        service.setIpStateReleased("10.0.4.2");
+
+        IpStats stats = service.getIpStats(false);
+        Assert.assertEquals("Unexpected acquired", 1, stats.getOverall().getAcquired());
+        service.setIpStateAcquired("10.0.7.254");
+        Assert.assertEquals("Change not counted", 2, service.getIpStats(false).getOverall().getAcquired());
+        Assert.assertEquals("Unexpected next IP", "10.0.0.2", service.acquireNextIp());
+    }
+
+    @Test
+    public void testServiceCountsOtherApplicationsChanges() throws Exception {
+        IpStateService service = new IpStateServiceImpl(
+                new Ipv4ConversionServiceImpl(), cidrStateService, blockService, store, Mockito.mock(BlockReblocking.class)
+        );
+        Assert.assertFalse("Shared store taken as sole writer", service.isSoleWriter());
+        service.setIpStateAcquired("10.0.0.1");
+        Assert.assertEquals("Unexpected acquired", 1, service.getIpStats(false).getOverall().getAcquired());
+
+        // Acquired by another application, through its own store.
+        otherStore.setBit(1, 7, true, new CountingListener());
+        Assert.assertEquals("Other application's change not counted", 2, service.getIpStats(false).getOverall().getAcquired());
+    }
+
+    private WordRowBitBlockStore newStore() {
+        WordRowBitBlockStore newStore = new WordRowBitBlockStore(
+                blockService,
+                wordRepository,
+                blockRepository,
+                new BlockLockStripes(16),
+                cidrStateService,
+                new DataSourceTransactionManager(database)
+        );
+        newStore.setMaxRetries(2);
+        return newStore;
+    }
+
+    private static class CountingListener implements BitBlockStore.BitChangeListener {
+        private final AtomicInteger blocksUpdated = new AtomicInteger();
+        private final AtomicInteger bitsChanged = new AtomicInteger();
+
+        @Override
+        public void blockUpdated(int blockNum, long[] words) {
+            blocksUpdated.incrementAndGet();
+        }
+
+        @Override
+        public void bitChanged(int blockNum, int blockOffset, boolean value) {
+            bitsChanged.incrementAndGet();
+        }
+    }
+}